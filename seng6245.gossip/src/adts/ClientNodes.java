@@ -2,6 +2,7 @@ package adts;
 
 import java.io.IOException;
 
+import protocol.Presence;
 import server.Channel;
 
 /*
@@ -25,13 +26,18 @@ public class ClientNodes extends Nodes
 	}
 
 	/*
-	 * appends "ClientNodes (" + this.name + "): "  to the underlying list of nodes
+	 * puts "ClientNodes (" + this.name + "): " in front of the underlying list of nodes
 	 */
 	@Override
-	public String getList()
+	protected String getHeader()
 	{
-		String list = super.getList();
-		return "ClientNodes (" + this.name + "): " + list;
+		return "ClientNodes (" + this.name + "): ";
+	}
+
+	@Override
+	public String getListName()
+	{
+		return Presence.quorumList(this.name);
 	}
 	
 	/*
@@ -0,0 +1,98 @@
+package adts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.Channel;
+import server.Threads;
+
+/**
+ * @author thetrick
+ * Collects the changes to a membership list over a short window so that a
+ * storm of joins and leaves, e.g. every client reconnecting after a
+ * restart, is broadcast once per window instead of once per change. The
+ * list itself changes right away; only the notification is held back. A
+ * name that is added and removed within one window cancels out.
+ *
+ * With a window of 0 nothing is collected and the owner notifies at once.
+ */
+public class Coalescer
+{
+	private static final AtomicLong _changesAll = new AtomicLong(0);
+	private static final AtomicLong _broadcastsAll = new AtomicLong(0);
+
+	private final long _windowMillis;
+	private final Runnable _flush;
+	// net change per name in this window, true if added
+	private final LinkedHashMap<String, Boolean> _changes = new LinkedHashMap<String, Boolean>();
+	// channels that joined in this window and still need the whole list
+	private final ArrayList<Channel> _joiners = new ArrayList<Channel>();
+	private boolean _scheduled = false;
+
+	/*
+	 * Constructor
+	 * @param long - milliseconds changes are collected for, 0 for none
+	 * @param Runnable - broadcasts the collected changes, run once the window closes
+	 */
+	public Coalescer(long windowMillis, Runnable flush)
+	{
+		this._windowMillis = windowMillis;
+		this._flush = flush;
+	}
+
+	/*
+	 * @return boolean - true if changes are broadcast as they happen
+	 */
+	public boolean isImmediate()
+	{
+		return this._windowMillis <= 0;
+	}
+
+	/*
+	 * Remembers a change and opens a window if none is open
+	 * @param String - name added to or removed from the list
+	 * @param boolean - true if the name was added
+	 * @param Channel - the channel that joined, null if none
+	 */
+	public synchronized void record(String name, boolean added, Channel joiner)
+	{
+		_changesAll.incrementAndGet();
+		Boolean previous = this._changes.remove(name);
+		if (previous == null || previous.booleanValue() == added)
+			this._changes.put(name, added);
+		if (joiner != null)
+			this._joiners.add(joiner);
+		if (!this._scheduled)
+		{
+			this._scheduled = true;
+			Threads.timer().schedule(this._flush, this._windowMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Hands the collected changes to the broadcast and closes the window.
+	 * Called by the owner while it holds the lock of its list.
+	 * @param Map<String, Boolean> - receives the net change per name
+	 * @param ArrayList<Channel> - receives the channels that joined
+	 */
+	public synchronized void drain(Map<String, Boolean> changes, ArrayList<Channel> joiners)
+	{
+		changes.putAll(this._changes);
+		joiners.addAll(this._joiners);
+		this._changes.clear();
+		this._joiners.clear();
+		this._scheduled = false;
+		_broadcastsAll.incrementAndGet();
+	}
+
+	/*
+	 * @return String - changes recorded and broadcasts sent by all lists
+	 */
+	public static String report()
+	{
+		return "coalesce changes=" + _changesAll.get() + " broadcasts=" + _broadcastsAll.get();
+	}
+}
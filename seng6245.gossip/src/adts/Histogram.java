@@ -0,0 +1,186 @@
+package adts;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author thetrick
+ * A histogram of non-negative values with one bucket per power of two, so
+ * recording is a few atomic increments and never allocates. Percentiles are
+ * reported as the upper bound of the bucket they fall in, i.e. at most twice
+ * the real value.
+ *
+ * For finer percentiles each power of two can be split further into 2^precision
+ * equal buckets, as HdrHistogram does: values below 2^precision are counted
+ * exactly and larger ones to within 1 part in 2^precision, at the cost of
+ * 2^precision times the buckets.
+ */
+public class Histogram
+{
+	private final String _name;
+	private final String _unit;
+	private final int _precision;
+	private final AtomicLongArray _counts;
+	private final AtomicLong _count = new AtomicLong(0);
+	private final AtomicLong _sum = new AtomicLong(0);
+	private final AtomicLong _max = new AtomicLong(0);
+
+	/*
+	 * Constructor
+	 * @param String - name used in the report
+	 * @param String - unit of the values, used in the report
+	 */
+	public Histogram(String name, String unit)
+	{
+		this(name, unit, 0);
+	}
+
+	/*
+	 * Constructor
+	 * @param String - name used in the report
+	 * @param String - unit of the values, used in the report
+	 * @param int - bits of each value kept, 0 <= int <= 16; 0 for one bucket per power of two
+	 */
+	public Histogram(String name, String unit, int precision)
+	{
+		if (precision < 0 || precision > 16)
+			throw new IllegalArgumentException("precision should be between [0, 16]");
+		this._name = name;
+		this._unit = unit;
+		this._precision = precision;
+		this._counts = new AtomicLongArray((64 - precision) << precision);
+	}
+
+	/*
+	 * counts one value
+	 * @param long - the value, negative values count as 0
+	 */
+	public void record(long value)
+	{
+		record(value, 1);
+	}
+
+	/*
+	 * counts the same value several times, e.g. once per message of a batch
+	 * @param long - the value, negative values count as 0
+	 * @param long - the number of times
+	 */
+	public void record(long value, long times)
+	{
+		if (value < 0)
+			value = 0;
+		this._counts.addAndGet(bucket(value), times);
+		this._count.addAndGet(times);
+		this._sum.addAndGet(value * times);
+		for (long max = this._max.get(); value > max; max = this._max.get())
+			if (this._max.compareAndSet(max, value))
+				break;
+	}
+
+	/*
+	 * Values below 2^precision have a bucket each. Above that the buckets
+	 * come in bands of 2^precision, one band per power of two, split by the
+	 * bits below the highest one.
+	 * @return int - the bucket of a value: 0 for 0, otherwise its bit length when precision is 0
+	 */
+	private int bucket(long value)
+	{
+		int precision = this._precision;
+		if (value < (1L << precision))
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - precision;
+		return ((shift + 1) << precision) + (int) ((value >>> shift) - (1L << precision));
+	}
+
+	/*
+	 * @return long - the largest value counted in a bucket
+	 */
+	private long highest(int bucket)
+	{
+		int precision = this._precision;
+		if (bucket < (1 << precision))
+			return bucket;
+		int shift = (bucket >>> precision) - 1;
+		long lowest = ((1L << precision) + (bucket & ((1 << precision) - 1))) << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+
+	/*
+	 * @return long - the number of values recorded
+	 */
+	public long getCount()
+	{
+		return this._count.get();
+	}
+
+	/*
+	 * @return double - the mean of the values recorded, 0 if none
+	 */
+	public double getMean()
+	{
+		long count = this._count.get();
+		return count == 0 ? 0 : (double) this._sum.get() / count;
+	}
+
+	/*
+	 * @return long - the largest value recorded
+	 */
+	public long getMax()
+	{
+		return this._max.get();
+	}
+
+	/*
+	 * @param double - the percentile, 0 < p <= 100
+	 * @return long - upper bound of the bucket holding the percentile, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long count = this._count.get();
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < this._counts.length(); i++)
+		{
+			seen += this._counts.get(i);
+			if (seen >= rank)
+				return Math.min(highest(i), getMax());
+		}
+		return getMax();
+	}
+
+	/*
+	 * forgets every value recorded
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < this._counts.length(); i++)
+			this._counts.set(i, 0);
+		this._count.set(0);
+		this._sum.set(0);
+		this._max.set(0);
+	}
+
+	/*
+	 * @return String - one line with count, mean, percentiles and maximum
+	 */
+	public String report()
+	{
+		return String.format("%s n=%d mean=%.1f%s p50=%d%s p99=%d%s max=%d%s", _name, getCount(), getMean(), _unit,
+				getPercentile(50), _unit, getPercentile(99), _unit, getMax(), _unit);
+	}
+
+	/*
+	 * @param double[] - the percentiles to report, e.g. 99.9
+	 * @return String - one line with count, the given percentiles and maximum
+	 */
+	public String report(double[] percentiles)
+	{
+		StringBuilder report = new StringBuilder(_name).append(" n=").append(getCount());
+		for (double percentile : percentiles)
+			report.append(" p").append(percentile == (long) percentile ? Long.toString((long) percentile)
+					: Double.toString(percentile)).append('=').append(getPercentile(percentile)).append(_unit);
+		return report.append(" max=").append(getMax()).append(_unit).toString();
+	}
+}
@@ -0,0 +1,124 @@
+package adts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import server.Frame;
+
+/**
+ * @author thetrick
+ * The last messages of a quorum, so that someone joining can catch up. The
+ * messages are kept as the frames that were delivered, in a ring allocated
+ * up front, and the oldest are dropped once there are more than a given
+ * number of messages or bytes. The bytes are those the frames take in
+ * memory (see Frame.retainedSize), not only their encoded lines, so they
+ * cap what a quorum's history costs. Adding a message stores a reference
+ * and allocates nothing.
+ *
+ * One thread at a time adds messages; any number may read alongside without
+ * holding it up. A reader copies what it wants and then drops whatever was
+ * overwritten while it copied.
+ */
+public class History
+{
+	private final AtomicReferenceArray<Frame> _frames;
+	private final int _capacity;
+	private final long _maxBytes;
+	// sequence number of the next message and of the oldest one kept
+	private volatile long _head = 0;
+	private volatile long _tail = 0;
+	// only touched by the thread adding
+	private long _bytes = 0;
+
+	/*
+	 * Constructor
+	 * @param int - most messages kept
+	 * @param long - most bytes of memory kept, see Frame.retainedSize
+	 */
+	public History(int capacity, long maxBytes)
+	{
+		this._capacity = Math.max(capacity, 1);
+		this._frames = new AtomicReferenceArray<Frame>(this._capacity);
+		this._maxBytes = maxBytes;
+	}
+
+	/*
+	 * keeps a message, dropping the oldest ones as needed. A message longer
+	 * than all the bytes allowed is not kept.
+	 * @param Frame - the message as delivered
+	 */
+	public void add(Frame frame)
+	{
+		int size = frame.retainedSize();
+		if (size > this._maxBytes)
+			return;
+		long head = this._head;
+		long tail = this._tail;
+		while (head - tail >= this._capacity || this._bytes + size > this._maxBytes)
+		{
+			int slot = (int) (tail % this._capacity);
+			this._bytes -= this._frames.get(slot).retainedSize();
+			// readers learn the slot is gone before it is reused
+			this._tail = ++tail;
+			this._frames.set(slot, null);
+		}
+		this._frames.set((int) (head % this._capacity), frame);
+		this._bytes += size;
+		this._head = head + 1;
+	}
+
+	/*
+	 * @param int - most messages wanted
+	 * @return List<Frame> - the last messages, oldest first
+	 */
+	public List<Frame> last(int count)
+	{
+		long head = this._head;
+		long from = Math.max(this._tail, head - Math.max(count, 0));
+		Frame[] copy = new Frame[(int) (head - from)];
+		for (long sequence = from; sequence < head; sequence++)
+			copy[(int) (sequence - from)] = this._frames.get((int) (sequence % this._capacity));
+
+		// anything dropped meanwhile may have been overwritten
+		long tail = this._tail;
+		ArrayList<Frame> frames = new ArrayList<Frame>(copy.length);
+		for (long sequence = Math.max(from, tail); sequence < head; sequence++)
+			frames.add(copy[(int) (sequence - from)]);
+		return frames;
+	}
+
+	/*
+	 * copies the messages of another history, up to what this one keeps
+	 * @param History - the history to copy
+	 */
+	public void addAll(History other)
+	{
+		for (Frame frame : other.last(Integer.MAX_VALUE))
+			add(frame);
+	}
+
+	/*
+	 * @return int - number of messages kept
+	 */
+	public int size()
+	{
+		return (int) (this._head - this._tail);
+	}
+
+	/*
+	 * @return int - most messages kept
+	 */
+	public int getCapacity()
+	{
+		return this._capacity;
+	}
+
+	/*
+	 * @return long - most bytes of memory kept
+	 */
+	public long getMaxBytes()
+	{
+		return this._maxBytes;
+	}
+}
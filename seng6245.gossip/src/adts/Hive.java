@@ -1,23 +1,62 @@
 package adts;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import protocol.Presence;
+import protocol.Symbols;
 import server.Channel;
+import server.Config;
+import server.Frame;
+import server.Threads;
 
 /**
  * The Hive is container class for the list of Quorums that may exist.
  * As such, the class contains the means by which to orchestrate and administer
  * the activities associated the Hive
+ * 
+ * The Hive takes no lock: quorums are added and removed with atomic map
+ * operations, and the changes are queued and broadcast in order by whichever
+ * thread finds no broadcast running, outside of any lock of the Hive.
+ * 
+ * With a journal configured the Hive records the quorums and their members
+ * in it. When the server starts again it reads the journal back, and puts
+ * each user into their quorums again when they connect. Memberships not
+ * claimed within the restore grace are dropped from the journal, along with
+ * the quorums no one came back to.
  */
 public class Hive
 {
 	private ServerNodes _serverNodes;
-	private final Map<String, Quorum> _quorums;
+	// sorted by name
+	private final QuorumMap _quorums;
+	// counts every change, tells whether the rendered list is current
+	private final AtomicLong _changes = new AtomicLong(0);
+	private volatile Listing _list = null;
+	// changes waiting to be broadcast, true if the quorum was added
+	private final ConcurrentLinkedQueue<Map.Entry<String, Boolean>> _pending = new ConcurrentLinkedQueue<Map.Entry<String, Boolean>>();
+	private final AtomicBoolean _broadcasting = new AtomicBoolean(false);
 	private boolean isTest = false;
+	// incremented with every change broadcast, see Presence
+	private volatile long version = 0;
+	// holds notifications back while many quorums come and go
+	private final Coalescer coalescer;
+	// quorums and members on disk, null if not configured
+	private final Journal _journal;
+	// quorums by user as recovered from the journal, until the user connects
+	private final HashMap<String, List<String>> _restore = new HashMap<String, List<String>>();
 
 	/*
 	 * constructor
@@ -31,37 +70,271 @@ public class Hive
 	public Hive(ServerNodes serverNodes, boolean isTest)
 	{
 		this._serverNodes = serverNodes;
-		this._quorums = new HashMap<String, Quorum>();		
+		this._quorums = new QuorumMap();
+		this.coalescer = new Coalescer(Config.get().getCoalesceMillis(), new Runnable()
+		{
+			public void run()
+			{
+				flushChanges();
+			}
+		});
+		this._journal = openJournal();
+		if (this._journal != null)
+			for (Map.Entry<String, Set<String>> quorum : this._journal.getRecovered().entrySet())
+				for (String user : quorum.getValue())
+				{
+					List<String> quorums = this._restore.get(user);
+					if (quorums == null)
+						this._restore.put(user, quorums = new ArrayList<String>());
+					quorums.add(quorum.getKey());
+				}
+		if (!this._restore.isEmpty())
+			Threads.timer().schedule(new Runnable()
+			{
+				public void run()
+				{
+					expireRestore();
+				}
+			}, Config.get().getRestoreGraceMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * opens the journal if one is configured. The Hive goes on without one
+	 * if it cannot be opened.
+	 * @return Journal - the journal, null if none
+	 */
+	private static Journal openJournal()
+	{
+		Config config = Config.get();
+		if (config.getJournalDir() == null)
+			return null;
+		try
+		{
+			long start = System.nanoTime();
+			Journal journal = new Journal(new File(config.getJournalDir()), config.getJournalSyncMillis(),
+					config.getSnapshotEvery());
+			Logger.info("Hive: " + journal.getRecovered().size() + " quorums recovered in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+			return journal;
+		}
+		catch (IOException e)
+		{
+			Logger.warn("Hive: no journal " + e.getMessage());
+			return null;
+		}
 	}
 	
 	/*
-	 * Add Quorum to the Hive's master list and notify everyone of the change
+	 * Add Quorum to the Hive's master list and notify everyone of the change.
+	 * A Quorum whose last member just left gives up its name.
 	 * @param Quorum - quorum to add
 	 * @throws IOException - thrown if the Quorum already exists in the master list
 	 */
-	public synchronized void addQuorum(Quorum quorum) throws IOException
+	public void addQuorum(Quorum quorum) throws IOException
 	{
-		if (this.contains(quorum.Id))
-			throw new IOException("The Quorum already exists in the Hive.");
-		
-		// store the Quorum
-		this._quorums.put(quorum.Id, quorum);
-		
-		// notify all the nodes
-		this._serverNodes.notifyChannels(getQuorums());
-		return;
+		// store the Quorum unless the name is taken
+		for (Quorum existing = this._quorums.putIfAbsent(quorum.Id, quorum); existing != null; existing = this._quorums
+				.putIfAbsent(quorum.Id, quorum))
+		{
+			if (existing.isOpen())
+				throw new IOException("The Quorum already exists in the Hive.");
+			removeQuorum(existing);
+		}
+		if (this._journal != null)
+			this._journal.quorumMade(quorum.Id);
+		changed(quorum.Id, true);
 	}
 
 	/*
-	 * Removes the Quorum from the Master Hive list
+	 * Removes the Quorum from the Master Hive list, unless the name has
+	 * already been taken by a new Quorum
 	 * @param Quorum - quorum to remove
 	 */
-	public synchronized void removeQuorum(Quorum quorum)
+	public void removeQuorum(Quorum quorum)
+	{
+		if (this._quorums.remove(quorum.Id, quorum))
+		{
+			if (this._journal != null)
+				this._journal.quorumRemoved(quorum.Id);
+			// a quorum of that name made later is numbered anew
+			Symbols.drop(quorum.Id);
+			changed(quorum.Id, false);
+		}
+	}
+
+	/*
+	 * Adds the channel to an existing quorum. A quorum whose last member
+	 * just left counts as gone.
+	 * @param String - name of the quorum
+	 * @param Channel - channel joining the quorum
+	 * @return Quorum - the quorum joined, null if it does not exist
+	 * @throws IOException - if the user is already in the quorum
+	 */
+	public Quorum join(String id, Channel channel) throws IOException
+	{
+		Quorum quorum = this._quorums.get(id);
+		if (quorum == null)
+			return null;
+		try
+		{
+			quorum.addChannel(channel);
+			return quorum;
+		}
+		catch (IOException e)
+		{
+			if (quorum.isOpen())
+				throw e;
+			// closed but not removed yet, do it now so the name is free
+			removeQuorum(quorum);
+			return null;
+		}
+	}
+
+	/*
+	 * Joins the quorum, making it first if it does not exist, as one step
+	 * @param String - name of the quorum
+	 * @param Channel - channel joining the quorum
+	 * @return Quorum - the quorum joined or made
+	 * @throws IOException - if the user is already in the quorum
+	 */
+	public Quorum makeOrJoin(String id, Channel channel) throws IOException
+	{
+		while (true)
+		{
+			Quorum quorum = join(id, channel);
+			if (quorum != null)
+				return quorum;
+			try
+			{
+				return new Quorum(id, this, channel);
+			}
+			catch (IOException e)
+			{
+				// made by someone else meanwhile, join that one
+			}
+		}
+	}
+
+	/*
+	 * Puts a user who just connected back into the quorums they were in when
+	 * the server stopped, as recovered from the journal; only done once
+	 * @param Channel - the channel of the user
+	 */
+	public void restore(Channel channel)
+	{
+		List<String> quorums;
+		synchronized (this._restore)
+		{
+			quorums = this._restore.remove(channel.getUserName());
+		}
+		if (quorums == null)
+			return;
+		for (String id : quorums)
+			try
+			{
+				Quorum quorum = makeOrJoin(id, channel);
+				channel.getQuorums().put(quorum.Id, quorum);
+			}
+			catch (IOException e)
+			{
+				Logger.warn("Hive: " + channel.getUserName() + " not restored to " + id + " " + e.getMessage());
+			}
+	}
+
+	/*
+	 * drops the recovered memberships whose users did not connect in time,
+	 * and the recovered quorums left without members that no one made again
+	 */
+	private void expireRestore()
+	{
+		HashMap<String, List<String>> unclaimed;
+		synchronized (this._restore)
+		{
+			unclaimed = new HashMap<String, List<String>>(this._restore);
+			this._restore.clear();
+		}
+		int memberships = 0;
+		for (Map.Entry<String, List<String>> user : unclaimed.entrySet())
+			for (String id : user.getValue())
+			{
+				this._journal.left(id, user.getKey());
+				memberships++;
+			}
+		for (Map.Entry<String, Set<String>> quorum : this._journal.getRoster().entrySet())
+			if (quorum.getValue().isEmpty() && this._journal.getRecovered().containsKey(quorum.getKey())
+					&& !contains(quorum.getKey()))
+				this._journal.quorumRemoved(quorum.getKey());
+		Logger.info("Hive: " + memberships + " recovered memberships not claimed");
+	}
+
+	/*
+	 * @return Journal - the journal of quorums and members, null if none
+	 */
+	public Journal getJournal()
+	{
+		return this._journal;
+	}
+
+	/*
+	 * records a change and broadcasts it, or has it collected for a while
+	 * @param String - name of the quorum
+	 * @param boolean - true if the quorum was added
+	 */
+	private void changed(String id, boolean added)
 	{
-		this._quorums.remove(quorum.Id);
-		// notify all the nodes
-		this._serverNodes.notifyChannels(getQuorums());
-		return;
+		this._changes.incrementAndGet();
+		if (!coalescer.isImmediate())
+		{
+			coalescer.record(id, added, null);
+			return;
+		}
+		this._pending.add(new SimpleImmutableEntry<String, Boolean>(id, added));
+		broadcast();
+	}
+
+	/*
+	 * Broadcasts queued changes in order, one delta each. Only one thread
+	 * broadcasts at a time; the others leave their change in the queue and
+	 * return, and the change is picked up before the broadcasting thread
+	 * lets go.
+	 */
+	private void broadcast()
+	{
+		while (!this._pending.isEmpty() && this._broadcasting.compareAndSet(false, true))
+		{
+			try
+			{
+				for (Map.Entry<String, Boolean> change = this._pending.poll(); change != null; change = this._pending.poll())
+				{
+					version++;
+					this._serverNodes.notifyMembership(getQuorumsFrame(),
+							Presence.delta(Presence.HIVE, version, change.getValue(), change.getKey()), null);
+				}
+			}
+			finally
+			{
+				this._broadcasting.set(false);
+			}
+		}
+	}
+
+	/*
+	 * Broadcasts the quorums made and dropped during a window as one update:
+	 * the full list, and for delta channels one delta, or a snapshot if more
+	 * than one quorum changed. Runs on the timer thread only.
+	 */
+	private void flushChanges()
+	{
+		LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+		coalescer.drain(changes, new ArrayList<Channel>());
+		if (changes.isEmpty())
+			return;
+		version++;
+		String change = Presence.snapshot(Presence.HIVE, version, getNames());
+		if (changes.size() == 1)
+			for (Map.Entry<String, Boolean> entry : changes.entrySet())
+				change = Presence.delta(Presence.HIVE, version, entry.getValue(), entry.getKey());
+		this._serverNodes.notifyMembership(getQuorumsFrame(), change, null);
 	}
 
 	/*
@@ -69,7 +342,7 @@ public class Hive
 	 * @param String - name of quorum
 	 * @return boolean - indicator if the quorum exists in the hive
 	 */
-	public synchronized boolean contains(String id)
+	public boolean contains(String id)
 	{
 		return this._quorums.containsKey(id);
 	}
@@ -85,29 +358,54 @@ public class Hive
 	}
 
 	/*
-	 * Returns all quorum names
-	 * @return String - The names of the Quorums in the Hive
+	 * Returns all quorum names, rendered once after every change
+	 * @return Frame - The names of the Quorums in the Hive
 	 */
-	private String getQuorums()
+	private Frame getQuorumsFrame()
 	{
-		StringBuilder stringBuilder = new StringBuilder("Hive ");
-		ArrayList<String> quorums = new ArrayList<String>();
+		Listing current = this._list;
+		// read the counter before the names: a change made meanwhile leaves the result stale, never wrong
+		long seen = this._changes.get();
+		if (current != null && current.changes == seen)
+			return current.frame;
+
+		StringBuilder stringBuilder = new StringBuilder("Hive");
 		for (String quorum : _quorums.keySet())
-			quorums.add(quorum);
-		Collections.sort(quorums);
-		for (String quorum : quorums)
-			stringBuilder.append(quorum + " ");
-		stringBuilder.deleteCharAt(stringBuilder.length() - 1);
-		return stringBuilder.toString();
+			stringBuilder.append(' ').append(quorum);
+		current = new Listing(seen, Frame.of(stringBuilder.toString()));
+		this._list = current;
+		return current.frame;
 	}
 
 	/*
-	 * Update a specific channel of all the Quorums in the Hive
+	 * Returns the sorted quorum names
+	 * @return ArrayList<String> - The names of the Quorums in the Hive
+	 */
+	private ArrayList<String> getNames()
+	{
+		return new ArrayList<String>(_quorums.keySet());
+	}
+
+	/*
+	 * Update a specific channel of all the Quorums in the Hive, with a
+	 * versioned snapshot if the channel asked for deltas
 	 * @param Channel - user to be updated
 	 */
-	public synchronized void updateChannel(Channel channel)
+	public void updateChannel(Channel channel)
+	{
+		if (channel.isDelta())
+			channel.updateBuffer(Presence.snapshot(Presence.HIVE, version, getNames()));
+		else
+			channel.updateBuffer(getQuorumsFrame());
+	}
+
+	/*
+	 * returns the version of the Hive, incremented with every change
+	 * @return long - the version
+	 */
+	public long getVersion()
 	{
-		channel.updateBuffer(getQuorums());
+		return version;
 	}
 
 	/*
@@ -118,4 +416,34 @@ public class Hive
 	{
 		return this._quorums;
 	}
+
+	/**
+	 * The list rendered and encoded, stamped with the change it is current for
+	 */
+	private static final class Listing
+	{
+		private final long changes;
+		private final Frame frame;
+
+		private Listing(long changes, Frame frame)
+		{
+			this.changes = changes;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Quorums by name. Looking for a null quorum answers false, as it did
+	 * when this was a HashMap, instead of throwing.
+	 */
+	private static final class QuorumMap extends ConcurrentSkipListMap<String, Quorum>
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean containsValue(Object value)
+		{
+			return value != null && super.containsValue(value);
+		}
+	}
 }
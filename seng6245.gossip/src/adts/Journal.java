@@ -0,0 +1,480 @@
+package adts;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import server.Threads;
+
+/**
+ * @author thetrick
+ * Write-ahead journal of the quorums and who is in them, so that a server
+ * coming back after a crash knows every room and its members without the
+ * clients building them again.
+ *
+ * Each change is a line in the current journal file: "+q quorum",
+ * "-q quorum", "+u quorum user" or "-u quorum user". Lines are collected in
+ * memory and written and forced together on the disk thread (see Threads)
+ * every few milliseconds, so recording a change never waits for the disk.
+ * After every so many changes the whole state is written to a snapshot file,
+ * one line per quorum with its members, and the journal starts a new file.
+ * Files are named after the number of changes before them; a snapshot is
+ * written to a temporary file and renamed once complete.
+ *
+ * Opening a journal loads the latest snapshot, replays the journal files
+ * written after it, and compacts the result into a new snapshot. A line cut
+ * short by a crash is cut off the file, so that nothing is appended to it;
+ * lines that cannot be understood are skipped and counted.
+ */
+public class Journal
+{
+	private final File _dir;
+	private final int _snapshotEvery;
+	// members by quorum as of the last change
+	private final HashMap<String, LinkedHashSet<String>> _roster = new HashMap<String, LinkedHashSet<String>>();
+	// the state found when the journal was opened
+	private final Map<String, Set<String>> _recovered;
+	// changes since the journal was first made
+	private long _sequence;
+	private long _sinceSnapshot = 0;
+	// lines skipped while recovering because they could not be understood
+	private int _malformed = 0;
+	// lines not written yet, and the file they go to
+	private StringBuilder _pending = new StringBuilder();
+	private FileChannel _file;
+	private long _fileStart;
+	private boolean _snapshotQueued = false;
+	// only one thread writes files at a time
+	private final Object _disk = new Object();
+	private final ScheduledFuture<?> _syncTimer;
+	private final Runnable _snapshot = new Runnable()
+	{
+		public void run()
+		{
+			try
+			{
+				writeSnapshot();
+			}
+			catch (IOException e)
+			{
+				Logger.warn("Journal: snapshot failed " + e.getMessage());
+			}
+		}
+	};
+
+	/*
+	 * Constructor, recovers the state kept in the directory, if any
+	 * @param File - directory of the journal
+	 * @param long - milliseconds between writing the collected changes, 0 to write them only on sync
+	 * @param int - changes between snapshots
+	 * @throws IOException - if the journal cannot be read or written
+	 */
+	public Journal(File dir, long syncMillis, int snapshotEvery) throws IOException
+	{
+		this._dir = dir;
+		this._snapshotEvery = Math.max(snapshotEvery, 1);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create the journal directory " + dir);
+
+		// the latest snapshot, then the journals written since
+		TreeMap<Long, File> snapshots = files("snapshot-");
+		TreeMap<Long, File> journals = files("journal-");
+		long start = 0;
+		if (!snapshots.isEmpty())
+		{
+			start = snapshots.lastKey();
+			readSnapshot(snapshots.lastEntry().getValue());
+		}
+		this._sequence = start;
+		for (File journal : journals.tailMap(start, true).values())
+			replay(journal);
+		this._recovered = copyRoster();
+		if (this._malformed > 0)
+			Logger.warn("Journal: " + this._malformed + " malformed lines skipped");
+
+		this._fileStart = this._sequence;
+		this._file = open(this._sequence);
+		writeSnapshot();
+		this._syncTimer = syncMillis <= 0 ? null : Threads.disk().scheduleWithFixedDelay(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					sync();
+				}
+				catch (IOException e)
+				{
+					Logger.warn("Journal: write failed " + e.getMessage());
+				}
+			}
+		}, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * @param String - prefix of the file names
+	 * @return TreeMap<Long, File> - the complete files with that prefix by the number in their name
+	 */
+	private TreeMap<Long, File> files(String prefix)
+	{
+		TreeMap<Long, File> files = new TreeMap<Long, File>();
+		for (File file : this._dir.listFiles())
+		{
+			String name = file.getName();
+			if (!name.startsWith(prefix) || !name.endsWith(".txt"))
+				continue;
+			// not one of ours, leave it alone
+			try
+			{
+				files.put(Long.parseLong(name.substring(prefix.length(), name.length() - 4)), file);
+			}
+			catch (NumberFormatException e)
+			{
+				Logger.warn("Journal: ignoring " + name);
+			}
+		}
+		return files;
+	}
+
+	/*
+	 * loads the quorums and members of a snapshot
+	 */
+	private void readSnapshot(File snapshot) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(snapshot), StandardCharsets.UTF_8));
+		try
+		{
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				String[] words = line.split(" ");
+				LinkedHashSet<String> members = new LinkedHashSet<String>();
+				for (int i = 1; i < words.length; i++)
+					members.add(unescape(words[i]));
+				this._roster.put(unescape(words[0]), members);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/*
+	 * applies the changes of a journal file. A line cut short by a crash is
+	 * ignored and cut off the file, which may be appended to next.
+	 */
+	private void replay(File journal) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes(journal.toPath());
+		int complete = bytes.length;
+		while (complete > 0 && bytes[complete - 1] != '\n')
+			complete--;
+		if (complete < bytes.length)
+		{
+			FileChannel file = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE);
+			try
+			{
+				file.truncate(complete);
+				file.force(false);
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+
+		String text = new String(bytes, 0, complete, StandardCharsets.UTF_8);
+		int start = 0;
+		for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start))
+		{
+			if (!apply(text.substring(start, end)))
+				this._malformed++;
+			this._sequence++;
+			start = end + 1;
+		}
+	}
+
+	/*
+	 * changes the roster as a journal line says
+	 * @param String - the line without its terminator
+	 * @return boolean - false if the line was not understood and changed nothing
+	 */
+	private boolean apply(String line)
+	{
+		String[] words = line.split(" ");
+		int length = words[0].equals("+q") || words[0].equals("-q") ? 2
+				: words[0].equals("+u") || words[0].equals("-u") ? 3 : -1;
+		if (words.length != length)
+			return false;
+		String quorum = unescape(words[1]);
+		if (words[0].equals("+q"))
+		{
+			if (!this._roster.containsKey(quorum))
+				this._roster.put(quorum, new LinkedHashSet<String>());
+		}
+		else if (words[0].equals("-q"))
+			this._roster.remove(quorum);
+		else if (words[0].equals("+u"))
+		{
+			LinkedHashSet<String> members = this._roster.get(quorum);
+			if (members == null)
+				this._roster.put(quorum, members = new LinkedHashSet<String>());
+			members.add(unescape(words[2]));
+		}
+		else if (words[0].equals("-u"))
+		{
+			LinkedHashSet<String> members = this._roster.get(quorum);
+			if (members != null)
+				members.remove(unescape(words[2]));
+		}
+		return true;
+	}
+
+	/*
+	 * @param String - name of a quorum that was made
+	 */
+	public void quorumMade(String quorum)
+	{
+		record("+q " + escape(quorum));
+	}
+
+	/*
+	 * @param String - name of a quorum that was removed
+	 */
+	public void quorumRemoved(String quorum)
+	{
+		record("-q " + escape(quorum));
+	}
+
+	/*
+	 * @param String - name of the quorum
+	 * @param String - user who joined it
+	 */
+	public void joined(String quorum, String user)
+	{
+		record("+u " + escape(quorum) + " " + escape(user));
+	}
+
+	/*
+	 * @param String - name of the quorum
+	 * @param String - user who left it
+	 */
+	public void left(String quorum, String user)
+	{
+		record("-u " + escape(quorum) + " " + escape(user));
+	}
+
+	/*
+	 * applies a change and queues its line; asks for a snapshot once enough
+	 * changes have been made since the last one
+	 */
+	private synchronized void record(String line)
+	{
+		apply(line);
+		this._pending.append(line).append('\n');
+		this._sequence++;
+		if (++this._sinceSnapshot >= this._snapshotEvery && !this._snapshotQueued)
+		{
+			this._snapshotQueued = true;
+			Threads.disk().execute(this._snapshot);
+		}
+	}
+
+	/*
+	 * writes the collected changes to the journal and forces it to storage
+	 * @throws IOException - if the journal cannot be written
+	 */
+	public void sync() throws IOException
+	{
+		synchronized (this._disk)
+		{
+			String lines;
+			FileChannel file;
+			synchronized (this)
+			{
+				lines = this._pending.toString();
+				this._pending.setLength(0);
+				file = this._file;
+			}
+			write(file, lines);
+		}
+	}
+
+	/*
+	 * writes the whole state as a new snapshot and starts a new journal file,
+	 * then deletes the files the snapshot replaces
+	 * @throws IOException - if the snapshot cannot be written
+	 */
+	public void snapshot() throws IOException
+	{
+		writeSnapshot();
+	}
+
+	/*
+	 * see snapshot()
+	 */
+	private void writeSnapshot() throws IOException
+	{
+		synchronized (this._disk)
+		{
+			String lines;
+			FileChannel previous;
+			Map<String, Set<String>> roster;
+			long sequence;
+			synchronized (this)
+			{
+				lines = this._pending.toString();
+				this._pending.setLength(0);
+				previous = this._file;
+				roster = copyRoster();
+				sequence = this._sequence;
+				this._sinceSnapshot = 0;
+				this._snapshotQueued = false;
+				if (sequence != this._fileStart)
+				{
+					this._fileStart = sequence;
+					this._file = open(sequence);
+				}
+			}
+			write(previous, lines);
+			if (previous != this._file)
+				previous.close();
+
+			StringBuilder text = new StringBuilder();
+			for (Map.Entry<String, Set<String>> entry : roster.entrySet())
+			{
+				text.append(escape(entry.getKey()));
+				for (String user : entry.getValue())
+					text.append(' ').append(escape(user));
+				text.append('\n');
+			}
+			File temporary = new File(this._dir, String.format("snapshot-%020d.tmp", sequence));
+			FileChannel file = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			write(file, text.toString());
+			file.close();
+			Files.move(temporary.toPath(), new File(this._dir, String.format("snapshot-%020d.txt", sequence)).toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+
+			for (Map.Entry<Long, File> old : files("snapshot-").headMap(sequence, false).entrySet())
+				old.getValue().delete();
+			for (Map.Entry<Long, File> old : files("journal-").headMap(sequence, false).entrySet())
+				old.getValue().delete();
+		}
+	}
+
+	/*
+	 * @return FileChannel - the journal file starting after the given number of changes
+	 */
+	private FileChannel open(long sequence) throws IOException
+	{
+		return FileChannel.open(new File(this._dir, String.format("journal-%020d.txt", sequence)).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/*
+	 * writes text to a file and forces it to storage
+	 */
+	private static void write(FileChannel file, String text) throws IOException
+	{
+		if (text.isEmpty())
+			return;
+		ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		while (bytes.hasRemaining())
+			file.write(bytes);
+		file.force(false);
+	}
+
+	/*
+	 * writes what is left and stops writing on a timer
+	 * @throws IOException - if the journal cannot be written
+	 */
+	public void close() throws IOException
+	{
+		if (this._syncTimer != null)
+			this._syncTimer.cancel(false);
+		sync();
+		synchronized (this._disk)
+		{
+			this._file.close();
+		}
+	}
+
+	/*
+	 * @return Map<String, Set<String>> - a copy of the members by quorum, as of the last change
+	 */
+	public synchronized Map<String, Set<String>> getRoster()
+	{
+		return copyRoster();
+	}
+
+	/*
+	 * see getRoster(), called holding the lock
+	 */
+	private Map<String, Set<String>> copyRoster()
+	{
+		HashMap<String, Set<String>> roster = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, LinkedHashSet<String>> entry : this._roster.entrySet())
+			roster.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue()));
+		return roster;
+	}
+
+	/*
+	 * @return Map<String, Set<String>> - the members by quorum found when the journal was opened
+	 */
+	public Map<String, Set<String>> getRecovered()
+	{
+		return this._recovered;
+	}
+
+	/*
+	 * @return int - lines skipped when the journal was opened because they could not be understood
+	 */
+	public int getMalformed()
+	{
+		return this._malformed;
+	}
+
+	/*
+	 * @return long - number of changes recorded since the journal was first made
+	 */
+	public synchronized long getSequence()
+	{
+		return this._sequence;
+	}
+
+	/*
+	 * @return String - the name with '%', spaces and line breaks written as %XX
+	 */
+	private static String escape(String name)
+	{
+		if (name.indexOf('%') < 0 && name.indexOf(' ') < 0 && name.indexOf('\n') < 0 && name.indexOf('\r') < 0)
+			return name;
+		return name.replace("%", "%25").replace(" ", "%20").replace("\n", "%0A").replace("\r", "%0D");
+	}
+
+	/*
+	 * @return String - the name as it was before escape()
+	 */
+	private static String unescape(String name)
+	{
+		if (name.indexOf('%') < 0)
+			return name;
+		return name.replace("%20", " ").replace("%0A", "\n").replace("%0D", "\r").replace("%25", "%");
+	}
+}
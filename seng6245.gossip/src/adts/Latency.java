@@ -0,0 +1,129 @@
+package adts;
+
+/**
+ * @author thetrick
+ * Where the time goes between a client sending a message and the members of
+ * its quorum receiving it. Each stage of the way has a Histogram of its own,
+ * in nanoseconds:
+ *
+ *   READ    - from reading the line to queueing it on the quorum
+ *   QUORUM  - waiting in the quorum's mailbox
+ *   DELIVER - from the quorum taking it to queueing it for a member
+ *   WRITE   - from the quorum taking it to writing it to a member's socket,
+ *             so DELIVER plus the time in the member's outbox
+ *   TOTAL   - from reading the line to writing it to a member's socket
+ *
+ * DELIVER, WRITE and TOTAL are counted once per member. Every quorum keeps
+ * its own stages, and whatever it records is also recorded in the stages of
+ * all quorums (see getAll()).
+ */
+public class Latency
+{
+	/**
+	 * A stage on the way of a message
+	 */
+	public enum Stage
+	{
+		READ("read"), QUORUM("quorum"), DELIVER("deliver"), WRITE("write"), TOTAL("total");
+
+		private final String _name;
+
+		private Stage(String name)
+		{
+			this._name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return this._name;
+		}
+	}
+
+	// values kept to within 1/16, about 6%, so each stage is about 8K
+	private static final int PRECISION = 4;
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+	private static final Latency _all = new Latency("all", null);
+
+	private final String _name;
+	private final Histogram[] _stages = new Histogram[Stage.values().length];
+	// also recorded into, null for the stages of all quorums
+	private final Latency _parent;
+
+	/*
+	 * Constructor, for the stages of one quorum
+	 * @param String - name of the quorum, used in the report
+	 */
+	public Latency(String name)
+	{
+		this(name, _all);
+	}
+
+	private Latency(String name, Latency parent)
+	{
+		this._name = name;
+		this._parent = parent;
+		for (Stage stage : Stage.values())
+			this._stages[stage.ordinal()] = new Histogram(stage.toString(), "ns", PRECISION);
+	}
+
+	/*
+	 * counts how long one message took at a stage
+	 * @param Stage - the stage
+	 * @param long - nanoseconds
+	 */
+	public void record(Stage stage, long nanos)
+	{
+		record(stage, nanos, 1);
+	}
+
+	/*
+	 * counts how long several messages took at a stage, e.g. a batch
+	 * @param Stage - the stage
+	 * @param long - nanoseconds each message took
+	 * @param long - number of messages
+	 */
+	public void record(Stage stage, long nanos, long messages)
+	{
+		this._stages[stage.ordinal()].record(nanos, messages);
+		if (this._parent != null)
+			this._parent.record(stage, nanos, messages);
+	}
+
+	/*
+	 * @param Stage - the stage
+	 * @return Histogram - nanoseconds messages took at the stage
+	 */
+	public Histogram get(Stage stage)
+	{
+		return this._stages[stage.ordinal()];
+	}
+
+	/*
+	 * forgets every time recorded
+	 */
+	public void reset()
+	{
+		for (Histogram histogram : this._stages)
+			histogram.reset();
+	}
+
+	/*
+	 * @return String - one line with p50 through p99.99 of every stage
+	 */
+	public String report()
+	{
+		StringBuilder report = new StringBuilder("Latency: (").append(this._name).append(")");
+		for (Histogram histogram : this._stages)
+			report.append(' ').append(histogram.report(PERCENTILES));
+		return report.toString();
+	}
+
+	/*
+	 * @return Latency - the stages of all quorums together
+	 */
+	public static Latency getAll()
+	{
+		return _all;
+	}
+}
@@ -0,0 +1,325 @@
+package adts;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author thetrick
+ * Writes log lines on a thread of its own, so that whoever logs never waits
+ * on the stream, or on everyone else logging to it as they would on
+ * System.out. Lines below the level are not logged at all; a line that is
+ * costly to build should be guarded by isDebug() or isEnabled(), which is
+ * one field read.
+ *
+ * Logged lines go into a ring of slots, each with the sequence number
+ * of the line it holds. A line claims the next slot by a compare-and-set
+ * and is published by setting the slot's sequence, so logging takes no
+ * lock. The writer takes every line published, writes them in order with
+ * one write and flush, and sleeps when there are none. If the writer falls
+ * a whole ring behind, lines are dropped and counted, never waited for.
+ *
+ * The process-wide logger (see get()) writes to System.out at level INFO.
+ * When the process exits, what it holds is written first; other loggers
+ * are flushed by whoever made them.
+ */
+public class Logger
+{
+	/**
+	 * How much is logged: lines of the level and above
+	 */
+	public enum Level
+	{
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static volatile Logger _current = new Logger(System.out, 8192);
+	// true once the process-wide logger has asked to be flushed at exit
+	private static final AtomicBoolean _hooked = new AtomicBoolean(false);
+
+	private final PrintStream _out;
+	private final int _mask;
+	private final String[] _lines;
+	// a slot holds the line at position p once its sequence is p + 1, and is free for p when it is p
+	private final AtomicLongArray _sequences;
+	// the next position to be claimed
+	private final AtomicLong _tail = new AtomicLong(0);
+	// the next position to be written; touched by the writer only
+	private long _head = 0;
+	// positions written so far
+	private final AtomicLong _written = new AtomicLong(0);
+	private final AtomicLong _dropped = new AtomicLong(0);
+	private long _droppedReported = 0;
+	private volatile int _level = Level.INFO.ordinal();
+	private final AtomicBoolean _started = new AtomicBoolean(false);
+	private final AtomicBoolean _asleep = new AtomicBoolean(false);
+	private volatile Thread _writer = null;
+
+	/*
+	 * Constructor, the writer starts with the first line
+	 * @param PrintStream - where the lines are written
+	 * @param int - lines the ring holds, rounded up to a power of two
+	 */
+	public Logger(PrintStream out, int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+		this._out = out;
+		this._mask = size - 1;
+		this._lines = new String[size];
+		this._sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			this._sequences.set(i, i);
+	}
+
+	/*
+	 * @return Logger - the logger of the process
+	 */
+	public static Logger get()
+	{
+		return _current;
+	}
+
+	/*
+	 * replaces the logger of the process; lines the old one holds are still written
+	 * @param Logger - the logger to use from now on
+	 */
+	public static void set(Logger logger)
+	{
+		_current = logger;
+	}
+
+	/*
+	 * @return boolean - true if the logger of the process logs DEBUG lines
+	 */
+	public static boolean isDebug()
+	{
+		return _current._level == 0;
+	}
+
+	/*
+	 * logs a line at level DEBUG with the logger of the process
+	 * @param String - the line
+	 */
+	public static void debug(String line)
+	{
+		_current.log(Level.DEBUG, line);
+	}
+
+	/*
+	 * logs a line at level INFO with the logger of the process
+	 * @param String - the line
+	 */
+	public static void info(String line)
+	{
+		_current.log(Level.INFO, line);
+	}
+
+	/*
+	 * logs a line at level WARN with the logger of the process
+	 * @param String - the line
+	 */
+	public static void warn(String line)
+	{
+		_current.log(Level.WARN, line);
+	}
+
+	/*
+	 * logs a line at level ERROR with the logger of the process
+	 * @param String - the line
+	 */
+	public static void error(String line)
+	{
+		_current.log(Level.ERROR, line);
+	}
+
+	/*
+	 * @param Level - lines of this level and above are logged, OFF for none
+	 */
+	public void setLevel(Level level)
+	{
+		this._level = level.ordinal();
+	}
+
+	/*
+	 * @return Level - lines of this level and above are logged
+	 */
+	public Level getLevel()
+	{
+		return Level.values()[this._level];
+	}
+
+	/*
+	 * @param Level - the level of a line
+	 * @return boolean - true if lines of the level are logged
+	 */
+	public boolean isEnabled(Level level)
+	{
+		return level.ordinal() >= this._level;
+	}
+
+	/*
+	 * logs a line if its level is enabled
+	 * @param Level - the level of the line
+	 * @param String - the line
+	 */
+	public void log(Level level, String line)
+	{
+		if (level.ordinal() >= this._level)
+			offer(line);
+	}
+
+	/*
+	 * puts a line in the ring for the writer, unless the ring is full
+	 * @param String - the line
+	 * @return boolean - true if the line will be written, false if it was dropped
+	 */
+	public boolean offer(String line)
+	{
+		long position;
+		int slot;
+		while (true)
+		{
+			position = this._tail.get();
+			slot = (int) (position & this._mask);
+			long sequence = this._sequences.get(slot);
+			if (sequence == position)
+			{
+				if (this._tail.compareAndSet(position, position + 1))
+					break;
+			}
+			else if (sequence < position)
+			{
+				// still holds the line from a lap ago
+				this._dropped.incrementAndGet();
+				return false;
+			}
+		}
+		this._lines[slot] = line;
+		this._sequences.set(slot, position + 1);
+
+		if (!this._started.get() && this._started.compareAndSet(false, true))
+			start();
+		else if (this._asleep.get() && this._asleep.compareAndSet(true, false))
+			LockSupport.unpark(this._writer);
+		return true;
+	}
+
+	/*
+	 * starts the writer, a daemon thread. The first process-wide logger to
+	 * start adds the one shutdown hook, which writes what the process-wide
+	 * logger of the time still holds.
+	 */
+	private void start()
+	{
+		Thread writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		}, "logger");
+		writer.setDaemon(true);
+		this._writer = writer;
+		writer.start();
+		if (this == _current && _hooked.compareAndSet(false, true))
+			Runtime.getRuntime().addShutdownHook(new Thread("logger-exit")
+			{
+				public void run()
+				{
+					_current.flush(1000);
+				}
+			});
+	}
+
+	/*
+	 * Run by the writer: writes whatever has been published, then sleeps
+	 * until a line comes. Going to sleep, it looks once more after saying
+	 * so, since a line published before that would not wake it.
+	 */
+	private void write()
+	{
+		StringBuilder text = new StringBuilder(16 * 1024);
+		String separator = System.lineSeparator();
+		while (true)
+		{
+			if (take(text, separator))
+				continue;
+			this._asleep.set(true);
+			if (take(text, separator))
+			{
+				this._asleep.set(false);
+				continue;
+			}
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+			this._asleep.set(false);
+		}
+	}
+
+	/*
+	 * writes the lines published so far, at most a ring of them, with one write
+	 * @return boolean - true if there were any
+	 */
+	private boolean take(StringBuilder text, String separator)
+	{
+		long start = this._head;
+		while (this._head - start < this._lines.length)
+		{
+			int slot = (int) (this._head & this._mask);
+			if (this._sequences.get(slot) != this._head + 1)
+				break;
+			text.append(this._lines[slot]).append(separator);
+			this._lines[slot] = null;
+			this._sequences.set(slot, this._head + this._lines.length);
+			this._head++;
+		}
+		// lines are dropped once the ring is full, i.e. after those just taken
+		long dropped = this._dropped.get();
+		if (dropped != this._droppedReported)
+		{
+			text.append("Logger: ").append(dropped - this._droppedReported).append(" lines dropped").append(separator);
+			this._droppedReported = dropped;
+		}
+		if (text.length() == 0)
+			return false;
+		this._out.print(text);
+		this._out.flush();
+		text.setLength(0);
+		// let the buffer go after a burst of long lines
+		if (text.capacity() > 1024 * 1024)
+			text.trimToSize();
+		this._written.set(this._head);
+		return this._head != start;
+	}
+
+	/*
+	 * waits until the lines logged so far have been written
+	 * @param long - most milliseconds to wait
+	 * @return boolean - true if they have been
+	 */
+	public boolean flush(long timeoutMillis)
+	{
+		long target = this._tail.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (this._written.get() < target)
+		{
+			if (System.nanoTime() - deadline >= 0)
+				return false;
+			Thread writer = this._writer;
+			if (writer != null)
+				LockSupport.unpark(writer);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		return true;
+	}
+
+	/*
+	 * @return long - lines dropped because the writer was a whole ring behind
+	 */
+	public long getDropped()
+	{
+		return this._dropped.get();
+	}
+}
@@ -0,0 +1,682 @@
+package adts;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import server.Config;
+import server.Threads;
+
+/**
+ * @author thetrick
+ * An append-only log of what was said in one quorum, kept on disk so that it
+ * outlives the process. The log is split into segments of a fixed size, each
+ * a memory-mapped file named after the offset of its first message, so an
+ * append is a copy into mapped memory. Every few kilobytes a segment notes
+ * the offset and position of a message in a mapped index file next to it,
+ * which lets a read start close to the message it wants.
+ *
+ * Messages are only certain to be on storage once the log is forced. This
+ * happens on the disk thread (see Threads) every so many milliseconds or
+ * messages, never on the thread that appends.
+ *
+ * The disk thread also makes and maps the file of the next segment ahead
+ * of time, as a spare that is renamed once the active segment is full, so
+ * the quorum appending seldom waits for a file to be made. Only the active
+ * segment and the few full ones read last stay mapped; the others are let
+ * go and mapped again, for reading, when a read needs them.
+ *
+ * A record is the length of the UTF-8 message plus one, as an int, followed
+ * by the message; a length of 0 marks the end of the segment.
+ */
+public class MessageLog
+{
+	// bytes of log between two index entries
+	private static final int INDEX_INTERVAL = 4096;
+	// full segments kept mapped for reading, besides the active one
+	private static final int MAPPED_SEGMENTS = 4;
+	// files of the next segment, made ahead of time
+	private static final String SPARE_DATA = "spare.log.tmp";
+	private static final String SPARE_INDEX = "spare.idx.tmp";
+	// logs in use by directory, shared by a quorum closing and one made again under its name
+	private static final HashMap<File, MessageLog> _open = new HashMap<File, MessageLog>();
+
+	private final File _dir;
+	private final int _segmentBytes;
+	private final int _syncMessages;
+	// by offset of their first message
+	private final ConcurrentSkipListMap<Long, Segment> _segments = new ConcurrentSkipListMap<Long, Segment>();
+	private volatile Segment _active;
+	private volatile long _nextOffset;
+	// full segments still mapped, the one read last at the end
+	private final LinkedHashMap<Long, Segment> _mapped = new LinkedHashMap<Long, Segment>(16, 0.75f, true);
+	// the next segment's files, mapped on the disk thread; null until ready
+	private volatile Mapping _spare = null;
+	// true while the spare is being made on the disk thread
+	private final AtomicBoolean _preparing = new AtomicBoolean(false);
+	private final Runnable _prepare = new Runnable()
+	{
+		public void run()
+		{
+			prepare();
+		}
+	};
+	private int _unsynced = 0;
+	private int _references = 0;
+	// true while a force is queued on the disk thread
+	private final AtomicBoolean _syncing = new AtomicBoolean(false);
+	private final Runnable _sync = new Runnable()
+	{
+		public void run()
+		{
+			sync();
+		}
+	};
+	private final ScheduledFuture<?> _syncTimer;
+
+	/*
+	 * Constructor, opens the log in a directory or starts a new one there
+	 * @param File - directory of the log
+	 * @param int - bytes per segment
+	 * @param long - milliseconds between forcing the log to storage, 0 for never
+	 * @param int - messages after which the log is forced, 0 for never
+	 * @throws IOException - if the directory or a segment cannot be opened
+	 */
+	public MessageLog(File dir, int segmentBytes, long syncMillis, int syncMessages) throws IOException
+	{
+		this._dir = dir;
+		this._segmentBytes = segmentBytes;
+		this._syncMessages = syncMessages;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create the log directory " + dir);
+
+		// a spare left by a crash may be half made
+		new File(dir, SPARE_DATA).delete();
+		new File(dir, SPARE_INDEX).delete();
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (File file : files)
+			if (file.getName().endsWith(".log"))
+			{
+				long base = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+				this._segments.put(base, Segment.open(dir, base, segmentBytes));
+			}
+		if (this._segments.isEmpty())
+			this._segments.put(0L, Segment.open(dir, 0, segmentBytes));
+		this._active = this._segments.lastEntry().getValue();
+		this._nextOffset = this._active.base + this._active.count;
+		for (Segment full : this._segments.headMap(this._active.base).values())
+			full.release();
+		Threads.disk().execute(this._prepare);
+
+		this._syncTimer = syncMillis <= 0 ? null
+				: Threads.disk().scheduleWithFixedDelay(this._sync, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * opens the log of a quorum below the configured log directory, see Config
+	 * @param File - directory holding the logs of all quorums
+	 * @param String - name of the quorum
+	 * @return MessageLog - the log, to be closed once the quorum stops
+	 * @throws IOException - if the log cannot be opened
+	 */
+	public static MessageLog open(File root, String name) throws IOException
+	{
+		File dir = new File(root, fileName(name));
+		synchronized (_open)
+		{
+			MessageLog log = _open.get(dir);
+			if (log == null)
+			{
+				Config config = Config.get();
+				log = new MessageLog(dir, config.getLogSegmentBytes(), config.getLogSyncMillis(), config.getLogSyncMessages());
+				_open.put(dir, log);
+			}
+			log._references++;
+			return log;
+		}
+	}
+
+	/*
+	 * @param String - name of a quorum
+	 * @return String - the name with anything but letters, digits, '-' and '_'
+	 * written as %XX, so it is a safe file name
+	 */
+	private static String fileName(String name)
+	{
+		StringBuilder file = new StringBuilder();
+		for (byte b : name.getBytes(StandardCharsets.UTF_8))
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_')
+				file.append((char) b);
+			else
+				file.append(String.format("%%%02X", b & 0xff));
+		return file.toString();
+	}
+
+	/*
+	 * adds a message to the end of the log
+	 * @param String - the message
+	 * @return long - offset of the message, counting from 0
+	 * @throws IOException - if the message is longer than a segment, or a new
+	 * segment was needed and could not be made
+	 */
+	public synchronized long append(String message) throws IOException
+	{
+		int length = utf8Length(message);
+		if (4 + length > this._segmentBytes)
+			throw new IOException("The message is too long for the log");
+		if (!this._active.append(message, length))
+		{
+			roll();
+			this._active.append(message, length);
+		}
+		long offset = this._nextOffset++;
+		if (this._syncMessages > 0 && ++this._unsynced >= this._syncMessages)
+		{
+			this._unsynced = 0;
+			if (this._syncing.compareAndSet(false, true))
+				Threads.disk().execute(this._sync);
+		}
+		return offset;
+	}
+
+	/*
+	 * Starts a new segment, in the spare if it is ready, and forces the full
+	 * one on the disk thread, which then makes the next spare. The full
+	 * segment stays mapped until enough others have been read since.
+	 */
+	private void roll() throws IOException
+	{
+		final Segment full = this._active;
+		Segment next = null;
+		Mapping spare = this._spare;
+		this._spare = null;
+		if (spare != null)
+			next = Segment.adopt(this._dir, this._nextOffset, spare);
+		if (next == null)
+			next = Segment.open(this._dir, this._nextOffset, this._segmentBytes);
+		this._segments.put(next.base, next);
+		this._active = next;
+		final Mapping written = full.mapping;
+		touch(full);
+		Threads.disk().execute(new Runnable()
+		{
+			public void run()
+			{
+				written.force();
+				prepare();
+			}
+		});
+	}
+
+	/*
+	 * Run on the disk thread: makes and maps the files of the next segment,
+	 * unless there is a spare already
+	 */
+	private void prepare()
+	{
+		if (this._spare != null || !this._preparing.compareAndSet(false, true))
+			return;
+		try
+		{
+			this._spare = Mapping.map(new File(this._dir, SPARE_DATA), new File(this._dir, SPARE_INDEX),
+					this._segmentBytes);
+		}
+		catch (IOException e)
+		{
+			// the next segment is made when it is needed instead
+			Logger.warn("MessageLog: (" + this._dir.getName() + ") " + "No spare segment: " + e.getMessage());
+		}
+		finally
+		{
+			this._preparing.set(false);
+		}
+	}
+
+	/*
+	 * Notes that a full segment was used, mapping it again if it was let go,
+	 * and lets go of the one used longest ago if too many are mapped
+	 * @param Segment - a full segment
+	 * @return Mapping - the files of the segment, null if they cannot be mapped
+	 */
+	private Mapping touch(Segment segment)
+	{
+		synchronized (this._mapped)
+		{
+			Mapping mapping = segment.mapping;
+			if (mapping == null)
+			{
+				try
+				{
+					mapping = segment.remap(this._dir);
+				}
+				catch (IOException e)
+				{
+					Logger.warn("MessageLog: (" + this._dir.getName() + ") " + "Cannot read segment " + segment.base
+							+ ": " + e.getMessage());
+					return null;
+				}
+			}
+			this._mapped.put(segment.base, segment);
+			if (this._mapped.size() > MAPPED_SEGMENTS)
+			{
+				Iterator<Segment> eldest = this._mapped.values().iterator();
+				eldest.next().release();
+				eldest.remove();
+			}
+			return mapping;
+		}
+	}
+
+	/*
+	 * reads messages from the log; may run while messages are appended
+	 * @param long - offset of the first message
+	 * @param int - most messages to read
+	 * @return List<String> - the messages, fewer if the log ends first
+	 */
+	public List<String> read(long from, int max)
+	{
+		ArrayList<String> messages = new ArrayList<String>();
+		long offset = Math.max(from, 0);
+		Map.Entry<Long, Segment> entry = this._segments.floorEntry(offset);
+		while (entry != null && messages.size() < max)
+		{
+			Segment segment = entry.getValue();
+			Mapping mapping = segment.mapping;
+			if (segment != this._active || mapping == null)
+				mapping = touch(segment);
+			if (mapping == null)
+				break;
+			offset = segment.read(mapping, offset, max, messages);
+			entry = this._segments.higherEntry(entry.getKey());
+		}
+		return messages;
+	}
+
+	/*
+	 * @return long - offset the next message will get, i.e. the number of messages
+	 */
+	public long getNextOffset()
+	{
+		return this._nextOffset;
+	}
+
+	/*
+	 * @return int - number of segment files
+	 */
+	public int getSegmentCount()
+	{
+		return this._segments.size();
+	}
+
+	/*
+	 * forces the messages appended so far to storage; waits for the disk
+	 */
+	public void sync()
+	{
+		this._syncing.set(false);
+		this._active.mapping.force();
+	}
+
+	/*
+	 * lets go of the log; the last user stops the timed force and forces it
+	 * once more on the disk thread
+	 */
+	public void close()
+	{
+		synchronized (_open)
+		{
+			if (--this._references > 0)
+				return;
+			_open.remove(this._dir);
+		}
+		if (this._syncTimer != null)
+			this._syncTimer.cancel(false);
+		Threads.disk().execute(this._sync);
+	}
+
+	/*
+	 * @return int - bytes of the message in UTF-8, as String.getBytes counts them
+	 */
+	private static int utf8Length(String text)
+	{
+		int length = 0;
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else if (!Character.isSurrogate(c))
+				length += 3;
+			else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			}
+			else
+				length++;
+		}
+		return length;
+	}
+
+	/*
+	 * writes text as UTF-8 without a byte[] in between; a broken surrogate
+	 * pair becomes '?' as with String.getBytes
+	 * @param ByteBuffer - the buffer
+	 * @param int - position of the first byte
+	 * @param String - the text
+	 */
+	private static void putUtf8(ByteBuffer buffer, int position, String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+				buffer.put(position++, (byte) c);
+			else if (c < 0x800)
+			{
+				buffer.put(position++, (byte) (0xc0 | (c >> 6)));
+				buffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+			}
+			else if (!Character.isSurrogate(c))
+			{
+				buffer.put(position++, (byte) (0xe0 | (c >> 12)));
+				buffer.put(position++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put(position++, (byte) (0x80 | (c & 0x3f)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				buffer.put(position++, (byte) (0xf0 | (code >> 18)));
+				buffer.put(position++, (byte) (0x80 | ((code >> 12) & 0x3f)));
+				buffer.put(position++, (byte) (0x80 | ((code >> 6) & 0x3f)));
+				buffer.put(position++, (byte) (0x80 | (code & 0x3f)));
+			}
+			else
+				buffer.put(position++, (byte) '?');
+		}
+	}
+
+	/**
+	 * The files of a segment, mapped
+	 */
+	private static final class Mapping
+	{
+		private final MappedByteBuffer data;
+		// pairs of (offset in this segment + 1, position), 0 where none was written yet
+		private final MappedByteBuffer index;
+
+		private Mapping(MappedByteBuffer data, MappedByteBuffer index)
+		{
+			this.data = data;
+			this.index = index;
+		}
+
+		/*
+		 * maps the files of a segment for reading and writing, growing them to size
+		 * @param File - the messages
+		 * @param File - the index
+		 * @param int - bytes of messages
+		 */
+		private static Mapping map(File data, File index, int bytes) throws IOException
+		{
+			return new Mapping(map(data, bytes, false), map(index, (bytes / INDEX_INTERVAL + 1) * 8, false));
+		}
+
+		/*
+		 * @param File - the file
+		 * @param int - bytes to map, from the start
+		 * @param boolean - true to map the file as it is for reading only
+		 * @return MappedByteBuffer - the file mapped, grown to the size unless read only
+		 */
+		private static MappedByteBuffer map(File file, int bytes, boolean readOnly) throws IOException
+		{
+			// the mapping stays valid once the channel is closed
+			FileChannel channel = readOnly ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+					: FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+							StandardOpenOption.WRITE);
+			try
+			{
+				return channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, bytes);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+
+		/*
+		 * writes the mapped pages back to the files
+		 */
+		private void force()
+		{
+			if (this.data.isReadOnly())
+				return;
+			this.data.force();
+			this.index.force();
+		}
+	}
+
+	/**
+	 * One file of the log and its index. Appends come from one thread at a
+	 * time; reads may run alongside and see the messages up to the end
+	 * published last. A full segment may be let go of and mapped again.
+	 */
+	private static final class Segment
+	{
+		private final long base;
+		private final int capacity;
+		private final int indexCapacity;
+		// null while let go of
+		private volatile Mapping mapping;
+		private volatile int end = 0;
+		private volatile int count = 0;
+		private volatile int indexed = 0;
+		private int lastIndexed = -INDEX_INTERVAL;
+
+		private Segment(long base, Mapping mapping)
+		{
+			this.base = base;
+			this.mapping = mapping;
+			this.capacity = mapping.data.capacity();
+			this.indexCapacity = mapping.index.capacity() / 8;
+		}
+
+		/*
+		 * maps a segment, finding the end of one that exists already
+		 * @param File - directory of the log
+		 * @param long - offset of the first message
+		 * @param int - bytes of a new segment, ignored if the file has a size already
+		 */
+		private static Segment open(File dir, long base, int bytes) throws IOException
+		{
+			File file = dataFile(dir, base);
+			if (file.length() > 0)
+				bytes = (int) file.length();
+			Segment segment = new Segment(base, Mapping.map(file, indexFile(dir, base), bytes));
+			segment.recover();
+			return segment;
+		}
+
+		/*
+		 * makes a new segment of the spare files by renaming them
+		 * @param File - directory of the log
+		 * @param long - offset of the first message
+		 * @param Mapping - the spare files, mapped and empty
+		 * @return Segment - the segment, null if the files could not be renamed
+		 */
+		private static Segment adopt(File dir, long base, Mapping spare)
+		{
+			try
+			{
+				Files.move(new File(dir, SPARE_INDEX).toPath(), indexFile(dir, base).toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+				Files.move(new File(dir, SPARE_DATA).toPath(), dataFile(dir, base).toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e)
+			{
+				return null;
+			}
+			return new Segment(base, spare);
+		}
+
+		private static File dataFile(File dir, long base)
+		{
+			return new File(dir, String.format("%020d.log", base));
+		}
+
+		private static File indexFile(File dir, long base)
+		{
+			return new File(dir, String.format("%020d.idx", base));
+		}
+
+		/*
+		 * maps the files of a full segment again, for reading
+		 * @param File - directory of the log
+		 * @return Mapping - the files
+		 */
+		private Mapping remap(File dir) throws IOException
+		{
+			Mapping mapping = new Mapping(Mapping.map(dataFile(dir, this.base), this.capacity, true),
+					Mapping.map(indexFile(dir, this.base), this.indexCapacity * 8, true));
+			this.mapping = mapping;
+			return mapping;
+		}
+
+		/*
+		 * lets go of the files of a full segment; they are unmapped once no
+		 * read is using them
+		 */
+		private void release()
+		{
+			this.mapping = null;
+		}
+
+		/*
+		 * finds the end of the messages, scanning from the last index entry
+		 */
+		private void recover()
+		{
+			MappedByteBuffer data = this.mapping.data;
+			MappedByteBuffer index = this.mapping.index;
+			int entries = 0;
+			while (entries < this.indexCapacity && index.getInt(entries * 8) != 0)
+				entries++;
+			int messages = 0;
+			int position = 0;
+			if (entries > 0)
+			{
+				messages = index.getInt((entries - 1) * 8) - 1;
+				position = index.getInt((entries - 1) * 8 + 4);
+				this.lastIndexed = position;
+			}
+			while (position + 4 <= this.capacity)
+			{
+				int header = data.getInt(position);
+				if (header <= 0 || header - 1 > this.capacity - position - 4)
+					break;
+				position += 4 + header - 1;
+				messages++;
+			}
+			this.indexed = entries;
+			this.count = messages;
+			this.end = position;
+		}
+
+		/*
+		 * copies a message into the segment
+		 * @param String - the message
+		 * @param int - bytes of the message in UTF-8
+		 * @return boolean - false if the message does not fit
+		 */
+		private boolean append(String message, int length)
+		{
+			int position = this.end;
+			if (position + 4 + length > this.capacity)
+				return false;
+			Mapping mapping = this.mapping;
+			putUtf8(mapping.data, position + 4, message);
+			// the length last, so a torn write reads as the end
+			mapping.data.putInt(position, length + 1);
+			if (position - this.lastIndexed >= INDEX_INTERVAL && this.indexed < this.indexCapacity)
+			{
+				mapping.index.putInt(this.indexed * 8 + 4, position);
+				mapping.index.putInt(this.indexed * 8, this.count + 1);
+				this.indexed++;
+				this.lastIndexed = position;
+			}
+			this.count++;
+			// publishes the message to readers
+			this.end = position + 4 + length;
+			return true;
+		}
+
+		/*
+		 * @param Mapping - the files of the segment, mapped
+		 * @param long - offset of the first message to read
+		 * @param int - most messages in the list when done
+		 * @param List<String> - receives the messages
+		 * @return long - offset after the last message read or skipped
+		 */
+		private long read(Mapping mapping, long from, int max, List<String> messages)
+		{
+			MappedByteBuffer data = mapping.data;
+			MappedByteBuffer index = mapping.index;
+			int limit = this.end;
+			int entries = this.indexed;
+			long target = from - this.base;
+			long offset = 0;
+			int position = 0;
+			// the last index entry at or before the first message
+			int low = 0;
+			int high = entries - 1;
+			while (low <= high)
+			{
+				int middle = (low + high) >>> 1;
+				int entryOffset = index.getInt(middle * 8) - 1;
+				int entryPosition = index.getInt(middle * 8 + 4);
+				if (entryOffset <= target && entryPosition < limit)
+				{
+					offset = entryOffset;
+					position = entryPosition;
+					low = middle + 1;
+				}
+				else
+					high = middle - 1;
+			}
+			while (position < limit && messages.size() < max)
+			{
+				int length = data.getInt(position) - 1;
+				if (offset >= target)
+				{
+					byte[] bytes = new byte[length];
+					data.get(position + 4, bytes);
+					messages.add(new String(bytes, StandardCharsets.UTF_8));
+				}
+				position += 4 + length;
+				offset++;
+			}
+			return this.base + offset;
+		}
+	}
+}
@@ -3,10 +3,20 @@ package adts;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+import protocol.Presence;
 import server.Channel;
+import server.Config;
+import server.Frame;
+import server.Threads;
 import tests.Utility;;
 
 /**
@@ -16,9 +26,22 @@ import tests.Utility;;
 
 public abstract class Nodes
 {
-	// Maps the users to channels
-	private Map<String, Channel> Nodes;
+	// Maps the users to channels, sorted by user name. Changes are made
+	// while holding its monitor, reads need no lock.
+	private ConcurrentSkipListMap<String, Channel> Nodes;
+	// The channels in the same order, replaced as a whole on every change so
+	// that sending to everyone takes no lock and copies nothing. Never
+	// modified once published.
+	private volatile Channel[] members = new Channel[0];
+	private volatile int count = 0;
+	// counts every change, tells whether the rendered list is current
+	private volatile long changes = 0;
+	private volatile Rendered rendered = null;
 	private boolean isTest = false;
+	// incremented with every change, see Presence
+	private long version = 0;
+	// holds notifications back during join and leave storms
+	private final Coalescer coalescer;
 	
 	/*
 	 * Constructor
@@ -31,8 +54,15 @@ public abstract class Nodes
 	public Nodes(boolean isTest)
 	{
 		// Initializes the mapping of Nodes
-		this.Nodes = new HashMap<String, Channel>();
+		this.Nodes = new ConcurrentSkipListMap<String, Channel>();
 		this.isTest = isTest;
+		this.coalescer = new Coalescer(Config.get().getCoalesceMillis(), new Runnable()
+		{
+			public void run()
+			{
+				flushChanges();
+			}
+		});
 	}
 	
 	/*
@@ -53,7 +83,16 @@ public abstract class Nodes
 			if (this.contains(channel.getUserName()))
 				throw new IOException("The user associated with this channel already exists.");
 			Nodes.put(channel.getUserName(), channel);
-			notifyChannels(getList());
+			members = with(members, channel);
+			count++;
+			changes++;
+			if (!coalescer.isImmediate())
+			{
+				coalescer.record(channel.getUserName(), true, channel);
+				return;
+			}
+			version++;
+			notifyMembership(getListFrame(), Presence.delta(getListName(), version, true, channel.getUserName()), channel);
 			return;
 		}
 	}
@@ -67,14 +106,111 @@ public abstract class Nodes
 	{
 		synchronized (Nodes)
 		{
-			Nodes.remove(channel.getUserName());
-			notifyChannels(getList());
+			String delta = null;
+			boolean removed = Nodes.remove(channel.getUserName()) != null;
+			if (removed)
+			{
+				members = without(members, channel.getUserName());
+				count--;
+				changes++;
+			}
+			if (!coalescer.isImmediate())
+			{
+				if (removed)
+					coalescer.record(channel.getUserName(), false, null);
+			}
+			else
+			{
+				if (removed)
+				{
+					version++;
+					delta = Presence.delta(getListName(), version, false, channel.getUserName());
+				}
+				notifyMembership(getListFrame(), delta, null);
+			}
 			if(this.isTest)
 				Utility.pause(1000);
 			return;
 		}
 	}
 
+	/*
+	 * puts a channel in the place of another channel of the same user
+	 * without telling anyone, as when a session is resumed on a new
+	 * connection
+	 * 
+	 * @param Channel - the channel to replace
+	 * @param Channel - the channel taking its place
+	 * 
+	 * @return boolean - true if the first channel was in the list
+	 */
+	public boolean replace(Channel channel, Channel replacement)
+	{
+		synchronized (Nodes)
+		{
+			if (!Nodes.replace(channel.getUserName(), channel, replacement))
+				return false;
+			Channel[] copy = members.clone();
+			copy[indexOf(copy, channel.getUserName())] = replacement;
+			members = copy;
+			return true;
+		}
+	}
+
+	/*
+	 * @param Channel[] - channels sorted by user name
+	 * @param Channel - a channel whose user is not among them
+	 * @return Channel[] - a new array with the channel in its place
+	 */
+	private static Channel[] with(Channel[] channels, Channel channel)
+	{
+		int at = -(indexOf(channels, channel.getUserName()) + 1);
+		Channel[] copy = new Channel[channels.length + 1];
+		System.arraycopy(channels, 0, copy, 0, at);
+		copy[at] = channel;
+		System.arraycopy(channels, at, copy, at + 1, channels.length - at);
+		return copy;
+	}
+
+	/*
+	 * @param Channel[] - channels sorted by user name
+	 * @param String - a user among them
+	 * @return Channel[] - a new array without the user's channel
+	 */
+	private static Channel[] without(Channel[] channels, String userName)
+	{
+		int at = indexOf(channels, userName);
+		if (at < 0)
+			return channels;
+		Channel[] copy = new Channel[channels.length - 1];
+		System.arraycopy(channels, 0, copy, 0, at);
+		System.arraycopy(channels, at + 1, copy, at, copy.length - at);
+		return copy;
+	}
+
+	/*
+	 * binary search by user name, same as Arrays.binarySearch
+	 * 
+	 * @return int - index of the user, or -(insertion point) - 1 if absent
+	 */
+	private static int indexOf(Channel[] channels, String userName)
+	{
+		int low = 0;
+		int high = channels.length - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			int order = channels[middle].getUserName().compareTo(userName);
+			if (order < 0)
+				low = middle + 1;
+			else if (order > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -(low + 1);
+	}
+
 	/*
 	 * returns true if the user is already registered with another channel
 	 * 
@@ -88,26 +224,174 @@ public abstract class Nodes
 	}
 
 	/*
-	 * returns a string representation of everyone in this list
+	 * returns a string representation of everyone in this list. The list is
+	 * rendered once after every change and shared until the next one.
 	 * 
 	 * @return String - list of all Nodes in list
 	 */
 	public String getList()
 	{
-		if (this.size() <= 0)
-			return "";
-		
-		StringBuilder stringBuilder = new StringBuilder("");
-		ArrayList<String> users = new ArrayList<String>();
-		for (String NodesString : Nodes.keySet())
+		return render().list;
+	}
+
+	/*
+	 * @return Frame - the encoded list, shared until the next change
+	 */
+	Frame getListFrame()
+	{
+		return render().frame;
+	}
+
+	/*
+	 * the text put in front of the names by getList()
+	 * 
+	 * @return String - the header of the list
+	 */
+	protected String getHeader()
+	{
+		return "";
+	}
+
+	/*
+	 * returns the rendered list, rendering it again if it changed since
+	 * 
+	 * @return Rendered - the current list
+	 */
+	private Rendered render()
+	{
+		Rendered current = this.rendered;
+		// read the counter before the names: a change made meanwhile leaves the result stale, never wrong
+		long seen = this.changes;
+		if (current != null && current.changes == seen)
+			return current;
+
+		StringBuilder stringBuilder = new StringBuilder(getHeader());
+		for (String user : Nodes.keySet())
+			stringBuilder.append(user).append(' ');
+		if (stringBuilder.length() > getHeader().length())
+			stringBuilder.setLength(stringBuilder.length() - 1);
+		current = new Rendered(seen, stringBuilder.toString());
+		this.rendered = current;
+		return current;
+	}
+
+	/*
+	 * returns the sorted user names in this list
+	 * 
+	 * @return ArrayList<String> - sorted names of all Nodes in list
+	 */
+	public ArrayList<String> getNames()
+	{
+		return new ArrayList<String>(Nodes.keySet());
+	}
+
+	/*
+	 * name of the list in membership lines, see Presence
+	 * 
+	 * @return String - name of the list
+	 */
+	public String getListName()
+	{
+		return "Nodes";
+	}
+
+	/*
+	 * returns the version of the list, incremented with every change
+	 * 
+	 * @return long - the version
+	 */
+	public long getVersion()
+	{
+		synchronized (Nodes)
+		{
+			return version;
+		}
+	}
+
+	/*
+	 * Tells every channel about a change to this list or the Hive: channels
+	 * that asked for deltas get the delta, the others get the full list. The
+	 * channel that just joined gets a snapshot instead. Each line is encoded
+	 * once.
+	 * 
+	 * @param Frame - the full list
+	 * @param String - the delta, null if nothing changed
+	 * @param Channel - the channel that just joined, null if none
+	 */
+	void notifyMembership(Frame full, String delta, Channel joiner)
+	{
+		synchronized (Nodes)
+		{
+			Frame change = delta == null ? null : Frame.of(delta);
+			for (Channel node : Nodes.values())
+				if (node == joiner)
+					sendSnapshot(node);
+				else if (!node.isDelta())
+					node.updateBuffer(full);
+				else if (change != null)
+					node.updateBuffer(change);
+		}
+	}
+
+	/*
+	 * Broadcasts the changes collected during a window as one update: the
+	 * full list, and for delta channels one delta, or a snapshot if more
+	 * than one name changed. Channels that joined get a snapshot.
+	 */
+	private void flushChanges()
+	{
+		synchronized (Nodes)
+		{
+			LinkedHashMap<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+			ArrayList<Channel> joined = new ArrayList<Channel>();
+			coalescer.drain(changes, joined);
+			Set<Channel> joiners = Collections.newSetFromMap(new IdentityHashMap<Channel, Boolean>());
+			joiners.addAll(joined);
+
+			Frame full = null;
+			Frame change = null;
+			if (!changes.isEmpty())
+			{
+				version++;
+				full = getListFrame();
+				if (changes.size() > 1)
+					change = Frame.of(getSnapshot());
+				else
+					for (Map.Entry<String, Boolean> entry : changes.entrySet())
+						change = Frame.of(Presence.delta(getListName(), version, entry.getValue(), entry.getKey()));
+			}
+			for (Channel node : Nodes.values())
+				if (joiners.contains(node))
+					sendSnapshot(node);
+				else if (full == null)
+					continue;
+				else if (!node.isDelta())
+					node.updateBuffer(full);
+				else
+					node.updateBuffer(change);
+		}
+	}
+
+	/*
+	 * sends one channel the current list, as a versioned snapshot if it
+	 * asked for deltas
+	 * 
+	 * @param Channel - the channel to update
+	 */
+	public void sendSnapshot(Channel channel)
+	{
+		synchronized (Nodes)
 		{
-			String s = new String(NodesString);
-			users.add(s);
+			channel.updateBuffer(channel.isDelta() ? Frame.of(getSnapshot()) : getListFrame());
 		}
-		Collections.sort(users);
-		for (String user : users)
-			stringBuilder.append(user + " ");
-		return stringBuilder.substring(0, stringBuilder.length() - 1);
+	}
+
+	/*
+	 * @return String - the versioned snapshot of this list
+	 */
+	private String getSnapshot()
+	{
+		return Presence.snapshot(getListName(), version, getNames());
 	}
 
 	/*
@@ -117,7 +401,7 @@ public abstract class Nodes
 	 */
 	public int size()
 	{
-		return Nodes.size();
+		return count;
 	}
 
 	/*
@@ -127,17 +411,82 @@ public abstract class Nodes
 	 */
 	public void notifyChannels(String message)
 	{
-		// need a temporary array of channels to store a copy
-		Channel[] channelsCopy;
-		// populate the temporary array with a copy of the channels
-		synchronized (Nodes)
+		// encode the message once and hand the same frame to all the channels
+		notifyChannels(Frame.of(message));
+	}
+
+	/*
+	 * provides a mechanism to send all channels an encoded message
+	 *  
+	 * @param Frame - the message we want to send to everyone
+	 */
+	public void notifyChannels(Frame frame)
+	{
+		// the published members never change, so no lock and no copy
+		for (Channel node : members)
+			node.updateBuffer(frame);
+	}
+
+	/*
+	 * sends all channels several encoded messages
+	 *  
+	 * @param List<Frame> - the messages we want to send to everyone, in order
+	 */
+	public void notifyChannels(List<Frame> frames)
+	{
+		notifyChannels(frames, 0, 1);
+	}
+
+	/*
+	 * sends all channels several encoded messages. From the given number of
+	 * channels on, the channels are split into parts that are served in
+	 * parallel on the dispatcher; the call returns once every channel has the
+	 * messages, so each channel still gets batches in the order they are sent.
+	 *  
+	 * @param List<Frame> - the messages we want to send to everyone, in order
+	 * @param int - fewest channels served in parallel, 0 to always serve them in turn
+	 * @param int - number of parts served in parallel
+	 */
+	public void notifyChannels(List<Frame> frames, int threshold, int parallelism)
+	{
+		deliver(members, frames, threshold, parallelism);
+	}
+
+	/*
+	 * sends channels taken from getMembers() several encoded messages, as
+	 * notifyChannels does
+	 *  
+	 * @param Channel[] - the channels
+	 * @param List<Frame> - the messages, in order
+	 * @param int - fewest channels served in parallel, 0 to always serve them in turn
+	 * @param int - number of parts served in parallel
+	 */
+	public static void deliver(Channel[] channelsCopy, List<Frame> frames, int threshold, int parallelism)
+	{
+		if (threshold <= 0 || channelsCopy.length < threshold || parallelism <= 1)
 		{
-			channelsCopy = Nodes.values().toArray(new Channel[0]);
+			for (Channel node : channelsCopy)
+				node.updateBuffer(frames);
+			return;
 		}
-		
-		// notify all the channels by sending it a message
-		for (Channel node : channelsCopy)
-			node.updateBuffer(message);
+		FanOut fanOut = new FanOut(channelsCopy, 0, channelsCopy.length, frames,
+				(channelsCopy.length + parallelism - 1) / parallelism);
+		// run it here if already on the dispatcher, helping with the parts
+		if (ForkJoinTask.getPool() == Threads.dispatcher())
+			fanOut.invoke();
+		else
+			Threads.dispatcher().invoke(fanOut);
+	}
+
+	/*
+	 * The channels as of the last change, sorted by user name. The array is
+	 * shared and must not be modified.
+	 * 
+	 * @return Channel[] - the current members
+	 */
+	public Channel[] getMembers()
+	{
+		return members;
 	}
 
 	/*
@@ -148,4 +497,60 @@ public abstract class Nodes
 	{
 		return this.Nodes;
 	}
+
+	/**
+	 * Hands messages to a range of channels, splitting the range in two until
+	 * each part is small enough to serve in turn
+	 */
+	private static final class FanOut extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		// a task is serializable only because ForkJoinTask is; it is never serialized
+		private final transient Channel[] channels;
+		private final int from;
+		private final int to;
+		private final transient List<Frame> frames;
+		private final int part;
+
+		private FanOut(Channel[] channels, int from, int to, List<Frame> frames, int part)
+		{
+			this.channels = channels;
+			this.from = from;
+			this.to = to;
+			this.frames = frames;
+			this.part = part;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from <= part)
+			{
+				for (int i = from; i < to; i++)
+					channels[i].updateBuffer(frames);
+				return;
+			}
+			int middle = from + (to - from) / 2;
+			invokeAll(new FanOut(channels, from, middle, frames, part), new FanOut(channels, middle, to, frames, part));
+		}
+	}
+
+	/**
+	 * The list rendered as text and encoded, stamped with the change it is
+	 * current for
+	 */
+	private static final class Rendered
+	{
+		private final long changes;
+		private final String list;
+		private final Frame frame;
+
+		private Rendered(long changes, String list)
+		{
+			this.changes = changes;
+			this.list = list;
+			this.frame = Frame.of(list);
+		}
+	}
 }
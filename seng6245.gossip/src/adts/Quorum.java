@@ -1,24 +1,84 @@
 package adts;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import server.Channel;
+import server.Config;
+import server.Frame;
+import server.Threads;
 
 /**
  * The Quorum represents a gathering of channels or individual users who
  * come together to chat or communicate with each other. As long as one channel
  * is associated with the Quorum, then the Quorum will stay alive. Once, the last 
- * channel has left the Quorum, then the Quorum will interrupt its associated thread
- * and remove itself from the Hive.
+ * channel has left the Quorum, then the Quorum will stop and remove itself from
+ * the Hive.
+ * 
+ * A Quorum has no thread of its own: its messages wait in a mailbox and the
+ * Quorum is handed to the shared dispatcher (see Threads) whenever the
+ * mailbox has something in it. At most one worker runs a Quorum at a time,
+ * so messages go out in the order they arrived.
+ * 
+ * Each turn delivers whatever is in the mailbox, up to the batch size, as
+ * one batch: the members are looked up once and every member gets the whole
+ * batch queued in one go. Optionally the first message waits a little for
+ * others to batch with.
+ * 
+ * With a log directory configured, each batch is also appended to the
+ * quorum's MessageLog once it has been delivered.
+ * 
+ * A quorum can keep its last messages in a History. Whoever joins gets them
+ * first, and exactly the messages not delivered to them live: the members
+ * for a batch are looked up, and the batch added to the history, while
+ * holding the lock a join holds.
+ * 
+ * With latencies kept (see Config) the quorum records where its messages
+ * spend their time in a Latency of its own.
  */
 public class Quorum implements Runnable
 {
+	private static final Histogram _batchSizes = new Histogram("quorum batch", "");
+	private static final Histogram _latency = new Histogram("quorum latency", "us");
+
 	public final String Id;
 	private final Hive _hive;
 	private final ClientNodes _clientNodes;
-	private LinkedBlockingQueue<String> _buffer = new LinkedBlockingQueue<String>();
-	private Thread _thread;
-	private boolean _alive = true;
+	private final ConcurrentLinkedQueue<Letter> _buffer = new ConcurrentLinkedQueue<Letter>();
+	// reused by every turn, only touched by the worker running the quorum
+	private final ArrayList<Frame> _batch = new ArrayList<Frame>();
+	private final ArrayList<String> _texts = new ArrayList<String>();
+	// what was said, kept on disk; null unless a log directory is configured
+	private final MessageLog _log;
+	// the last messages, null if none are kept; replaced while holding _clientNodes
+	private volatile History _history;
+	private final int _batchSize;
+	private final long _delayMillis;
+	// limits the messages sent to the quorum, null if there is no limit
+	private final TokenBucket _limit;
+	// where messages spend their time, null unless latencies are kept
+	private final Latency _stages;
+	// members from which batches are delivered in parallel, and in how many parts
+	private volatile int _fanoutThreshold;
+	private volatile int _fanoutParallelism;
+	private final Runnable _dispatch = new Runnable()
+	{
+		public void run()
+		{
+			_dispatcher.execute(Quorum.this);
+		}
+	};
+	private final Executor _dispatcher;
+	// true while the quorum is queued on or running on the dispatcher
+	private final AtomicBoolean _scheduled = new AtomicBoolean(false);
+	private volatile boolean _alive = true;
+	private volatile boolean _stopped = false;
 
 	/*
 	 * Main constructor for Quorum
@@ -34,23 +94,39 @@ public class Quorum implements Runnable
 	{
 		this.Id = name;
 		this._hive = hive;
+		this._dispatcher = Threads.dispatcher();
+		this._batchSize = Config.get().getQuorumBatch();
+		this._delayMillis = Config.get().getQuorumDelayMillis();
+		this._fanoutThreshold = Config.get().getFanoutThreshold();
+		this._fanoutParallelism = Config.get().getFanoutParallelism();
+		this._log = openLog(name);
+		int history = Config.get().getHistoryMessages();
+		this._history = history <= 0 ? null : new History(history, Config.get().getHistoryBytes());
+		this._limit = Config.get().newQuorumLimit();
+		this._stages = Config.get().isLatency() ? new Latency(name) : null;
 		
 		// create a container to house all connected channels associated with this Quorum
 		this._clientNodes = new ClientNodes(name);
 		synchronized (this._clientNodes)
 		{
-			// add the quorum to the hive
-			this._hive.addQuorum(this);
+			// add the quorum to the hive, letting go of the log if the name is taken
+			try
+			{
+				this._hive.addQuorum(this);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				if (this._log != null)
+					this._log.close();
+				throw e;
+			}
 			
 			// Add the channel to the quorum
 			channel.updateBuffer("Connecting to Quorum: " + this.Id);
 			this._clientNodes.add(channel);
+			journal(channel, true);
 						
-			// construct a new thread
-			this._thread = new Thread(this);
-			
-			System.out.println("Quorum: (" + name + ") " + "Created");
-			this._thread.start();
+			Logger.info("Quorum: (" + name + ") " + "Created");
 		}
 	}
 
@@ -63,38 +139,148 @@ public class Quorum implements Runnable
 		this.Id = name;
 		this._hive = null;
 		this._clientNodes = null;
-		this._thread = null;
+		this._dispatcher = null;
+		this._batchSize = 1;
+		this._delayMillis = 0;
+		this._log = null;
+		this._limit = null;
+		this._stages = null;
+	}
+
+	/*
+	 * opens the message log of the quorum if logs are configured. The quorum
+	 * goes on without one if it cannot be opened.
+	 * @param String - name of the quorum
+	 * @return MessageLog - the log, null if none
+	 */
+	private static MessageLog openLog(String name)
+	{
+		String dir = Config.get().getLogDir();
+		if (dir == null)
+			return null;
+		try
+		{
+			return MessageLog.open(new File(dir), name);
+		}
+		catch (IOException e)
+		{
+			Logger.warn("Quorum: (" + name + ") " + "No message log: " + e.getMessage());
+			return null;
+		}
 	}
 
 	/*
 	 * Run() does all the heavy lifting of orchestrating the Quorum.
-	 * Runs in a loop checking for messages and notifying all the other channels.
-	 * As long as one channel is associated with the Quorum, it will stay alive.
+	 * Runs on a worker of the dispatcher, taking a batch of messages from the
+	 * mailbox and notifying all the other channels, one turn at a time. Once
+	 * the last channel has left it stops and leaves the Hive.
 	 */
 	public void run()
 	{
-		System.out.println("Quorum: " + this.Id + ": " + "Started...");
-		
 		// While the Quorum is alive, take messages from the message buffer
 		// and notify users
-		while (this._alive) {
-			try
+		long oldest = 0;
+		Latency stages = this._stages;
+		long taken = stages == null ? 0 : System.nanoTime();
+		while (this._batch.size() < this._batchSize && this._alive)
+		{
+			Letter letter = this._buffer.poll();
+			if (letter == null)
+				break;
+			if (this._batch.isEmpty())
+				oldest = letter.queued;
+			if (stages == null)
+				this._batch.add(Frame.message(this.Id, letter.text));
+			else
 			{
-				this._clientNodes.notifyChannels("Message (" + this.Id + "): " + this._buffer.take());
-				System.out.println("Quorum: (" + this.Id + ") " + "Message Sent");
+				stages.record(Latency.Stage.QUORUM, taken - letter.queued);
+				this._batch.add(Frame.message(this.Id, letter.text, stages, letter.read, taken));
 			}
-			catch (InterruptedException ie)
+			this._texts.add(letter.text);
+		}
+		if (!this._batch.isEmpty() && this._alive)
+		{
+			Channel[] members;
+			synchronized (this._clientNodes)
 			{
-				System.out.println("Quorum: (" + this.Id + ") " + "Stopping...");
-				// stop this loop
-				break;
+				// whoever joins after this gets the batch from the history
+				members = this._clientNodes.getMembers();
+				History history = this._history;
+				if (history != null)
+					for (Frame frame : this._batch)
+						history.add(frame);
 			}
+			Nodes.deliver(members, this._batch, this._fanoutThreshold, this._fanoutParallelism);
+			_batchSizes.record(this._batch.size());
+			_latency.record((System.nanoTime() - oldest) / 1000);
+			if (Logger.isDebug())
+				Logger.debug("Quorum: (" + this.Id + ") " + this._batch.size() + " Messages Sent");
+			// logged once the members have the batch, so the disk never holds up delivery
+			log(this._texts);
 		}
-		
-		System.out.println("Quorum: (" + this.Id + ") " + "Stopping...");
+		this._batch.clear();
+		this._texts.clear();
+
+		if (!this._alive)
+		{
+			// stays scheduled so it never runs again
+			stop();
+			return;
+		}
+		this._scheduled.set(false);
+		// messages that came after the last poll, or more than a batch's worth;
+		// or the last member left since _alive was read, and its wakeup found
+		// the quorum still scheduled
+		if (!this._alive || !this._buffer.isEmpty())
+			schedule(true);
+	}
+
+	/*
+	 * appends messages to the message log, if there is one
+	 * @param ArrayList<String> - the messages, in the order they were delivered
+	 */
+	private void log(ArrayList<String> texts)
+	{
+		if (this._log == null)
+			return;
+		try
+		{
+			for (String text : texts)
+				this._log.append(text);
+		}
+		catch (IOException e)
+		{
+			Logger.warn("Quorum: (" + this.Id + ") " + "Message not logged: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * queues the quorum on the dispatcher unless it is there already
+	 * @param boolean - true to skip the batch delay
+	 */
+	private void schedule(boolean now)
+	{
+		if (!this._scheduled.compareAndSet(false, true))
+			return;
+		if (now || this._delayMillis <= 0)
+			this._dispatcher.execute(this);
+		else
+			Threads.timer().schedule(this._dispatch, this._delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * drops the undelivered messages and removes the quorum from the hive
+	 */
+	private void stop()
+	{
+		Logger.info("Quorum: (" + this.Id + ") " + "Stopping...");
+		this._buffer.clear();
+		if (this._log != null)
+			this._log.close();
 		// remove quorum from hive
 		this.removeFromHive();
-		System.out.println("Quorum: (" + this.Id + ") " + "Removed from hive");
+		this._stopped = true;
+		Logger.info("Quorum: (" + this.Id + ") " + "Removed from hive");
 	}
 
 	/*
@@ -113,6 +299,8 @@ public class Quorum implements Runnable
 				if (!this._clientNodes.contains(channel.getUserName()))
 					channel.updateBuffer("Connecting to Quorum: " + this.Id);
 				this._clientNodes.add(channel);
+				journal(channel, true);
+				sendHistory(channel, Integer.MAX_VALUE);
 			} else {
 				throw new IOException("The Quorum no longer exists");
 			}
@@ -127,22 +315,121 @@ public class Quorum implements Runnable
 	{
 		synchronized (_clientNodes)
 		{
+			if (this._clientNodes.contains(channel.getUserName()))
+				journal(channel, false);
 			this._clientNodes.remove(channel);
 			// kill the quorum if there are no more users
 			if (this._clientNodes.size() <= 0)
 			{
 				this._alive = false;
-				this._thread.interrupt();
+				schedule(true);
 			}
 		}
 	}
 
+	/*
+	 * puts a channel in the place of another channel of the same user, as
+	 * when a session is resumed on a new connection; nobody is told
+	 * @param Channel - channel to replace
+	 * @param Channel - channel taking its place
+	 */
+	public void replaceChannel(Channel channel, Channel replacement)
+	{
+		synchronized (_clientNodes)
+		{
+			this._clientNodes.replace(channel, replacement);
+		}
+	}
+
+	/*
+	 * sends a channel the last messages of the quorum, oldest first. Nothing
+	 * said in the quorum in the meantime reaches the channel before them.
+	 * @param Channel - channel to send them to
+	 * @param int - most messages to send
+	 * @return int - number of messages sent
+	 */
+	public int sendHistory(Channel channel, int count)
+	{
+		synchronized (_clientNodes)
+		{
+			History history = this._history;
+			if (history == null || count <= 0)
+				return 0;
+			List<Frame> frames = history.last(count);
+			// sent again, so not counted as delivered
+			if (this._stages != null)
+				for (int i = 0; i < frames.size(); i++)
+					frames.set(i, frames.get(i).untraced());
+			if (!frames.isEmpty())
+				channel.updateBuffer(frames);
+			return frames.size();
+		}
+	}
+
+	/*
+	 * changes how many messages the quorum keeps for those who join, keeping
+	 * the last messages that fit
+	 * @param int - most messages kept, 0 to keep none
+	 * @param long - most bytes of messages kept
+	 */
+	public void setHistory(int count, long bytes)
+	{
+		synchronized (_clientNodes)
+		{
+			History old = this._history;
+			History history = count <= 0 ? null : new History(count, bytes);
+			if (history != null && old != null)
+				history.addAll(old);
+			this._history = history;
+		}
+	}
+
+	/*
+	 * @return History - the last messages of the quorum, null if none are kept
+	 */
+	public History getHistory()
+	{
+		return this._history;
+	}
+
+	/*
+	 * @return TokenBucket - the limit on the messages sent to the quorum, null if there is none
+	 */
+	public TokenBucket getLimit()
+	{
+		return this._limit;
+	}
+
+	/*
+	 * @return Latency - where the quorum's messages spend their time, null unless latencies are kept
+	 */
+	public Latency getStages()
+	{
+		return this._stages;
+	}
+
+	/*
+	 * records a member joining or leaving in the journal of the Hive, if any
+	 * @param Channel - the member
+	 * @param boolean - true if the member joined
+	 */
+	private void journal(Channel channel, boolean joined)
+	{
+		Journal journal = this._hive == null ? null : this._hive.getJournal();
+		if (journal == null)
+			return;
+		if (joined)
+			journal.joined(this.Id, channel.getUserName());
+		else
+			journal.left(this.Id, channel.getUserName());
+	}
+
 	/*
 	 * remove quorum from the hive
 	 */
 	private void removeFromHive()
 	{
-		System.out.println("Quorum: " + Id + " - " + "removed from hive.");
+		Logger.info("Quorum: " + Id + " - " + "removed from hive.");
 		this._hive.removeQuorum(this);
 	}
 
@@ -151,17 +438,64 @@ public class Quorum implements Runnable
 	 */
 	public void updateBuffer(String msg)
 	{
-		this._buffer.add(msg);
+		updateBuffer(msg, 0);
+	}
+
+	/*
+	 * writes a message read from a client into this quorum's buffer
+	 * @param String - the message
+	 * @param long - nanoTime the line was read, 0 if not known
+	 */
+	public void updateBuffer(String msg, long read)
+	{
+		long queued = System.nanoTime();
+		if (this._stages != null && read != 0)
+			this._stages.record(Latency.Stage.READ, queued - read);
+		this._buffer.add(new Letter(msg, read, queued));
+		schedule(false);
+	}
+
+	/*
+	 * returns false once the last channel has left and the Quorum is
+	 * closing; it takes no new channels from then on
+	 * 
+	 * @return boolean - true while channels can join
+	 */
+	public boolean isOpen()
+	{
+		return this._alive;
 	}
 
 	/*
-	 * returns true if the Quorum is alive
+	 * returns true until the Quorum has stopped and left the Hive
 	 * 
 	 * @return boolean - determines if the Quorum is alive
 	 */
 	public boolean isAlive()
 	{
-		return this._thread.isAlive();
+		return !this._stopped;
+	}
+
+	/*
+	 * Lets a large quorum, e.g. one for announcements, deliver to its members
+	 * in parallel. Every member still gets the messages in the order they
+	 * were sent.
+	 * 
+	 * @param int - fewest members for which batches are delivered in parallel, 0 for never
+	 * @param int - number of parts the members are split into
+	 */
+	public void setFanout(int threshold, int parallelism)
+	{
+		this._fanoutThreshold = threshold;
+		this._fanoutParallelism = parallelism;
+	}
+
+	/*
+	 * @return MessageLog - what was said in the quorum, null if logs are not configured
+	 */
+	public MessageLog getLog()
+	{
+		return this._log;
 	}
 
 	/*
@@ -173,4 +507,37 @@ public class Quorum implements Runnable
 	{
 		return this._clientNodes;
 	}
+
+	/*
+	 * @return Histogram - messages per batch delivered by all quorums
+	 */
+	public static Histogram getBatchSizes()
+	{
+		return _batchSizes;
+	}
+
+	/*
+	 * @return Histogram - microseconds the oldest message of a batch waited until delivered
+	 */
+	public static Histogram getLatency()
+	{
+		return _latency;
+	}
+
+	/**
+	 * A message waiting in the mailbox, when it was read and when it arrived
+	 */
+	private static final class Letter
+	{
+		private final String text;
+		private final long read;
+		private final long queued;
+
+		private Letter(String text, long read, long queued)
+		{
+			this.text = text;
+			this.read = read;
+			this.queued = queued;
+		}
+	}
 }
@@ -1,5 +1,9 @@
 package adts;
 
+import protocol.Presence;
+import protocol.Symbols;
+import server.Channel;
+
 /*
  * Extends the base class nodes 
  */
@@ -7,12 +11,29 @@ package adts;
 public class ServerNodes extends Nodes
 {
 	/*
-	 * appends "ServerNodes: "  to the underlying list of nodes
+	 * puts "ServerNodes: " in front of the underlying list of nodes
+	 */
+	@Override
+	protected String getHeader()
+	{
+		return "ServerNodes: ";
+	}
+
+	@Override
+	public String getListName()
+	{
+		return Presence.SERVER;
+	}
+
+	/*
+	 * removes the user from the server; a user of that name who connects
+	 * later is numbered anew for the binary protocol
 	 */
 	@Override
-	public String getList()
+	public void remove(Channel channel)
 	{
-		String list = super.getList();
-		return "ServerNodes: " + list;
+		super.remove(channel);
+		if (!contains(channel.getUserName()))
+			Symbols.drop(channel.getUserName());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,213 @@
+package adts;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author thetrick
+ * A hashed timing wheel: timeouts are kept in a ring of slots, one slot per
+ * tick, each timeout in the slot of the tick it is due on modulo the number
+ * of slots. Every tick looks at one slot and runs the timeouts that are due;
+ * the others in it are due a later time round. Scheduling and cancelling
+ * are O(1) whatever the number of timeouts, so every connection can have
+ * its own without a timer or a thread of its own.
+ *
+ * Any thread may schedule or cancel; new and cancelled timeouts are queued
+ * without a lock and put in or taken out of their slots by the one thread
+ * that advances the wheel. Due tasks are handed to an executor, so a slow
+ * task never holds up the wheel. Timeouts fire up to a tick late, never
+ * early.
+ */
+public class TimingWheel
+{
+	private final long _tickNanos;
+	private final long _start;
+	private final Executor _executor;
+	// the first timeout in each slot, linked both ways; touched by the advancing thread only
+	private final Timeout[] _slots;
+	private final int _mask;
+	private final ConcurrentLinkedQueue<Timeout> _added = new ConcurrentLinkedQueue<Timeout>();
+	private final ConcurrentLinkedQueue<Timeout> _cancelled = new ConcurrentLinkedQueue<Timeout>();
+	// the next tick to look at; touched by the advancing thread only
+	private long _tick = 0;
+	private final AtomicInteger _pending = new AtomicInteger(0);
+
+	/*
+	 * Constructor
+	 * @param long - milliseconds per tick
+	 * @param int - number of slots, rounded up to a power of two
+	 * @param Executor - runs the tasks that are due
+	 */
+	public TimingWheel(long tickMillis, int slots, Executor executor)
+	{
+		this._tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMillis, 1));
+		int size = Integer.highestOneBit(Math.max(slots, 1) * 2 - 1);
+		this._slots = new Timeout[size];
+		this._mask = size - 1;
+		this._executor = executor;
+		this._start = System.nanoTime();
+	}
+
+	/*
+	 * runs a task once a delay has passed
+	 * @param Runnable - the task, which should not block
+	 * @param long - milliseconds to wait
+	 * @return Timeout - cancels the task
+	 */
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		long deadline = System.nanoTime() - this._start + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+		// the first tick at or after the deadline
+		Timeout timeout = new Timeout(this, task, (deadline + this._tickNanos - 1) / this._tickNanos);
+		this._pending.incrementAndGet();
+		this._added.add(timeout);
+		return timeout;
+	}
+
+	/*
+	 * Looks at every tick up to the given time and hands the timeouts that
+	 * are due to the executor. Called by one thread at a time, usually on a
+	 * fixed rate of one tick.
+	 * @param long - the time now, from System.nanoTime()
+	 */
+	public void advance(long now)
+	{
+		long last = (now - this._start) / this._tickNanos;
+		for (; this._tick <= last; this._tick++)
+		{
+			for (Timeout timeout = this._added.poll(); timeout != null; timeout = this._added.poll())
+				if (!timeout.isCancelled())
+					link(timeout);
+				else
+					this._pending.decrementAndGet();
+			for (Timeout timeout = this._cancelled.poll(); timeout != null; timeout = this._cancelled.poll())
+				unlink(timeout);
+
+			int slot = (int) (this._tick & this._mask);
+			Timeout timeout = this._slots[slot];
+			while (timeout != null)
+			{
+				Timeout next = timeout._next;
+				if (timeout._tick <= this._tick)
+				{
+					unlink(timeout);
+					if (timeout.expire())
+						this._executor.execute(timeout._task);
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/*
+	 * puts a timeout in its slot; one already due goes in the current slot
+	 */
+	private void link(Timeout timeout)
+	{
+		int slot = (int) (Math.max(timeout._tick, this._tick) & this._mask);
+		timeout._slot = slot;
+		timeout._next = this._slots[slot];
+		if (timeout._next != null)
+			timeout._next._previous = timeout;
+		this._slots[slot] = timeout;
+	}
+
+	/*
+	 * takes a timeout out of its slot, if it is in one
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if (timeout._slot < 0)
+			return;
+		if (timeout._previous != null)
+			timeout._previous._next = timeout._next;
+		else
+			this._slots[timeout._slot] = timeout._next;
+		if (timeout._next != null)
+			timeout._next._previous = timeout._previous;
+		timeout._slot = -1;
+		timeout._next = null;
+		timeout._previous = null;
+		this._pending.decrementAndGet();
+	}
+
+	/*
+	 * @return int - timeouts scheduled and neither run nor cancelled, as of the last tick
+	 */
+	public int getPending()
+	{
+		return this._pending.get();
+	}
+
+	/*
+	 * @return long - milliseconds per tick
+	 */
+	public long getTickMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(this._tickNanos);
+	}
+
+	/**
+	 * A task waiting on the wheel
+	 */
+	public static final class Timeout
+	{
+		private static final int WAITING = 0;
+		private static final int EXPIRED = 1;
+		private static final int CANCELLED = 2;
+
+		private final TimingWheel _wheel;
+		private final Runnable _task;
+		private final long _tick;
+		private final AtomicInteger _state = new AtomicInteger(WAITING);
+		// where it is on the wheel; touched by the advancing thread only
+		private int _slot = -1;
+		private Timeout _next;
+		private Timeout _previous;
+
+		private Timeout(TimingWheel wheel, Runnable task, long tick)
+		{
+			this._wheel = wheel;
+			this._task = task;
+			this._tick = tick;
+		}
+
+		/*
+		 * makes sure the task does not run, unless it already started
+		 * @return boolean - true if the task will not run because of this call
+		 */
+		public boolean cancel()
+		{
+			if (!this._state.compareAndSet(WAITING, CANCELLED))
+				return false;
+			this._wheel._cancelled.add(this);
+			return true;
+		}
+
+		/*
+		 * @return boolean - true if the task is due and was not cancelled
+		 */
+		private boolean expire()
+		{
+			return this._state.compareAndSet(WAITING, EXPIRED);
+		}
+
+		/*
+		 * @return boolean - true if the timeout was cancelled
+		 */
+		public boolean isCancelled()
+		{
+			return this._state.get() == CANCELLED;
+		}
+
+		/*
+		 * @return boolean - true if the task was handed over to run
+		 */
+		public boolean isExpired()
+		{
+			return this._state.get() == EXPIRED;
+		}
+	}
+}
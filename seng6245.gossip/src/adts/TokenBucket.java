@@ -0,0 +1,120 @@
+package adts;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author thetrick
+ * Limits how often something may happen: a bucket holds up to a burst of
+ * tokens and refills at a steady rate, and each event takes a token. The
+ * bucket is kept as the single time at which it will be full again, so
+ * taking a token is one compare-and-set and any number of threads may share
+ * a bucket without a lock.
+ *
+ * What happens to an event that finds the bucket empty is the owner's
+ * choice: it may wait for its token, be dropped, or cost the sender its
+ * connection.
+ */
+public class TokenBucket
+{
+	/**
+	 * What happens when there is no token left
+	 */
+	public enum Action
+	{
+		// wait for the token; a reader waiting stops reading its socket
+		DELAY,
+		// the event is dropped
+		DROP,
+		// the sender is disconnected
+		DISCONNECT
+	}
+
+	private static final AtomicLong _delayedAll = new AtomicLong(0);
+	private static final AtomicLong _droppedAll = new AtomicLong(0);
+	private static final AtomicLong _disconnectedAll = new AtomicLong(0);
+
+	private final long _interval;
+	private final long _tolerance;
+	private final Action _action;
+	// nanoTime at which every token taken so far has been refilled
+	private final AtomicLong _full;
+
+	/*
+	 * Constructor, the bucket starts full
+	 * @param double - tokens added per second
+	 * @param int - most tokens held, i.e. events allowed at once
+	 * @param Action - what happens when there is no token left
+	 */
+	public TokenBucket(double perSecond, int burst, Action action)
+	{
+		this._interval = Math.max(1, (long) (1e9 / perSecond));
+		this._tolerance = this._interval * Math.max(burst, 1);
+		this._action = action;
+		this._full = new AtomicLong(System.nanoTime());
+	}
+
+	/*
+	 * takes a token if there is one
+	 * @param long - the time now, from System.nanoTime()
+	 * @return boolean - true if a token was taken
+	 */
+	public boolean tryAcquire(long now)
+	{
+		while (true)
+		{
+			long full = this._full.get();
+			long next = Math.max(full, now) + this._interval;
+			if (next - now > this._tolerance)
+				return false;
+			if (this._full.compareAndSet(full, next))
+				return true;
+		}
+	}
+
+	/*
+	 * takes the next token, whether it is there yet or not
+	 * @param long - the time now, from System.nanoTime()
+	 * @return long - nanoseconds until the token is there, 0 if it is
+	 */
+	public long reserve(long now)
+	{
+		while (true)
+		{
+			long full = this._full.get();
+			long next = Math.max(full, now) + this._interval;
+			if (this._full.compareAndSet(full, next))
+				return Math.max(0, next - now - this._tolerance);
+		}
+	}
+
+	/*
+	 * @return Action - what happens when there is no token left
+	 */
+	public Action getAction()
+	{
+		return this._action;
+	}
+
+	/*
+	 * counts an event that found the bucket empty, by what happened to it
+	 * @param Action - what happened
+	 */
+	public static void limited(Action action)
+	{
+		if (action == Action.DELAY)
+			_delayedAll.incrementAndGet();
+		else if (action == Action.DROP)
+			_droppedAll.incrementAndGet();
+		else
+			_disconnectedAll.incrementAndGet();
+	}
+
+	/*
+	 * @return String - events delayed, dropped and senders disconnected by all buckets
+	 */
+	public static String report()
+	{
+		return "limited delayed=" + _delayedAll.get() + " dropped=" + _droppedAll.get() + " disconnected="
+				+ _disconnectedAll.get();
+	}
+}
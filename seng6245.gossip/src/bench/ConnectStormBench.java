@@ -0,0 +1,120 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.Coalescer;
+import server.Config;
+import server.EventLoop;
+import server.NioServer;
+
+/**
+ * @author thetrick
+ * Reconnect storm: many clients connect to a fresh NioServer at the same
+ * time, as after a restart. Reports how long it takes until every user is
+ * on the server and how many bytes the server sent, with membership changes
+ * broadcast at once and collected over a window.
+ *
+ * USAGE: bench.ConnectStormBench [clients] [window MS] [port]
+ */
+public class ConnectStormBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 25353;
+
+		storm(clients, 0, port);
+		storm(clients, window, port);
+	}
+
+	/*
+	 * connects all clients at once and waits until the server went quiet
+	 */
+	private static void storm(int clients, int window, int port) throws Exception
+	{
+		Config.get().setCoalesceMillis(window);
+		final NioServer server = new NioServer(port, 2);
+		Thread acceptor = new Thread()
+		{
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		acceptor.start();
+
+		final AtomicLong received = new AtomicLong(0);
+		final ArrayList<Socket> sockets = new ArrayList<Socket>();
+		ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++)
+		{
+			final Socket socket = new Socket("localhost", port);
+			sockets.add(socket);
+			OutputStream out = socket.getOutputStream();
+			out.write(("connect user" + i + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			// keep reading so the server is never held up by a full socket
+			readers.execute(new Runnable()
+			{
+				public void run()
+				{
+					byte[] buffer = new byte[64 * 1024];
+					try
+					{
+						InputStream in = socket.getInputStream();
+						for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+							received.addAndGet(read);
+					}
+					catch (IOException ignore)
+					{
+					}
+				}
+			});
+		}
+		while (server.getServerNodes().size() < clients)
+			Thread.sleep(1);
+		long joined = System.nanoTime() - start;
+
+		// wait for the last window and every queued line to go out
+		long bytesOut = -1;
+		while (bytesOut != bytesOut(server))
+		{
+			bytesOut = bytesOut(server);
+			Thread.sleep(window + 200);
+		}
+		long settled = System.nanoTime() - start;
+
+		System.out.println(String.format("window=%dms clients=%d joined=%.1fms (%.0f joins/s) settled=%.1fms sent=%dB (%dB per client) %s",
+				window, clients, joined / 1e6, clients / (joined / 1e9), settled / 1e6, bytesOut, bytesOut / clients,
+				Coalescer.report()));
+
+		for (Socket socket : sockets)
+			socket.close();
+		readers.shutdown();
+		readers.awaitTermination(10, TimeUnit.SECONDS);
+		server.close();
+		acceptor.join();
+	}
+
+	/*
+	 * @return long - bytes written by all loops of the server
+	 */
+	private static long bytesOut(NioServer server)
+	{
+		long bytes = 0;
+		for (EventLoop loop : server.getLoops())
+			bytes += loop.getBytesOut();
+		return bytes;
+	}
+}
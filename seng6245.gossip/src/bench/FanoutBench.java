@@ -0,0 +1,73 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import adts.ClientNodes;
+import server.Channel;
+import server.Config;
+import server.Frame;
+import server.Threads;
+
+/**
+ * @author thetrick
+ * Fan-out of one quorum message: the time until the last member of a room
+ * has the message queued, for rooms of growing size, delivered by one worker
+ * and by the members split across the dispatcher.
+ *
+ * USAGE: bench.FanoutBench [largest room] [rounds per size] [parallelism]
+ */
+public class FanoutBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int largest = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Threads.dispatcher().getParallelism();
+		// filling the rooms should not broadcast the member list on every join
+		Config.get().setCoalesceMillis(60000);
+
+		for (int size = 10; size < largest; size *= 10)
+			run(size, rounds, parallelism);
+		run(largest, rounds, parallelism);
+	}
+
+	/*
+	 * delivers a message to a room of the given size, one worker against many
+	 */
+	private static void run(int size, int rounds, int parallelism) throws Exception
+	{
+		ClientNodes room = new ClientNodes("room");
+		Channel[] members = new Channel[size];
+		for (int m = 0; m < size; m++)
+		{
+			members[m] = new Channel("member" + m);
+			room.add(members[m]);
+		}
+		List<Frame> batch = new ArrayList<Frame>();
+		batch.add(Frame.message("room", "bench message"));
+
+		long serial = measure(room, members, batch, 0, 1, rounds);
+		long parallel = measure(room, members, batch, 1, parallelism, rounds);
+		System.out.println(String.format("members=%d serial=%.1fus parallel(%d)=%.1fus speedup=%.2f", size,
+				serial / 1e3, parallelism, parallel / 1e3, (double) serial / parallel));
+	}
+
+	/*
+	 * @return long - best nanoseconds until the last member had the message
+	 */
+	private static long measure(ClientNodes room, Channel[] members, List<Frame> batch, int threshold,
+			int parallelism, int rounds)
+	{
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < rounds; r++)
+		{
+			long start = System.nanoTime();
+			room.notifyChannels(batch, threshold, parallelism);
+			best = Math.min(best, System.nanoTime() - start);
+			for (Channel member : members)
+				member.getBuffer().clear();
+		}
+		return best;
+	}
+}
@@ -0,0 +1,102 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.Hive;
+import adts.Quorum;
+import adts.ServerNodes;
+import server.Channel;
+import server.Config;
+import server.Threads;
+
+/**
+ * @author thetrick
+ * Contention on the Hive: threads join and leave quorums picked at random,
+ * and now and then make a quorum nobody is in yet, all at the same time.
+ * Every quorum keeps one member so joins and leaves do not close it. Reports
+ * operations per second for 1, 2, 4... threads up to the number of cores.
+ *
+ * USAGE: bench.HiveBench [quorums] [milliseconds per run] [most threads]
+ */
+public class HiveBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int quorums = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+		int cores = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		Config.get().setThreadMode(Threads.Mode.VIRTUAL);
+
+		double single = 0;
+		for (int threads = 1; threads <= cores; threads *= 2)
+		{
+			double rate = run(threads, quorums, millis);
+			if (threads == 1)
+				single = rate;
+			System.out.println(String.format("threads=%d ops/s=%.0f speedup=%.2f", threads, rate, rate / single));
+		}
+	}
+
+	/*
+	 * runs the given number of threads against a new Hive
+	 * @return double - operations per second
+	 */
+	private static double run(int threads, final int quorums, long millis) throws Exception
+	{
+		final ServerNodes serverNodes = new ServerNodes();
+		final Hive hive = new Hive(serverNodes);
+		final Channel[] anchors = new Channel[quorums];
+		for (int q = 0; q < quorums; q++)
+		{
+			anchors[q] = new Channel("anchor" + q);
+			new Quorum("quorum" + q, hive, anchors[q]);
+		}
+
+		final AtomicLong operations = new AtomicLong(0);
+		final long deadline = System.nanoTime() + millis * 1000000L;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final Channel channel = new Channel("worker" + t);
+			final int worker = t;
+			workers[t] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long done = 0;
+					try
+					{
+						for (long i = 0; System.nanoTime() < deadline; i++)
+						{
+							// one in sixteen makes a quorum of its own
+							String name = (i & 15) == 0 ? "new" + worker + "-" + i : "quorum" + random.nextInt(quorums);
+							Quorum quorum = hive.makeOrJoin(name, channel);
+							quorum.removeChannel(channel);
+							channel.getBuffer().clear();
+							if (name.startsWith("quorum"))
+								anchors[Integer.parseInt(name.substring(6))].getBuffer().clear();
+							done += 2;
+						}
+					}
+					catch (IOException e)
+					{
+						System.out.println("HiveBench: " + e.getMessage());
+					}
+					operations.addAndGet(done);
+				}
+			});
+			workers[t].start();
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		for (int q = 0; q < quorums; q++)
+			hive.getQuorumById("quorum" + q).removeChannel(anchors[q]);
+		return operations.get() / seconds;
+	}
+}
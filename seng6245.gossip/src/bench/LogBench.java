@@ -0,0 +1,66 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import adts.Histogram;
+import adts.MessageLog;
+
+/**
+ * @author thetrick
+ * Appends to a quorum's message log as fast as one thread can, as a busy
+ * quorum would after every batch. Reports sustained messages and megabytes
+ * per second and the latency of single appends, forcing the log every so
+ * many messages on the disk thread.
+ *
+ * USAGE: bench.LogBench [messages] [bytes per message] [messages per force] [directory]
+ */
+public class LogBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int bytes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int syncMessages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		File dir = args.length > 3 ? new File(args[3]) : Files.createTempDirectory("logbench").toFile();
+
+		StringBuilder text = new StringBuilder("user ");
+		while (text.length() < bytes)
+			text.append('x');
+		String message = text.toString();
+
+		MessageLog log = new MessageLog(dir, 64 * 1024 * 1024, 0, syncMessages);
+		Histogram latency = new Histogram("append", "ns");
+		// warm up, then measure
+		for (int i = 0; i < messages / 10; i++)
+			log.append(message);
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++)
+		{
+			long before = System.nanoTime();
+			log.append(message);
+			latency.record(System.nanoTime() - before);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		log.sync();
+
+		System.out.println(String.format("messages=%d bytes=%d force every %d: %.0f msgs/s %.1f MB/s segments=%d", messages,
+				bytes, syncMessages, messages / seconds, messages * (4.0 + bytes) / seconds / 1e6, log.getSegmentCount()));
+		System.out.println(latency.report());
+
+		if (args.length <= 3)
+			delete(dir);
+	}
+
+	/*
+	 * removes a directory and everything in it
+	 */
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+}
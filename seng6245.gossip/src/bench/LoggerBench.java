@@ -0,0 +1,100 @@
+package bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+import adts.Histogram;
+import adts.Logger;
+
+/**
+ * @author thetrick
+ * Logs a line per message from many threads at once, as channels and
+ * quorums do under load, three ways: println on a shared PrintStream as
+ * System.out does, through the Logger, and through a Logger whose level
+ * leaves the line out. Both streams flush every line, as System.out does,
+ * to a file. Reports lines per second for the threads logging, how long
+ * the Logger then took to write everything, and the latency of single calls.
+ *
+ * USAGE: bench.LoggerBench [threads] [lines per thread] [file]
+ */
+public class LoggerBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int lines = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		File file = args.length > 2 ? new File(args[2]) : File.createTempFile("loggerbench", ".log");
+
+		PrintStream out = new PrintStream(new FileOutputStream(file), true);
+		Logger logger = new Logger(new PrintStream(new FileOutputStream(file, true), true), 1 << 16);
+		logger.setLevel(Logger.Level.DEBUG);
+		Logger off = new Logger(out, 16);
+		off.setLevel(Logger.Level.OFF);
+
+		// warm up, then measure
+		for (int round = 0; round < 2; round++)
+		{
+			boolean report = round == 1;
+			run("println", threads, report ? lines : lines / 10, out, null, report);
+			run("logger", threads, report ? lines : lines / 10, null, logger, report);
+			run("off", threads, report ? lines : lines / 10, null, off, report);
+		}
+		out.close();
+		if (args.length <= 2)
+			file.delete();
+	}
+
+	/*
+	 * logs lines from several threads at once and reports how fast
+	 * @param String - name used in the report
+	 * @param int - threads logging
+	 * @param int - lines each thread logs
+	 * @param PrintStream - stream printed to, null to log to the logger
+	 * @param Logger - logger logged to
+	 * @param boolean - true to print the report
+	 */
+	private static void run(String name, int threads, final int lines, final PrintStream out, final Logger logger,
+			boolean report) throws InterruptedException
+	{
+		final Histogram latency = new Histogram(name, "ns", 4);
+		Thread[] loggers = new Thread[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			final String user = "User" + i;
+			loggers[i] = new Thread()
+			{
+				public void run()
+				{
+					for (int j = 0; j < lines; j++)
+					{
+						long before = System.nanoTime();
+						if (out != null)
+							out.println("Client: (" + user + ") sending... Message (q1): " + user + " hello " + j);
+						else if (logger.isEnabled(Logger.Level.DEBUG))
+							logger.log(Logger.Level.DEBUG, "Client: (" + user + ") sending... Message (q1): " + user
+									+ " hello " + j);
+						latency.record(System.nanoTime() - before);
+					}
+				}
+			};
+		}
+		long dropped = logger == null ? 0 : logger.getDropped();
+		long start = System.nanoTime();
+		for (Thread thread : loggers)
+			thread.start();
+		for (Thread thread : loggers)
+			thread.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (logger != null)
+			logger.flush(60000);
+		double written = (System.nanoTime() - start) / 1e9;
+
+		if (!report)
+			return;
+		long total = (long) threads * lines;
+		System.out.println(String.format("%s threads=%d lines=%d: %.0f lines/s logged, all written after %.2fs dropped=%d",
+				name, threads, total, total / seconds, written, logger == null ? 0 : logger.getDropped() - dropped));
+		System.out.println(latency.report(new double[] { 50, 99, 99.9 }));
+	}
+}
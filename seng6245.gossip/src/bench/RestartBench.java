@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import adts.Journal;
+
+/**
+ * @author thetrick
+ * Start-up time of a server with a journal, against the size of the state
+ * it recovers: quorums times members per quorum. Each size is recovered
+ * once from the journal alone, and once from a snapshot and a short journal
+ * after it, as after normal operation.
+ *
+ * USAGE: bench.RestartBench [largest number of memberships]
+ */
+public class RestartBench
+{
+	public static void main(String[] args) throws Exception
+	{
+		int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		for (int memberships = 1000; memberships <= largest; memberships *= 10)
+		{
+			int members = 10;
+			int quorums = memberships / members;
+			double journalOnly = restart(quorums, members, false);
+			double snapshot = restart(quorums, members, true);
+			System.out.println(String.format("quorums=%d memberships=%d journal=%.1fms snapshot+tail=%.1fms", quorums,
+					memberships, journalOnly, snapshot));
+		}
+	}
+
+	/*
+	 * records the state, then opens the journal again as a restarting server would
+	 * @param boolean - true to take a snapshot before the last 1% of the changes
+	 * @return double - milliseconds to recover
+	 */
+	private static double restart(int quorums, int members, boolean snapshot) throws Exception
+	{
+		File dir = Files.createTempDirectory("restartbench").toFile();
+		Journal journal = new Journal(dir, 0, Integer.MAX_VALUE);
+		int changes = quorums * (members + 1);
+		int tail = changes - changes / 100;
+		int recorded = 0;
+		for (int q = 0; q < quorums; q++)
+		{
+			if (snapshot && recorded++ == tail)
+				journal.snapshot();
+			journal.quorumMade("quorum" + q);
+			for (int m = 0; m < members; m++)
+			{
+				if (snapshot && recorded++ == tail)
+					journal.snapshot();
+				journal.joined("quorum" + q, "user" + (q * 7 + m) % (quorums * members / 4 + 1));
+			}
+		}
+		journal.close();
+
+		long start = System.nanoTime();
+		Journal reopened = new Journal(dir, 0, Integer.MAX_VALUE);
+		double millis = (System.nanoTime() - start) / 1e6;
+		if (reopened.getRecovered().size() != quorums)
+			throw new IllegalStateException("recovered " + reopened.getRecovered().size() + " of " + quorums);
+		reopened.close();
+
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+		return millis;
+	}
+}
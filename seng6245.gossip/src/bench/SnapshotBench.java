@@ -0,0 +1,98 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import adts.ClientNodes;
+import server.Channel;
+import server.Config;
+import server.Frame;
+
+/**
+ * @author thetrick
+ * Sending one message to every member of a room, with the members read from
+ * the snapshot Nodes keeps against copying them out of the map under its
+ * lock for every message, as Nodes used to. Reports nanoseconds and bytes
+ * allocated per message for rooms of 10, 1k and 50k members.
+ *
+ * USAGE: bench.SnapshotBench [messages per room size]
+ */
+public class SnapshotBench
+{
+	// messages sent before the members' outboxes are emptied
+	private static final int ROUND = 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		// filling the rooms should not broadcast the member list on every join
+		Config.get().setCoalesceMillis(60000);
+
+		for (int size : new int[] { 10, 1000, 50000 })
+		{
+			ClientNodes room = new ClientNodes("room");
+			for (int m = 0; m < size; m++)
+				room.add(new Channel("member" + m));
+			Frame frame = Frame.message("room", "bench message");
+			int count = Math.max(ROUND, messages / Math.max(1, size / 100));
+
+			// warm up both, then measure
+			run(room, frame, ROUND, true);
+			run(room, frame, ROUND, false);
+			long[] copied = run(room, frame, count, true);
+			long[] snapshot = run(room, frame, count, false);
+			System.out.println(String.format("members=%d copy=%.0fns %dB snapshot=%.0fns %dB speedup=%.2f", size,
+					(double) copied[0] / count, copied[1] / count, (double) snapshot[0] / count, snapshot[1] / count,
+					(double) copied[0] / snapshot[0]));
+		}
+	}
+
+	/*
+	 * sends the frame to everyone the given number of times
+	 * @param boolean - true to copy the members for every message
+	 * @return long[] - nanoseconds and bytes allocated while sending
+	 */
+	private static long[] run(ClientNodes room, Frame frame, int count, boolean copy)
+	{
+		long nanos = 0;
+		long bytes = 0;
+		for (int sent = 0; sent < count; sent += ROUND)
+		{
+			long allocated = allocated();
+			long start = System.nanoTime();
+			for (int i = 0; i < ROUND; i++)
+				if (copy)
+					notifyByCopy(room, frame);
+				else
+					room.notifyChannels(frame);
+			nanos += System.nanoTime() - start;
+			bytes += allocated() - allocated;
+			for (Channel member : room.getMembers())
+				member.getBuffer().clear();
+		}
+		return new long[] { nanos, bytes };
+	}
+
+	/*
+	 * the old way: lock the map and copy the channels for every message
+	 */
+	private static void notifyByCopy(ClientNodes room, Frame frame)
+	{
+		Map<String, Channel> nodes = room.getNodesMap();
+		Channel[] channelsCopy;
+		synchronized (nodes)
+		{
+			channelsCopy = nodes.values().toArray(new Channel[0]);
+		}
+		for (Channel node : channelsCopy)
+			node.updateBuffer(frame);
+	}
+
+	/*
+	 * @return long - bytes allocated by this thread so far
+	 */
+	private static long allocated()
+	{
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+	}
+}
@@ -0,0 +1,118 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import protocol.Symbols;
+import protocol.Wire;
+import server.Frame;
+
+/**
+ * @author thetrick
+ * Compares the text protocol with the binary one for chat messages: bytes
+ * on the wire and CPU per message for the server encoding a message and the
+ * client decoding it into quorum, user and text. Streams are in memory so
+ * only the codecs are measured.
+ * 
+ * USAGE: bench.WireBench [messages] [message length]
+ */
+public class WireBench
+{
+	private static final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException
+	{
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int length = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length)
+			text.append("gossip ");
+		String message = text.substring(0, length);
+
+		// warm up both paths before measuring
+		for (int i = 0; i < 3; i++)
+		{
+			text(messages, message);
+			binary(messages, message);
+		}
+		report("text", text(messages, message), messages);
+		report("binary", binary(messages, message), messages);
+	}
+
+	/*
+	 * encodes and decodes messages with the text protocol
+	 * @return long[] - bytes on the wire and CPU nanoseconds
+	 */
+	private static long[] text(int messages, String message) throws IOException
+	{
+		long start = _threads.getCurrentThreadCpuTime();
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		for (int i = 0; i < messages; i++)
+			wire.write(Frame.message("quorum" + (i & 15), "user" + (i & 63) + " " + message).getBytes());
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(wire.toByteArray()),
+				StandardCharsets.UTF_8));
+		long check = 0;
+		for (String line = reader.readLine(); line != null; line = reader.readLine())
+		{
+			// the substring parsing a client does for 'Message (quorum): user text'
+			int close = line.indexOf("): ");
+			int space = line.indexOf(' ', close + 3);
+			String quorum = line.substring(9, close);
+			String user = line.substring(close + 3, space);
+			check += quorum.length() + user.length() + line.substring(space + 1).length();
+		}
+		return new long[] { wire.size(), _threads.getCurrentThreadCpuTime() - start, check };
+	}
+
+	/*
+	 * encodes and decodes messages with the binary protocol, binding every
+	 * name once as a server would per connection
+	 * @return long[] - bytes on the wire and CPU nanoseconds
+	 */
+	private static long[] binary(int messages, String message) throws IOException
+	{
+		long start = _threads.getCurrentThreadCpuTime();
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		boolean[] bound = new boolean[1024];
+		for (int i = 0; i < messages; i++)
+		{
+			Frame frame = Frame.message("quorum" + (i & 15), "user" + (i & 63) + " " + message);
+			for (String name : new String[] { frame.getQuorum(), frame.getUser() })
+			{
+				int id = Symbols.id(name);
+				if (!bound[id])
+				{
+					wire.write(Wire.bind(id, name));
+					bound[id] = true;
+				}
+			}
+			wire.write(frame.getBinary());
+		}
+
+		Wire.Reader reader = new Wire.Reader(new ByteArrayInputStream(wire.toByteArray()));
+		String[] names = new String[1024];
+		long check = 0;
+		while (reader.next())
+			if (reader.opcode() == Wire.BIND)
+				names[reader.first()] = reader.text();
+			else
+				check += names[reader.first()].length() + names[reader.second()].length() + reader.text().length();
+		return new long[] { wire.size(), _threads.getCurrentThreadCpuTime() - start, check };
+	}
+
+	/*
+	 * prints the per message figures of one protocol
+	 */
+	private static void report(String protocol, long[] result, int messages)
+	{
+		System.out.printf("%-7s %8.1f bytes/message %8.0f ns CPU/message%n", protocol, (double) result[0] / messages,
+				(double) result[1] / messages);
+	}
+}
@@ -1,14 +1,30 @@
 package client;
 
+import adts.Logger;
 import gui.*;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import protocol.DeflateOutputStream;
+import protocol.Handshake;
+import protocol.Heartbeat;
+import protocol.InflateInputStream;
+import protocol.Presence;
+import protocol.Wire;
 
 /**
  * @author thetrick
@@ -19,6 +35,20 @@ public class Client {
     private final Socket socket;
     private final PrintWriter _print;
     private final BufferedReader _buffer;    
+    private final OutputStream _output;
+    private final Wire.Reader _frames;
+    private final boolean binary;
+    private final DeflateOutputStream _compressor;
+    // names and ids bound by the server in binary mode
+    private final HashMap<Integer, String> _names = new HashMap<Integer, String>();
+    private final ConcurrentHashMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+    // versions and names of the membership lists
+    private final Presence _presence = new Presence();
+    // token of a resumable session, null if the server did not offer one
+    private final String _token;
+    private final boolean _resumed;
+    // number of the last line received on a resumable session
+    private volatile long _sequence = 0;
 
     /**
      * Constructor.  
@@ -29,6 +59,50 @@ public class Client {
      *      in was unsuccessful
      */
     public Client(String username, String IPAddress, int port) throws IOException {
+        this(username, IPAddress, port, false);
+    }
+
+    /**
+     * Constructor.  
+     * @param username - Identifies the user making the connection
+     * @param IPAddress 
+     * @param port
+     * @param binary - asks the server for the binary protocol; the server's
+     *      answer is awaited and the protocol it accepted is used
+     * @throws IOException If the username is invalid or if logging
+     *      in was unsuccessful
+     */
+    public Client(String username, String IPAddress, int port, boolean binary) throws IOException {
+        this(username, IPAddress, port, binary, false);
+    }
+
+    /**
+     * Constructor.  
+     * @param username - Identifies the user making the connection
+     * @param IPAddress 
+     * @param port
+     * @param binary - asks the server for the binary protocol; the server's
+     *      answer is awaited and the protocol it accepted is used
+     * @param deflate - asks the server to compress both directions, used
+     *      only if the server accepts
+     * @throws IOException If the username is invalid or if logging
+     *      in was unsuccessful
+     */
+    public Client(String username, String IPAddress, int port, boolean binary, boolean deflate) throws IOException {
+        this(username, IPAddress, port, options(binary, deflate));
+    }
+
+    /**
+     * Constructor.  
+     * @param username - Identifies the user making the connection
+     * @param IPAddress 
+     * @param port
+     * @param requested - the handshake options to ask for, e.g. binary,
+     *      deflate or delta; only those the server accepts are used
+     * @throws IOException If the username is invalid or if logging
+     *      in was unsuccessful
+     */
+    public Client(String username, String IPAddress, int port, Collection<String> requested) throws IOException {
         this.username = username;
         try
 		{
@@ -39,32 +113,72 @@ public class Client {
 			throw new IOException("No host...");
 		}
         
-        System.out.println("Server has been found...");
+        Logger.info("Server has been found...");
 
-        this._buffer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this._print = new PrintWriter(socket.getOutputStream());
-        System.out.println("Stream processing has been enabled...");
+        PrintWriter print = new PrintWriter(socket.getOutputStream());
+        Logger.info("Stream processing has been enabled...");
 
-        System.out.println("Starting the handshake...");
-        String prompt = _buffer.readLine();
+        // the handshake is read unbuffered so nothing after it is consumed
+        Logger.info("Starting the handshake...");
+        String prompt = Handshake.readLine(socket.getInputStream());
 
-        System.out.println("Verification has started");
-        if (!prompt.equals("To connect type: \"connect [username]\""))
+        Logger.info("Verification has started");
+        if (!Handshake.PROMPT.equals(prompt))
             throw new IOException("Bad Handshake");
-        System.out.println("Handshake Passed...");
+        Logger.info("Handshake Passed...");
 
-        System.out.println("Sending Username");
-        _print.println("connect " + this.username);
-        _print.flush();
+        Logger.info("Sending Username");
+        List<String> options = new ArrayList<String>(requested);
+        print.println(Handshake.request(this.username, options));
+        print.flush();
 
-        System.out.println("Verifying Username...");
+        Logger.info("Verifying Username...");
         //prompt = _buffer.readLine();
         //if (!prompt.matches("Connected!"))
         //    throw new IOException(prompt);
+        if (!options.isEmpty())
+            options = Handshake.accepted(Handshake.readLine(socket.getInputStream()));
+        this.binary = options.contains(Handshake.BINARY);
+        this._token = Handshake.valueOf(options, Handshake.RESUME);
+        this._resumed = options.contains(Handshake.RESUMED);
+
+        // both directions are compressed from the acknowledgement on
+        InputStream input = socket.getInputStream();
+        if (options.contains(Handshake.DEFLATE)) {
+            this._compressor = new DeflateOutputStream(socket.getOutputStream(), Deflater.DEFAULT_COMPRESSION);
+            this._output = _compressor;
+            input = new InflateInputStream(input);
+        } else {
+            this._compressor = null;
+            this._output = socket.getOutputStream();
+        }
+        this._print = new PrintWriter(_output);
+
+        if (this.binary) {
+            this._buffer = null;
+            this._frames = new Wire.Reader(new BufferedInputStream(input));
+        } else {
+            this._buffer = new BufferedReader(new InputStreamReader(input));
+            this._frames = null;
+        }
 
         //System.err.println("Client connected");
     }
 
+    /**
+     * @param binary - ask for the binary protocol
+     * @param deflate - ask for compression
+     * @return The handshake options to ask for
+     */
+    private static List<String> options(boolean binary, boolean deflate) {
+        List<String> options = new ArrayList<String>();
+        if (binary)
+            options.add(Handshake.BINARY);
+        if (deflate)
+            options.add(Handshake.DEFLATE);
+        return options;
+    }
+
     /**
      * Reads the next line from the input buffer
      * @return The next line String from the input buffer
@@ -73,7 +187,7 @@ public class Client {
     public String readBuffer() throws IOException {
         try 
         {
-            return _buffer.readLine();
+            return readLine();
         } 
         catch (IOException e) 
         {
@@ -81,16 +195,109 @@ public class Client {
         }
     }
 
+    /**
+     * Reads the next line, decoding binary frames into the lines the
+     * text protocol would have sent
+     * @return The next line, null once the server closed the connection
+     * @throws IOException If the connection failed
+     */
+    private String readLine() throws IOException {
+        if (!binary)
+            return unnumbered(_buffer.readLine());
+        while (_frames.next()) 
+        {
+            if (_frames.opcode() == Wire.BIND)
+                bind(_frames.first(), _frames.text());
+            else if (_frames.opcode() == Wire.MESSAGE)
+                return "Message (" + _names.get(_frames.first()) + "): " + _names.get(_frames.second()) + " " + _frames.text();
+            else if (_frames.opcode() == Wire.LINE)
+                return _frames.text();
+        }
+        return null;
+    }
+
+    /**
+     * Notes the number of a line received on a resumable session
+     * @param line The line as received, null at end of stream
+     * @return The line without its number
+     */
+    private String unnumbered(String line) {
+        if (_token == null || line == null)
+            return line;
+        long sequence = Handshake.sequenceOf(line);
+        if (sequence < 0)
+            return line;
+        _sequence = sequence;
+        return Handshake.withoutSequence(line);
+    }
+
+    /**
+     * @return The option that resumes this session on a new connection,
+     *      null if the server did not offer a resumable session
+     */
+    public String getResumeOption() {
+        return _token == null ? null : Handshake.resume(_token, _sequence);
+    }
+
+    /**
+     * @return True if this connection resumed an earlier session
+     */
+    public boolean isResumed() {
+        return _resumed;
+    }
+
+    /**
+     * Records a name the server bound to an id
+     * @param id The id
+     * @param name The quorum or user name
+     */
+    private void bind(int id, String name) {
+        _names.put(id, name);
+        _ids.put(name, id);
+    }
+
     /**
      * Sends the output String
      * @param output String to be sent to the server
      */
     public void send(String output) {
-        _print.println(output);
-        _print.flush();
-        System.out.println(output);
+        if (binary)
+            sendFrame(output);
+        else 
+        {
+            _print.println(output);
+            _print.flush();
+        }
+        Logger.debug(output);
         return;
     }
+
+    /**
+     * Sends a line as a binary frame. Messages to quorums whose id the
+     * server has bound go out as SAY frames, everything else as a LINE.
+     * @param output String to be sent to the server
+     */
+    private synchronized void sendFrame(String output) {
+        byte[] frame = null;
+        if (output.startsWith("message ")) 
+        {
+            int idx = output.indexOf(' ', 8);
+            Integer quorumId = idx < 0 ? null : _ids.get(output.substring(8, idx));
+            if (quorumId != null)
+                frame = Wire.say(quorumId, output.substring(idx + 1));
+        }
+        if (frame == null)
+            frame = Wire.line(output);
+        try 
+        {
+            _output.write(frame);
+            _output.flush();
+        } 
+        catch (IOException ignore) 
+        {
+            // the reader notices the broken connection
+        }
+    }
     
     /**
      * @return The username that is using the client
@@ -107,10 +314,15 @@ public class Client {
     public void start(Main main) {
         try 
         {
-            System.out.println("Start the main client loop");
-            for(String input = _buffer.readLine(); input!=null; input = _buffer.readLine()) 
+            Logger.info("Start the main client loop");
+            if (binary) 
+            {
+                readFrames(main);
+                return;
+            }
+            for(String input = readLine(); input!=null; input = readLine()) 
             {
-                System.out.println("I am getting dizzy...");
+                Logger.debug("I am getting dizzy...");
                 if(input.equals("disconnectedFromServer"))
                 	break;
                 parseInput(input, main);
@@ -124,15 +336,38 @@ public class Client {
         {
         	try
 			{
-            	_buffer.close();
+            	if (_buffer != null)
+            	    _buffer.close();
             	_print.close();
 				socket.close();
 			}
 			catch (IOException ignore){}
         }
-        System.err.println("client terminated....");
+        Logger.info("client terminated....");
     }
     
+    /**
+     * Reads binary frames until the server disconnects. Messages are handed
+     * to the conversation directly, without parsing a line.
+     * @param main The Main
+     * @throws IOException Disconnected from server
+     */
+    private void readFrames(Main main) throws IOException {
+        while (_frames.next()) 
+        {
+            if (_frames.opcode() == Wire.BIND)
+                bind(_frames.first(), _frames.text());
+            else if (_frames.opcode() == Wire.MESSAGE)
+                main.updateConversation(_names.get(_frames.first()), _names.get(_frames.second()), _frames.text());
+            else if (_frames.opcode() == Wire.LINE) 
+            {
+                if (_frames.text().equals("disconnectedFromServer"))
+                    break;
+                parseInput(_frames.text(), main);
+            }
+        }
+    }
+
     /**
      * Parses the input and calls the correct command by using
      * the grammar specified
@@ -140,8 +375,22 @@ public class Client {
      * @param main The Main
      */
     private void parseInput(String input, Main main) {
-        System.out.println(input);
+        Logger.debug(input);
         
+        // the server checks we are still there
+        if (input.equals(Heartbeat.PING)) 
+        {
+            send(Heartbeat.PONG);
+            return;
+        }
+
+        Presence.Update update = Presence.parse(input);
+        if (update != null) 
+        {
+            updatePresence(update, main);
+            return;
+        }
+
         int idx1 = input.indexOf(' ');
         String command;
         if (idx1 ==  -1) 
@@ -182,8 +431,10 @@ public class Client {
             {
                 String quorumId = details[0];
                 ArrayList<String> users = new ArrayList<String>();
+                boolean debug = Logger.isDebug();
                 for (int i = 1; i < details.length; i++) {
-                    System.err.println("Adding User: " + details[i]);
+                    if (debug)
+                        Logger.debug("Adding User: " + details[i]);
                     users.add(details[i]);
                 }
                 main.updateQuorumUsers(quorumId, users);
@@ -199,18 +450,61 @@ public class Client {
                 String quorumId = details[0];
                 main.joinQuorum(quorumId);
             } 
-            else if(command.equals("disconnectedRoom")) 
+            else if(command.equals("disconnectedRoom") || command.equals("disconnectedquorum")) 
             {
                 String quorumId = details[0];
+                _presence.forget(Presence.quorumList(quorumId));
                 main.leaveQuorum(quorumId);
             }  
             else 
             {
-                System.err.println("We are truly lost...bad Command: " + command);
+                Logger.warn("We are truly lost...bad Command: " + command);
             }
         }
     }
 
+    /**
+     * Applies a membership list or a change to one. A change that skips a
+     * version means one went missing, so a new snapshot is asked for.
+     * @param update The membership line received
+     * @param main The Main
+     */
+    private void updatePresence(Presence.Update update, Main main) {
+        Presence.Result result = _presence.accept(update);
+        if (result == Presence.Result.GAP) 
+        {
+            send("resync " + update.getResyncKey());
+            return;
+        }
+        if (result == Presence.Result.STALE)
+            return;
+
+        // a single change touches a single row
+        if (!update.isSnapshot()) 
+        {
+            if (update.getList().equals(Presence.SERVER))
+                main.changeUser(update.getName(), update.isAdded());
+            else if (update.getList().equals(Presence.HIVE)) 
+            {
+                // a closed quorum's list starts over if it is made again
+                if (!update.isAdded())
+                    _presence.forget(Presence.quorumList(update.getName()));
+                main.changeQuorum(update.getName(), update.isAdded());
+            }
+            else
+                main.changeQuorumUser(update.getQuorum(), update.getName(), update.isAdded());
+            return;
+        }
+
+        List<String> names = _presence.getNames(update.getList());
+        if (update.getList().equals(Presence.SERVER))
+            main.updateUsers(names.toArray(new String[names.size()]));
+        else if (update.getList().equals(Presence.HIVE))
+            main.updateQuorums(names.toArray(new String[names.size()]));
+        else
+            main.updateQuorumUsers(update.getQuorum(), new ArrayList<String>(names));
+    }
+
     // just a method to test this rig out; isn't used in the gui
     public static void main(String[] args) {
         try 
@@ -271,6 +271,89 @@ public class Main extends JFrame {
             }
         });
     }
+    
+    /**
+     * Adds or removes one user in the list of users on the server, leaving the
+     * rest of the list as it is
+     * @param user the user who connected or disconnected
+     * @param added true if the user connected, false if they disconnected
+     */
+    public void changeUser(String user, boolean added) {
+        final String name = user;
+        final boolean add = added;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                change(_users, name, add);
+            }
+        });
+    }
+    
+    /**
+     * Adds or removes one quorum in the list of all quorums on the server,
+     * leaving the rest of the list as it is
+     * @param quorumId name of the quorum that was made or closed
+     * @param added true if the quorum was made, false if it closed
+     */
+    public void changeQuorum(String quorumId, boolean added) {
+        final String name = quorumId;
+        final boolean add = added;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                change(_quorums, name, add);
+            }
+        });
+    }
+    
+    /**
+     * Adds or removes one user in the list of users inside of a quorum,
+     * leaving the rest of the list as it is
+     * @param quorumId Name of the quorum to update
+     * @param user the user who joined or left
+     * @param added true if the user joined, false if they left
+     */
+    public void changeQuorumUser(String quorumId, String user, boolean added) {
+        final String qid = quorumId;
+        final String name = user;
+        final boolean add = added;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (_quorumClients.containsKey(qid)) {
+                    change(_quorumClients.get(qid).getUsers(), name, add);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Adds a name to a list kept in order, or removes it. Only the row that
+     * changes is touched, so the list does not redraw every row.
+     * @param model the list, in order
+     * @param name the name to add or remove
+     * @param added true to add the name, false to remove it
+     */
+    @SuppressWarnings("unchecked")
+    private static void change(DefaultListModel model, String name, boolean added) {
+        int low = 0;
+        int high = model.getSize() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = model.getElementAt(middle).toString().compareTo(name);
+            if (order == 0) {
+                if (!added) {
+                    model.remove(middle);
+                }
+                return;
+            }
+            if (order < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (added) {
+            model.add(low, name);
+        }
+    }
     /**
      * Makes sure that the local list of chats the user is a part of is the same as
      * the list of chats on the server. If the server returns a quorum that the user
@@ -0,0 +1,182 @@
+package protocol;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * @author thetrick
+ * The compressing side of the optional 'deflate' stream mode. Bytes are
+ * compressed as one DEFLATE stream for the life of the connection, so
+ * repeated lists such as 'ServerNodes: ...' compress against everything
+ * sent before; every flush() ends with a sync flush so the peer can inflate
+ * all of a batch right away. The peer reads with a plain InflaterInputStream.
+ * 
+ * Bytes before and after compression and the CPU time spent in the deflater
+ * are counted per stream and for all streams, to judge whether compression
+ * pays for itself.
+ */
+public class DeflateOutputStream extends FilterOutputStream
+{
+	private static final ThreadMXBean _threads = ManagementFactory.getThreadMXBean();
+	private static final AtomicLong _allBytesIn = new AtomicLong(0);
+	private static final AtomicLong _allBytesOut = new AtomicLong(0);
+	private static final AtomicLong _allCpuNanos = new AtomicLong(0);
+
+	private final Deflater _deflater;
+	private final byte[] _buffer = new byte[16 * 1024];
+	private volatile long _bytesIn = 0;
+	private volatile long _bytesOut = 0;
+	private volatile long _cpuNanos = 0;
+
+	/*
+	 * Constructor
+	 * @param OutputStream - receives the compressed stream
+	 * @param int - compression level, 1 (fastest) to 9 (smallest) or Deflater.DEFAULT_COMPRESSION
+	 */
+	public DeflateOutputStream(OutputStream out, int level)
+	{
+		super(out);
+		this._deflater = new Deflater(level);
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return;
+		this._deflater.setInput(b, off, len);
+		while (!this._deflater.needsInput())
+			deflate(Deflater.NO_FLUSH);
+		this._bytesIn += len;
+		_allBytesIn.addAndGet(len);
+	}
+
+	/*
+	 * compresses everything written so far and flushes it to the peer
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		// a full buffer may mean more output is pending
+		while (deflate(Deflater.SYNC_FLUSH) == this._buffer.length)
+			;
+		this.out.flush();
+	}
+
+	/*
+	 * runs the deflater once and writes its output
+	 * @param int - flush mode of the deflater
+	 * @return int - number of compressed bytes produced
+	 */
+	private int deflate(int flush) throws IOException
+	{
+		long start = cpuTime();
+		int length = this._deflater.deflate(this._buffer, 0, this._buffer.length, flush);
+		long nanos = cpuTime() - start;
+		this._cpuNanos += nanos;
+		_allCpuNanos.addAndGet(nanos);
+		if (length > 0)
+		{
+			this.out.write(this._buffer, 0, length);
+			this._bytesOut += length;
+			_allBytesOut.addAndGet(length);
+		}
+		return length;
+	}
+
+	/*
+	 * releases the native memory of the deflater without writing anything;
+	 * the stream can no longer be used
+	 */
+	public void end()
+	{
+		this._deflater.end();
+	}
+
+	/*
+	 * flushes, closes the underlying stream and releases the deflater
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			end();
+		}
+	}
+
+	/*
+	 * @return long - CPU time of the calling thread, or wall time if not supported
+	 */
+	private static long cpuTime()
+	{
+		if (_threads.isCurrentThreadCpuTimeSupported())
+			return _threads.getCurrentThreadCpuTime();
+		return System.nanoTime();
+	}
+
+	/*
+	 * @return long - bytes written to this stream before compression
+	 */
+	public long getBytesIn()
+	{
+		return this._bytesIn;
+	}
+
+	/*
+	 * @return long - compressed bytes this stream sent on
+	 */
+	public long getBytesOut()
+	{
+		return this._bytesOut;
+	}
+
+	/*
+	 * @return long - CPU nanoseconds this stream spent compressing
+	 */
+	public long getCpuNanos()
+	{
+		return this._cpuNanos;
+	}
+
+	/*
+	 * @return String - the counters of this stream
+	 */
+	public String report()
+	{
+		return report(this._bytesIn, this._bytesOut, this._cpuNanos);
+	}
+
+	/*
+	 * @return String - the counters of all streams
+	 */
+	public static String reportAll()
+	{
+		return report(_allBytesIn.get(), _allBytesOut.get(), _allCpuNanos.get());
+	}
+
+	/*
+	 * describes counters as 'deflate in=..B out=..B ratio=.. cpu=..us'; the
+	 * ratio is compressed over uncompressed size
+	 */
+	private static String report(long bytesIn, long bytesOut, long cpuNanos)
+	{
+		double ratio = bytesIn == 0 ? 1 : (double) bytesOut / bytesIn;
+		return String.format("deflate in=%dB out=%dB ratio=%.3f cpu=%dus", bytesIn, bytesOut, ratio, cpuNanos / 1000);
+	}
+}
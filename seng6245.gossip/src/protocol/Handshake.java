@@ -0,0 +1,244 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author thetrick
+ * The text handshake every connection starts with. The server prompts, the
+ * client answers 'connect [username]' optionally followed by the options it
+ * would like to use, and the server acknowledges with 'Connected!' followed
+ * by the options it accepted. Without options the exchange is exactly the
+ * original one, so older clients and servers keep working.
+ *
+ * A client asking for 'resume' gets 'resume=TOKEN' back, and every line
+ * written to it afterwards starts with '#N ', N counting the lines from 1.
+ * After losing the connection it can ask for 'resume=TOKEN:N' with the last
+ * N it got; the acknowledgement then also says 'resumed', and the lines
+ * after N follow with their numbers. Otherwise it starts over with a new
+ * token.
+ */
+public final class Handshake
+{
+	public static final String PROMPT = "To connect type: \"connect [username]\"";
+	public static final String CONNECTED = "Connected!";
+
+	// option asking for the length-prefixed binary protocol (see Wire)
+	public static final String BINARY = "binary";
+	// option asking for DEFLATE compression of both directions (see DeflateOutputStream)
+	public static final String DEFLATE = "deflate";
+	// option asking for membership lists as versioned deltas (see Presence)
+	public static final String DELTA = "delta";
+	// option asking for numbered lines and a session that survives a reconnect
+	public static final String RESUME = "resume";
+	// acknowledged when a session was resumed
+	public static final String RESUMED = "resumed";
+
+	private static final Pattern CONNECT = Pattern.compile("connect (\\p{Graph}+)((?: \\p{Graph}+)*)");
+
+	private final String _userName;
+	private final List<String> _options;
+
+	/*
+	 * Constructor
+	 * @param String - the user name
+	 * @param List<String> - requested options
+	 */
+	private Handshake(String userName, List<String> options)
+	{
+		this._userName = userName;
+		this._options = options;
+	}
+
+	/*
+	 * validates the handshake line sent by a client
+	 * 
+	 * @param String - the line received after the connect prompt
+	 * @return Handshake - the user name and options requested by the client
+	 * @throws IOException - if the line is missing or not 'connect [username]'
+	 */
+	public static Handshake parse(String input) throws IOException
+	{
+		if (input == null)
+			throw new IOException("input was null");
+
+		Matcher matcher = CONNECT.matcher(input);
+		// Check to see if user name entered is valid.
+		if (!matcher.matches())
+			throw new IOException("Invalid format 'connect [username]'");
+
+		List<String> options = new ArrayList<String>();
+		for (String option : matcher.group(2).split(" "))
+			if (!option.isEmpty())
+				options.add(option);
+		return new Handshake(matcher.group(1), Collections.unmodifiableList(options));
+	}
+
+	/*
+	 * @return String - the user name requested by the client
+	 */
+	public String getUserName()
+	{
+		return this._userName;
+	}
+
+	/*
+	 * @param String - name of an option
+	 * @return boolean - true if the client asked for the option
+	 */
+	public boolean hasOption(String option)
+	{
+		return this._options.contains(option);
+	}
+
+	/*
+	 * @param String - name of an option given as 'name=value'
+	 * @return String - the value the client gave, null if none
+	 */
+	public String getOption(String option)
+	{
+		return valueOf(this._options, option);
+	}
+
+	/*
+	 * @param List<String> - requested or accepted options
+	 * @param String - name of an option given as 'name=value'
+	 * @return String - the value of the first such option, null if none
+	 */
+	public static String valueOf(List<String> options, String option)
+	{
+		for (String given : options)
+			if (given.length() > option.length() && given.startsWith(option) && given.charAt(option.length()) == '=')
+				return given.substring(option.length() + 1);
+		return null;
+	}
+
+	/*
+	 * @param String - token of the session
+	 * @param long - number of the last line the client got
+	 * @return String - the option asking to resume the session
+	 */
+	public static String resume(String token, long last)
+	{
+		return RESUME + "=" + token + ":" + last;
+	}
+
+	/*
+	 * @param long - number of a line
+	 * @return byte[] - what is written in front of the line
+	 */
+	public static byte[] prefix(long sequence)
+	{
+		return ("#" + sequence + " ").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/*
+	 * @param String - a line received on a resumable session
+	 * @return long - its number, -1 if it has none
+	 */
+	public static long sequenceOf(String line)
+	{
+		int space = line.indexOf(' ');
+		if (!line.startsWith("#") || space < 2)
+			return -1;
+		try
+		{
+			return Long.parseLong(line.substring(1, space));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/*
+	 * @param String - a line received on a resumable session
+	 * @return String - the line without its number
+	 */
+	public static String withoutSequence(String line)
+	{
+		return sequenceOf(line) < 0 ? line : line.substring(line.indexOf(' ') + 1);
+	}
+
+	/*
+	 * builds the line a client sends to connect
+	 * @param String - the user name
+	 * @param Collection<String> - options to ask for
+	 * @return String - the connect line
+	 */
+	public static String request(String userName, Collection<String> options)
+	{
+		StringBuilder stringBuilder = new StringBuilder("connect ").append(userName);
+		for (String option : options)
+			stringBuilder.append(' ').append(option);
+		return stringBuilder.toString();
+	}
+
+	/*
+	 * builds the acknowledgement the server sends once the user is added
+	 * @param Collection<String> - options the server accepted
+	 * @return String - the acknowledgement line
+	 */
+	public static String accept(Collection<String> options)
+	{
+		StringBuilder stringBuilder = new StringBuilder(CONNECTED);
+		for (String option : options)
+			stringBuilder.append(' ').append(option);
+		return stringBuilder.toString();
+	}
+
+	/*
+	 * reads the server's answer to the connect line
+	 * @param String - the line received after sending the connect line
+	 * @return List<String> - the options the server accepted
+	 * @throws IOException - with the server's message if the connection was refused
+	 */
+	public static List<String> accepted(String input) throws IOException
+	{
+		if (input == null)
+			throw new IOException("Disconnected from Server");
+		if (!input.equals(CONNECTED) && !input.startsWith(CONNECTED + " "))
+			throw new IOException(input);
+
+		List<String> options = new ArrayList<String>();
+		for (String option : input.substring(CONNECTED.length()).split(" "))
+			if (!option.isEmpty())
+				options.add(option);
+		return options;
+	}
+
+	/*
+	 * Reads one handshake line byte by byte, so nothing that follows it (such
+	 * as binary frames) is consumed from the stream.
+	 * @param InputStream - the raw socket stream
+	 * @return String - the line without its terminator, null at end of stream
+	 * @throws IOException - if the stream fails
+	 */
+	public static String readLine(InputStream in) throws IOException
+	{
+		byte[] line = new byte[128];
+		int length = 0;
+		for (int b = in.read(); b != '\n'; b = in.read())
+		{
+			if (b < 0)
+				return length == 0 ? null : new String(line, 0, length, StandardCharsets.UTF_8);
+			if (length == line.length)
+			{
+				byte[] grown = new byte[line.length * 2];
+				System.arraycopy(line, 0, grown, 0, length);
+				line = grown;
+			}
+			line[length++] = (byte) b;
+		}
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,18 @@
+package protocol;
+
+/**
+ * @author thetrick
+ * The lines that tell a quiet client from one that is gone. A server with
+ * heartbeats on pings a client that has been quiet for a while and the
+ * client answers with a pong. Any line the client sends counts as a sign
+ * of life, the pong included.
+ */
+public final class Heartbeat
+{
+	public static final String PING = "ping";
+	public static final String PONG = "pong";
+
+	private Heartbeat()
+	{
+	}
+}
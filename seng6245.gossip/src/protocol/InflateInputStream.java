@@ -0,0 +1,67 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * @author thetrick
+ * The reading side of the 'deflate' stream mode. InflaterInputStream
+ * claims a byte is available until the end of the stream, which makes
+ * readers that fill their buffer while input is available block on a line
+ * that is already complete. Here input counts as available only while the
+ * inflater holds unread input or the underlying stream has bytes.
+ * 
+ * Peers close the connection without finishing the DEFLATE stream; every
+ * batch ends with a sync flush, so running out of input is simply the end
+ * of the stream.
+ */
+public class InflateInputStream extends InflaterInputStream
+{
+	/*
+	 * Constructor
+	 * @param InputStream - the compressed stream
+	 */
+	public InflateInputStream(InputStream in)
+	{
+		super(in);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		try
+		{
+			return super.read(b, off, len);
+		}
+		catch (EOFException e)
+		{
+			return -1;
+		}
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		if (this.inf.finished())
+			return 0;
+		return !this.inf.needsInput() || this.in.available() > 0 ? 1 : 0;
+	}
+
+	/*
+	 * closes the underlying stream and releases the inflater
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			this.inf.end();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * @author thetrick
+ * The membership lines of the protocol: who is on the server
+ * ('ServerNodes'), which quorums exist ('Hive') and who is in a quorum
+ * ('ClientNodes (quorum)'). By default every change resends the whole list,
+ * as in 'ServerNodes: a b c'. Clients that connect with the 'delta' option
+ * get a versioned snapshot once and then only the changes:
+ * 
+ *     ServerNodes@7: a b c       snapshot at version 7
+ *     ServerNodes@8 +d           d was added
+ *     ClientNodes (q1)@3 -a      a left quorum q1
+ * 
+ * Every change to a list increments its version by one, so a client that
+ * sees a delta skip a version has missed one and asks for a new snapshot
+ * with 'resync ServerNodes', 'resync Hive' or 'resync QUORUM'.
+ * 
+ * On the client an instance of this class remembers the version and the
+ * names of every list and decides whether an update applies.
+ */
+public final class Presence
+{
+	public static final String SERVER = "ServerNodes";
+	public static final String HIVE = "Hive";
+	private static final String QUORUM_PREFIX = "ClientNodes (";
+
+	// versions of the lists seen by a client
+	private final HashMap<String, Long> _versions = new HashMap<String, Long>();
+	// names of the lists seen by a client, in order
+	private final HashMap<String, TreeSet<String>> _members = new HashMap<String, TreeSet<String>>();
+
+	/*
+	 * what a client should do with an update
+	 */
+	public enum Result
+	{
+		APPLY, STALE, GAP
+	}
+
+	/*
+	 * @param String - name of a quorum
+	 * @return String - name of the list of its members
+	 */
+	public static String quorumList(String quorum)
+	{
+		return QUORUM_PREFIX + quorum + ")";
+	}
+
+	/*
+	 * @param String - name of the list
+	 * @param long - version of the list
+	 * @param Collection<String> - all names in the list, in order
+	 * @return String - the snapshot line
+	 */
+	public static String snapshot(String list, long version, Collection<String> names)
+	{
+		StringBuilder stringBuilder = new StringBuilder(list).append('@').append(version).append(':');
+		for (String name : names)
+			stringBuilder.append(' ').append(name);
+		return stringBuilder.toString();
+	}
+
+	/*
+	 * @param String - name of the list
+	 * @param long - version of the list after the change
+	 * @param boolean - true if the name was added, false if removed
+	 * @param String - the name that changed
+	 * @return String - the delta line
+	 */
+	public static String delta(String list, long version, boolean added, String name)
+	{
+		return list + "@" + version + (added ? " +" : " -") + name;
+	}
+
+	/*
+	 * Reads a membership line, versioned or not
+	 * @param String - a line from the server
+	 * @return Update - the update, null if the line is not about membership
+	 */
+	public static Update parse(String line)
+	{
+		int space = line.indexOf(' ');
+		String header = space < 0 ? line : line.substring(0, space);
+		String rest = space < 0 ? "" : line.substring(space + 1);
+		String quorum = null;
+
+		// the name of the list, which for a quorum contains one space
+		if (line.startsWith(QUORUM_PREFIX))
+		{
+			int next = line.indexOf(' ', QUORUM_PREFIX.length());
+			header = next < 0 ? line : line.substring(0, next);
+			rest = next < 0 ? "" : line.substring(next + 1);
+		}
+
+		boolean snapshot = header.endsWith(":");
+		if (snapshot)
+			header = header.substring(0, header.length() - 1);
+		long version = -1;
+		int at = header.lastIndexOf('@');
+		if (at > 0 && at < header.length() - 1 && isDigits(header, at + 1))
+		{
+			version = Long.parseLong(header.substring(at + 1));
+			header = header.substring(0, at);
+		}
+
+		if (header.startsWith(QUORUM_PREFIX) && header.endsWith(")"))
+			quorum = header.substring(QUORUM_PREFIX.length(), header.length() - 1);
+		else if (!header.equals(SERVER) && !header.equals(HIVE))
+			return null;
+
+		// the old full lines: 'ServerNodes: ...', 'ClientNodes (q): ...' and 'Hive ...'
+		if (version < 0)
+		{
+			if (!snapshot && !header.equals(HIVE))
+				return null;
+			return new Update(header, quorum, -1, true, split(rest), false, null);
+		}
+		if (snapshot)
+			return new Update(header, quorum, version, true, split(rest), false, null);
+		if (rest.length() < 2 || (rest.charAt(0) != '+' && rest.charAt(0) != '-'))
+			return null;
+		return new Update(header, quorum, version, false, null, rest.charAt(0) == '+', rest.substring(1));
+	}
+
+	/*
+	 * true if the text is all digits from the given offset on
+	 */
+	private static boolean isDigits(String text, int start)
+	{
+		for (int i = start; i < text.length(); i++)
+			if (!Character.isDigit(text.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/*
+	 * splits a space separated list of names
+	 */
+	private static List<String> split(String names)
+	{
+		if (names.trim().isEmpty())
+			return Collections.emptyList();
+		return new ArrayList<String>(Arrays.asList(names.trim().split(" ")));
+	}
+
+	/*
+	 * Decides whether an update applies on top of what the client has seen;
+	 * if it does the new version and names are remembered. Unversioned lines
+	 * and snapshots always apply: a snapshot resets the list, whose version
+	 * starts again from 1 when a quorum of the same name is made again.
+	 * @param Update - update received from the server
+	 * @return Result - APPLY it, ignore it as STALE, or resync after a GAP
+	 */
+	public synchronized Result accept(Update update)
+	{
+		Long seen = this._versions.get(update.getList());
+		if (update.getVersion() < 0)
+			this._versions.remove(update.getList());
+		else if (update.isSnapshot())
+			this._versions.put(update.getList(), update.getVersion());
+		// deltas only count on top of a snapshot
+		else if (seen == null || update.getVersion() <= seen)
+			return Result.STALE;
+		else if (update.getVersion() > seen + 1)
+			return Result.GAP;
+		else
+			this._versions.put(update.getList(), update.getVersion());
+
+		if (update.isSnapshot())
+			this._members.put(update.getList(), new TreeSet<String>(update.getNames()));
+		else if (update.isAdded())
+			this._members.get(update.getList()).add(update.getName());
+		else
+			this._members.get(update.getList()).remove(update.getName());
+		return Result.APPLY;
+	}
+
+	/*
+	 * @param String - name of the list
+	 * @return List<String> - the names of the list as last accepted, in order
+	 */
+	public synchronized List<String> getNames(String list)
+	{
+		TreeSet<String> names = this._members.get(list);
+		if (names == null)
+			return Collections.emptyList();
+		return new ArrayList<String>(names);
+	}
+
+	/*
+	 * forgets a list, e.g. after leaving a quorum
+	 * @param String - name of the list
+	 */
+	public synchronized void forget(String list)
+	{
+		this._versions.remove(list);
+		this._members.remove(list);
+	}
+
+	/**
+	 * One membership line: a snapshot of a list or one name added or removed
+	 */
+	public static final class Update
+	{
+		private final String _list;
+		private final String _quorum;
+		private final long _version;
+		private final boolean _snapshot;
+		private final List<String> _names;
+		private final boolean _added;
+		private final String _name;
+
+		private Update(String list, String quorum, long version, boolean snapshot, List<String> names, boolean added,
+				String name)
+		{
+			this._list = list;
+			this._quorum = quorum;
+			this._version = version;
+			this._snapshot = snapshot;
+			this._names = names;
+			this._added = added;
+			this._name = name;
+		}
+
+		/*
+		 * @return String - name of the list, e.g. 'ServerNodes' or 'ClientNodes (q1)'
+		 */
+		public String getList()
+		{
+			return this._list;
+		}
+
+		/*
+		 * @return String - the quorum of a 'ClientNodes' list, null for the others
+		 */
+		public String getQuorum()
+		{
+			return this._quorum;
+		}
+
+		/*
+		 * @return String - the argument of the resync command for this list
+		 */
+		public String getResyncKey()
+		{
+			return this._quorum != null ? this._quorum : this._list;
+		}
+
+		/*
+		 * @return long - version of the list, -1 for an unversioned full list
+		 */
+		public long getVersion()
+		{
+			return this._version;
+		}
+
+		/*
+		 * @return boolean - true for a whole list, false for a single change
+		 */
+		public boolean isSnapshot()
+		{
+			return this._snapshot;
+		}
+
+		/*
+		 * @return List<String> - all names of a snapshot
+		 */
+		public List<String> getNames()
+		{
+			return this._names;
+		}
+
+		/*
+		 * @return boolean - true if the name of a delta was added
+		 */
+		public boolean isAdded()
+		{
+			return this._added;
+		}
+
+		/*
+		 * @return String - the name a delta adds or removes
+		 */
+		public String getName()
+		{
+			return this._name;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package protocol;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author thetrick
+ * Server-wide numbering of quorum and user names for the binary protocol.
+ * A name keeps its id until it is dropped, so a frame that refers to an id
+ * can be encoded once and shared by every recipient; each connection learns
+ * an id through a BIND frame before its first use.
+ * 
+ * The name of a quorum is dropped when the quorum is removed from the Hive,
+ * and the name of a user when the user leaves the server, so the table only
+ * holds the names in use. Ids are never handed out twice:
+ * a name used again gets a new id, and frames encoded with the old one stay
+ * valid on connections that were told it.
+ */
+public final class Symbols
+{
+	private static final ConcurrentHashMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+	private static final ConcurrentHashMap<Integer, String> _names = new ConcurrentHashMap<Integer, String>();
+	private static final AtomicInteger _next = new AtomicInteger(0);
+
+	private Symbols()
+	{
+	}
+
+	/*
+	 * @param String - quorum or user name
+	 * @return int - the id of the name, assigned on first use
+	 */
+	public static int id(String name)
+	{
+		Integer id = _ids.get(name);
+		if (id != null)
+			return id;
+		synchronized (_ids)
+		{
+			id = _ids.get(name);
+			if (id == null)
+			{
+				id = _next.getAndIncrement();
+				_names.put(id, name);
+				_ids.put(name, id);
+			}
+			return id;
+		}
+	}
+
+	/*
+	 * forgets a name; its id is not handed out again
+	 * @param String - quorum or user name
+	 */
+	public static void drop(String name)
+	{
+		synchronized (_ids)
+		{
+			Integer id = _ids.remove(name);
+			if (id != null)
+				_names.remove(id);
+		}
+	}
+
+	/*
+	 * @param int - an id handed out by id()
+	 * @return String - the name with that id, null if it was never assigned or was dropped
+	 */
+	public static String name(int id)
+	{
+		return _names.get(id);
+	}
+}
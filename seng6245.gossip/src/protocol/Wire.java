@@ -0,0 +1,265 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author thetrick
+ * The optional binary protocol, negotiated with the 'binary' handshake
+ * option. Every frame is
+ * 
+ *     varint length | opcode byte | varint ids... | UTF-8 text
+ * 
+ * where the length counts everything after itself and varints are unsigned
+ * LEB128. Chat messages refer to quorums and users by the ids of Symbols
+ * instead of repeating their names; BIND frames tell the peer which name an
+ * id stands for. Anything else travels as a LINE frame holding one line of
+ * the text protocol.
+ */
+public final class Wire
+{
+	// one line of the text protocol: text
+	public static final int LINE = 1;
+	// server to client chat message: quorum id, user id, text
+	public static final int MESSAGE = 2;
+	// client to server chat message: quorum id, text
+	public static final int SAY = 3;
+	// binds a name to an id: id, name as text
+	public static final int BIND = 4;
+
+	// largest frame either side accepts
+	public static final int MAX_FRAME = 1 << 20;
+
+	private Wire()
+	{
+	}
+
+	/*
+	 * @param String - one line of the text protocol
+	 * @return byte[] - the LINE frame
+	 */
+	public static byte[] line(String text)
+	{
+		return frame(LINE, 0, -1, -1, text);
+	}
+
+	/*
+	 * @param int - id of the quorum
+	 * @param int - id of the sending user
+	 * @param String - the message
+	 * @return byte[] - the MESSAGE frame
+	 */
+	public static byte[] message(int quorumId, int userId, String text)
+	{
+		return frame(MESSAGE, 2, quorumId, userId, text);
+	}
+
+	/*
+	 * @param int - id of the quorum
+	 * @param String - the message
+	 * @return byte[] - the SAY frame
+	 */
+	public static byte[] say(int quorumId, String text)
+	{
+		return frame(SAY, 1, quorumId, -1, text);
+	}
+
+	/*
+	 * @param int - the id
+	 * @param String - the name the id stands for
+	 * @return byte[] - the BIND frame
+	 */
+	public static byte[] bind(int id, String name)
+	{
+		return frame(BIND, 1, id, -1, name);
+	}
+
+	/*
+	 * encodes a frame with up to two ids into a single array
+	 */
+	private static byte[] frame(int opcode, int ids, int first, int second, String text)
+	{
+		byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+		int bodyLength = 1 + textBytes.length;
+		if (ids > 0)
+			bodyLength += varintSize(first);
+		if (ids > 1)
+			bodyLength += varintSize(second);
+
+		byte[] frame = new byte[varintSize(bodyLength) + bodyLength];
+		int position = putVarint(frame, 0, bodyLength);
+		frame[position++] = (byte) opcode;
+		if (ids > 0)
+			position = putVarint(frame, position, first);
+		if (ids > 1)
+			position = putVarint(frame, position, second);
+		System.arraycopy(textBytes, 0, frame, position, textBytes.length);
+		return frame;
+	}
+
+	/*
+	 * @param int - a non-negative value
+	 * @return int - number of bytes the value takes as a varint
+	 */
+	public static int varintSize(int value)
+	{
+		int size = 1;
+		while ((value >>>= 7) != 0)
+			size++;
+		return size;
+	}
+
+	/*
+	 * writes a non-negative value as a varint
+	 * @return int - position after the varint
+	 */
+	private static int putVarint(byte[] buffer, int position, int value)
+	{
+		while ((value & ~0x7F) != 0)
+		{
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+		return position;
+	}
+
+	/**
+	 * Decodes frames from a stream, reusing one buffer. After next() returns
+	 * true the accessors describe the frame that was read.
+	 */
+	public static final class Reader
+	{
+		private final InputStream _in;
+		private byte[] _buffer = new byte[256];
+		private int _length;
+		private int _opcode;
+		private int _first;
+		private int _second;
+		private int _textStart;
+
+		/*
+		 * Constructor
+		 * @param InputStream - the stream to read, preferably buffered
+		 */
+		public Reader(InputStream in)
+		{
+			this._in = in;
+		}
+
+		/*
+		 * reads the next frame
+		 * @return boolean - false if the stream ended between frames
+		 * @throws IOException - if the stream fails or the frame is malformed
+		 */
+		public boolean next() throws IOException
+		{
+			int first = this._in.read();
+			if (first < 0)
+				return false;
+			int length = readVarint(first);
+			if (length < 1 || length > MAX_FRAME)
+				throw new IOException("Bad frame length " + length);
+
+			if (length > this._buffer.length)
+				this._buffer = new byte[Math.max(length, this._buffer.length * 2)];
+			for (int read = 0; read < length;)
+			{
+				int count = this._in.read(this._buffer, read, length - read);
+				if (count < 0)
+					throw new EOFException("Frame cut short");
+				read += count;
+			}
+			this._length = length;
+			this._opcode = this._buffer[0];
+
+			int[] position = { 1 };
+			switch (this._opcode)
+			{
+			case MESSAGE:
+				this._first = varint(position);
+				this._second = varint(position);
+				break;
+			case SAY:
+			case BIND:
+				this._first = varint(position);
+				break;
+			case LINE:
+				break;
+			default:
+				throw new IOException("Unknown opcode " + this._opcode);
+			}
+			this._textStart = position[0];
+			return true;
+		}
+
+		/*
+		 * finishes a varint whose first byte was already read from the stream
+		 */
+		private int readVarint(int b) throws IOException
+		{
+			int value = b & 0x7F;
+			for (int shift = 7; (b & 0x80) != 0; shift += 7)
+			{
+				if (shift > 28)
+					throw new IOException("Varint too long");
+				b = this._in.read();
+				if (b < 0)
+					throw new EOFException("Frame cut short");
+				value |= (b & 0x7F) << shift;
+			}
+			return value;
+		}
+
+		/*
+		 * reads a varint from the frame buffer, advancing position[0]
+		 */
+		private int varint(int[] position) throws IOException
+		{
+			int value = 0;
+			for (int shift = 0;; shift += 7)
+			{
+				if (position[0] >= this._length || shift > 28)
+					throw new IOException("Bad varint in frame");
+				int b = this._buffer[position[0]++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+		}
+
+		/*
+		 * @return int - opcode of the last frame
+		 */
+		public int opcode()
+		{
+			return this._opcode;
+		}
+
+		/*
+		 * @return int - first id of the last frame (quorum id, or the bound id)
+		 */
+		public int first()
+		{
+			return this._first;
+		}
+
+		/*
+		 * @return int - second id of the last frame (user id of a MESSAGE)
+		 */
+		public int second()
+		{
+			return this._second;
+		}
+
+		/*
+		 * @return String - text of the last frame
+		 */
+		public String text()
+		{
+			return new String(this._buffer, this._textStart, this._length - this._textStart, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package server;
+
+/**
+ * @author thetrick
+ * The arguments of one command line, kept as offsets into the line rather
+ * than as substrings. A channel owns one instance and reuses it for every
+ * line, so reading a command allocates nothing unless a handler asks for
+ * an argument as a String. hash() and is() let an argument be looked up
+ * where it lies in the line, e.g. in a QuorumTable, also without allocating.
+ */
+public final class Arguments
+{
+	private String _line;
+	private int _count;
+	private int[] _starts = new int[4];
+	private int[] _ends = new int[4];
+
+	/*
+	 * starts reading a new line
+	 * @param String - the command line
+	 */
+	void reset(String line)
+	{
+		this._line = line;
+		this._count = 0;
+	}
+
+	/*
+	 * records the next argument
+	 * @param int - offset of its first character
+	 * @param int - offset after its last character
+	 */
+	void add(int start, int end)
+	{
+		if (this._count == this._starts.length)
+		{
+			int[] starts = new int[this._count * 2];
+			int[] ends = new int[this._count * 2];
+			System.arraycopy(this._starts, 0, starts, 0, this._count);
+			System.arraycopy(this._ends, 0, ends, 0, this._count);
+			this._starts = starts;
+			this._ends = ends;
+		}
+		this._starts[this._count] = start;
+		this._ends[this._count] = end;
+		this._count++;
+	}
+
+	/*
+	 * @return String - the whole command line
+	 */
+	public String line()
+	{
+		return this._line;
+	}
+
+	/*
+	 * @return int - number of arguments
+	 */
+	public int count()
+	{
+		return this._count;
+	}
+
+	/*
+	 * @param int - index of the argument
+	 * @return int - offset of the argument's first character in the line
+	 */
+	public int start(int i)
+	{
+		return this._starts[i];
+	}
+
+	/*
+	 * @param int - index of the argument
+	 * @return int - offset after the argument's last character in the line
+	 */
+	public int end(int i)
+	{
+		return this._ends[i];
+	}
+
+	/*
+	 * @param int - index of the argument
+	 * @return String - the argument as a new String
+	 */
+	public String get(int i)
+	{
+		return this._line.substring(this._starts[i], this._ends[i]);
+	}
+
+	/*
+	 * @param int - index of the argument
+	 * @param String - text to compare with
+	 * @return boolean - true if the argument equals the text
+	 */
+	public boolean is(int i, String text)
+	{
+		int length = this._ends[i] - this._starts[i];
+		return text.length() == length && this._line.regionMatches(this._starts[i], text, 0, length);
+	}
+
+	/*
+	 * @param int - index of the argument
+	 * @return int - the hash of the argument, the same as String.hashCode of it
+	 */
+	public int hash(int i)
+	{
+		int hash = 0;
+		for (int j = this._starts[i]; j < this._ends[i]; j++)
+			hash = 31 * hash + this._line.charAt(j);
+		return hash;
+	}
+}
@@ -1,35 +1,107 @@
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import adts.*;
+import protocol.*;
 
 /**
  * 
  * @author thetrick
  * Defines a particular connection made to a server. Orchestrates the communication
  * with a particular client.
+ * 
+ * A client may ask for a resumable session (see Handshake and Session). When
+ * its connection drops, the channel stays in the server and its quorums for
+ * the configured grace period and keeps queueing what is sent to the user.
+ * A new connection quoting the session's token takes the channel's place
+ * without anyone seeing the user leave or join, and gets what the client
+ * missed. Once the grace period is over the user is removed as usual.
  */
 public class Channel implements Runnable
 {
+	// queued after the last output of a closing channel to stop the writer
+	private static final Frame CLOSE = Frame.of("");
+	private static final AtomicLong _allBatches = new AtomicLong(0);
+	private static final AtomicLong _allFramesWritten = new AtomicLong(0);
+
 	private final String _userName;
 	private final Socket _socket;
 	private final Hive _hive; 
 	private final ServerNodes _serverNodes; 
-	private final HashMap<String, Quorum> _quorums = new HashMap<String, Quorum>();
+	private final QuorumTable _quorums = new QuorumTable();
 	private final BufferedReader _bufferedReader;
+	private final Wire.Reader _frameReader;
+	private final boolean _binary;
+	// membership lists are sent as versioned deltas (see Presence)
+	private final boolean _delta;
+	private final DeflateOutputStream _compressor;
+	private final ArrayList<String> _options = new ArrayList<String>();
+	// reused by every command line
+	private final Arguments _arguments = new Arguments();
+	// reused to put together the text of a message from a command line
+	private char[] _text = new char[256];
+	// names by the ids bound on this connection, which are the ids its SAY frames may use
+	private final ConcurrentHashMap<Integer, String> _bound = new ConcurrentHashMap<Integer, String>();
+	// size of _bound at which ids whose names were dropped are forgotten
+	private int _boundSweep = 64;
 	private final PrintWriter _printWriter;
-	private final LinkedBlockingQueue<String> _buffer = new LinkedBlockingQueue<String>();
+	private final OutputStream _output;
+	private final Outbox _buffer = new Outbox();
 	private final Thread _thread;
-	private boolean _isAlive = true;
+	private volatile boolean _isAlive = true;
+	private final AtomicBoolean _slowConsumer = new AtomicBoolean(false);
+	private final AtomicLong _batches = new AtomicLong(0);
+	private final AtomicLong _framesWritten = new AtomicLong(0);
+	// limits the messages this user sends, null if there is no limit
+	private final TokenBucket _limit = Config.get().newUserLimit();
+	// what the client gave to ask for a resumable session, null if it did not
+	private final String _resume;
+	// the session of a resumable client, null otherwise
+	private Session _session = null;
+	private final AtomicReference<State> _state = new AtomicReference<State>(State.LIVE);
+	// frames the outbox had dropped when the connection was lost
+	private long _droppedAtDetach = 0;
+	// the channel that took the session over; anything queued here moves on to it
+	private volatile Channel _successor = null;
+	private final Object _handOver = new Object();
+	// counted down once the connection is closed and the user removed or detached
+	private final CountDownLatch _stopped = new CountDownLatch(1);
+	private final Runnable _expire = new Runnable()
+	{
+		public void run()
+		{
+			expire();
+		}
+	};
+	// when the client last sent a line, and the timeout that looks at it (see Liveness)
+	private volatile long _lastRead = System.nanoTime();
+	private volatile TimingWheel.Timeout _watch = null;
+	private final Runnable _watchTask = new Runnable()
+	{
+		public void run()
+		{
+			watch();
+		}
+	};
 
 	/*
 	 * Constructor
@@ -45,55 +117,332 @@ public class Channel implements Runnable
 		this._socket = socket;
 		this._hive = hive;
 		this._serverNodes = serverNodes;
-		this._bufferedReader = new BufferedReader(new InputStreamReader(_socket.getInputStream()));
-		this._printWriter = new PrintWriter(_socket.getOutputStream(), true);
+		this._output = _socket.getOutputStream();
+		this._printWriter = new PrintWriter(this._output, true);
 
 		// Need the User name
-		_printWriter.println("To connect type: \"connect [username]\"");
+		_printWriter.println(Handshake.PROMPT);
 		_printWriter.flush();
 
-		String input = _bufferedReader.readLine();
-		if (input == null)
-			throw new IOException("input was null");
-		
-		Pattern pattern = Pattern.compile("connect \\p{Graph}+");
-		Matcher matcher = pattern.matcher(input);
-		
-		// Check to see if user name entered is valid.
-		if (!matcher.matches())
-			throw new IOException("Invalid format 'connect [username]'");
-		this._userName = input.substring(input.indexOf(' ') + 1);
+		// read the handshake unbuffered, the protocol it selects decides how the rest is read;
+		// a client that does not send it in time is cut off
+		int handshakeMillis = Config.get().getHandshakeTimeoutMillis();
+		TimingWheel.Timeout handshakeTimeout = handshakeMillis <= 0 ? null : Threads.wheel().schedule(new Runnable()
+		{
+			public void run()
+			{
+				closeSocket();
+			}
+		}, handshakeMillis);
+		Handshake handshake;
+		try
+		{
+			handshake = Handshake.parse(Handshake.readLine(_socket.getInputStream()));
+		}
+		catch (IOException e)
+		{
+			if (handshakeTimeout != null && handshakeTimeout.isExpired())
+				throw new IOException("Handshake timed out");
+			throw e;
+		}
+		finally
+		{
+			if (handshakeTimeout != null)
+				handshakeTimeout.cancel();
+		}
+		this._userName = handshake.getUserName();
+		this._binary = handshake.hasOption(Handshake.BINARY);
+		if (this._binary)
+			this._options.add(Handshake.BINARY);
+		this._delta = handshake.hasOption(Handshake.DELTA);
+		if (this._delta)
+			this._options.add(Handshake.DELTA);
+
+		// both directions are compressed from the acknowledgement on
+		InputStream input = _socket.getInputStream();
+		int deflateLevel = Config.get().getDeflateLevel();
+		if (handshake.hasOption(Handshake.DEFLATE) && deflateLevel > 0)
+		{
+			this._options.add(Handshake.DEFLATE);
+			this._compressor = new DeflateOutputStream(this._output, deflateLevel);
+			input = new InflateInputStream(input);
+		}
+		else
+			this._compressor = null;
+
+		// sessions are resumed on the text protocol, when a grace period is configured
+		String resume = handshake.getOption(Handshake.RESUME);
+		if (resume == null && handshake.hasOption(Handshake.RESUME))
+			resume = "";
+		this._resume = this._binary || Config.get().getResumeGraceMillis() <= 0 ? null : resume;
+
+		if (this._binary)
+		{
+			this._bufferedReader = null;
+			this._frameReader = new Wire.Reader(new BufferedInputStream(input));
+		}
+		else
+		{
+			this._bufferedReader = new BufferedReader(new InputStreamReader(input));
+			this._frameReader = null;
+		}
 
 		// Use thread to consume output send to client
-		_thread = new Thread()
+		_thread = Threads.newThread("writer-" + _userName, new Runnable()
 		{
 			public void run()
 			{
-				System.out.println("Client: (" + _userName + ") " + "Started...");
-				while (_isAlive)
+				Logger.info("Client: (" + _userName + ") " + "Started...");
+				Config config = Config.get();
+				BufferedOutputStream writer = new BufferedOutputStream(_compressor != null ? _compressor : _output, 64 * 1024);
+				ArrayList<Frame> batch = new ArrayList<Frame>(config.getBatchSize());
+				while (true)
 					try
 					{
 						// push buffer content to the client
-						parseOutput(_buffer.take());
+						nextBatch(batch, config.getBatchSize(), config.getLingerMillis());
+						boolean closing = parseOutput(batch, writer);
+						batch.clear();
+						if (closing)
+							break;
 					}
 					catch (InterruptedException e)
 					{
-						System.out.println("Client: (" + _userName + ") " + "Stopping...");
 						break;
 					}
+				Logger.info("Client: (" + _userName + ") " + _buffer.report());
+				if (_compressor != null)
+				{
+					Logger.info("Client: (" + _userName + ") " + _compressor.report());
+					_compressor.end();
+				}
+				Logger.info("Client: (" + _userName + ") " + "Stopping...");
 			}
-		};
+		});
 	}
 
 	public Channel(String _userName)
 	{
-		this._userName = _userName;
+		this(_userName, null, null);
+	}
+
+	public Channel(String _userName, boolean delta)
+	{
+		this(_userName, null, null, delta);
+	}
+
+	/*
+	 * Constructor used by transports that perform the handshake themselves
+	 * (see NioServer). No socket, streams or writer thread are attached.
+	 * 
+	 * @param String - user name taken from the handshake
+	 * @param Hive - Represents the master collection of Quorums
+	 * @Param ServerNodes - reference to master list of all clients
+	 */
+	protected Channel(String userName, Hive hive, ServerNodes serverNodes)
+	{
+		this(userName, hive, serverNodes, false);
+	}
+
+	/*
+	 * Constructor used by transports that perform the handshake themselves
+	 * 
+	 * @param String - user name taken from the handshake
+	 * @param Hive - Represents the master collection of Quorums
+	 * @Param ServerNodes - reference to master list of all clients
+	 * @param boolean - true if the client asked for membership deltas
+	 */
+	protected Channel(String userName, Hive hive, ServerNodes serverNodes, boolean delta)
+	{
+		this._userName = userName;
 		this._socket = null;
-		this._hive = null;
-		this._serverNodes = null;
+		this._hive = hive;
+		this._serverNodes = serverNodes;
 		this._bufferedReader = null;
+		this._frameReader = null;
+		this._binary = false;
+		this._delta = delta;
+		this._compressor = null;
 		this._printWriter = null;
+		this._output = null;
 		this._thread = null;
+		this._resume = null;
+	}
+
+	/*
+	 * Called once the handshake is read, before the channel is added. A
+	 * client quoting the token of its dropped session takes that session
+	 * over; a dropped session of the same user that cannot be resumed ends
+	 * here. A client asking for a resumable session gets a new one.
+	 * 
+	 * @return boolean - true if a session was resumed; the channel is then
+	 *      already in the server and the user's quorums and must not be added
+	 */
+	public boolean resume()
+	{
+		Channel previous = _serverNodes.getNodesMap().get(_userName);
+		if (previous != null && previous._session != null)
+		{
+			List<Frame> missed = _resume == null ? null : previous.takeOver(_resume);
+			if (missed != null)
+			{
+				takeOverFrom(previous, missed);
+				return true;
+			}
+			previous.expire();
+		}
+		if (_resume != null)
+		{
+			this._session = new Session(Config.get().getResumeLines());
+			this._options.add(Handshake.RESUME + "=" + _session.getToken());
+		}
+		return false;
+	}
+
+	/*
+	 * Hands the session over to a new connection if the token matches and
+	 * the lines the client missed are still kept. A connection that has not
+	 * noticed yet that the client is gone is closed first.
+	 * 
+	 * @param String - 'TOKEN:LAST' as given by the client
+	 * @return List<Frame> - the lines written after LAST, null if the session cannot be resumed
+	 */
+	private List<Frame> takeOver(String request)
+	{
+		int colon = request.lastIndexOf(':');
+		if (colon < 0 || !_session.getToken().equals(request.substring(0, colon)))
+			return null;
+		long last;
+		try
+		{
+			last = Long.parseLong(request.substring(colon + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+
+		if (_state.get() == State.LIVE)
+		{
+			try
+			{
+				_socket.close();
+				_stopped.await(1, TimeUnit.SECONDS);
+			}
+			catch (IOException ignore)
+			{
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!_state.compareAndSet(State.DETACHED, State.RESUMED))
+			return null;
+		List<Frame> missed = _buffer.getDropped() == _droppedAtDetach ? _session.rewind(last) : null;
+		if (missed == null)
+		{
+			Logger.info("Client: (" + _userName + ") " + "Session cannot be resumed from #" + last);
+			_buffer.clear();
+			removeUserConnections();
+		}
+		return missed;
+	}
+
+	/*
+	 * Takes the place of the channel of a dropped session: queues the lines
+	 * the client missed, then whatever was queued for the old channel, and
+	 * replaces it in the server and the quorums without telling anyone.
+	 * 
+	 * @param Channel - the channel of the dropped session
+	 * @param List<Frame> - lines written to it that the client did not get
+	 */
+	private void takeOverFrom(Channel previous, List<Frame> missed)
+	{
+		this._session = previous._session;
+		this._quorums.putAll(previous._quorums);
+		for (Frame frame : missed)
+			_buffer.force(frame.untraced());
+		previous._successor = this;
+		previous.handOver();
+		_serverNodes.replace(previous, this);
+		for (Quorum quorum : _quorums.values())
+			quorum.replaceChannel(previous, this);
+		this._options.add(Handshake.RESUME + "=" + _session.getToken());
+		this._options.add(Handshake.RESUMED);
+		Logger.info("Client: (" + _userName + ") " + "Session resumed, " + missed.size() + " lines sent again");
+	}
+
+	/*
+	 * moves whatever is queued to the channel that took the session over,
+	 * except the CLOSE meant for this channel's writer, which may not have
+	 * taken it yet if it was slow to stop
+	 */
+	private void handOver()
+	{
+		ArrayList<Frame> frames = new ArrayList<Frame>();
+		synchronized (_handOver)
+		{
+			_buffer.drainTo(frames, Integer.MAX_VALUE);
+			while (frames.remove(CLOSE))
+				CLOSE.release();
+			_successor.accept(frames);
+		}
+		for (Frame frame : frames)
+			frame.release();
+	}
+
+	/*
+	 * queues frames moved from the channel this one took over, whether or
+	 * not they fit; they were within the bounds where they came from
+	 * 
+	 * @param List<Frame> - the frames, in order
+	 */
+	private void accept(List<Frame> frames)
+	{
+		for (Frame frame : frames)
+			_buffer.force(frame);
+		if (_successor != null)
+			handOver();
+	}
+
+	/*
+	 * keeps the user in the server and its quorums for the grace period
+	 * after the connection of a resumable session was lost
+	 * 
+	 * @return boolean - true if the session now waits to be resumed
+	 */
+	private boolean detach()
+	{
+		if (_session == null || !_isAlive)
+			return false;
+		this._droppedAtDetach = _buffer.getDropped();
+		if (!_state.compareAndSet(State.LIVE, State.DETACHED))
+			return false;
+		int grace = Config.get().getResumeGraceMillis();
+		Logger.info("Client: (" + _userName + ") " + "Waiting " + grace + "ms to be resumed");
+		Threads.timer().schedule(new Runnable()
+		{
+			public void run()
+			{
+				// removing the user broadcasts, which is not for the timer thread
+				Threads.dispatcher().execute(_expire);
+			}
+		}, grace, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	/*
+	 * ends a session that was not resumed in time: the user is removed as
+	 * for any other disconnect. Does nothing unless the session is waiting.
+	 */
+	void expire()
+	{
+		if (!_state.compareAndSet(State.DETACHED, State.EXPIRED))
+			return;
+		Logger.info("Client: (" + _userName + ") " + "Session expired");
+		_buffer.clear();
+		removeUserConnections();
 	}
 
 	/*
@@ -101,44 +450,62 @@ public class Channel implements Runnable
 	 */
 	public void run()
 	{
-		// echo to client that you're connected
-		_printWriter.println("Connected!");
+		// echo to client that you're connected, along with the accepted options
+		_printWriter.println(Handshake.accept(_options));
 
 		try
 		{
 			// start the thread that handles sending data back to the client
 			_thread.start();
+			if (Liveness.isOn())
+				_watch = Threads.wheel().schedule(_watchTask, Liveness.next(0));
 
-			System.out.println("Client: (" + _userName + ") " + "Starting...");
+			Logger.info("Client: (" + _userName + ") " + "Starting...");
 
 			// check the buffer for client responses
-			for (String line = _bufferedReader.readLine(); (line != null && _isAlive); line = _bufferedReader.readLine())
-			{
-				String input = parseInput(line);
-				// Send it back to the user
-				updateBuffer(input);
-				
-				// Check if the client is still alive, if not kill
-				if (!_isAlive)
+			if (_binary)
+				readFrames();
+			else
+				for (String line = _bufferedReader.readLine(); (line != null && _isAlive); line = _bufferedReader.readLine())
 				{
-					System.out.println("Client: (" + _userName + ") " + "Stopping...");
-					break;
+					_lastRead = System.nanoTime();
+					String input = parseInput(line);
+					// Send it back to the user
+					updateBuffer(input);
+
+					// Check if the client is still alive, if not kill
+					if (!_isAlive)
+					{
+						Logger.info("Client: (" + _userName + ") " + "Stopping...");
+						break;
+					}
 				}
-			}
-			System.out.println("Client: (" + _userName + ") " + "Stopped");
+			Logger.info("Client: (" + _userName + ") " + "Stopped");
 
 		}
 		catch (IOException e)
 		{
-			System.out.println("Client: (" + _userName + ") Connection Lost");
+			Logger.info("Client: (" + _userName + ") Connection Lost");
 		}
 		finally
 		{
-			// kill the thread
+			TimingWheel.Timeout watch = _watch;
+			if (watch != null)
+				watch.cancel();
+			// let the writer send what is queued, then stop it
+			_buffer.force(CLOSE);
+			try
+			{
+				_thread.join(1000);
+			}
+			catch (InterruptedException ignore)
+			{
+			}
 			_thread.interrupt();
-			System.out.println("Client: (" + _userName + ") " + "Stopped");
-			// remove client from all quorums
-			removeUserConnections();
+			Logger.info("Client: (" + _userName + ") " + "Stopped");
+			// remove client from all quorums, unless the session waits to be resumed
+			if (!detach())
+				removeUserConnections();
 			// close the _socket
 			try
 			{
@@ -147,118 +514,340 @@ public class Channel implements Runnable
 			catch (IOException ignore)
 			{
 			}
-			System.out.println("Client: (" + _userName + ") " + "Cleanup Complete");
+			_stopped.countDown();
+			Logger.info("Client: (" + _userName + ") " + "Cleanup Complete");
+		}
+	}
+
+	/*
+	 * Looks at how long the client has been quiet (see Liveness): a client
+	 * past the idle limit is disconnected by closing the socket, which ends
+	 * the reader as a lost connection would; one past the heartbeat interval
+	 * is pinged. Runs on the timing wheel and schedules itself again.
+	 */
+	private void watch()
+	{
+		if (_stopped.getCount() == 0)
+			return;
+		long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _lastRead);
+		if (Liveness.isIdle(quiet))
+		{
+			Logger.info("Client: (" + _userName + ") " + "Quiet for " + quiet + "ms, disconnecting");
+			closeSocket();
+			return;
+		}
+		// queued as a broadcast is: the wheel's thread must never wait for room
+		if (Liveness.needsPing(quiet))
+			queue(Liveness.PING, false);
+		_watch = Threads.wheel().schedule(_watchTask, Liveness.next(quiet));
+	}
+
+	/*
+	 * closes the socket, which ends a reader waiting on it
+	 */
+	private void closeSocket()
+	{
+		try
+		{
+			_socket.close();
+		}
+		catch (IOException ignore)
+		{
 		}
 	}
 
+	/*
+	 * reads binary frames from the client until it disconnects. SAY frames
+	 * go straight to their quorum, LINE frames are commands of the text
+	 * protocol.
+	 * @throws IOException - if the connection fails or a frame is malformed
+	 */
+	private void readFrames() throws IOException
+	{
+		while (_isAlive && _frameReader.next())
+		{
+			_lastRead = System.nanoTime();
+			if (_frameReader.opcode() == Wire.SAY)
+				updateBuffer(say(_bound.get(_frameReader.first()), _frameReader.text()));
+			else if (_frameReader.opcode() == Wire.LINE)
+				updateBuffer(parseInput(_frameReader.text()));
+			else
+				updateBuffer("Unrecognized Command: opcode " + _frameReader.opcode());
+
+			// Check if the client is still alive, if not kill
+			if (!_isAlive)
+				Logger.info("Client: (" + _userName + ") " + "Stopping...");
+		}
+	}
+
+	/*
+	 * sends the text of a SAY frame to one of the user's quorums, checked
+	 * as the text argument of a message line is
+	 * @param String - name of the quorum
+	 * @param String - the message
+	 * @return String - response for the client
+	 */
+	private String say(String quorumName, String message)
+	{
+		if (!Commands.isText(message))
+			return "Unrecognized Command: message " + quorumName + " " + message;
+		return message(_quorums.get(quorumName), message);
+	}
+
 	/*
 	 * parses the input string and performs the appropriate action such as
 	 * joining a quorum or saying a message
 	 * @param String - the string to be parsed
 	 */
-	private String parseInput(String input)
+	String parseInput(String input)
 	{
-		// sets up regex
-		String regex = "(((disconnect)|(make)|(join)|(exit)) " + "\\p{Graph}+)|" + "(message \\p{Graph}+ \\p{Print}+)";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(input);
+		return Commands.get().dispatch(this, input, _arguments);
+	}
 
-		// if there is no match for the input string
-		if (!matcher.matches())
-			return "Unrecognized Command: " + input; 
+	/*
+	 * stops serving the client once the response has been sent
+	 * @return String - response for the client
+	 */
+	String disconnect()
+	{
+		this._isAlive = false;
+		return "disconnectedFromServer";
+	}
 
-		// find the first space in the string
-		int idx = input.indexOf(' ');
-		String command = input.substring(0, idx);
+	/*
+	 * makes a new quorum with this channel as its first member
+	 * @param String - name of the quorum
+	 * @return String - response for the client
+	 */
+	String make(String quorumName)
+	{
+		try
+		{
+			// make a new quorum
+			Quorum newQuorum = new Quorum(quorumName, _hive, this);
+			// Constructor above automatically adds the Quorum to the
+			// list of chat _hive of the server
+			_quorums.put(newQuorum.Id, newQuorum);
+			String note = notifyQuorums();
+			return note;
+		}
+		catch (IOException e)
+		{
+			return "badQuorum " + quorumName + " " + e.getMessage();
+		}
+	}
 
-		// if the string contains "disconnect", set _isAlive to false and kill
-		// connection
-		if (command.trim().equals("disconnect"))
+	/*
+	 * joins an existing quorum
+	 * @param String - name of the quorum
+	 * @return String - response for the client
+	 */
+	String join(String quorumName)
+	{
+		try
 		{
-			// removeAllConnections();
-			this._isAlive = false;
-			return "disconnectedFromServer";
+			// look the quorum up and join it in one step, a quorum that is
+			// closing counts as gone
+			Quorum quorumToJoin = _hive.join(quorumName, this);
+			if (quorumToJoin == null)
+				return "badQuorum " + quorumName + " quorum name does not exist";
+			this._quorums.put(quorumToJoin.Id, quorumToJoin);
+			return "";
 		}
-		// if the command is to make, join or exit (it is a quorum command)
-		else if (command.equals("make") || command.equals("join") || command.equals("exit"))
+		catch (IOException e)
 		{
+			return "badQuorum " + quorumName + " " + e.getMessage();
+		}
+	}
 
-			// find the next word in string and parse it as the quorum name
-			String quorumName = input.substring(idx + 1);
+	/*
+	 * leaves one of the user's quorums
+	 * @param String - name of the quorum
+	 * @return String - response for the client
+	 */
+	String exit(String quorumName)
+	{
+		// remove the quorum from personal listings
+		Quorum quorumToExit = _quorums.remove(quorumName);
+		if (quorumToExit != null)
+		{
+			// remove the user from the quorum
+			quorumToExit.removeChannel(this);
+			return "disconnectedquorum " + quorumName;
+		}
+		return "badQuorum " + quorumName + " user not connected to quorum";
+	}
 
-			// if making a new quorum
-			if (command.equals("make"))
-				try
-				{
-					// make a new quorum
-					Quorum newQuorum = new Quorum(quorumName, _hive, this);
-					// Constructor above automatically adds the Quorum to the
-					// list of chat _hive of the server
-					_quorums.put(newQuorum.Id, newQuorum);
-					String note = notifyQuorums();
-					return note;
-				}
-				catch (IOException e)
-				{
-					return "badQuorum " + quorumName + " " + e.getMessage();
-				}
+	/*
+	 * notes when the client last sent a line, for channels whose socket is
+	 * read by someone else (see Connection)
+	 * @param long - nanoTime the line was read
+	 */
+	void setLastRead(long lastRead)
+	{
+		_lastRead = lastRead;
+	}
 
-			// if joining a new quorum
-			else if (command.equals("join"))
-			{
-				// if there exists the quorum
-				if (_hive.contains(quorumName))
-					try
-					{
-						// try to join the quorum - what could happen is the quorum
-						// could disappear at this stage, expect an IOException
-						Quorum quorumToJoin = _hive.getQuorumById(quorumName);
-						quorumToJoin.addChannel(this);
-						this._quorums.put(quorumToJoin.Id, quorumToJoin);
-						return "";
-					}
-					catch (IOException e)
-					{
-						return "badQuorum " + quorumName + " " + e.getMessage();
-					}
-				else
-				{
-					return "badQuorum " + quorumName + " quorum name does not exist";
-				}
-			}
-			else if (command.equals("exit"))
+	/*
+	 * sends a message to one of the user's quorums
+	 * @param Quorum - the quorum, null if the user is not a member
+	 * @param String - the message
+	 * @return String - response for the client, empty
+	 */
+	String message(Quorum quorum, String message)
+	{
+		String refused = admit(quorum);
+		if (refused != null)
+			return refused;
+		// update the queue of the Quorum
+		quorum.updateBuffer(_userName + " " + message, _lastRead);
+		return "";
+	}
+
+	/*
+	 * sends the text argument of a command line to one of the user's
+	 * quorums. The text the quorum gets is copied out of the line once; it
+	 * is the only thing made before the quorum takes it.
+	 * @param Quorum - the quorum, null if the user is not a member
+	 * @param Arguments - the arguments of the command line
+	 * @param int - index of the text argument
+	 * @return String - response for the client, empty
+	 */
+	String message(Quorum quorum, Arguments arguments, int i)
+	{
+		String refused = admit(quorum);
+		if (refused != null)
+			return refused;
+		int name = _userName.length();
+		int length = name + 1 + arguments.end(i) - arguments.start(i);
+		if (_text.length < length)
+			_text = new char[Math.max(length, 2 * _text.length)];
+		_userName.getChars(0, name, _text, 0);
+		_text[name] = ' ';
+		arguments.line().getChars(arguments.start(i), arguments.end(i), _text, name + 1);
+		quorum.updateBuffer(new String(_text, 0, length), _lastRead);
+		return "";
+	}
+
+	/*
+	 * @param Quorum - the quorum a message is for, null if the user is not a member
+	 * @return String - null if the message may go, otherwise the response for the client
+	 */
+	private String admit(Quorum quorum)
+	{
+		if (quorum == null)
+			return "";
+		// held up, dropped or refused before the quorum sees it
+		String limited = limit(_limit);
+		if (limited == null)
+			limited = limit(quorum.getLimit());
+		return limited;
+	}
+
+	/*
+	 * Takes a token for a message from the user's or the quorum's limit.
+	 * Over the limit, DELAY lets the message go with a token reserved ahead
+	 * and holds up reading until it is due, so nothing more is read from the
+	 * socket meanwhile; channels that cannot hold up reading drop it instead.
+	 * @param TokenBucket - the limit, null if there is none
+	 * @return String - null if the message may go, otherwise the response for the client
+	 */
+	private String limit(TokenBucket bucket)
+	{
+		if (bucket == null)
+			return null;
+		long now = System.nanoTime();
+		if (bucket.getAction() == TokenBucket.Action.DELAY && canDelay())
+		{
+			long wait = bucket.reserve(now);
+			if (wait > 0)
 			{
-				// remove the quorum from personal listings
-				Quorum quorumToExit = _quorums.remove(quorumName);
-				if (quorumToExit != null)
-				{
-					// remove the user from the quorum
-					quorumToExit.removeChannel(this);
-					return "disconnectedquorum " + quorumName;
-				}
-				return "badQuorum " + quorumName + " user not connected to quorum";
+				TokenBucket.limited(TokenBucket.Action.DELAY);
+				holdReading(wait);
 			}
+			return null;
+		}
+		if (bucket.tryAcquire(now))
+			return null;
+		if (bucket.getAction() == TokenBucket.Action.DISCONNECT)
+		{
+			TokenBucket.limited(TokenBucket.Action.DISCONNECT);
+			Logger.warn("Client: (" + _userName + ") " + "Disconnecting ~ rate limit exceeded");
+			this._isAlive = false;
+			return "Disconnected: rate limit exceeded";
+		}
+		TokenBucket.limited(TokenBucket.Action.DROP);
+		return "";
+	}
+
+	/*
+	 * @return boolean - true if reading from the client can be held up for a DELAY limit
+	 */
+	protected boolean canDelay()
+	{
+		return _thread != null;
+	}
 
-			// stuff for messaging a specific quorum
+	/*
+	 * holds up reading from the client: the reader sleeps
+	 * @param long - nanoseconds to wait
+	 */
+	protected void holdReading(long nanos)
+	{
+		try
+		{
+			TimeUnit.NANOSECONDS.sleep(nanos);
 		}
-		else if (command.equals("message"))
+		catch (InterruptedException e)
 		{
-			// splice out the target Quorum and message
-			int idx2 = input.indexOf(' ', idx + 1);
-			String Quorum = input.substring(idx + 1, idx2);
-			String message = input.substring(idx2 + 1);
+			Thread.currentThread().interrupt();
+		}
+	}
 
-			// update the queue of the Quorum
-			Quorum quorumToMessage = _quorums.get(Quorum);
-			if (quorumToMessage != null)
-			{
-				quorumToMessage.updateBuffer(_userName + " " + message);
-				return "";
-			}
-			return "";
+	/*
+	 * sends the user a new snapshot of a membership list, after a delta went
+	 * missing (see Presence)
+	 * @param String - ServerNodes, Hive or the name of one of the user's quorums
+	 * @return String - response for the client, empty
+	 */
+	String resync(String list)
+	{
+		if (list.equals(Presence.SERVER))
+			_serverNodes.sendSnapshot(this);
+		else if (list.equals(Presence.HIVE))
+			_hive.updateChannel(this);
+		else
+		{
+			Quorum quorum = _quorums.get(list);
+			if (quorum == null)
+				return "badQuorum " + list + " user not connected to quorum";
+			quorum.getList().sendSnapshot(this);
 		}
+		return "";
+	}
 
-		return "Unrecongnized Command: " + input;
+	/*
+	 * sends the user the last messages of one of their quorums
+	 * @param String - name of the quorum
+	 * @param String - number of messages
+	 * @return String - response for the client, empty
+	 */
+	String history(String quorumName, String count)
+	{
+		Quorum quorum = _quorums.get(quorumName);
+		if (quorum == null)
+			return "badQuorum " + quorumName + " user not connected to quorum";
+		int messages;
+		try
+		{
+			messages = Integer.parseInt(count);
+		}
+		catch (NumberFormatException e)
+		{
+			return "badQuorum " + quorumName + " history needs a number of messages";
+		}
+		quorum.sendHistory(this, messages);
+		return "";
 	}
 
 	/**
@@ -274,18 +863,163 @@ public class Channel implements Runnable
 	}
 
 	/*
-	 * decorates input and posts it to the client
-	 * @param String - input to be sent to the client
+	 * Waits for the next frame, then takes whatever else is already queued up
+	 * to the batch size. With a linger time the batch keeps filling until it
+	 * is full or the linger time since the first frame has passed.
+	 * @param ArrayList<Frame> - empty list receiving the batch
+	 * @param int - maximum number of frames in a batch
+	 * @param int - milliseconds to wait for a batch to fill, 0 to not wait
+	 * @throws InterruptedException - if interrupted while waiting
 	 */
-	private void parseOutput(String input)
+	private void nextBatch(ArrayList<Frame> batch, int batchSize, int lingerMillis) throws InterruptedException
 	{
-		if (input.equals(""))
+		batch.add(_buffer.take());
+		_buffer.drainTo(batch, batchSize - batch.size());
+		if (lingerMillis <= 0)
 			return;
-		
-		System.out.println("Client: (" + _userName + ") sending... " + input);
-		_printWriter.println(input);
-		_printWriter.flush();
-		return;
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		while (batch.size() < batchSize && batch.get(batch.size() - 1) != CLOSE)
+		{
+			Frame frame = _buffer.pollFrame(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			if (frame == null)
+				break;
+			batch.add(frame);
+			_buffer.drainTo(batch, batchSize - batch.size());
+		}
+	}
+
+	/*
+	 * posts a batch of encoded lines to the client with a single flush and
+	 * gives up the outbox's references
+	 * @param ArrayList<Frame> - lines to be sent to the client
+	 * @param BufferedOutputStream - buffer in front of the socket
+	 * @return boolean - true if the batch ended the channel's output
+	 */
+	private boolean parseOutput(ArrayList<Frame> batch, BufferedOutputStream writer)
+	{
+		boolean closing = false;
+		int written = 0;
+		for (Frame frame : batch)
+		{
+			if (frame == CLOSE)
+				closing = true;
+			else
+				try
+				{
+					if (Logger.isDebug())
+						Logger.debug("Client: (" + _userName + ") sending... " + frame.getText());
+					if (_binary)
+						writeBinary(frame, writer);
+					else
+					{
+						if (_session != null)
+							writer.write(Handshake.prefix(_session.next(frame)));
+						writer.write(frame.getBytes());
+					}
+					written++;
+					frame.recordWritten();
+				}
+				catch (IOException e)
+				{
+					// the reader notices the broken connection and cleans up
+				}
+			frame.release();
+		}
+
+		// count the batch before the client can see it
+		if (written > 0)
+		{
+			_batches.incrementAndGet();
+			_framesWritten.addAndGet(written);
+			_allBatches.incrementAndGet();
+			_allFramesWritten.addAndGet(written);
+		}
+		try
+		{
+			writer.flush();
+		}
+		catch (IOException e)
+		{
+			// the reader notices the broken connection and cleans up
+		}
+		return closing;
+	}
+
+	/*
+	 * writes the binary encoding of a frame, preceded by BIND frames for
+	 * the quorum and user ids this connection has not seen yet
+	 * @param Frame - line to be sent to the client
+	 * @param BufferedOutputStream - buffer in front of the socket
+	 * @throws IOException - if the connection fails
+	 */
+	private void writeBinary(Frame frame, BufferedOutputStream writer) throws IOException
+	{
+		byte[] binary = frame.getBinary();
+		if (frame.getQuorum() != null)
+		{
+			bind(frame.getQuorumId(), frame.getQuorum(), writer);
+			bind(frame.getUserId(), frame.getUser(), writer);
+		}
+		writer.write(binary);
+	}
+
+	/*
+	 * tells the client the name of an id, unless it already knows it
+	 * @param int - the id
+	 * @param String - the name
+	 * @param BufferedOutputStream - buffer in front of the socket
+	 * @throws IOException - if the connection fails
+	 */
+	private void bind(int id, String name, BufferedOutputStream writer) throws IOException
+	{
+		if (_bound.containsKey(id))
+			return;
+		writer.write(Wire.bind(id, name));
+		_bound.put(id, name);
+		if (_bound.size() >= _boundSweep)
+		{
+			// ids are not handed out again, so a dropped one is of no more use
+			Iterator<Integer> ids = _bound.keySet().iterator();
+			while (ids.hasNext())
+				if (Symbols.name(ids.next()) == null)
+					ids.remove();
+			_boundSweep = Math.max(64, 2 * _bound.size());
+		}
+	}
+
+	/*
+	 * @return DeflateOutputStream - the compressing stream, null if the client did not ask for deflate
+	 */
+	public DeflateOutputStream getCompressor()
+	{
+		return this._compressor;
+	}
+
+	/*
+	 * @return int - number of ids bound on this connection and not forgotten yet
+	 */
+	public int getBoundCount()
+	{
+		return _bound.size();
+	}
+
+	/*
+	 * @return double - average number of lines written per flush by this channel
+	 */
+	public double getAverageBatchSize()
+	{
+		long batches = _batches.get();
+		return batches == 0 ? 0 : (double) _framesWritten.get() / batches;
+	}
+
+	/*
+	 * @return double - average number of lines written per flush by all channels
+	 */
+	public static double getAverageBatchSizeAll()
+	{
+		long batches = _allBatches.get();
+		return batches == 0 ? 0 : (double) _allFramesWritten.get() / batches;
 	}
 
 	/*
@@ -293,16 +1027,16 @@ public class Channel implements Runnable
 	 * user is removed from all quorums as well as the ServerNodes
 	 * when the user disconnects.
 	 */
-	private void removeUserConnections()
+	void removeUserConnections()
 	{
-		System.out.println("Client: (" + _userName + ") " + "Removing from all connected Quorums");
+		Logger.info("Client: (" + _userName + ") " + "Removing from all connected Quorums");
 
 		// removes the user from all connected Quorums
 		for (Quorum quorum : _quorums.values())
 			quorum.removeChannel(this);
 
 		// removes the user from the server
-		System.out.println("Client: (" + _userName + ") " + "Removing from server");
+		Logger.info("Client: (" + _userName + ") " + "Removing from server");
 		_serverNodes.remove(this);
 		return;
 	}
@@ -316,16 +1050,115 @@ public class Channel implements Runnable
 	 */
 	public void updateBuffer(String msg)
 	{
-		_buffer.add(msg);
+		if (msg.equals(""))
+			return;
+		queue(Frame.of(msg), true);
+	}
+
+	/*
+	 * queues an already encoded line for this client. Broadcasts hand the
+	 * same frame to every recipient so the line is encoded only once.
+	 * 
+	 * @param Frame - encoded message to be sent to the client
+	 */
+	public void updateBuffer(Frame frame)
+	{
+		queue(frame, false);
+	}
+
+	/*
+	 * queues several encoded lines for this client at once, as sent by a
+	 * quorum delivering a batch of messages
+	 * 
+	 * @param List<Frame> - encoded messages to be sent to the client, in order
+	 */
+	public void updateBuffer(List<Frame> frames)
+	{
+		if (!frames.isEmpty())
+			frames.get(0).recordDelivered(frames.size());
+		queue(frames);
+	}
+
+	/*
+	 * Queues a frame in the bounded outbox. Replies may wait for room under
+	 * the BLOCK policy, since they come from this client's own thread;
+	 * frames sent on behalf of others never wait. A client whose outbox
+	 * overflows under the DISCONNECT policy is dropped.
+	 * 
+	 * @param Frame - encoded message to be sent to the client
+	 * @param boolean - true for replies to this client's own commands
+	 */
+	protected void queue(Frame frame, boolean reply)
+	{
+		Channel successor = _successor;
+		if (successor != null)
+		{
+			successor.queue(frame, reply);
+			return;
+		}
+		boolean queued = reply ? _buffer.add(frame) : _buffer.offer(frame);
+		if (!queued && _buffer.isOverflowed())
+			disconnectSlowConsumer(_buffer.describeLimits());
+		// queued while the session was being taken over
+		if (_successor != null)
+			handOver();
+	}
+
+	/*
+	 * Queues several frames sent on behalf of others in one go; they never
+	 * wait, as for queue(frame, false)
+	 * 
+	 * @param List<Frame> - encoded messages to be sent to the client, in order
+	 */
+	protected void queue(List<Frame> frames)
+	{
+		Channel successor = _successor;
+		if (successor != null)
+		{
+			successor.queue(frames);
+			return;
+		}
+		if (_buffer.offerAll(frames) < frames.size() && _buffer.isOverflowed())
+			disconnectSlowConsumer(_buffer.describeLimits());
+		if (_successor != null)
+			handOver();
+	}
+
+	/*
+	 * Drops a client that cannot keep up: the queued output is discarded,
+	 * the client is told why and the reader is stopped, which removes the
+	 * user from the server as for any other disconnect.
+	 * 
+	 * @param String - why the client is dropped
+	 */
+	void disconnectSlowConsumer(String reason)
+	{
+		if (!_slowConsumer.compareAndSet(false, true))
+			return;
+		Logger.warn("Client: (" + _userName + ") " + "Disconnecting slow consumer ~ " + reason);
+		this._isAlive = false;
+		_buffer.clear();
+		_buffer.force(Frame.of("Disconnected: slow consumer, " + reason));
+		if (_socket != null)
+			try
+			{
+				_socket.shutdownInput();
+			}
+			catch (IOException ignore)
+			{
+			}
+		// a session waiting to be resumed can no longer be resumed complete
+		if (_state.get() == State.DETACHED)
+			Threads.dispatcher().execute(_expire);
 	}
 
 	/*
 	 * accessor method to get the output buffer Should not be used for anything
 	 * other than testing this class and classes that use this class.
 	 * 
-	 * @return LinkedBlockingQueue<String> - the queue object of this class.
+	 * @return Outbox - the queue object of this class.
 	 */
-	public LinkedBlockingQueue<String> getBuffer()
+	public Outbox getBuffer()
 	{
 		return this._buffer;
 	}
@@ -336,11 +1169,22 @@ public class Channel implements Runnable
 	 * 
 	 * @return Map<String, Quorum> - the map of connected _hive
 	 */
-	public HashMap<String, Quorum> getQuorums()
+	public Map<String, Quorum> getQuorums()
 	{
 		return this._quorums;
 	}
 
+	/*
+	 * finds a quorum of this channel without making a String of its name
+	 * @param Arguments - the arguments of a command line
+	 * @param int - index of the argument naming the quorum
+	 * @return Quorum - the quorum, null if the channel is not in one by that name
+	 */
+	public Quorum getQuorum(Arguments arguments, int i)
+	{
+		return this._quorums.get(arguments, i);
+	}
+
 	/*
 	 * accessor method to get the thread of the consumer Should not be used for anything
 	 * other than testing this class and classes that use this class.
@@ -356,5 +1200,40 @@ public class Channel implements Runnable
 	{
 		return this._userName;
 	}
+
+	/*
+	 * @return boolean - true if the client asked for membership deltas
+	 */
+	public boolean isDelta()
+	{
+		return this._delta;
+	}
+
+	/*
+	 * returns false once the client has asked to disconnect
+	 * 
+	 * @return boolean - true while the channel should keep serving the client
+	 */
+	boolean isAlive()
+	{
+		return this._isAlive;
+	}
+
+	/*
+	 * @return Session - the session of a resumable client, null otherwise
+	 */
+	public Session getSession()
+	{
+		return this._session;
+	}
+
+	/**
+	 * Where a resumable session stands: served, waiting for the client to
+	 * come back, taken over by a new connection, or ended
+	 */
+	private enum State
+	{
+		LIVE, DETACHED, RESUMED, EXPIRED
+	}
 }
 
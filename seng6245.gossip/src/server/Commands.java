@@ -0,0 +1,273 @@
+package server;
+
+import adts.*;
+import protocol.Heartbeat;
+
+/**
+ * @author thetrick
+ * Registry of the commands a client can send after the handshake. Each
+ * command has a name, a number of word arguments (printable characters
+ * without spaces) and optionally a trailing text argument (printable
+ * characters including spaces), separated by single spaces, which is the
+ * grammar the old parser matched with a regular expression.
+ * 
+ * A line is read in a single pass: the command name is hashed while it is
+ * scanned and found in an open addressing table, and the arguments are
+ * recorded as offsets into the line. Nothing is allocated until a handler
+ * asks for an argument as a String. A message to a quorum is parsed and its
+ * quorum found without garbage; what the quorum is handed, the text of the
+ * message copied once out of the line, is all a message allocates before
+ * the quorum takes it.
+ * 
+ * New commands are added with register(), before the server starts.
+ */
+public final class Commands
+{
+	private static final Commands _standard = standard();
+
+	private String[] _names = new String[16];
+	private Handler[] _handlers = new Handler[16];
+	private int[] _words = new int[16];
+	private boolean[] _text = new boolean[16];
+	private int _size = 0;
+
+	/*
+	 * Performs a command for a channel
+	 */
+	public interface Handler
+	{
+		/*
+		 * @param Channel - the channel the command came from
+		 * @param Arguments - the arguments of the command; only valid during the call
+		 * @return String - response for the client, empty for none
+		 */
+		String handle(Channel channel, Arguments arguments);
+	}
+
+	/*
+	 * @return Commands - the commands every channel understands
+	 */
+	public static Commands get()
+	{
+		return _standard;
+	}
+
+	/*
+	 * adds a command, replacing any command with the same name
+	 * @param String - name of the command
+	 * @param int - number of word arguments
+	 * @param boolean - true if a text argument follows the words
+	 * @param Handler - performs the command
+	 */
+	public synchronized void register(String name, int words, boolean text, Handler handler)
+	{
+		int slot = find(name, name.length(), name.hashCode());
+		if (this._names[slot] == null)
+		{
+			if (2 * (this._size + 1) > this._names.length)
+			{
+				grow();
+				slot = find(name, name.length(), name.hashCode());
+			}
+			this._size++;
+		}
+		this._names[slot] = name;
+		this._handlers[slot] = handler;
+		this._words[slot] = words;
+		this._text[slot] = text;
+	}
+
+	/*
+	 * Reads a command line and performs it
+	 * @param Channel - the channel the line came from
+	 * @param String - the command line
+	 * @param Arguments - reused to hold the arguments
+	 * @return String - response for the client
+	 */
+	public String dispatch(Channel channel, String line, Arguments arguments)
+	{
+		int length = line.length();
+
+		// the command name, hashed like String.hashCode
+		int i = 0;
+		int hash = 0;
+		for (char c; i < length && (c = line.charAt(i)) != ' '; i++)
+			hash = 31 * hash + c;
+		int slot = find(line, i, hash);
+		if (this._names[slot] == null)
+			return "Unrecognized Command: " + line;
+
+		// the word arguments, then the text
+		arguments.reset(line);
+		int words = this._words[slot];
+		for (int word = 0; word < words; word++)
+		{
+			if (i == length || line.charAt(i) != ' ')
+				return "Unrecognized Command: " + line;
+			int start = ++i;
+			while (i < length && isGraph(line.charAt(i)))
+				i++;
+			if (i == start)
+				return "Unrecognized Command: " + line;
+			arguments.add(start, i);
+		}
+		if (this._text[slot])
+		{
+			if (i == length || line.charAt(i) != ' ')
+				return "Unrecognized Command: " + line;
+			int start = ++i;
+			while (i < length && isPrint(line.charAt(i)))
+				i++;
+			if (i == start)
+				return "Unrecognized Command: " + line;
+			arguments.add(start, i);
+		}
+		if (i != length)
+			return "Unrecognized Command: " + line;
+
+		return this._handlers[slot].handle(channel, arguments);
+	}
+
+	/*
+	 * finds the slot of a name, or the empty slot where it belongs
+	 * @param String - text starting with the name
+	 * @param int - length of the name
+	 * @param int - String.hashCode of the name
+	 * @return int - index into the table
+	 */
+	private int find(String text, int length, int hash)
+	{
+		int mask = this._names.length - 1;
+		for (int slot = (hash ^ (hash >>> 16)) & mask;; slot = (slot + 1) & mask)
+		{
+			String name = this._names[slot];
+			if (name == null || (name.length() == length && text.regionMatches(0, name, 0, length)))
+				return slot;
+		}
+	}
+
+	/*
+	 * doubles the table and re-inserts every command
+	 */
+	private void grow()
+	{
+		String[] names = this._names;
+		Handler[] handlers = this._handlers;
+		int[] words = this._words;
+		boolean[] text = this._text;
+		this._names = new String[names.length * 2];
+		this._handlers = new Handler[names.length * 2];
+		this._words = new int[names.length * 2];
+		this._text = new boolean[names.length * 2];
+		for (int i = 0; i < names.length; i++)
+			if (names[i] != null)
+			{
+				int slot = find(names[i], names[i].length(), names[i].hashCode());
+				this._names[slot] = names[i];
+				this._handlers[slot] = handlers[i];
+				this._words[slot] = words[i];
+				this._text[slot] = text[i];
+			}
+	}
+
+	/*
+	 * same as \p{Graph}: visible ASCII characters
+	 */
+	private static boolean isGraph(char c)
+	{
+		return c > ' ' && c < 0x7F;
+	}
+
+	/*
+	 * @param String - text of a message
+	 * @return boolean - true if it is a valid text argument: not empty and
+	 * only printable characters
+	 */
+	static boolean isText(String text)
+	{
+		if (text.isEmpty())
+			return false;
+		for (int i = 0; i < text.length(); i++)
+			if (!isPrint(text.charAt(i)))
+				return false;
+		return true;
+	}
+
+	/*
+	 * same as \p{Print}: visible ASCII characters and space
+	 */
+	private static boolean isPrint(char c)
+	{
+		return c >= ' ' && c < 0x7F;
+	}
+
+	/*
+	 * @return Commands - a registry with the commands of the gossip protocol
+	 */
+	public static Commands standard()
+	{
+		Commands commands = new Commands();
+		commands.register("disconnect", 1, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return channel.disconnect();
+			}
+		});
+		commands.register("make", 1, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return channel.make(arguments.get(0));
+			}
+		});
+		commands.register("join", 1, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return channel.join(arguments.get(0));
+			}
+		});
+		commands.register("exit", 1, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return channel.exit(arguments.get(0));
+			}
+		});
+		commands.register("message", 1, true, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				// look the quorum up without making a String of its name
+				Quorum quorum = channel.getQuorum(arguments, 0);
+				if (quorum == null)
+					return "";
+				return channel.message(quorum, arguments, 1);
+			}
+		});
+		commands.register("resync", 1, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return channel.resync(arguments.get(0));
+			}
+		});
+		commands.register(Heartbeat.PONG, 0, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				// reading it was all it took
+				return "";
+			}
+		});
+		commands.register("history", 2, false, new Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return channel.history(arguments.get(0), arguments.get(1));
+			}
+		});
+		return commands;
+	}
+}
@@ -0,0 +1,865 @@
+package server;
+
+import adts.Logger;
+import adts.TokenBucket;
+
+/**
+ * @author thetrick
+ * Start-up options for the gossip server. Server.main parses the command line
+ * into the process-wide instance returned by get(); everything else reads its
+ * settings from there so the defaults apply when nothing was configured.
+ */
+public class Config
+{
+	public static final String USAGE = "USAGE: [-p PORT] [-nio] [-loops N] [-balance roundrobin|leastload] [-rebalance MS] [-stats MS]"
+			+ " [-threads platform|virtual] [-batch N] [-linger MS] [-deflate LEVEL]"
+			+ " [-outbox N] [-outboxbytes N] [-slow block|drop|disconnect] [-block MS] [-coalesce MS]"
+			+ " [-quorumbatch N] [-quorumdelay MS] [-fanout N] [-fanoutparallelism N]"
+			+ " [-logdir DIR] [-logsegment BYTES] [-logsyncmillis MS] [-logsyncmessages N]"
+			+ " [-history N] [-historybytes BYTES] [-journal DIR] [-journalsync MS] [-snapshotevery N] [-restoregrace MS]"
+			+ " [-resumegrace MS] [-resumelines N] [-userrate N] [-userburst N] [-useraction delay|drop|disconnect]"
+			+ " [-quorumrate N] [-quorumburst N] [-quorumaction delay|drop|disconnect]"
+			+ " [-handshaketimeout MS] [-heartbeat MS] [-idletimeout MS] [-latency]"
+			+ " [-loglevel debug|info|warn|error|off]";
+
+	private static volatile Config _current = new Config();
+
+	private int _port = 25252;
+	private boolean _nio = false;
+	private int _loops = Runtime.getRuntime().availableProcessors();
+	private NioServer.Balance _balance = NioServer.Balance.ROUND_ROBIN;
+	private int _rebalanceMillis = 0;
+	private int _statsMillis = 0;
+	private Threads.Mode _threadMode = Threads.Mode.PLATFORM;
+	private int _batchSize = 64;
+	private int _lingerMillis = 0;
+	private int _deflateLevel = 6;
+	private int _outboxFrames = 4096;
+	private long _outboxBytes = 4L * 1024 * 1024;
+	private Outbox.Policy _slowPolicy = Outbox.Policy.DROP_OLDEST;
+	private int _blockMillis = 1000;
+	private int _coalesceMillis = 0;
+	private int _quorumBatch = 64;
+	private int _quorumDelayMillis = 0;
+	private int _fanoutThreshold = 0;
+	private int _fanoutParallelism = Runtime.getRuntime().availableProcessors();
+	private String _logDir = null;
+	private int _logSegmentBytes = 16 * 1024 * 1024;
+	private int _logSyncMillis = 1000;
+	private int _logSyncMessages = 0;
+	private int _historyMessages = 0;
+	private int _historyBytes = 256 * 1024;
+	private String _journalDir = null;
+	private int _journalSyncMillis = 100;
+	private int _snapshotEvery = 100000;
+	private int _restoreGraceMillis = 10 * 60 * 1000;
+	private int _resumeGraceMillis = 0;
+	private int _resumeLines = 1024;
+	private int _userRate = 0;
+	private int _userBurst = 20;
+	private TokenBucket.Action _userAction = TokenBucket.Action.DELAY;
+	private int _quorumRate = 0;
+	private int _quorumBurst = 100;
+	private TokenBucket.Action _quorumAction = TokenBucket.Action.DELAY;
+	private int _handshakeTimeoutMillis = 0;
+	private int _heartbeatMillis = 0;
+	private int _idleTimeoutMillis = 0;
+	private boolean _latency = false;
+	private Logger.Level _logLevel = Logger.Level.INFO;
+
+	/*
+	 * @return Config - the options the server was started with
+	 */
+	public static Config get()
+	{
+		return _current;
+	}
+
+	/*
+	 * replaces the process-wide options
+	 * @param Config - the options to use from now on
+	 */
+	public static void set(Config config)
+	{
+		_current = config;
+	}
+
+	/*
+	 * parses command line arguments
+	 * @param String[] - arguments given to Server.main
+	 * @return Config - the parsed options
+	 * @throws IllegalArgumentException - if an argument is unknown or malformed
+	 */
+	public static Config parse(String[] args)
+	{
+		Config config = new Config();
+		for (int i = 0; i < args.length; i++)
+		{
+			String arg = args[i];
+			if (arg.equals("-p"))
+				config._port = intValue(args, ++i, 0, 65535);
+			else if (arg.equals("-nio"))
+				config._nio = true;
+			else if (arg.equals("-loops"))
+				config._loops = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-balance"))
+				config._balance = balance(args, ++i);
+			else if (arg.equals("-rebalance"))
+				config._rebalanceMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-stats"))
+				config._statsMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-threads"))
+				config._threadMode = threadMode(args, ++i);
+			else if (arg.equals("-batch"))
+				config._batchSize = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-linger"))
+				config._lingerMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-deflate"))
+				config._deflateLevel = intValue(args, ++i, 0, 9);
+			else if (arg.equals("-outbox"))
+				config._outboxFrames = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-outboxbytes"))
+				config._outboxBytes = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-slow"))
+				config._slowPolicy = slowPolicy(args, ++i);
+			else if (arg.equals("-block"))
+				config._blockMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-coalesce"))
+				config._coalesceMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-quorumbatch"))
+				config._quorumBatch = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-quorumdelay"))
+				config._quorumDelayMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-fanout"))
+				config._fanoutThreshold = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-fanoutparallelism"))
+				config._fanoutParallelism = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-logdir"))
+				config._logDir = stringValue(args, ++i);
+			else if (arg.equals("-logsegment"))
+				config._logSegmentBytes = intValue(args, ++i, 4096, Integer.MAX_VALUE);
+			else if (arg.equals("-logsyncmillis"))
+				config._logSyncMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-logsyncmessages"))
+				config._logSyncMessages = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-history"))
+				config._historyMessages = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-historybytes"))
+				config._historyBytes = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-journal"))
+				config._journalDir = stringValue(args, ++i);
+			else if (arg.equals("-journalsync"))
+				config._journalSyncMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-snapshotevery"))
+				config._snapshotEvery = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-restoregrace"))
+				config._restoreGraceMillis = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-resumegrace"))
+				config._resumeGraceMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-resumelines"))
+				config._resumeLines = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-userrate"))
+				config._userRate = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-userburst"))
+				config._userBurst = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-useraction"))
+				config._userAction = limitAction(args, ++i);
+			else if (arg.equals("-quorumrate"))
+				config._quorumRate = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-quorumburst"))
+				config._quorumBurst = intValue(args, ++i, 1, Integer.MAX_VALUE);
+			else if (arg.equals("-quorumaction"))
+				config._quorumAction = limitAction(args, ++i);
+			else if (arg.equals("-handshaketimeout"))
+				config._handshakeTimeoutMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-heartbeat"))
+				config._heartbeatMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-idletimeout"))
+				config._idleTimeoutMillis = intValue(args, ++i, 0, Integer.MAX_VALUE);
+			else if (arg.equals("-latency"))
+				config._latency = true;
+			else if (arg.equals("-loglevel"))
+				config._logLevel = logLevel(args, ++i);
+			else
+				throw new IllegalArgumentException("Unknown option " + arg);
+		}
+		return config;
+	}
+
+	/*
+	 * reads the integer value of an option and checks its range
+	 */
+	private static int intValue(String[] args, int i, int min, int max)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		int value;
+		try
+		{
+			value = Integer.parseInt(args[i]);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException(args[i - 1] + " needs an integer value");
+		}
+		if (value < min || value > max)
+			throw new IllegalArgumentException(args[i - 1] + " should be between [" + min + ", " + max + "]");
+		return value;
+	}
+
+	/*
+	 * reads the value of an option
+	 */
+	private static String stringValue(String[] args, int i)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		return args[i];
+	}
+
+	/*
+	 * reads the value of the -balance option
+	 */
+	private static NioServer.Balance balance(String[] args, int i)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		if (args[i].equals("roundrobin"))
+			return NioServer.Balance.ROUND_ROBIN;
+		if (args[i].equals("leastload"))
+			return NioServer.Balance.LEAST_LOADED;
+		throw new IllegalArgumentException(args[i - 1] + " should be roundrobin or leastload");
+	}
+
+	/*
+	 * reads the value of the -threads option
+	 */
+	private static Threads.Mode threadMode(String[] args, int i)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		if (args[i].equals("platform"))
+			return Threads.Mode.PLATFORM;
+		if (args[i].equals("virtual"))
+			return Threads.Mode.VIRTUAL;
+		throw new IllegalArgumentException(args[i - 1] + " should be platform or virtual");
+	}
+
+	/*
+	 * reads the value of the -slow option
+	 */
+	private static Outbox.Policy slowPolicy(String[] args, int i)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		if (args[i].equals("block"))
+			return Outbox.Policy.BLOCK;
+		if (args[i].equals("drop"))
+			return Outbox.Policy.DROP_OLDEST;
+		if (args[i].equals("disconnect"))
+			return Outbox.Policy.DISCONNECT;
+		throw new IllegalArgumentException(args[i - 1] + " should be block, drop or disconnect");
+	}
+
+	/*
+	 * reads the value of the -useraction and -quorumaction options
+	 */
+	private static TokenBucket.Action limitAction(String[] args, int i)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		if (args[i].equals("delay"))
+			return TokenBucket.Action.DELAY;
+		if (args[i].equals("drop"))
+			return TokenBucket.Action.DROP;
+		if (args[i].equals("disconnect"))
+			return TokenBucket.Action.DISCONNECT;
+		throw new IllegalArgumentException(args[i - 1] + " should be delay, drop or disconnect");
+	}
+
+	/*
+	 * reads the value of the -loglevel option
+	 */
+	private static Logger.Level logLevel(String[] args, int i)
+	{
+		if (i >= args.length)
+			throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		for (Logger.Level level : Logger.Level.values())
+			if (args[i].equals(level.name().toLowerCase()))
+				return level;
+		throw new IllegalArgumentException(args[i - 1] + " should be debug, info, warn, error or off");
+	}
+
+	/*
+	 * @return int - port to listen on
+	 */
+	public int getPort()
+	{
+		return this._port;
+	}
+
+	/*
+	 * @return boolean - true to serve clients from selector event loops
+	 */
+	public boolean isNio()
+	{
+		return this._nio;
+	}
+
+	/*
+	 * @return int - number of event loop threads in nio mode
+	 */
+	public int getLoops()
+	{
+		return this._loops;
+	}
+
+	/*
+	 * @return NioServer.Balance - how nio mode assigns sockets to loops
+	 */
+	public NioServer.Balance getBalance()
+	{
+		return this._balance;
+	}
+
+	/*
+	 * @return int - milliseconds between rebalancing passes in nio mode, 0 for never
+	 */
+	public int getRebalanceMillis()
+	{
+		return this._rebalanceMillis;
+	}
+
+	/*
+	 * @return int - milliseconds between counter reports, 0 for never
+	 */
+	public int getStatsMillis()
+	{
+		return this._statsMillis;
+	}
+
+	/*
+	 * @return Threads.Mode - kind of thread used for channels, quorums and handshakes
+	 */
+	public Threads.Mode getThreadMode()
+	{
+		return this._threadMode;
+	}
+
+	/*
+	 * @param Threads.Mode - kind of thread used for channels, quorums and handshakes
+	 */
+	public void setThreadMode(Threads.Mode threadMode)
+	{
+		this._threadMode = threadMode;
+	}
+
+	/*
+	 * @return int - most lines a channel writer sends with one flush
+	 */
+	public int getBatchSize()
+	{
+		return this._batchSize;
+	}
+
+	/*
+	 * @param int - most lines a channel writer sends with one flush
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this._batchSize = batchSize;
+	}
+
+	/*
+	 * @return int - milliseconds a channel writer waits for a batch to fill, 0 to not wait
+	 */
+	public int getLingerMillis()
+	{
+		return this._lingerMillis;
+	}
+
+	/*
+	 * @param int - milliseconds a channel writer waits for a batch to fill, 0 to not wait
+	 */
+	public void setLingerMillis(int lingerMillis)
+	{
+		this._lingerMillis = lingerMillis;
+	}
+
+	/*
+	 * @return int - compression level for clients asking for deflate, 0 to refuse compression
+	 */
+	public int getDeflateLevel()
+	{
+		return this._deflateLevel;
+	}
+
+	/*
+	 * @param int - compression level for clients asking for deflate, 0 to refuse compression
+	 */
+	public void setDeflateLevel(int deflateLevel)
+	{
+		this._deflateLevel = deflateLevel;
+	}
+
+	/*
+	 * @return int - most frames queued for one client
+	 */
+	public int getOutboxFrames()
+	{
+		return this._outboxFrames;
+	}
+
+	/*
+	 * @param int - most frames queued for one client
+	 */
+	public void setOutboxFrames(int outboxFrames)
+	{
+		this._outboxFrames = outboxFrames;
+	}
+
+	/*
+	 * @return long - most encoded bytes queued for one client
+	 */
+	public long getOutboxBytes()
+	{
+		return this._outboxBytes;
+	}
+
+	/*
+	 * @param long - most encoded bytes queued for one client
+	 */
+	public void setOutboxBytes(long outboxBytes)
+	{
+		this._outboxBytes = outboxBytes;
+	}
+
+	/*
+	 * @return Outbox.Policy - what happens when a client's queue is full
+	 */
+	public Outbox.Policy getSlowPolicy()
+	{
+		return this._slowPolicy;
+	}
+
+	/*
+	 * @param Outbox.Policy - what happens when a client's queue is full
+	 */
+	public void setSlowPolicy(Outbox.Policy slowPolicy)
+	{
+		this._slowPolicy = slowPolicy;
+	}
+
+	/*
+	 * @return int - milliseconds a reply waits for room under the BLOCK policy
+	 */
+	public int getBlockMillis()
+	{
+		return this._blockMillis;
+	}
+
+	/*
+	 * @param int - milliseconds a reply waits for room under the BLOCK policy
+	 */
+	public void setBlockMillis(int blockMillis)
+	{
+		this._blockMillis = blockMillis;
+	}
+
+	/*
+	 * @return int - milliseconds membership changes are collected for before
+	 * one update is broadcast, 0 to broadcast every change at once
+	 */
+	public int getCoalesceMillis()
+	{
+		return this._coalesceMillis;
+	}
+
+	/*
+	 * @param int - milliseconds membership changes are collected for, 0 for none
+	 */
+	public void setCoalesceMillis(int coalesceMillis)
+	{
+		this._coalesceMillis = coalesceMillis;
+	}
+
+	/*
+	 * @return int - most messages a quorum delivers to its members in one batch
+	 */
+	public int getQuorumBatch()
+	{
+		return this._quorumBatch;
+	}
+
+	/*
+	 * @param int - most messages a quorum delivers to its members in one batch
+	 */
+	public void setQuorumBatch(int quorumBatch)
+	{
+		this._quorumBatch = quorumBatch;
+	}
+
+	/*
+	 * @return int - longest a message waits for others to batch with, in
+	 * milliseconds, 0 to deliver whatever is there at once
+	 */
+	public int getQuorumDelayMillis()
+	{
+		return this._quorumDelayMillis;
+	}
+
+	/*
+	 * @param int - longest a message waits for others to batch with, in milliseconds
+	 */
+	public void setQuorumDelayMillis(int quorumDelayMillis)
+	{
+		this._quorumDelayMillis = quorumDelayMillis;
+	}
+
+	/*
+	 * @return int - fewest members for which a quorum delivers in parallel,
+	 * 0 to always deliver to one member after the other
+	 */
+	public int getFanoutThreshold()
+	{
+		return this._fanoutThreshold;
+	}
+
+	/*
+	 * @param int - fewest members for which a quorum delivers in parallel, 0 for never
+	 */
+	public void setFanoutThreshold(int fanoutThreshold)
+	{
+		this._fanoutThreshold = fanoutThreshold;
+	}
+
+	/*
+	 * @return int - number of parts the members of a large quorum are split into
+	 */
+	public int getFanoutParallelism()
+	{
+		return this._fanoutParallelism;
+	}
+
+	/*
+	 * @param int - number of parts the members of a large quorum are split into
+	 */
+	public void setFanoutParallelism(int fanoutParallelism)
+	{
+		this._fanoutParallelism = fanoutParallelism;
+	}
+
+	/*
+	 * @return String - directory the quorums keep their message logs in, null for no logs
+	 */
+	public String getLogDir()
+	{
+		return this._logDir;
+	}
+
+	/*
+	 * @param String - directory the quorums keep their message logs in, null for no logs
+	 */
+	public void setLogDir(String logDir)
+	{
+		this._logDir = logDir;
+	}
+
+	/*
+	 * @return int - bytes per segment of a message log
+	 */
+	public int getLogSegmentBytes()
+	{
+		return this._logSegmentBytes;
+	}
+
+	/*
+	 * @param int - bytes per segment of a message log
+	 */
+	public void setLogSegmentBytes(int logSegmentBytes)
+	{
+		this._logSegmentBytes = logSegmentBytes;
+	}
+
+	/*
+	 * @return int - milliseconds between forcing message logs to storage, 0 for never
+	 */
+	public int getLogSyncMillis()
+	{
+		return this._logSyncMillis;
+	}
+
+	/*
+	 * @param int - milliseconds between forcing message logs to storage, 0 for never
+	 */
+	public void setLogSyncMillis(int logSyncMillis)
+	{
+		this._logSyncMillis = logSyncMillis;
+	}
+
+	/*
+	 * @return int - messages after which a message log is forced to storage, 0 for never
+	 */
+	public int getLogSyncMessages()
+	{
+		return this._logSyncMessages;
+	}
+
+	/*
+	 * @param int - messages after which a message log is forced to storage, 0 for never
+	 */
+	public void setLogSyncMessages(int logSyncMessages)
+	{
+		this._logSyncMessages = logSyncMessages;
+	}
+
+	/*
+	 * @return int - messages a quorum keeps for those who join, 0 for none
+	 */
+	public int getHistoryMessages()
+	{
+		return this._historyMessages;
+	}
+
+	/*
+	 * @param int - messages a quorum keeps for those who join, 0 for none
+	 */
+	public void setHistoryMessages(int historyMessages)
+	{
+		this._historyMessages = historyMessages;
+	}
+
+	/*
+	 * @return int - most bytes of memory the messages a quorum keeps for those who join may take
+	 */
+	public int getHistoryBytes()
+	{
+		return this._historyBytes;
+	}
+
+	/*
+	 * @param int - most bytes of memory the messages a quorum keeps for those who join may take
+	 */
+	public void setHistoryBytes(int historyBytes)
+	{
+		this._historyBytes = historyBytes;
+	}
+
+	/*
+	 * @return String - directory of the journal of quorums and members, null for none
+	 */
+	public String getJournalDir()
+	{
+		return this._journalDir;
+	}
+
+	/*
+	 * @param String - directory of the journal of quorums and members, null for none
+	 */
+	public void setJournalDir(String journalDir)
+	{
+		this._journalDir = journalDir;
+	}
+
+	/*
+	 * @return int - milliseconds between writing the changes collected by the journal
+	 */
+	public int getJournalSyncMillis()
+	{
+		return this._journalSyncMillis;
+	}
+
+	/*
+	 * @param int - milliseconds between writing the changes collected by the journal
+	 */
+	public void setJournalSyncMillis(int journalSyncMillis)
+	{
+		this._journalSyncMillis = journalSyncMillis;
+	}
+
+	/*
+	 * @return int - changes recorded by the journal between snapshots
+	 */
+	public int getSnapshotEvery()
+	{
+		return this._snapshotEvery;
+	}
+
+	/*
+	 * @param int - changes recorded by the journal between snapshots
+	 */
+	public void setSnapshotEvery(int snapshotEvery)
+	{
+		this._snapshotEvery = snapshotEvery;
+	}
+
+	/*
+	 * @return int - milliseconds memberships recovered from the journal wait for their users to connect
+	 */
+	public int getRestoreGraceMillis()
+	{
+		return this._restoreGraceMillis;
+	}
+
+	/*
+	 * @param int - milliseconds memberships recovered from the journal wait for their users to connect
+	 */
+	public void setRestoreGraceMillis(int restoreGraceMillis)
+	{
+		this._restoreGraceMillis = restoreGraceMillis;
+	}
+
+	/*
+	 * @return int - milliseconds a dropped session waits to be resumed, 0 to not offer resuming
+	 */
+	public int getResumeGraceMillis()
+	{
+		return this._resumeGraceMillis;
+	}
+
+	/*
+	 * @param int - milliseconds a dropped session waits to be resumed, 0 to not offer resuming
+	 */
+	public void setResumeGraceMillis(int resumeGraceMillis)
+	{
+		this._resumeGraceMillis = resumeGraceMillis;
+	}
+
+	/*
+	 * @return int - lines a session keeps to send again after a reconnect
+	 */
+	public int getResumeLines()
+	{
+		return this._resumeLines;
+	}
+
+	/*
+	 * @param int - lines a session keeps to send again after a reconnect
+	 */
+	public void setResumeLines(int resumeLines)
+	{
+		this._resumeLines = resumeLines;
+	}
+
+	/*
+	 * sets the limit on the messages each user sends
+	 * @param int - messages per second, 0 for no limit
+	 * @param int - messages allowed at once
+	 * @param TokenBucket.Action - what happens to a message over the limit
+	 */
+	public void setUserLimit(int rate, int burst, TokenBucket.Action action)
+	{
+		this._userRate = rate;
+		this._userBurst = burst;
+		this._userAction = action;
+	}
+
+	/*
+	 * sets the limit on the messages sent to each quorum
+	 * @param int - messages per second, 0 for no limit
+	 * @param int - messages allowed at once
+	 * @param TokenBucket.Action - what happens to a message over the limit
+	 */
+	public void setQuorumLimit(int rate, int burst, TokenBucket.Action action)
+	{
+		this._quorumRate = rate;
+		this._quorumBurst = burst;
+		this._quorumAction = action;
+	}
+
+	/*
+	 * @return TokenBucket - a new limit on the messages of one user, null if there is none
+	 */
+	public TokenBucket newUserLimit()
+	{
+		return this._userRate <= 0 ? null : new TokenBucket(this._userRate, this._userBurst, this._userAction);
+	}
+
+	/*
+	 * @return TokenBucket - a new limit on the messages sent to one quorum, null if there is none
+	 */
+	public TokenBucket newQuorumLimit()
+	{
+		return this._quorumRate <= 0 ? null : new TokenBucket(this._quorumRate, this._quorumBurst, this._quorumAction);
+	}
+
+	/*
+	 * @return int - milliseconds a client has to send its handshake, 0 for no limit
+	 */
+	public int getHandshakeTimeoutMillis()
+	{
+		return this._handshakeTimeoutMillis;
+	}
+
+	/*
+	 * @param int - milliseconds a client has to send its handshake, 0 for no limit
+	 */
+	public void setHandshakeTimeoutMillis(int handshakeTimeoutMillis)
+	{
+		this._handshakeTimeoutMillis = handshakeTimeoutMillis;
+	}
+
+	/*
+	 * @return int - milliseconds a client may be quiet before it is pinged, 0 to never ping
+	 */
+	public int getHeartbeatMillis()
+	{
+		return this._heartbeatMillis;
+	}
+
+	/*
+	 * @param int - milliseconds a client may be quiet before it is pinged, 0 to never ping
+	 */
+	public void setHeartbeatMillis(int heartbeatMillis)
+	{
+		this._heartbeatMillis = heartbeatMillis;
+	}
+
+	/*
+	 * @return int - milliseconds a client may be quiet before it is disconnected, 0 for no limit
+	 */
+	public int getIdleTimeoutMillis()
+	{
+		return this._idleTimeoutMillis;
+	}
+
+	/*
+	 * @param int - milliseconds a client may be quiet before it is disconnected, 0 for no limit
+	 */
+	public void setIdleTimeoutMillis(int idleTimeoutMillis)
+	{
+		this._idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/*
+	 * @return boolean - true if quorums record how long messages take at each stage (see Latency)
+	 */
+	public boolean isLatency()
+	{
+		return this._latency;
+	}
+
+	/*
+	 * @param boolean - true if quorums record how long messages take at each stage (see Latency)
+	 */
+	public void setLatency(boolean latency)
+	{
+		this._latency = latency;
+	}
+
+	/*
+	 * @return Logger.Level - lines of this level and above are logged
+	 */
+	public Logger.Level getLogLevel()
+	{
+		return this._logLevel;
+	}
+
+	/*
+	 * @param Logger.Level - lines of this level and above are logged
+	 */
+	public void setLogLevel(Logger.Level logLevel)
+	{
+		this._logLevel = logLevel;
+	}
+}
@@ -0,0 +1,536 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import adts.Logger;
+import adts.TimingWheel;
+import protocol.Handshake;
+
+/**
+ * @author thetrick
+ * A non-blocking client connection owned by an EventLoop. Decodes incoming
+ * bytes into lines, performs the 'connect [username]' handshake, dispatches
+ * commands through the Channel and writes queued output when the socket is
+ * ready. Everything except send() runs on the owning loop thread.
+ */
+class Connection
+{
+	private final SocketChannel _socketChannel;
+	private volatile EventLoop _loop;
+	private SelectionKey _key;
+	private final ByteBuffer _readBuffer = ByteBuffer.allocate(4096);
+	private final Outbox _pending = new Outbox();
+	// frame being written, taken out of the outbox so it is never dropped half written
+	private Frame _current = null;
+	private final AtomicBoolean _flushScheduled = new AtomicBoolean(false);
+	private final Runnable _flush = new Runnable()
+	{
+		public void run()
+		{
+			// the connection may have moved to another loop since this was posted
+			EventLoop owner = _loop;
+			if (!owner.inLoop())
+				owner.execute(this);
+			else
+				flush();
+		}
+	};
+	private final Runnable _disconnectSlowConsumer = new Runnable()
+	{
+		public void run()
+		{
+			EventLoop owner = _loop;
+			if (!owner.inLoop())
+				owner.execute(this);
+			else
+				disconnectSlowConsumer();
+		}
+	};
+	// the handshake timeout, then the heartbeat (see Liveness)
+	private volatile TimingWheel.Timeout _watch = null;
+	private final Runnable _watchTask = new Runnable()
+	{
+		public void run()
+		{
+			EventLoop owner = _loop;
+			if (!owner.inLoop())
+				owner.execute(this);
+			else
+				watch();
+		}
+	};
+	// reading is held up while a rate limit delays the client (see Channel.limit)
+	private boolean _paused = false;
+	private final Runnable _resume = new Runnable()
+	{
+		public void run()
+		{
+			EventLoop owner = _loop;
+			if (!owner.inLoop())
+				owner.execute(this);
+			else
+				resumeReading();
+		}
+	};
+	private int _offset = 0;
+	private byte[] _line = new byte[256];
+	private int _lineLength = 0;
+	private NioChannel _channel = null;
+	private boolean _closeAfterFlush = false;
+	private long _lastActivity = System.nanoTime();
+	// only what the client sends counts for the heartbeat, not what it is sent
+	private long _lastRead = System.nanoTime();
+	private volatile boolean _closed = false;
+
+	/*
+	 * Constructor
+	 *
+	 * @param EventLoop - the loop that owns this connection
+	 * @param SocketChannel - non-blocking client socket
+	 * @param SelectionKey - registration of the socket with the loop's selector
+	 */
+	Connection(EventLoop loop, SocketChannel socketChannel, SelectionKey key)
+	{
+		this._loop = loop;
+		this._socketChannel = socketChannel;
+		this._key = key;
+	}
+
+	/*
+	 * sends the connect prompt to a newly registered client
+	 */
+	void open()
+	{
+		Logger.info("Creating Channel...");
+		this._pending.force(Frame.of(Handshake.PROMPT));
+		flush();
+		int handshakeMillis = Config.get().getHandshakeTimeoutMillis();
+		if (handshakeMillis > 0)
+			this._watch = Threads.wheel().schedule(this._watchTask, handshakeMillis);
+	}
+
+	/*
+	 * Runs when the connection's timeout comes up, on the owning loop. A
+	 * client still without a handshake is cut off; otherwise the client is
+	 * disconnected or pinged as Liveness says, and the timeout set again.
+	 */
+	private void watch()
+	{
+		if (this._closed)
+			return;
+		if (this._channel == null)
+		{
+			Logger.warn("Error: could not run channel ~ Handshake timed out");
+			close();
+			return;
+		}
+		if (!Liveness.isOn())
+			return;
+		long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this._lastRead);
+		if (Liveness.isIdle(quiet))
+		{
+			Logger.info("Client: (" + _channel.getUserName() + ") " + "Quiet for " + quiet + "ms, disconnecting");
+			close();
+			return;
+		}
+		if (Liveness.needsPing(quiet))
+			send(Liveness.PING);
+		this._watch = Threads.wheel().schedule(this._watchTask, Liveness.next(quiet));
+	}
+
+	/*
+	 * reads whatever is available and dispatches every complete line
+	 */
+	void onReadable()
+	{
+		int read;
+		try
+		{
+			read = this._socketChannel.read(this._readBuffer);
+		}
+		catch (IOException iox)
+		{
+			read = -1;
+		}
+		if (read > 0)
+		{
+			this._lastActivity = this._lastRead = System.nanoTime();
+			this._loop.addBytesIn(read);
+		}
+		if (read < 0)
+		{
+			if (_channel != null)
+				Logger.info("Client: (" + _channel.getUserName() + ") Connection Lost");
+			close();
+			return;
+		}
+		dispatchLines();
+	}
+
+	/*
+	 * dispatches every complete line read so far. What is left once reading
+	 * is paused stays in the buffer until it resumes.
+	 */
+	private void dispatchLines()
+	{
+		this._readBuffer.flip();
+		while (this._readBuffer.hasRemaining() && !this._closeAfterFlush && !this._closed && !this._paused)
+		{
+			byte b = this._readBuffer.get();
+			if (b == '\n')
+			{
+				int length = this._lineLength;
+				if (length > 0 && this._line[length - 1] == '\r')
+					length--;
+				String line = new String(this._line, 0, length, StandardCharsets.UTF_8);
+				this._lineLength = 0;
+				onLine(line);
+			}
+			else
+			{
+				if (this._lineLength == this._line.length)
+				{
+					byte[] grown = new byte[this._line.length * 2];
+					System.arraycopy(this._line, 0, grown, 0, this._lineLength);
+					this._line = grown;
+				}
+				this._line[this._lineLength++] = b;
+			}
+		}
+		this._readBuffer.compact();
+	}
+
+	/*
+	 * Holds up reading from the client for a while, as a reader thread
+	 * sleeps for a DELAY rate limit: the socket is not read and lines already
+	 * read wait, so the client gets backpressure. Called on the owning loop.
+	 *
+	 * @param long - nanoseconds to wait
+	 */
+	void pauseReading(long nanos)
+	{
+		if (this._closed || this._paused)
+			return;
+		this._paused = true;
+		this._key.interestOps(this._key.interestOps() & ~SelectionKey.OP_READ);
+		Threads.wheel().schedule(this._resume, Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos + 999999)));
+	}
+
+	/*
+	 * reads from the client again once a delay has passed, starting with the
+	 * lines that were left waiting
+	 */
+	private void resumeReading()
+	{
+		this._paused = false;
+		if (this._closed || this._closeAfterFlush)
+			return;
+		this._key.interestOps(this._key.interestOps() | SelectionKey.OP_READ);
+		dispatchLines();
+	}
+
+	/*
+	 * the socket can take more output
+	 */
+	void onWritable()
+	{
+		flush();
+	}
+
+	/*
+	 * the first line completes the handshake, every later line is a command
+	 *
+	 * @param String - one decoded line without its terminator
+	 */
+	private void onLine(String line)
+	{
+		if (this._channel == null)
+		{
+			handshake(line);
+			return;
+		}
+
+		this._channel.setLastRead(this._lastRead);
+		String output = this._channel.parseInput(line);
+		// Send it back to the user
+		this._channel.updateBuffer(output);
+
+		// Check if the client is still alive, if not flush and close
+		if (!this._channel.isAlive())
+		{
+			Logger.info("Client: (" + _channel.getUserName() + ") " + "Stopping...");
+			closeAfterFlush();
+		}
+	}
+
+	/*
+	 * Creates the channel for the requested user and adds it to the server
+	 * in the same order as Server.serve does for blocking channels
+	 *
+	 * @param String - the 'connect [username]' line; of the options only delta
+	 * is supported here, the others are left out of the acknowledgement so the
+	 * client keeps to plain text
+	 */
+	private void handshake(String line)
+	{
+		NioChannel channel = null;
+		try
+		{
+			Handshake handshake = Handshake.parse(line);
+			boolean delta = handshake.hasOption(Handshake.DELTA);
+			channel = new NioChannel(handshake.getUserName(), _loop.getHive(), _loop.getServerNodes(), delta, this);
+			ArrayList<String> options = new ArrayList<String>();
+			if (delta)
+				options.add(Handshake.DELTA);
+
+			// echo to client that you're connected ahead of the first broadcast.
+			// Nothing is flushed before this method returns, so it is retracted
+			// if the user cannot be added.
+			this._pending.force(Frame.of(Handshake.accept(options)));
+
+			// add the channel to the hive
+			Logger.info("Adding Channel for " + channel.getUserName());
+			_loop.getServerNodes().add(channel);
+			this._channel = channel;
+			_loop.getHive().updateChannel(channel);
+			_loop.getHive().restore(channel);
+
+			Logger.info("Starting Channel for " + channel.getUserName());
+			flush();
+
+			// the handshake timeout gives way to the heartbeat; if it is already running it acts as one
+			TimingWheel.Timeout handshakeTimeout = this._watch;
+			if ((handshakeTimeout == null || handshakeTimeout.cancel()) && Liveness.isOn())
+				this._watch = Threads.wheel().schedule(this._watchTask, Liveness.next(0));
+		}
+		catch (IOException ex)
+		{
+			// inform the client of the issue
+			Logger.warn("Error: could not run channel ~ " + ex.getMessage());
+			releasePending();
+			this._pending.force(Frame.of(ex.getMessage()));
+			closeAfterFlush();
+		}
+	}
+
+	/*
+	 * queues a frame for the client and asks the loop to write it. Safe to
+	 * call from any thread; never waits, whatever the slow consumer policy.
+	 *
+	 * @param Frame - encoded message to be sent to the client
+	 */
+	void send(Frame frame)
+	{
+		if (this._closed)
+			return;
+
+		if (!this._pending.offer(frame))
+		{
+			if (this._pending.isOverflowed())
+				this._loop.execute(this._disconnectSlowConsumer);
+			return;
+		}
+		queued();
+	}
+
+	/*
+	 * queues several frames for the client in one go and asks the loop to
+	 * write them. Safe to call from any thread; never waits.
+	 *
+	 * @param List<Frame> - encoded messages to be sent to the client, in order
+	 */
+	void send(List<Frame> frames)
+	{
+		if (this._closed)
+			return;
+
+		int queued = this._pending.offerAll(frames);
+		if (queued < frames.size() && this._pending.isOverflowed())
+			this._loop.execute(this._disconnectSlowConsumer);
+		if (queued > 0)
+			queued();
+	}
+
+	/*
+	 * makes sure output queued by send() gets written
+	 */
+	private void queued()
+	{
+		// lost a race with close(), which may already have emptied the queue
+		if (this._closed)
+		{
+			releasePending();
+			return;
+		}
+		if (this._flushScheduled.compareAndSet(false, true))
+			this._loop.execute(this._flush);
+	}
+
+	/*
+	 * writes queued output until the socket would block. Interest in
+	 * OP_WRITE is kept only while output is left over.
+	 */
+	private void flush()
+	{
+		this._flushScheduled.set(false);
+		if (this._closed || this._key == null)
+			return;
+		try
+		{
+			if (this._current == null)
+				this._current = this._pending.pollFrame();
+			for (Frame head = this._current; head != null; head = this._current = this._pending.pollFrame())
+			{
+				// write straight from the shared bytes of the frame
+				int written = this._socketChannel.write(ByteBuffer.wrap(head.getBytes(), _offset, head.length() - _offset));
+				if (written > 0)
+				{
+					this._offset += written;
+					this._lastActivity = System.nanoTime();
+					this._loop.addBytesOut(written);
+				}
+				if (this._offset < head.length())
+				{
+					this._key.interestOps(this._key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				this._offset = 0;
+				head.recordWritten();
+				head.release();
+			}
+			this._key.interestOps(this._key.interestOps() & ~SelectionKey.OP_WRITE);
+			if (this._closeAfterFlush)
+				close();
+		}
+		catch (IOException iox)
+		{
+			close();
+		}
+	}
+
+	/*
+	 * stop reading, write what is queued and then close
+	 */
+	private void closeAfterFlush()
+	{
+		this._closeAfterFlush = true;
+		this._key.interestOps(this._key.interestOps() & ~SelectionKey.OP_READ);
+		flush();
+	}
+
+	/*
+	 * Drops a client that cannot keep up: the queued output is replaced by
+	 * the reason, which is written if the socket takes it right away, and
+	 * the connection is closed.
+	 */
+	private void disconnectSlowConsumer()
+	{
+		if (this._closed)
+			return;
+		String reason = this._pending.describeLimits();
+		Logger.warn("Client: (" + (_channel == null ? "?" : _channel.getUserName()) + ") "
+				+ "Disconnecting slow consumer ~ " + reason);
+		this._pending.clear();
+		this._pending.force(Frame.of("Disconnected: slow consumer, " + reason));
+		this._closeAfterFlush = true;
+		flush();
+		close();
+	}
+
+	/*
+	 * closes the socket and removes the user from all quorums and the server
+	 */
+	void close()
+	{
+		if (this._closed)
+			return;
+		this._closed = true;
+		if (this._watch != null)
+			this._watch.cancel();
+		if (this._key != null)
+			this._key.cancel();
+		this._loop.connectionClosed();
+		try
+		{
+			this._socketChannel.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+		releasePending();
+		if (this._current != null)
+		{
+			this._current.release();
+			this._current = null;
+		}
+
+		if (this._channel != null)
+		{
+			Logger.info("Client: (" + _channel.getUserName() + ") " + "Stopped");
+			this._channel.removeUserConnections();
+			Logger.info("Client: (" + _channel.getUserName() + ") " + "Cleanup Complete");
+		}
+	}
+
+	/*
+	 * true if the connection can move to another loop: the handshake is done,
+	 * nothing is half read or waiting to be written and the client has been
+	 * quiet for at least the given time. Called on the owning loop.
+	 *
+	 * @param long - current System.nanoTime()
+	 * @param long - quiet period in nanoseconds
+	 */
+	boolean isIdle(long now, long quietNanos)
+	{
+		return this._channel != null && !this._closed && !this._closeAfterFlush && !this._paused
+				&& this._readBuffer.position() == 0 && this._lineLength == 0 && this._current == null && this._pending.isEmpty()
+				&& now - this._lastActivity >= quietNanos;
+	}
+
+	/*
+	 * Leaves the current loop and hands the connection to another one.
+	 * Called on the owning loop; the target registers the socket with its own
+	 * selector, and flushes posted meanwhile are forwarded to the new owner.
+	 *
+	 * @param EventLoop - the loop taking over the connection
+	 */
+	void migrateTo(final EventLoop target)
+	{
+		final int interestOps = this._key.interestOps();
+		this._key.cancel();
+		this._key = null;
+		this._loop = target;
+		target.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					_key = _socketChannel.register(target.getSelector(), interestOps, Connection.this);
+					flush();
+				}
+				catch (IOException | CancelledKeyException ex)
+				{
+					close();
+				}
+			}
+		});
+	}
+
+	/*
+	 * drops every queued frame
+	 */
+	private void releasePending()
+	{
+		this._pending.clear();
+	}
+}
@@ -0,0 +1,355 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.*;
+
+/**
+ * @author thetrick
+ * A single selector thread (reactor) that owns a disjoint set of
+ * non-blocking connections. Every read, handshake, command dispatch and write
+ * for those connections happens on this thread; other threads hand work to it
+ * through execute(). Counters for connections, bytes and loop latency show
+ * how evenly the load is spread over the loops.
+ */
+public class EventLoop implements Runnable
+{
+	private final String _name;
+	private final Selector _selector;
+	private final Hive _hive;
+	private final ServerNodes _serverNodes;
+	private final ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+	// null until the loop is started
+	private volatile Thread _thread = null;
+	private volatile boolean _isAlive = true;
+
+	// load counters, written by the loop thread and read by anyone
+	private final AtomicInteger _connections = new AtomicInteger(0);
+	private final AtomicLong _bytesIn = new AtomicLong(0);
+	private final AtomicLong _bytesOut = new AtomicLong(0);
+	private final AtomicLong _iterations = new AtomicLong(0);
+	private final AtomicLong _busyNanos = new AtomicLong(0);
+	private final AtomicLong _maxBusyNanos = new AtomicLong(0);
+
+	/*
+	 * Constructor
+	 *
+	 * @param String - name of the loop, used for the thread name and logging
+	 * @param Hive - Represents the master collection of Quorums
+	 * @param ServerNodes - reference to master list of all clients
+	 * @throws IOException - if the selector cannot be opened
+	 */
+	public EventLoop(String name, Hive hive, ServerNodes serverNodes) throws IOException
+	{
+		this._name = name;
+		this._selector = Selector.open();
+		this._hive = hive;
+		this._serverNodes = serverNodes;
+	}
+
+	/*
+	 * makes and starts the selector thread; the loop is started only once
+	 */
+	public synchronized void start()
+	{
+		if (this._thread != null)
+			throw new IllegalStateException("Loop " + this._name + " already started");
+		Thread thread = new Thread(this, this._name);
+		this._thread = thread;
+		thread.start();
+	}
+
+	/*
+	 * hands a freshly accepted socket to this loop. The socket is switched to
+	 * non-blocking mode and registered from the loop thread.
+	 *
+	 * @param SocketChannel - accepted client socket
+	 * @throws IOException - if the socket cannot be made non-blocking
+	 */
+	public void register(final SocketChannel socketChannel) throws IOException
+	{
+		socketChannel.configureBlocking(false);
+		this._connections.incrementAndGet();
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					SelectionKey key = socketChannel.register(_selector, SelectionKey.OP_READ);
+					Connection connection = new Connection(EventLoop.this, socketChannel, key);
+					key.attach(connection);
+					connection.open();
+				}
+				catch (ClosedChannelException ignore)
+				{
+					_connections.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/*
+	 * runs a task on the loop thread. Safe to call from any thread.
+	 *
+	 * @param Runnable - work to perform on the loop thread
+	 */
+	public void execute(Runnable task)
+	{
+		this._tasks.add(task);
+		if (!inLoop())
+			this._selector.wakeup();
+	}
+
+	/*
+	 * @return boolean - true if called on this loop's thread
+	 */
+	boolean inLoop()
+	{
+		return Thread.currentThread() == this._thread;
+	}
+
+	/*
+	 * Moves up to count idle connections to another loop. The selection and
+	 * hand-off run on this loop; a connection only counts as idle when it
+	 * has been quiet for the given time and has nothing buffered.
+	 *
+	 * @param int - maximum number of connections to move
+	 * @param EventLoop - the loop receiving the connections
+	 * @param long - how long a connection must have been quiet, in milliseconds
+	 */
+	public void migrate(final int count, final EventLoop target, final long quietMillis)
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				long now = System.nanoTime();
+				long quietNanos = quietMillis * 1000000L;
+				int moved = 0;
+				for (SelectionKey key : _selector.keys())
+				{
+					if (moved >= count)
+						break;
+					Connection connection = (Connection) key.attachment();
+					if (!key.isValid() || connection == null || !connection.isIdle(now, quietNanos))
+						continue;
+					_connections.decrementAndGet();
+					target._connections.incrementAndGet();
+					connection.migrateTo(target);
+					moved++;
+				}
+				if (moved > 0)
+					Logger.info("EventLoop: (" + _name + ") " + "Moved " + moved + " connections to " + target._name);
+			}
+		});
+	}
+
+	/*
+	 * Selects ready connections and services them until the loop is closed
+	 */
+	public void run()
+	{
+		Logger.info("EventLoop: (" + _name + ") " + "Started...");
+		while (_isAlive)
+		{
+			try
+			{
+				// tasks posted from the loop itself must not wait for the next event
+				if (this._tasks.isEmpty())
+					this._selector.select();
+				else
+					this._selector.selectNow();
+				long start = System.nanoTime();
+				runTasks();
+
+				Iterator<SelectionKey> keys = this._selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection connection = (Connection) key.attachment();
+					if (connection == null)
+						continue;
+					try
+					{
+						if (key.isValid() && key.isReadable())
+							connection.onReadable();
+						if (key.isValid() && key.isWritable())
+							connection.onWritable();
+					}
+					catch (RuntimeException rx)
+					{
+						// only the connection that failed is dropped, not the loop
+						Logger.error("EventLoop: (" + _name + ") " + "Connection failed ~ " + rx);
+						connection.close();
+					}
+				}
+				recordIteration(System.nanoTime() - start);
+			}
+			catch (IOException iox)
+			{
+				Logger.error("EventLoop: (" + _name + ") " + "Selector failed ~ " + iox.getMessage());
+				break;
+			}
+		}
+
+		// drop every connection this loop still owns
+		for (SelectionKey key : this._selector.keys())
+			if (key.attachment() != null)
+				((Connection) key.attachment()).close();
+		try
+		{
+			this._selector.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+		Logger.info("EventLoop: (" + _name + ") " + "Stopped");
+	}
+
+	/*
+	 * drain the queue of tasks posted from other threads
+	 */
+	private void runTasks()
+	{
+		for (Runnable task = _tasks.poll(); task != null; task = _tasks.poll())
+		{
+			try
+			{
+				task.run();
+			}
+			catch (RuntimeException rx)
+			{
+				Logger.error("EventLoop: (" + _name + ") " + "Task failed ~ " + rx);
+			}
+		}
+	}
+
+	/*
+	 * accounts for the time one pass over tasks and ready keys took
+	 */
+	private void recordIteration(long nanos)
+	{
+		this._iterations.incrementAndGet();
+		this._busyNanos.addAndGet(nanos);
+		if (nanos > this._maxBusyNanos.get())
+			this._maxBusyNanos.set(nanos);
+	}
+
+	/*
+	 * a connection owned by this loop was closed
+	 */
+	void connectionClosed()
+	{
+		this._connections.decrementAndGet();
+	}
+
+	/*
+	 * @param int - bytes read from a connection of this loop
+	 */
+	void addBytesIn(int bytes)
+	{
+		this._bytesIn.addAndGet(bytes);
+	}
+
+	/*
+	 * @param int - bytes written to a connection of this loop
+	 */
+	void addBytesOut(int bytes)
+	{
+		this._bytesOut.addAndGet(bytes);
+	}
+
+	/*
+	 * @return int - connections currently owned by, or on their way to, this loop
+	 */
+	public int getConnectionCount()
+	{
+		return this._connections.get();
+	}
+
+	/*
+	 * @return long - total bytes read by this loop
+	 */
+	public long getBytesIn()
+	{
+		return this._bytesIn.get();
+	}
+
+	/*
+	 * @return long - total bytes written by this loop
+	 */
+	public long getBytesOut()
+	{
+		return this._bytesOut.get();
+	}
+
+	/*
+	 * Describes the counters of this loop. The loop latency is the time spent
+	 * handling tasks and ready keys per wake-up; its maximum restarts after
+	 * every report.
+	 *
+	 * @return String - one line of counters
+	 */
+	public String report()
+	{
+		long iterations = this._iterations.get();
+		long average = iterations == 0 ? 0 : this._busyNanos.get() / iterations / 1000;
+		long max = this._maxBusyNanos.getAndSet(0) / 1000;
+		return "EventLoop: (" + _name + ") connections=" + getConnectionCount() + " in=" + getBytesIn() + "B out="
+				+ getBytesOut() + "B loop avg=" + average + "us max=" + max + "us";
+	}
+
+	/*
+	 * stops the loop and closes all of its connections
+	 */
+	public void close()
+	{
+		this._isAlive = false;
+		this._selector.wakeup();
+	}
+
+	/*
+	 * @return Selector - the selector of this loop
+	 */
+	Selector getSelector()
+	{
+		return this._selector;
+	}
+
+	/*
+	 * @return Hive - the Hive shared by all loops
+	 */
+	Hive getHive()
+	{
+		return this._hive;
+	}
+
+	/*
+	 * @return ServerNodes - the master list of clients shared by all loops
+	 */
+	ServerNodes getServerNodes()
+	{
+		return this._serverNodes;
+	}
+
+	/*
+	 * accessor method to get the loop thread Should not be used for anything
+	 * other than testing this class and classes that use this class.
+	 *
+	 * @return Thread - the selector thread, null until the loop is started
+	 */
+	public Thread getThread()
+	{
+		return this._thread;
+	}
+}
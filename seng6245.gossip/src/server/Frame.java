@@ -0,0 +1,357 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.Latency;
+import protocol.Symbols;
+import protocol.Wire;
+
+/**
+ * @author thetrick
+ * One line of output, encoded to UTF-8 (with its line terminator) exactly
+ * once. A broadcast creates a single Frame and hands the same instance to
+ * every recipient, which write its bytes straight to their sockets. Frames
+ * are immutable; the byte array must never be modified.
+ * 
+ * Every queue holding the frame owns one reference. The bytes of frames
+ * that are still referenced are accounted in getRetainedBytes() so the cost
+ * of a broadcast can be observed independently of the number of recipients.
+ * 
+ * Chat messages remember their quorum and user so that the binary protocol
+ * can send them by id; the binary encoding is likewise made once, on first
+ * use, and shared by all binary recipients.
+ * 
+ * With latencies kept (see Config) a chat message also carries when it was
+ * read and taken by its quorum, and records how long it took to reach each
+ * recipient's outbox and socket in the quorum's Latency.
+ */
+public final class Frame
+{
+	private static final AtomicLong _retainedBytes = new AtomicLong(0);
+	// headers of a frame, its counter and arrays, and of a String
+	private static final int FRAME_OVERHEAD = 96;
+	private static final int ARRAY_OVERHEAD = 16;
+	private static final int STRING_OVERHEAD = 40;
+	// most bytes the ids and length add to a binary frame
+	private static final int BINARY_HEADER = 16;
+
+	private final String _text;
+	private final byte[] _bytes;
+	private final String _quorum;
+	private final String _user;
+	private final String _message;
+	private volatile byte[] _binary;
+	// ids of the quorum and user the binary encoding refers to
+	private int _quorumId;
+	private int _userId;
+	private final AtomicInteger _references = new AtomicInteger(0);
+	// memory held by the frame, see retainedSize()
+	private final int _retainedSize;
+	// where the latency of a chat message is recorded, null unless latencies are kept
+	private final Latency _latency;
+	// nanoTime the line was read, 0 if not known, and taken by the quorum
+	private final long _read;
+	private final long _taken;
+
+	/*
+	 * Constructor
+	 * @param String - the line without its terminator
+	 */
+	private Frame(String text)
+	{
+		this(text, null, null, null);
+	}
+
+	/*
+	 * Constructor
+	 * @param String - the line without its terminator
+	 * @param String - quorum of a chat message, null for other lines
+	 * @param String - sender of a chat message
+	 * @param String - body of a chat message
+	 */
+	private Frame(String text, String quorum, String user, String message)
+	{
+		this(text, quorum, user, message, null, 0, 0);
+	}
+
+	/*
+	 * Constructor
+	 * @param String - the line without its terminator
+	 * @param String - quorum of a chat message, null for other lines
+	 * @param String - sender of a chat message
+	 * @param String - body of a chat message
+	 * @param Latency - where the latency is recorded, null for none
+	 * @param long - nanoTime the line was read, 0 if not known
+	 * @param long - nanoTime the quorum took the message
+	 */
+	private Frame(String text, String quorum, String user, String message, Latency latency, long read, long taken)
+	{
+		this._text = text;
+		this._bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+		this._quorum = quorum;
+		this._user = user;
+		this._message = message;
+		this._latency = latency;
+		this._read = read;
+		this._taken = taken;
+		this._retainedSize = FRAME_OVERHEAD + stringSize(text) + ARRAY_OVERHEAD + this._bytes.length
+				+ (user == null ? 0 : stringSize(user)) + (message == null ? 0 : stringSize(message))
+				+ ARRAY_OVERHEAD + this._bytes.length + BINARY_HEADER;
+	}
+
+	/*
+	 * @return int - about the bytes a String of that text takes, one per
+	 * character if it is all ASCII and two otherwise
+	 */
+	private static int stringSize(String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+			if (text.charAt(i) >= 0x80)
+				return STRING_OVERHEAD + 2 * text.length();
+		return STRING_OVERHEAD + text.length();
+	}
+
+	/*
+	 * Constructor, a copy sharing the encoded bytes but no latency
+	 * @param Frame - the frame to copy
+	 */
+	private Frame(Frame frame)
+	{
+		this._text = frame._text;
+		this._bytes = frame._bytes;
+		this._quorum = frame._quorum;
+		this._user = frame._user;
+		this._message = frame._message;
+		this._quorumId = frame._quorumId;
+		this._userId = frame._userId;
+		this._binary = frame._binary;
+		this._retainedSize = frame._retainedSize;
+		this._latency = null;
+		this._read = 0;
+		this._taken = 0;
+	}
+
+	/*
+	 * encodes a line of text
+	 * @param String - the line without its terminator
+	 * @return Frame - the encoded line
+	 */
+	public static Frame of(String text)
+	{
+		return new Frame(text);
+	}
+
+	/*
+	 * encodes a chat message as 'Message (quorum): user message'
+	 * @param String - the quorum the message was sent to
+	 * @param String - the sender followed by a space and the message
+	 * @return Frame - the encoded message
+	 */
+	public static Frame message(String quorum, String line)
+	{
+		return message(quorum, line, null, 0, 0);
+	}
+
+	/*
+	 * encodes a chat message as 'Message (quorum): user message' that records
+	 * its latency once it is queued for and written to its recipients
+	 * @param String - the quorum the message was sent to
+	 * @param String - the sender followed by a space and the message
+	 * @param Latency - where the latency is recorded, null for none
+	 * @param long - nanoTime the line was read, 0 if not known
+	 * @param long - nanoTime the quorum took the message
+	 * @return Frame - the encoded message
+	 */
+	public static Frame message(String quorum, String line, Latency latency, long read, long taken)
+	{
+		int idx = line.indexOf(' ');
+		String user = idx < 0 ? "" : line.substring(0, idx);
+		String message = line.substring(idx + 1);
+		return new Frame("Message (" + quorum + "): " + line, quorum, user, message, latency, read, taken);
+	}
+
+	/*
+	 * The frame for sending again what was delivered before, e.g. from a
+	 * quorum's history, so that it does not count as delivered again
+	 * @return Frame - this frame if it records no latency, otherwise a copy that does not
+	 */
+	public Frame untraced()
+	{
+		return this._latency == null ? this : new Frame(this);
+	}
+
+	/*
+	 * records that this and the frames after it, taken by the quorum at the
+	 * same time, were queued for one more recipient
+	 * @param int - number of frames
+	 */
+	public void recordDelivered(int frames)
+	{
+		Latency latency = this._latency;
+		if (latency != null)
+			latency.record(Latency.Stage.DELIVER, System.nanoTime() - this._taken, frames);
+	}
+
+	/*
+	 * records that the frame was written to one more recipient's socket
+	 */
+	public void recordWritten()
+	{
+		Latency latency = this._latency;
+		if (latency == null)
+			return;
+		long now = System.nanoTime();
+		latency.record(Latency.Stage.WRITE, now - this._taken);
+		if (this._read != 0)
+			latency.record(Latency.Stage.TOTAL, now - this._read);
+	}
+
+	/*
+	 * @return String - the line without its terminator
+	 */
+	public String getText()
+	{
+		return this._text;
+	}
+
+	/*
+	 * @return byte[] - the encoded line including its terminator; shared, do not modify
+	 */
+	public byte[] getBytes()
+	{
+		return this._bytes;
+	}
+
+	/*
+	 * @return String - quorum of a chat message, null for other lines
+	 */
+	public String getQuorum()
+	{
+		return this._quorum;
+	}
+
+	/*
+	 * @return String - sender of a chat message, null for other lines
+	 */
+	public String getUser()
+	{
+		return this._user;
+	}
+
+	/*
+	 * Encodes the frame for the binary protocol: chat messages as MESSAGE
+	 * frames referring to the ids of their quorum and user, anything else as
+	 * a LINE frame. The ids are taken once, together with the encoding, so
+	 * they stay those of getQuorumId() and getUserId() if a name is dropped.
+	 * @return byte[] - the binary frame; shared, do not modify
+	 */
+	public byte[] getBinary()
+	{
+		byte[] binary = this._binary;
+		if (binary != null)
+			return binary;
+		synchronized (this)
+		{
+			if (this._binary == null)
+			{
+				if (this._quorum == null)
+					this._binary = Wire.line(this._text);
+				else
+				{
+					this._quorumId = Symbols.id(this._quorum);
+					this._userId = Symbols.id(this._user);
+					this._binary = Wire.message(this._quorumId, this._userId, this._message);
+				}
+			}
+			return this._binary;
+		}
+	}
+
+	/*
+	 * @return int - id of the quorum the binary encoding refers to; valid after getBinary()
+	 */
+	public int getQuorumId()
+	{
+		return this._quorumId;
+	}
+
+	/*
+	 * @return int - id of the user the binary encoding refers to; valid after getBinary()
+	 */
+	public int getUserId()
+	{
+		return this._userId;
+	}
+
+	/*
+	 * The memory held by the frame as long as it is kept: the text, the
+	 * encoded line, the sender and body of a chat message and the binary
+	 * encoding. The binary encoding is counted whether or not it was made
+	 * yet, so the size never changes; it is never longer than the line.
+	 * @return int - about the bytes the frame and what it refers to take
+	 */
+	public int retainedSize()
+	{
+		return this._retainedSize;
+	}
+
+	/*
+	 * @return int - number of encoded bytes including the terminator
+	 */
+	public int length()
+	{
+		return this._bytes.length;
+	}
+
+	/*
+	 * takes a reference on behalf of a queue or recipient
+	 * @return Frame - this frame
+	 */
+	public Frame retain()
+	{
+		if (this._references.getAndIncrement() == 0)
+			_retainedBytes.addAndGet(this._bytes.length);
+		return this;
+	}
+
+	/*
+	 * gives a reference back once the frame has been written or dropped
+	 * @return boolean - true if this was the last reference
+	 */
+	public boolean release()
+	{
+		int references = this._references.decrementAndGet();
+		if (references < 0)
+			throw new IllegalStateException("Frame released more often than retained");
+		if (references == 0)
+		{
+			_retainedBytes.addAndGet(-this._bytes.length);
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * @return int - number of queues or recipients still holding the frame
+	 */
+	public int references()
+	{
+		return this._references.get();
+	}
+
+	/*
+	 * @return long - encoded bytes held by all frames that are still referenced
+	 */
+	public static long getRetainedBytes()
+	{
+		return _retainedBytes.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return this._text;
+	}
+}
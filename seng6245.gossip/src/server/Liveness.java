@@ -0,0 +1,66 @@
+package server;
+
+import protocol.Heartbeat;
+
+/**
+ * @author thetrick
+ * The heartbeat and idle limits a connection is watched for (see Config).
+ * Each connection keeps one timeout on the shared timing wheel (see
+ * Threads). When it comes up the connection looks at how long its client
+ * has been quiet. Past the idle limit the connection is closed. Past the
+ * heartbeat interval the client is pinged, and answers if it is still
+ * there. With heartbeats on, only a client that is gone, e.g. behind a
+ * half-open connection, is reaped.
+ */
+final class Liveness
+{
+	static final Frame PING = Frame.of(Heartbeat.PING);
+
+	private Liveness()
+	{
+	}
+
+	/*
+	 * @return boolean - true if connections are watched at all
+	 */
+	static boolean isOn()
+	{
+		return Config.get().getHeartbeatMillis() > 0 || Config.get().getIdleTimeoutMillis() > 0;
+	}
+
+	/*
+	 * @param long - milliseconds the client has been quiet
+	 * @return boolean - true if the connection should be closed
+	 */
+	static boolean isIdle(long quietMillis)
+	{
+		int idle = Config.get().getIdleTimeoutMillis();
+		return idle > 0 && quietMillis >= idle;
+	}
+
+	/*
+	 * @param long - milliseconds the client has been quiet
+	 * @return boolean - true if the client should be pinged
+	 */
+	static boolean needsPing(long quietMillis)
+	{
+		int heartbeat = Config.get().getHeartbeatMillis();
+		return heartbeat > 0 && quietMillis >= heartbeat;
+	}
+
+	/*
+	 * @param long - milliseconds the client has been quiet
+	 * @return long - milliseconds until the connection should look again
+	 */
+	static long next(long quietMillis)
+	{
+		int heartbeat = Config.get().getHeartbeatMillis();
+		int idle = Config.get().getIdleTimeoutMillis();
+		long next = Long.MAX_VALUE;
+		if (idle > 0)
+			next = idle - quietMillis;
+		if (heartbeat > 0)
+			next = Math.min(next, quietMillis < heartbeat ? heartbeat - quietMillis : heartbeat);
+		return Math.max(next, 1);
+	}
+}
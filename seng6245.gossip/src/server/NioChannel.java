@@ -0,0 +1,78 @@
+package server;
+
+import java.util.List;
+
+import adts.*;
+
+/**
+ * @author thetrick
+ * A Channel whose client is served by an EventLoop instead of dedicated
+ * reader and writer threads. Output is handed to the owning Connection.
+ */
+public class NioChannel extends Channel
+{
+	private final Connection _connection;
+
+	/*
+	 * Constructor
+	 *
+	 * @param String - user name taken from the handshake
+	 * @param Hive - Represents the master collection of Quorums
+	 * @param ServerNodes - reference to master list of all clients
+	 * @param boolean - true if the client asked for membership deltas
+	 * @param Connection - the non-blocking connection carrying this channel
+	 */
+	NioChannel(String userName, Hive hive, ServerNodes serverNodes, boolean delta, Connection connection)
+	{
+		super(userName, hive, serverNodes, delta);
+		this._connection = connection;
+	}
+
+	/*
+	 * queues the frame on the connection; the event loop writes it once the
+	 * socket is ready so the sender never waits on a slow client, not even
+	 * for replies.
+	 *
+	 * @param Frame - encoded message to be sent to the client
+	 * @param boolean - true for replies to this client's own commands
+	 */
+	@Override
+	protected void queue(Frame frame, boolean reply)
+	{
+		if (Logger.isDebug())
+			Logger.debug("Client: (" + getUserName() + ") sending... " + frame.getText());
+		this._connection.send(frame);
+	}
+
+	/*
+	 * the event loop cannot wait, but the connection stops reading instead
+	 */
+	@Override
+	protected boolean canDelay()
+	{
+		return true;
+	}
+
+	/*
+	 * stops reading from the client until the delay has passed; runs on
+	 * the event loop, which goes on serving everyone else
+	 *
+	 * @param long - nanoseconds to wait
+	 */
+	@Override
+	protected void holdReading(long nanos)
+	{
+		this._connection.pauseReading(nanos);
+	}
+
+	/*
+	 * queues the frames on the connection in one go
+	 *
+	 * @param List<Frame> - encoded messages to be sent to the client, in order
+	 */
+	@Override
+	protected void queue(List<Frame> frames)
+	{
+		this._connection.send(frames);
+	}
+}
@@ -0,0 +1,204 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import adts.*;
+
+/**
+ * @author thetrick
+ * Gossip server built on non-blocking sockets. Accepted sockets are sharded
+ * over a fixed set of EventLoops, round-robin or to the least loaded loop,
+ * and every loop serves its clients with the same text protocol, Hive and
+ * ServerNodes as Server. A maintenance thread can move idle connections from
+ * busy loops to quiet ones and log the per-loop counters.
+ */
+public class NioServer
+{
+	private final ServerSocketChannel _serverChannel;
+	private final Hive _hive;
+	private final ServerNodes _serverNodes;
+	private final EventLoop[] _loops;
+	private final Balance _balance;
+	private final ScheduledExecutorService _maintenance;
+	private int _next = 0;
+
+	/*
+	 * how accepted sockets are assigned to loops
+	 */
+	public enum Balance
+	{
+		ROUND_ROBIN, LEAST_LOADED
+	}
+
+	/*
+	 * Constructor
+	 * Binds a server to a port on the local address and starts the loops
+	 * @param int - port 0 <= int <= 65535
+	 * @param int - number of event loop threads, at least 1
+	 * @throws IOException - if socket cannot be bound to port
+	 */
+	public NioServer(int port, int loops) throws IOException
+	{
+		this(port, loops, Balance.ROUND_ROBIN, 0, 0);
+	}
+
+	/*
+	 * Constructor
+	 * Binds a server to a port on the local address and starts the loops
+	 * @param int - port 0 <= int <= 65535
+	 * @param int - number of event loop threads, at least 1
+	 * @param Balance - how accepted sockets are assigned to loops
+	 * @param long - milliseconds between rebalancing passes, 0 to never rebalance
+	 * @param long - milliseconds between counter reports, 0 to never report
+	 * @throws IOException - if socket cannot be bound to port
+	 */
+	public NioServer(int port, int loops, Balance balance, long rebalanceMillis, long statsMillis) throws IOException
+	{
+		if (loops < 1)
+			throw new IllegalArgumentException("At least one event loop is required");
+
+		this._serverChannel = ServerSocketChannel.open();
+		this._serverChannel.bind(new InetSocketAddress(port));
+		this._serverNodes = new ServerNodes();
+		this._hive = new Hive(this._serverNodes);
+		this._loops = new EventLoop[loops];
+		for (int i = 0; i < loops; i++)
+		{
+			this._loops[i] = new EventLoop("loop-" + i, this._hive, this._serverNodes);
+			this._loops[i].start();
+		}
+		this._balance = balance;
+
+		this._maintenance = Executors.newSingleThreadScheduledExecutor();
+		if (rebalanceMillis > 0)
+			this._maintenance.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					rebalance(rebalanceMillis);
+				}
+			}, rebalanceMillis, rebalanceMillis, TimeUnit.MILLISECONDS);
+		if (statsMillis > 0)
+			this._maintenance.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					for (EventLoop loop : _loops)
+						Logger.info(loop.report());
+					if (Config.get().isLatency())
+						Logger.info(Server.reportLatency(_hive));
+				}
+			}, statsMillis, statsMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * picks the loop for a newly accepted socket
+	 * @return EventLoop - loop that will own the socket
+	 */
+	private EventLoop nextLoop()
+	{
+		if (this._balance == Balance.LEAST_LOADED)
+		{
+			EventLoop least = this._loops[0];
+			for (EventLoop loop : this._loops)
+				if (loop.getConnectionCount() < least.getConnectionCount())
+					least = loop;
+			return least;
+		}
+		EventLoop loop = this._loops[_next];
+		this._next = (this._next + 1) % this._loops.length;
+		return loop;
+	}
+
+	/*
+	 * Evens out the busiest and the quietest loop by moving half of the
+	 * difference in connections, taking only connections that have been idle
+	 * for a whole rebalancing period.
+	 * @param long - quiet period in milliseconds
+	 */
+	public void rebalance(long quietMillis)
+	{
+		EventLoop busiest = this._loops[0];
+		EventLoop quietest = this._loops[0];
+		for (EventLoop loop : this._loops)
+		{
+			if (loop.getConnectionCount() > busiest.getConnectionCount())
+				busiest = loop;
+			if (loop.getConnectionCount() < quietest.getConnectionCount())
+				quietest = loop;
+		}
+		int surplus = (busiest.getConnectionCount() - quietest.getConnectionCount()) / 2;
+		if (surplus > 0)
+			busiest.migrate(surplus, quietest, quietMillis);
+	}
+
+	/*
+	 * Accepts sockets on the calling thread and spreads them over the loops.
+	 * Returns once the server channel has been closed.
+	 */
+	public void serve()
+	{
+		Logger.info("Server waiting for clients...");
+		while (true)
+			try
+			{
+				SocketChannel socketChannel = this._serverChannel.accept();
+				nextLoop().register(socketChannel);
+			}
+			catch (IOException iox)
+			{
+				Logger.warn("Server stopped accepting clients ~ " + iox.getMessage());
+				break;
+			}
+	}
+
+	/*
+	 * stops accepting clients and shuts every loop down
+	 */
+	public void close()
+	{
+		try
+		{
+			this._serverChannel.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+		this._maintenance.shutdownNow();
+		for (EventLoop loop : this._loops)
+			loop.close();
+	}
+
+	/*
+	 * returns the list of all Server Nodes
+	 * @return ServerNodes - list of all Server Nodes
+	 */
+	public ServerNodes getServerNodes()
+	{
+		return this._serverNodes;
+	}
+
+	/*
+	 * returns the hive which contains a list of quorums
+	 * @return Hive - The Hive of Quorum associated with the Server
+	 */
+	public Hive getHive()
+	{
+		return this._hive;
+	}
+
+	/*
+	 * returns the event loops serving clients
+	 * @return EventLoop[] - the loops, in round-robin order
+	 */
+	public EventLoop[] getLoops()
+	{
+		return this._loops;
+	}
+}
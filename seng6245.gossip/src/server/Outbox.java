@@ -0,0 +1,548 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import protocol.Presence;
+
+/**
+ * @author thetrick
+ * The queue of frames waiting to be written to one client. Frames are
+ * retained while queued; whoever takes a frame out releases it after
+ * writing it.
+ * 
+ * The queue is bounded by a number of frames and a number of encoded bytes.
+ * What happens when a frame does not fit depends on the policy:
+ * BLOCK waits up to a time limit for room and then drops the frame,
+ * DROP_OLDEST makes room by dropping the oldest chat messages, and
+ * DISCONNECT marks the outbox as overflowed so the owner can drop the
+ * client. Under BLOCK and DROP_OLDEST control lines such as member lists
+ * are never dropped: with no room they are queued beyond the bounds, since
+ * the client could not tell it had missed one. A whole member list replaces
+ * the lines about the same list still queued, which it makes out of date,
+ * and once the control lines reach twice the bounds the outbox overflows
+ * as under DISCONNECT.
+ * 
+ * offer() never waits, whatever the policy, so a broadcast is never held
+ * up by one slow member. The largest size the queue reached is kept as its
+ * high-water mark.
+ */
+public class Outbox
+{
+	private static final AtomicLong _allDropped = new AtomicLong(0);
+
+	private final ArrayDeque<Frame> _frames = new ArrayDeque<Frame>();
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private final Condition _notFull = _lock.newCondition();
+	private final int _maxFrames;
+	private final long _maxBytes;
+	private final Policy _policy;
+	private final long _blockNanos;
+	private long _bytes = 0;
+	private int _highWaterFrames = 0;
+	private long _highWaterBytes = 0;
+	private long _dropped = 0;
+	private volatile boolean _overflowed = false;
+
+	/*
+	 * what to do with a frame that does not fit
+	 */
+	public enum Policy
+	{
+		BLOCK, DROP_OLDEST, DISCONNECT
+	}
+
+	/*
+	 * Constructor
+	 * Uses the bounds and policy of the server's Config
+	 */
+	public Outbox()
+	{
+		this(Config.get().getOutboxFrames(), Config.get().getOutboxBytes(), Config.get().getSlowPolicy(),
+				Config.get().getBlockMillis());
+	}
+
+	/*
+	 * Constructor
+	 * @param int - most frames queued at once
+	 * @param long - most encoded bytes queued at once
+	 * @param Policy - what to do with a frame that does not fit
+	 * @param long - milliseconds add() waits for room under BLOCK
+	 */
+	public Outbox(int maxFrames, long maxBytes, Policy policy, long blockMillis)
+	{
+		this._maxFrames = maxFrames;
+		this._maxBytes = maxBytes;
+		this._policy = policy;
+		this._blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+	}
+
+	/*
+	 * Queues a frame for the client, waiting for room under BLOCK. Only the
+	 * client's own thread should wait, so use this for replies and offer()
+	 * for everything sent on behalf of others.
+	 * @param Frame - frame to send
+	 * @return boolean - true if the frame was queued
+	 */
+	public boolean add(Frame frame)
+	{
+		return queue(frame, this._policy == Policy.BLOCK);
+	}
+
+	/*
+	 * queues a frame for the client without ever waiting; under BLOCK a
+	 * chat message that does not fit is dropped, a control line kept
+	 * @param Frame - frame to send
+	 * @return boolean - true if the frame was queued
+	 */
+	public boolean offer(Frame frame)
+	{
+		return queue(frame, false);
+	}
+
+	/*
+	 * queues several frames without ever waiting, taking the lock once;
+	 * each frame is subject to the bounds and the policy as for offer()
+	 * @param List<Frame> - frames to send, in order
+	 * @return int - the number of frames queued
+	 */
+	public int offerAll(List<Frame> frames)
+	{
+		int queued = 0;
+		this._lock.lock();
+		try
+		{
+			for (int i = 0; i < frames.size(); i++)
+				if (queue(frames.get(i), false))
+					queued++;
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+		return queued;
+	}
+
+	/*
+	 * queues a frame whether or not it fits, also once overflowed. Used for
+	 * the last lines of a closing client.
+	 * @param Frame - frame to send
+	 */
+	void force(Frame frame)
+	{
+		this._lock.lock();
+		try
+		{
+			enqueue(frame);
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * applies the bounds and the policy to a new frame
+	 */
+	private boolean queue(Frame frame, boolean wait)
+	{
+		this._lock.lock();
+		try
+		{
+			if (this._overflowed)
+				return false;
+			if (fits(frame))
+			{
+				enqueue(frame);
+				return true;
+			}
+
+			if (this._policy == Policy.DISCONNECT)
+			{
+				this._overflowed = true;
+				return false;
+			}
+			if (this._policy == Policy.DROP_OLDEST)
+			{
+				dropOldestMessages(frame);
+				if (fits(frame))
+				{
+					enqueue(frame);
+					return true;
+				}
+				return frame.getQuorum() == null ? keep(frame) : drop();
+			}
+
+			// BLOCK, keeping control lines as DROP_OLDEST does
+			long nanos = this._blockNanos;
+			while (wait && nanos > 0 && !fits(frame))
+				nanos = this._notFull.awaitNanos(nanos);
+			if (fits(frame))
+			{
+				enqueue(frame);
+				return true;
+			}
+			return frame.getQuorum() == null ? keep(frame) : drop();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return drop();
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * true if the frame fits the bounds; an empty outbox takes any frame
+	 */
+	private boolean fits(Frame frame)
+	{
+		return this._frames.isEmpty()
+				|| (this._frames.size() < this._maxFrames && this._bytes + frame.length() <= this._maxBytes);
+	}
+
+	/*
+	 * Queues a control line that does not fit. A whole member list first
+	 * replaces the queued lines about its list; past twice the bounds the
+	 * outbox overflows instead.
+	 * @return boolean - true if the line was queued
+	 */
+	private boolean keep(Frame frame)
+	{
+		supersede(frame);
+		if (!this._frames.isEmpty() && (this._frames.size() >= 2 * this._maxFrames
+				|| this._bytes + frame.length() > 2 * this._maxBytes))
+		{
+			this._overflowed = true;
+			return false;
+		}
+		enqueue(frame);
+		return true;
+	}
+
+	/*
+	 * removes the queued lines about the member list a snapshot or full list
+	 * is about; the client loses nothing, the new list holds all they said
+	 */
+	private void supersede(Frame frame)
+	{
+		Presence.Update update = Presence.parse(frame.getText());
+		if (update == null || !update.isSnapshot())
+			return;
+		Iterator<Frame> frames = this._frames.iterator();
+		while (frames.hasNext())
+		{
+			Frame queued = frames.next();
+			if (queued.getQuorum() != null)
+				continue;
+			Presence.Update older = Presence.parse(queued.getText());
+			if (older != null && older.getList().equals(update.getList()))
+			{
+				frames.remove();
+				this._bytes -= queued.length();
+				queued.release();
+			}
+		}
+	}
+
+	/*
+	 * drops chat messages, oldest first, until the frame fits
+	 */
+	private void dropOldestMessages(Frame frame)
+	{
+		Iterator<Frame> frames = this._frames.iterator();
+		while (!fits(frame) && frames.hasNext())
+		{
+			Frame queued = frames.next();
+			if (queued.getQuorum() != null)
+			{
+				frames.remove();
+				this._bytes -= queued.length();
+				queued.release();
+				drop();
+			}
+		}
+	}
+
+	/*
+	 * counts a dropped frame
+	 * @return boolean - false, for returning from queue()
+	 */
+	private boolean drop()
+	{
+		this._dropped++;
+		_allDropped.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * adds a frame, holding the lock
+	 */
+	private void enqueue(Frame frame)
+	{
+		this._frames.add(frame.retain());
+		this._bytes += frame.length();
+		if (this._frames.size() > this._highWaterFrames)
+			this._highWaterFrames = this._frames.size();
+		if (this._bytes > this._highWaterBytes)
+			this._highWaterBytes = this._bytes;
+		this._notEmpty.signal();
+	}
+
+	/*
+	 * removes the head, holding the lock
+	 */
+	private Frame dequeue()
+	{
+		Frame frame = this._frames.poll();
+		if (frame != null)
+		{
+			this._bytes -= frame.length();
+			this._notFull.signalAll();
+		}
+		return frame;
+	}
+
+	/*
+	 * waits for the next frame. The caller releases it once written.
+	 * @return Frame - the oldest queued frame
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public Frame take() throws InterruptedException
+	{
+		this._lock.lockInterruptibly();
+		try
+		{
+			while (this._frames.isEmpty())
+				this._notEmpty.await();
+			return dequeue();
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * removes the next frame without waiting. The caller releases it once
+	 * written.
+	 * @return Frame - the oldest queued frame, null if the outbox is empty
+	 */
+	public Frame pollFrame()
+	{
+		this._lock.lock();
+		try
+		{
+			return dequeue();
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * waits up to the given time for the next frame. The caller releases it
+	 * once written.
+	 * @param long - how long to wait
+	 * @param TimeUnit - unit of the wait
+	 * @return Frame - the oldest queued frame, null if none arrived in time
+	 * @throws InterruptedException - if interrupted while waiting
+	 */
+	public Frame pollFrame(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long nanos = unit.toNanos(timeout);
+		this._lock.lockInterruptibly();
+		try
+		{
+			while (this._frames.isEmpty())
+			{
+				if (nanos <= 0)
+					return null;
+				nanos = this._notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * moves up to max queued frames into a collection without waiting. The
+	 * caller releases them once written.
+	 * @param Collection<Frame> - receives the frames, oldest first
+	 * @param int - maximum number of frames to move
+	 * @return int - number of frames moved
+	 */
+	public int drainTo(Collection<Frame> frames, int max)
+	{
+		this._lock.lock();
+		try
+		{
+			int moved = 0;
+			for (Frame frame; moved < max && (frame = dequeue()) != null; moved++)
+				frames.add(frame);
+			return moved;
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * removes the next frame and returns its text. Mostly useful for tests.
+	 * @return String - text of the oldest queued frame, null if the outbox is empty
+	 */
+	public String poll()
+	{
+		Frame frame = pollFrame();
+		if (frame == null)
+			return null;
+		frame.release();
+		return frame.getText();
+	}
+
+	/*
+	 * drops every queued frame
+	 */
+	public void clear()
+	{
+		for (Frame frame = pollFrame(); frame != null; frame = pollFrame())
+			frame.release();
+	}
+
+	/*
+	 * @return int - number of queued frames
+	 */
+	public int size()
+	{
+		this._lock.lock();
+		try
+		{
+			return this._frames.size();
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * @return boolean - true if no frame is queued
+	 */
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/*
+	 * @return long - encoded bytes of the queued frames
+	 */
+	public long getBytes()
+	{
+		this._lock.lock();
+		try
+		{
+			return this._bytes;
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * @return int - most frames ever queued at once
+	 */
+	public int getHighWaterFrames()
+	{
+		this._lock.lock();
+		try
+		{
+			return this._highWaterFrames;
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * @return long - most encoded bytes ever queued at once
+	 */
+	public long getHighWaterBytes()
+	{
+		this._lock.lock();
+		try
+		{
+			return this._highWaterBytes;
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * @return long - frames dropped because they did not fit
+	 */
+	public long getDropped()
+	{
+		this._lock.lock();
+		try
+		{
+			return this._dropped;
+		}
+		finally
+		{
+			this._lock.unlock();
+		}
+	}
+
+	/*
+	 * @return long - frames dropped by all outboxes
+	 */
+	public static long getDroppedAll()
+	{
+		return _allDropped.get();
+	}
+
+	/*
+	 * @return boolean - true once a frame did not fit under DISCONNECT; no
+	 * further frames are accepted
+	 */
+	public boolean isOverflowed()
+	{
+		return this._overflowed;
+	}
+
+	/*
+	 * @return String - why the outbox overflowed, for the client and the log
+	 */
+	public String describeLimits()
+	{
+		return "outbound queue full (" + this._maxFrames + " frames, " + this._maxBytes + " bytes)";
+	}
+
+	/*
+	 * @return String - the counters of this outbox
+	 */
+	public String report()
+	{
+		return "outbox high water=" + getHighWaterFrames() + " frames/" + getHighWaterBytes() + "B dropped="
+				+ getDropped();
+	}
+}
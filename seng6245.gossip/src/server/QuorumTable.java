@@ -0,0 +1,261 @@
+package server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import adts.Quorum;
+
+/**
+ * @author thetrick
+ * The quorums of a channel by name, in an open addressing table with
+ * linear probing. Besides the usual Map lookups, a quorum can be found
+ * by an argument of a command line (see get(Arguments, int)), which is
+ * hashed and compared where it lies in the line, so a message finds its
+ * quorum without a String being made of the name.
+ *
+ * Removed entries leave a marker behind until the table is next rebuilt,
+ * so that iterating and removing never moves an entry. Like the HashMap it
+ * replaces, the table is not safe for use by several threads at once.
+ */
+final class QuorumTable extends AbstractMap<String, Quorum>
+{
+	// left in the slot of a removed entry, so that probing goes on past it
+	private static final String REMOVED = new String("");
+
+	private String[] _names = new String[8];
+	private Quorum[] _quorums = new Quorum[8];
+	private int _size = 0;
+	// slots holding an entry or a removed marker
+	private int _used = 0;
+
+	/*
+	 * finds the quorum named by an argument
+	 * @param Arguments - the arguments of a command line
+	 * @param int - index of the argument holding the name
+	 * @return Quorum - the quorum, null if there is none by that name
+	 */
+	Quorum get(Arguments arguments, int i)
+	{
+		int mask = this._names.length - 1;
+		for (int slot = spread(arguments.hash(i)) & mask;; slot = (slot + 1) & mask)
+		{
+			String name = this._names[slot];
+			if (name == null)
+				return null;
+			if (name != REMOVED && arguments.is(i, name))
+				return this._quorums[slot];
+		}
+	}
+
+	@Override
+	public Quorum get(Object key)
+	{
+		int slot = find(key);
+		return slot < 0 ? null : this._quorums[slot];
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return find(key) >= 0;
+	}
+
+	@Override
+	public Quorum put(String name, Quorum quorum)
+	{
+		if (name == null)
+			throw new NullPointerException();
+		int slot = find(name);
+		if (slot >= 0)
+		{
+			Quorum previous = this._quorums[slot];
+			this._quorums[slot] = quorum;
+			return previous;
+		}
+		if (2 * (this._used + 1) > this._names.length)
+			rebuild();
+		int mask = this._names.length - 1;
+		slot = spread(name.hashCode()) & mask;
+		while (this._names[slot] != null && this._names[slot] != REMOVED)
+			slot = (slot + 1) & mask;
+		if (this._names[slot] == null)
+			this._used++;
+		this._names[slot] = name;
+		this._quorums[slot] = quorum;
+		this._size++;
+		return null;
+	}
+
+	@Override
+	public Quorum remove(Object key)
+	{
+		int slot = find(key);
+		if (slot < 0)
+			return null;
+		Quorum previous = this._quorums[slot];
+		removeAt(slot);
+		return previous;
+	}
+
+	@Override
+	public void clear()
+	{
+		this._names = new String[8];
+		this._quorums = new Quorum[8];
+		this._size = 0;
+		this._used = 0;
+	}
+
+	@Override
+	public int size()
+	{
+		return this._size;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Quorum>> entrySet()
+	{
+		return new AbstractSet<Map.Entry<String, Quorum>>()
+		{
+			@Override
+			public Iterator<Map.Entry<String, Quorum>> iterator()
+			{
+				return new Entries();
+			}
+
+			@Override
+			public int size()
+			{
+				return _size;
+			}
+		};
+	}
+
+	/*
+	 * @param Object - a name
+	 * @return int - the slot holding it, -1 if there is none
+	 */
+	private int find(Object key)
+	{
+		if (!(key instanceof String))
+			return -1;
+		String text = (String) key;
+		int mask = this._names.length - 1;
+		for (int slot = spread(text.hashCode()) & mask;; slot = (slot + 1) & mask)
+		{
+			String name = this._names[slot];
+			if (name == null)
+				return -1;
+			if (name != REMOVED && name.equals(text))
+				return slot;
+		}
+	}
+
+	/*
+	 * empties a slot, leaving a marker for the probing to go on past
+	 * @param int - the slot
+	 */
+	private void removeAt(int slot)
+	{
+		this._names[slot] = REMOVED;
+		this._quorums[slot] = null;
+		this._size--;
+	}
+
+	/*
+	 * re-inserts every entry, dropping the markers, into a table twice as
+	 * large as the entries need
+	 */
+	private void rebuild()
+	{
+		String[] names = this._names;
+		Quorum[] quorums = this._quorums;
+		int length = 8;
+		while (length < 4 * (this._size + 1))
+			length *= 2;
+		this._names = new String[length];
+		this._quorums = new Quorum[length];
+		this._used = this._size;
+		int mask = length - 1;
+		for (int i = 0; i < names.length; i++)
+			if (names[i] != null && names[i] != REMOVED)
+			{
+				int slot = spread(names[i].hashCode()) & mask;
+				while (this._names[slot] != null)
+					slot = (slot + 1) & mask;
+				this._names[slot] = names[i];
+				this._quorums[slot] = quorums[i];
+			}
+	}
+
+	/*
+	 * mixes the high bits of a hash into the low ones the table uses
+	 */
+	private static int spread(int hash)
+	{
+		return hash ^ (hash >>> 16);
+	}
+
+	/*
+	 * walks the slots in order; removing marks the slot and moves nothing
+	 */
+	private final class Entries implements Iterator<Map.Entry<String, Quorum>>
+	{
+		private final String[] _table = _names;
+		private final Quorum[] _values = _quorums;
+		private int _next = advance(0);
+		private int _last = -1;
+
+		private int advance(int slot)
+		{
+			while (slot < this._table.length && (this._table[slot] == null || this._table[slot] == REMOVED))
+				slot++;
+			return slot;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return this._next < this._table.length;
+		}
+
+		@Override
+		public Map.Entry<String, Quorum> next()
+		{
+			if (!hasNext())
+				throw new NoSuchElementException();
+			if (this._table != _names)
+				throw new ConcurrentModificationException();
+			this._last = this._next;
+			this._next = advance(this._next + 1);
+			final int slot = this._last;
+			final Quorum[] values = this._values;
+			return new AbstractMap.SimpleEntry<String, Quorum>(this._table[slot], values[slot])
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Quorum setValue(Quorum quorum)
+				{
+					values[slot] = quorum;
+					return super.setValue(quorum);
+				}
+			};
+		}
+
+		@Override
+		public void remove()
+		{
+			if (this._last < 0 || this._table[this._last] == REMOVED)
+				throw new IllegalStateException();
+			if (this._table != _names)
+				throw new ConcurrentModificationException();
+			removeAt(this._last);
+		}
+	}
+}
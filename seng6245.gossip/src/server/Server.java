@@ -4,8 +4,13 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import adts.*;
+import protocol.DeflateOutputStream;
 
 /**
  * @author thetrick
@@ -16,6 +21,8 @@ public class Server
 	private final ServerSocket _serverSocket;
 	private final Hive _hive;
 	private final ServerNodes _serverNodes;
+	private final ExecutorService _handshakes;
+	private final ScheduledExecutorService _stats;
 
 	/*
 	 * Constructor
@@ -24,10 +31,38 @@ public class Server
 	 * @throws IOException - if socket cannot be bound to port
 	 */
 	public Server(int port) throws IOException
+	{
+		this(port, 0);
+	}
+
+	/*
+	 * Constructor
+	 * Binds a server to a port on the local address
+	 * @param int - port 0 <= int <= 65535
+	 * @param long - milliseconds between counter reports, 0 to never report
+	 * @throws IOException - if socket cannot be bound to port
+	 */
+	public Server(int port, long statsMillis) throws IOException
 	{
 		this._serverSocket = new ServerSocket(port);
 		this._serverNodes = new ServerNodes();
 		this._hive = new Hive(this._serverNodes);
+		this._handshakes = Threads.newExecutor("handshake-");
+		if (statsMillis > 0)
+		{
+			this._stats = Executors.newSingleThreadScheduledExecutor();
+			this._stats.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					Logger.info(report());
+					if (Config.get().isLatency())
+						Logger.info(reportLatency(_hive));
+				}
+			}, statsMillis, statsMillis, TimeUnit.MILLISECONDS);
+		}
+		else
+			this._stats = null;
 	}
 
 	/*
@@ -39,29 +74,33 @@ public class Server
 		while (true)
 			try
 			{
-				System.out.println("Server waiting for clients...");
+				Logger.info("Server waiting for clients...");
 				// accepts a new socket channel
 				final Socket socket = this._serverSocket.accept();
 				// create a new thread to create a channel (so the server is
 				// free to accept another channel)
-				new Thread()
+				_handshakes.execute(new Runnable()
 				{
 					public void run()
 					{
 						try
 						{
 							// Create a new channel
-							System.out.println("Creating Channel...");
+							Logger.info("Creating Channel...");
 							Channel channel = new Channel(socket, _hive, _serverNodes);
 							
-							// add the channel to the hive
-							System.out.println("Adding Channel for " + channel.getUserName());
-							_serverNodes.add(channel);
-							_hive.updateChannel(channel);
+							// add the channel to the hive, unless it resumed a session that is there already
+							if (!channel.resume())
+							{
+								Logger.info("Adding Channel for " + channel.getUserName());
+								_serverNodes.add(channel);
+								_hive.updateChannel(channel);
+								_hive.restore(channel);
+							}
 							
 							// start the channel thread
-							System.out.println("Starting Channel for " + channel.getUserName());
-							new Thread(channel).start();
+							Logger.info("Starting Channel for " + channel.getUserName());
+							Threads.start("channel-" + channel.getUserName(), channel);
 						}
 						catch (Exception ex)
 						{
@@ -69,26 +108,61 @@ public class Server
 							{
 								// inform the client of the issue
 								new PrintWriter(socket.getOutputStream(), true).println(ex.getMessage());
-								System.out.println("Error: could not run channel ~ " + ex.getMessage());
+								Logger.warn("Error: could not run channel ~ " + ex.getMessage());
 								// close the socket
 								socket.close();
 							}
 							catch (IOException iox)
 							{
-								System.out.println("Something bad happened!?");
+								Logger.error("Something bad happened!?");
 							}
 						}
 					}
-				}.start(); // start the thread to create channels
+				}); // start the thread to create channels
 
 			}
 			catch (IOException iox)
 			{
-				System.out.println("Something really bad happened!?");
+				Logger.error("Something really bad happened!?");
+				this._handshakes.shutdown();
+				if (this._stats != null)
+					this._stats.shutdownNow();
 				break;
 			}
 	}
 
+	/*
+	 * Describes the counters of all channels: lines per flush, lines dropped
+	 * for slow clients, membership changes per broadcast, quorum batches and
+	 * their latency, messages over a rate limit and, for
+	 * clients using deflate, the compression ratio and CPU time spent
+	 * 
+	 * @return String - one line of counters
+	 */
+	public String report()
+	{
+		return String.format("Server: channels=%d batch avg=%.1f ", this._serverNodes.size(),
+				Channel.getAverageBatchSizeAll()) + "dropped=" + Outbox.getDroppedAll() + " " + Coalescer.report()
+				+ " " + Quorum.getBatchSizes().report() + " " + Quorum.getLatency().report() + " "
+				+ TokenBucket.report() + " " + DeflateOutputStream.reportAll();
+	}
+
+	/*
+	 * Describes where messages spend their time, p50 through p99.99 of each
+	 * stage, for all quorums and for each of them
+	 * 
+	 * @param Hive - the quorums
+	 * @return String - a line for all quorums, then one per quorum
+	 */
+	static String reportLatency(Hive hive)
+	{
+		StringBuilder report = new StringBuilder(Latency.getAll().report());
+		for (Quorum quorum : hive.getQuorumsMap().values())
+			if (quorum.getStages() != null)
+				report.append(System.lineSeparator()).append(quorum.getStages().report());
+		return report.toString();
+	}
+
 	/*
 	 * returns the serverSocket instance
 	 * @return SeverSocket - the socket that connected to all channels
@@ -116,43 +190,39 @@ public class Server
 		return this._hive;
 	}
 	
-	/*
-	 * determines if a string is an integer
-	 */
-	private static boolean isInteger(String s) 
-	{
-	    try 
-	    { 
-	        Integer.parseInt(s); 
-	    } catch(NumberFormatException e) 
-	    { 
-	        return false; 
-	    }
-	    return true;
-	}
-
 	/**
 	 * Start a gossip server.
 	 */
 	public static void main(String[] args) throws IOException
 	{
-		System.out.println();
-		int port = -1;
-		if(args.length == 0)
-			port = 25252;
-		else if (args.length == 2 &&  args[0].equals("-p") && isInteger(args[1]))
-			port = Integer.parseInt(args[1]);
-		else
-			System.out.println("USAGE: [-p PORT]");
-		
-		if(port >= 0 && port <= 65535)
+		Config config;
+		try
+		{
+			config = Config.parse(args);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// no logger yet: straight to the console, then fail the command
+			System.err.println(Config.USAGE);
+			System.err.println("   " + e.getMessage());
+			System.exit(2);
+			return;
+		}
+		Config.set(config);
+		Logger.get().setLevel(config.getLogLevel());
+
+		Logger.info("Starting Server on port " + config.getPort());
+		if (config.isNio())
 		{
-			System.out.println("Starting Server on port " + port);
-			Server server = new Server(port);
+			NioServer server = new NioServer(config.getPort(), config.getLoops(), config.getBalance(),
+					config.getRebalanceMillis(), config.getStatsMillis());
 			server.serve();
 		}
 		else
-			System.out.println("   PORT should be betweeen [0, 65535]");
+		{
+			Server server = new Server(config.getPort(), config.getStatsMillis());
+			server.serve();
+		}
 		return;
 	}
 }
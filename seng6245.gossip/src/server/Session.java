@@ -0,0 +1,91 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author thetrick
+ * What a resumable connection keeps apart from its socket: the token the
+ * client quotes when it comes back, the number of the last line written to
+ * it, and the last lines written, so that whatever the client did not get
+ * before its connection dropped can be written again on the new one.
+ *
+ * Lines are numbered from 1 as they are written. Only the writer of the
+ * connection numbers lines; a new connection takes the session over once
+ * the old one has stopped writing.
+ */
+public class Session
+{
+	private static final SecureRandom _random = new SecureRandom();
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final String _token;
+	// the last lines written, by number modulo their count
+	private final Frame[] _lines;
+	private long _sequence = 0;
+
+	/*
+	 * Constructor, draws a new token
+	 * @param int - number of lines kept to be written again
+	 */
+	public Session(int lines)
+	{
+		byte[] bytes = new byte[16];
+		_random.nextBytes(bytes);
+		char[] token = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			token[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			token[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		this._token = new String(token);
+		this._lines = new Frame[Math.max(lines, 1)];
+	}
+
+	/*
+	 * numbers a line about to be written and keeps it
+	 * @param Frame - the line
+	 * @return long - its number
+	 */
+	public synchronized long next(Frame frame)
+	{
+		long sequence = ++this._sequence;
+		this._lines[(int) (sequence % this._lines.length)] = frame;
+		return sequence;
+	}
+
+	/*
+	 * Goes back to the last line the client got. The lines after it are
+	 * returned to be written again; they get the same numbers as before.
+	 * @param long - number of the last line the client got
+	 * @return List<Frame> - the lines after it, oldest first, or null if
+	 *      some of them are no longer kept
+	 */
+	public synchronized List<Frame> rewind(long last)
+	{
+		if (last < 0 || last > this._sequence || this._sequence - last > this._lines.length)
+			return null;
+		ArrayList<Frame> lines = new ArrayList<Frame>((int) (this._sequence - last));
+		for (long sequence = last + 1; sequence <= this._sequence; sequence++)
+			lines.add(this._lines[(int) (sequence % this._lines.length)]);
+		this._sequence = last;
+		return lines;
+	}
+
+	/*
+	 * @return String - the token the client quotes to resume the session
+	 */
+	public String getToken()
+	{
+		return this._token;
+	}
+
+	/*
+	 * @return long - number of the last line written
+	 */
+	public synchronized long getSequence()
+	{
+		return this._sequence;
+	}
+}
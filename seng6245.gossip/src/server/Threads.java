@@ -0,0 +1,167 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import adts.TimingWheel;
+
+/**
+ * @author thetrick
+ * Creates every thread the server runs blocking work on: channel readers and
+ * writers, quorum loops and handshakes. Depending on the configured mode the
+ * threads are platform threads or Java 21 virtual threads, which lets mostly
+ * idle connections stay parked in blocking I/O without an OS thread each.
+ * Work that never blocks, such as delivering quorum messages, runs on one
+ * shared dispatcher pool instead.
+ */
+public final class Threads
+{
+	/*
+	 * the kind of thread handed out
+	 */
+	public enum Mode
+	{
+		PLATFORM, VIRTUAL
+	}
+
+	private static ForkJoinPool _dispatcher = null;
+	private static ScheduledExecutorService _timer = null;
+	private static ScheduledExecutorService _disk = null;
+	private static TimingWheel _wheel = null;
+
+	private Threads()
+	{
+	}
+
+	/*
+	 * the pool shared by all quorums, one worker per core. Tasks submitted
+	 * from outside the pool run in the order they were submitted.
+	 * 
+	 * @return ForkJoinPool - the dispatcher, created on first use
+	 */
+	public static synchronized ForkJoinPool dispatcher()
+	{
+		if (_dispatcher == null)
+			_dispatcher = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+					ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		return _dispatcher;
+	}
+
+	/*
+	 * a single daemon thread for short delayed tasks, such as handing work to
+	 * the dispatcher once a delay has passed. Tasks must not block.
+	 * 
+	 * @return ScheduledExecutorService - the timer, created on first use
+	 */
+	public static synchronized ScheduledExecutorService timer()
+	{
+		if (_timer == null)
+			_timer = daemon("timer");
+		return _timer;
+	}
+
+	/*
+	 * a single daemon thread for work that waits on the disk, such as
+	 * forcing logs to storage, so that it holds up neither the dispatcher
+	 * nor the timer
+	 * 
+	 * @return ScheduledExecutorService - the disk thread, created on first use
+	 */
+	public static synchronized ScheduledExecutorService disk()
+	{
+		if (_disk == null)
+			_disk = daemon("disk");
+		return _disk;
+	}
+
+	/*
+	 * the timing wheel shared by every connection for its timeouts, such as
+	 * heartbeats and idle limits. The timer advances it every tick and the
+	 * tasks that are due run on the dispatcher, so they must not block.
+	 * 
+	 * @return TimingWheel - the wheel, created on first use
+	 */
+	public static synchronized TimingWheel wheel()
+	{
+		if (_wheel == null)
+		{
+			final TimingWheel wheel = new TimingWheel(100, 512, dispatcher());
+			timer().scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					wheel.advance(System.nanoTime());
+				}
+			}, wheel.getTickMillis(), wheel.getTickMillis(), TimeUnit.MILLISECONDS);
+			_wheel = wheel;
+		}
+		return _wheel;
+	}
+
+	/*
+	 * @param String - name of the thread
+	 * @return ScheduledExecutorService - runs tasks on one daemon thread
+	 */
+	private static ScheduledExecutorService daemon(final String name)
+	{
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable task)
+			{
+				Thread thread = new Thread(task, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * creates an unstarted thread in the configured mode
+	 * 
+	 * @param String - name of the thread
+	 * @param Runnable - work the thread performs
+	 * @return Thread - the new, unstarted thread
+	 */
+	public static Thread newThread(String name, Runnable task)
+	{
+		return builder().name(name).unstarted(task);
+	}
+
+	/*
+	 * creates and starts a thread in the configured mode
+	 * 
+	 * @param String - name of the thread
+	 * @param Runnable - work the thread performs
+	 * @return Thread - the running thread
+	 */
+	public static Thread start(String name, Runnable task)
+	{
+		return builder().name(name).start(task);
+	}
+
+	/*
+	 * creates an executor that runs every task on its own thread of the
+	 * configured mode
+	 * 
+	 * @param String - prefix of the thread names, numbered from 0
+	 * @return ExecutorService - the new executor
+	 */
+	public static ExecutorService newExecutor(String prefix)
+	{
+		return Executors.newThreadPerTaskExecutor(builder().name(prefix, 0).factory());
+	}
+
+	/*
+	 * @return Thread.Builder - builder for the configured mode
+	 */
+	private static Thread.Builder builder()
+	{
+		if (Config.get().getThreadMode() == Mode.VIRTUAL)
+			return Thread.ofVirtual();
+		return Thread.ofPlatform();
+	}
+}
@@ -885,5 +885,34 @@ public class ChannelTest
 		assertEquals(channel1.getBuffer().poll(), "ClientNodes (quorum1): channel1");
 		assertEquals(channel1.getBuffer().poll(), null);
 	}
-	
+
+	//Queued lines are written in batches
+	@Test
+	public void testBatchedWrites() throws IOException
+	{
+		Config config = new Config();
+		config.setLingerMillis(200);
+		Config.set(config);
+		try
+		{
+			writerOut.println("connect User1");
+			writerOut.flush();
+			channel = new Channel(serverSide, hive, serverNodes);
+			assertEquals(bufferIn.readLine(), "To connect type: \"connect [username]\"");
+
+			Thread thread = new Thread(channel);
+			thread.start();
+			assertEquals(bufferIn.readLine(), "Connected!");
+
+			for (int i = 0; i < 50; i++)
+				channel.updateBuffer("line" + i);
+			for (int i = 0; i < 50; i++)
+				assertEquals(bufferIn.readLine(), "line" + i);
+			assertTrue(channel.getAverageBatchSize() > 1);
+		}
+		finally
+		{
+			Config.set(new Config());
+		}
+	}
 }
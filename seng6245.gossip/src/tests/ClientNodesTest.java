@@ -6,7 +6,6 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
 import org.junit.Before;
 import org.junit.Test;
 import adts.*;
@@ -80,7 +79,7 @@ public class ClientNodesTest
 		Map<String, Channel> map = clientNodes.getNodesMap();
 		assertEquals(map.size(), 1);
 		assertEquals(map.get("1"), channel1);
-		LinkedBlockingQueue<String> buffer = channel1.getBuffer();
+		Outbox buffer = channel1.getBuffer();
 		String output = buffer.poll();
 		assertEquals(output, "ClientNodes (users): 1");
 		output = buffer.poll();
@@ -92,7 +91,7 @@ public class ClientNodesTest
 	public void testAddN() throws IOException
 	{
 		String output;
-		LinkedBlockingQueue<String> buffer;
+		Outbox buffer;
 		clientNodes.add(channel1);
 		clientNodes.add(channel2);
 		clientNodes.add(channel3);
@@ -0,0 +1,107 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test that membership changes within a window are broadcast as one update
+ */
+public class CoalescerTest
+{
+	private ServerNodes serverNodes;
+	private Channel full;
+	private Channel delta;
+
+	/**
+	 * Sets up the test fixture.
+	 * Collects changes for 100ms, with one channel of each kind already in
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		Config.get().setCoalesceMillis(100);
+		serverNodes = new ServerNodes();
+		full = new Channel("full");
+		delta = new Channel("delta", true);
+		serverNodes.add(full);
+		serverNodes.add(delta);
+		Utility.pause(200);
+		assertEquals(full.getBuffer().poll(), "ServerNodes: delta full");
+		assertEquals(delta.getBuffer().poll(), "ServerNodes@1: delta full");
+	}
+
+	/**
+	 * Cleanup the Test by going back to immediate broadcasts
+	 */
+	@After
+	public void cleanup()
+	{
+		Config.get().setCoalesceMillis(0);
+	}
+
+	//A storm of joins is one broadcast, the list itself changes right away
+	@Test
+	public void testStorm() throws IOException
+	{
+		for (int i = 0; i < 10; i++)
+			serverNodes.add(new Channel("user" + i));
+		assertTrue(serverNodes.contains("user9"));
+		assertEquals(serverNodes.size(), 12);
+		assertNull(full.getBuffer().poll());
+
+		Utility.pause(200);
+		assertEquals(full.getBuffer().poll(),
+				"ServerNodes: delta full user0 user1 user2 user3 user4 user5 user6 user7 user8 user9");
+		assertNull(full.getBuffer().poll());
+		assertEquals(delta.getBuffer().poll(),
+				"ServerNodes@2: delta full user0 user1 user2 user3 user4 user5 user6 user7 user8 user9");
+		assertNull(delta.getBuffer().poll());
+	}
+
+	//A single change is still sent as a delta
+	@Test
+	public void testSingleChange() throws IOException
+	{
+		serverNodes.remove(full);
+		Utility.pause(200);
+		assertEquals(delta.getBuffer().poll(), "ServerNodes@2 -full");
+		assertEquals(serverNodes.getVersion(), 2);
+	}
+
+	//A user reconnecting within the window changes nothing for the others
+	@Test
+	public void testReconnect() throws IOException
+	{
+		serverNodes.remove(full);
+		Channel again = new Channel("full");
+		serverNodes.add(again);
+		Utility.pause(200);
+		assertEquals(again.getBuffer().poll(), "ServerNodes: delta full");
+		assertNull(delta.getBuffer().poll());
+		assertEquals(serverNodes.getVersion(), 1);
+	}
+
+	//Quorums made together reach the channels as one Hive update
+	@Test
+	public void testHive() throws IOException
+	{
+		Hive hive = new Hive(serverNodes);
+		hive.addQuorum(new Quorum("q1"));
+		hive.addQuorum(new Quorum("q2"));
+		assertTrue(hive.contains("q2"));
+		Utility.pause(200);
+		assertEquals(full.getBuffer().poll(), "Hive q1 q2");
+		assertEquals(delta.getBuffer().poll(), "Hive@1: q1 q2");
+		assertNull(full.getBuffer().poll());
+	}
+}
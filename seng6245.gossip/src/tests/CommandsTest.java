@@ -0,0 +1,183 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import server.*;
+
+/**
+ * Test the command registry that parses client lines
+ */
+public class CommandsTest
+{
+	//Lines must match the grammar exactly
+	@Test
+	public void testGrammar()
+	{
+		Channel channel = new Channel("User1");
+		Commands commands = Commands.get();
+		Arguments arguments = new Arguments();
+		assertEquals(commands.dispatch(channel, "exit quorum1", arguments), "badQuorum quorum1 user not connected to quorum");
+		assertEquals(commands.dispatch(channel, "exit  quorum1", arguments), "Unrecognized Command: exit  quorum1");
+		assertEquals(commands.dispatch(channel, "exit quorum1 ", arguments), "Unrecognized Command: exit quorum1 ");
+		assertEquals(commands.dispatch(channel, "exit", arguments), "Unrecognized Command: exit");
+		assertEquals(commands.dispatch(channel, "exits quorum1", arguments), "Unrecognized Command: exits quorum1");
+		assertEquals(commands.dispatch(channel, "message quorum1", arguments), "Unrecognized Command: message quorum1");
+		assertEquals(commands.dispatch(channel, "message quorum1 hi", arguments), "");
+		assertEquals(commands.dispatch(channel, "message quorum1 hé", arguments), "Unrecognized Command: message quorum1 hé");
+		assertEquals(commands.dispatch(channel, "", arguments), "Unrecognized Command: ");
+		assertEquals(commands.dispatch(channel, "history quorum1 5", arguments), "badQuorum quorum1 user not connected to quorum");
+		assertEquals(commands.dispatch(channel, "history quorum1", arguments), "Unrecognized Command: history quorum1");
+		assertEquals(commands.dispatch(channel, "disconnect User1", arguments), "disconnectedFromServer");
+	}
+
+	//Arguments are offsets into the line and hash like the equal String
+	@Test
+	public void testRegister()
+	{
+		Commands commands = Commands.standard();
+		commands.register("ping", 0, false, new Commands.Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				return "pong";
+			}
+		});
+		commands.register("echo", 2, true, new Commands.Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				assertEquals(arguments.count(), 3);
+				assertTrue(arguments.is(0, "a"));
+				assertFalse(arguments.is(0, "ab"));
+				assertEquals(arguments.hash(1), "b".hashCode());
+				assertEquals(arguments.start(2), 9);
+				return arguments.get(2);
+			}
+		});
+		Channel channel = new Channel("User1");
+		Arguments arguments = new Arguments();
+		assertEquals(commands.dispatch(channel, "ping", arguments), "pong");
+		assertEquals(commands.dispatch(channel, "echo a b c d", arguments), "c d");
+		// the shared registry is unchanged
+		assertEquals(Commands.get().dispatch(channel, "ping", arguments), "Unrecognized Command: ping");
+	}
+
+	//Parsing a message line and finding the channel's quorum by its name allocates nothing
+	@Test
+	public void testFindQuorumAllocatesNothing()
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Channel channel = new Channel("User1");
+		for (int i = 0; i < 20; i++)
+			channel.getQuorums().put("quorum" + i, new adts.Quorum("quorum" + i));
+		channel.getQuorums().remove("quorum3");
+		final int[] found = new int[1];
+		Commands commands = Commands.standard();
+		// parsed as a message is, stopping short of the quorum
+		commands.register("find", 1, true, new Commands.Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				if (channel.getQuorum(arguments, 0) != null)
+					found[0]++;
+				return "";
+			}
+		});
+		Arguments arguments = new Arguments();
+		String hit = "find quorum17 hello there, this is a message";
+		String miss = "find quorum3 hello there, this is a message";
+
+		// let the compiler settle first
+		for (int i = 0; i < 200000; i++)
+		{
+			commands.dispatch(channel, hit, arguments);
+			commands.dispatch(channel, miss, arguments);
+		}
+
+		found[0] = 0;
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < 100000; i++)
+		{
+			commands.dispatch(channel, hit, arguments);
+			commands.dispatch(channel, miss, arguments);
+		}
+		long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+		assertEquals(found[0], 100000);
+		assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+	}
+
+	//The message command allocates the text it hands to the quorum and the quorum's
+	//envelope for it in the mailbox, and nothing else
+	@Test
+	public void testMessageAllocatesOnlyWhatTheQuorumKeeps() throws java.io.IOException
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Channel channel = new Channel("User1");
+		adts.Quorum quorum = new adts.Quorum("quorum1", new adts.Hive(new adts.ServerNodes()), channel);
+		channel.getQuorums().put("quorum1", quorum);
+		Commands commands = Commands.get();
+		Arguments arguments = new Arguments();
+		String line = "message quorum1 hello there, this is a message";
+
+		// let the compiler settle first
+		for (int i = 0; i < 200000; i++)
+			commands.dispatch(channel, line, arguments);
+		Utility.pause(500);
+
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < 100000; i++)
+			assertEquals(commands.dispatch(channel, line, arguments), "");
+		long perMessage = (threads.getCurrentThreadAllocatedBytes() - before) / 100000;
+		// 'User1 hello there, this is a message' is a String of 24 bytes and an array of
+		// 16 + 36 bytes, the Letter 32 bytes and the mailbox's node 24 bytes
+		assertTrue("allocated " + perMessage + " bytes per message", perMessage <= 24 + 56 + 32 + 24);
+		quorum.removeChannel(channel);
+	}
+
+	//The channel's quorums stay a Map: names are found, replaced and removed
+	@Test
+	public void testQuorumTable()
+	{
+		Channel channel = new Channel("User1");
+		Map<String, adts.Quorum> quorums = channel.getQuorums();
+		adts.Quorum q1 = new adts.Quorum("q1");
+		for (int i = 0; i < 100; i++)
+			quorums.put("q" + i, i == 1 ? q1 : new adts.Quorum("q" + i));
+		for (int i = 50; i < 100; i++)
+			quorums.remove("q" + i);
+		assertEquals(quorums.size(), 50);
+		assertTrue(quorums.get("q1") == q1);
+		assertFalse(quorums.containsKey("q50"));
+		assertFalse(quorums.containsKey(null));
+		Iterator<String> names = quorums.keySet().iterator();
+		while (names.hasNext())
+			if (!names.next().equals("q1"))
+				names.remove();
+		assertEquals(quorums.keySet(), Collections.singleton("q1"));
+
+		final adts.Quorum[] found = new adts.Quorum[1];
+		Commands commands = Commands.standard();
+		commands.register("find", 1, false, new Commands.Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				found[0] = channel.getQuorum(arguments, 0);
+				return "";
+			}
+		});
+		Arguments arguments = new Arguments();
+		commands.dispatch(channel, "find q1", arguments);
+		assertTrue(found[0] == q1);
+		commands.dispatch(channel, "find q2", arguments);
+		assertTrue(found[0] == null);
+	}
+}
@@ -0,0 +1,129 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import protocol.*;
+import server.*;
+
+/**
+ * Test the optional deflate stream mode
+ */
+public class DeflateTest
+{
+	private ServerSocket server;
+	private Socket serverSide;
+	private Socket clientSide;
+
+	/**
+	 * Sets up the test fixture.
+	 * Connects a client socket to a server socket
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		server = new ServerSocket(5070);
+		clientSide = new Socket("localhost", 5070);
+		serverSide = server.accept();
+	}
+
+	/**
+	 * Cleanup the Test by closing the sockets
+	 */
+	@After
+	public void cleanup() throws IOException
+	{
+		Config.set(new Config());
+		clientSide.close();
+		server.close();
+		Utility.pause(100);
+	}
+
+	//Every flush makes everything written so far readable by the peer
+	@Test
+	public void testSyncFlush() throws IOException
+	{
+		PipedInputStream pipe = new PipedInputStream(64 * 1024);
+		DeflateOutputStream out = new DeflateOutputStream(new PipedOutputStream(pipe), 6);
+		BufferedReader in = new BufferedReader(new InputStreamReader(new InflateInputStream(pipe)));
+
+		StringBuilder users = new StringBuilder("ServerNodes:");
+		for (int i = 0; i < 1000; i++)
+			users.append(" user").append(i);
+		for (int i = 0; i < 3; i++)
+		{
+			out.write((users + "\n").getBytes());
+			out.flush();
+			assertEquals(in.readLine(), users.toString());
+		}
+		assertEquals(out.getBytesIn(), 3 * (users.length() + 1));
+		// repeated lists compress against each other
+		assertTrue(out.getBytesOut() * 10 < out.getBytesIn());
+		assertTrue(out.report().startsWith("deflate in=" + out.getBytesIn() + "B out=" + out.getBytesOut() + "B ratio=0.0"));
+		out.close();
+	}
+
+	//A channel asked for deflate compresses both directions after the acknowledgement
+	@Test
+	public void testDeflateChannel() throws IOException
+	{
+		OutputStream rawOut = clientSide.getOutputStream();
+		InputStream rawIn = clientSide.getInputStream();
+		rawOut.write("connect User1 deflate\n".getBytes());
+		ServerNodes serverNodes = new ServerNodes();
+		Hive hive = new Hive(serverNodes);
+		Channel channel = new Channel(serverSide, hive, serverNodes);
+		assertEquals(Handshake.readLine(rawIn), Handshake.PROMPT);
+		serverNodes.add(channel);
+		hive.updateChannel(channel);
+		new Thread(channel).start();
+
+		assertEquals(Handshake.readLine(rawIn), "Connected! deflate");
+		BufferedReader in = new BufferedReader(new InputStreamReader(new InflateInputStream(rawIn)));
+		PrintWriter out = new PrintWriter(new DeflateOutputStream(rawOut, 6), true);
+		assertEquals(in.readLine(), "ServerNodes: User1");
+		assertEquals(in.readLine(), "Hive");
+
+		out.println("make quorum1");
+		assertEquals(in.readLine(), "Hive quorum1");
+		assertEquals(in.readLine(), "Connecting to Quorum: quorum1");
+		assertEquals(in.readLine(), "ClientNodes (quorum1): User1");
+		assertEquals(in.readLine(), "List of connected Quorums: quorum1");
+		assertTrue(channel.getCompressor().getBytesIn() > 0);
+
+		out.println("disconnect User1");
+		assertEquals(in.readLine(), "disconnectedFromServer");
+		assertNull(in.readLine());
+	}
+
+	//A server configured without compression leaves the option out
+	@Test
+	public void testDeflateRefused() throws IOException
+	{
+		Config config = new Config();
+		config.setDeflateLevel(0);
+		Config.set(config);
+		OutputStream rawOut = clientSide.getOutputStream();
+		rawOut.write("connect User1 deflate\n".getBytes());
+		ServerNodes serverNodes = new ServerNodes();
+		Channel channel = new Channel(serverSide, new Hive(serverNodes), serverNodes);
+		assertNull(channel.getCompressor());
+		new Thread(channel).start();
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(clientSide.getInputStream()));
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		assertEquals(in.readLine(), "Connected!");
+		rawOut.write("disconnect User1\n".getBytes());
+		assertEquals(in.readLine(), "disconnectedFromServer");
+	}
+}
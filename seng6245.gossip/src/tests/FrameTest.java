@@ -0,0 +1,73 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test that broadcasts are encoded once and shared by all recipients
+ */
+public class FrameTest
+{
+	//A frame holds the UTF-8 encoding of its line
+	@Test
+	public void testEncoding()
+	{
+		Frame frame = Frame.of("héllo");
+		assertEquals(frame.getText(), "héllo");
+		assertEquals(frame.length(), 7);
+		assertEquals(frame.getBytes()[6], '\n');
+	}
+
+	//References are counted and retained bytes follow them
+	@Test
+	public void testReferences()
+	{
+		long before = Frame.getRetainedBytes();
+		Frame frame = Frame.of("test");
+		frame.retain();
+		frame.retain();
+		assertEquals(Frame.getRetainedBytes() - before, 5);
+		assertFalse(frame.release());
+		assertTrue(frame.release());
+		assertEquals(Frame.getRetainedBytes(), before);
+	}
+
+	//Every recipient of a broadcast queues the same frame
+	@Test
+	public void testSharedBroadcast() throws IOException
+	{
+		ServerNodes nodes = new ServerNodes();
+		Channel[] channels = new Channel[100];
+		for (int i = 0; i < channels.length; i++)
+		{
+			channels[i] = new Channel("user" + i);
+			nodes.add(channels[i]);
+		}
+		for (Channel channel : channels)
+			channel.getBuffer().clear();
+
+		long before = Frame.getRetainedBytes();
+		nodes.notifyChannels("Message (q1): user0 hello");
+		Frame first = channels[0].getBuffer().pollFrame();
+		assertEquals(first.references(), 100);
+		assertEquals(Frame.getRetainedBytes() - before, first.length());
+		first.release();
+		for (int i = 1; i < channels.length; i++)
+		{
+			Frame frame = channels[i].getBuffer().pollFrame();
+			assertSame(frame, first);
+			frame.release();
+		}
+		assertEquals(first.references(), 0);
+		assertEquals(Frame.getRetainedBytes(), before);
+	}
+}
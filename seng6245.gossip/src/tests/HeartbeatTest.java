@@ -0,0 +1,116 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import protocol.*;
+import server.*;
+
+/**
+ * Test heartbeats, the idle limit and the handshake timeout
+ */
+public class HeartbeatTest
+{
+	private ServerSocket server;
+	private ServerNodes serverNodes;
+	private Hive hive;
+
+	/**
+	 * Sets up the test fixture.
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		server = new ServerSocket(5090);
+		serverNodes = new ServerNodes();
+		hive = new Hive(serverNodes);
+	}
+
+	/**
+	 * Cleanup the Test by closing the server socket
+	 */
+	@After
+	public void cleanup() throws IOException
+	{
+		Config.set(new Config());
+		server.close();
+		Utility.pause(100);
+	}
+
+	//Either side may ping, a pong needs no answer
+	@Test
+	public void testCommands()
+	{
+		Channel channel = new Channel("User1");
+		Arguments arguments = new Arguments();
+		assertEquals(Commands.get().dispatch(channel, Heartbeat.PONG, arguments), "");
+		assertEquals(Commands.get().dispatch(channel, "pong now", arguments), "Unrecognized Command: pong now");
+	}
+
+	//A quiet client is pinged, stays while it answers and is reaped once it stops
+	@Test
+	public void testHeartbeat() throws IOException
+	{
+		Config config = new Config();
+		config.setHeartbeatMillis(300);
+		config.setIdleTimeoutMillis(1000);
+		Config.set(config);
+		Socket client = new Socket("localhost", 5090);
+		client.getOutputStream().write("connect User1\n".getBytes());
+		Channel channel = new Channel(server.accept(), hive, serverNodes);
+		serverNodes.add(channel);
+		new Thread(channel).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		assertEquals(in.readLine(), "Connected!");
+		assertEquals(in.readLine(), "ServerNodes: User1");
+
+		for (int i = 0; i < 3; i++)
+		{
+			assertEquals(in.readLine(), Heartbeat.PING);
+			out.println(Heartbeat.PONG);
+		}
+		assertTrue(serverNodes.contains("User1"));
+
+		// stop answering: pinged until the idle limit, then closed
+		assertEquals(in.readLine(), Heartbeat.PING);
+		for (String line = in.readLine(); line != null; line = in.readLine())
+			assertEquals(line, Heartbeat.PING);
+		Utility.pause(200);
+		assertFalse(serverNodes.contains("User1"));
+		client.close();
+	}
+
+	//A client that does not send the handshake in time is cut off
+	@Test
+	public void testHandshakeTimeout() throws IOException
+	{
+		Config config = new Config();
+		config.setHandshakeTimeoutMillis(200);
+		Config.set(config);
+		Socket client = new Socket("localhost", 5090);
+		long start = System.currentTimeMillis();
+		try
+		{
+			new Channel(server.accept(), hive, serverNodes);
+			assertTrue(false);
+		}
+		catch (IOException e)
+		{
+			assertEquals(e.getMessage(), "Handshake timed out");
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		client.close();
+	}
+}
@@ -0,0 +1,70 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import adts.Histogram;
+
+/**
+ * Test the power of two histogram
+ */
+public class HistogramTest
+{
+	//Percentiles fall in the bucket of the value, never above the maximum
+	@Test
+	public void testPercentiles()
+	{
+		Histogram histogram = new Histogram("test", "us");
+		assertEquals(histogram.getPercentile(50), 0);
+		for (int i = 1; i <= 100; i++)
+			histogram.record(i);
+		assertEquals(histogram.getCount(), 100);
+		assertEquals(histogram.getMean(), 50.5, 0.001);
+		assertEquals(histogram.getMax(), 100);
+		assertEquals(histogram.getPercentile(50), 63);
+		assertEquals(histogram.getPercentile(99), 100);
+		assertEquals(histogram.getPercentile(1), 1);
+		assertTrue(histogram.report().startsWith("test n=100 mean=50.5us p50=63us p99=100us max=100us"));
+	}
+
+	//Each power of two split in 2^precision buckets keeps values to within 1 part in 2^precision
+	@Test
+	public void testPrecision()
+	{
+		Histogram histogram = new Histogram("test", "ns", 4);
+		for (int i = 0; i < 16; i++)
+			histogram.record(i);
+		// counted exactly below 16
+		assertEquals(histogram.getPercentile(50), 7);
+		assertEquals(histogram.getPercentile(100), 15);
+		histogram.reset();
+		for (int i = 1; i <= 10000; i++)
+			histogram.record(1000 * i);
+		assertEquals(histogram.getPercentile(50), 5242879);
+		assertEquals(histogram.getPercentile(99.99), 10000000);
+		long p90 = histogram.getPercentile(90);
+		assertTrue(p90 >= 9000000 && p90 < 9000000 + 9000000 / 16);
+		// a batch counts once per message
+		histogram.record(Long.MAX_VALUE, 3);
+		assertEquals(histogram.getCount(), 10003);
+		assertEquals(histogram.getPercentile(100), Long.MAX_VALUE);
+		assertTrue(histogram.report(new double[] { 50, 99.99 }).startsWith("test n=10003 p50="));
+	}
+
+	//Zero and negative values land in the first bucket, reset forgets everything
+	@Test
+	public void testZeroAndReset()
+	{
+		Histogram histogram = new Histogram("test", "");
+		histogram.record(0);
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(histogram.getPercentile(50), 0);
+		assertEquals(histogram.getMax(), Long.MAX_VALUE);
+		histogram.reset();
+		assertEquals(histogram.getCount(), 0);
+		assertEquals(histogram.getMax(), 0);
+	}
+}
@@ -0,0 +1,124 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test that a History keeps the last messages within its limits
+ */
+public class HistoryTest
+{
+	private static String text(List<Frame> frames)
+	{
+		StringBuilder text = new StringBuilder();
+		for (Frame frame : frames)
+			text.append(frame.getText()).append('|');
+		return text.toString();
+	}
+
+	//Only the last messages are kept, oldest first
+	@Test
+	public void testCount()
+	{
+		History history = new History(3, 1 << 16);
+		for (int i = 0; i < 5; i++)
+			history.add(Frame.of("m" + i));
+		assertEquals(history.size(), 3);
+		assertEquals(text(history.last(10)), "m2|m3|m4|");
+		assertEquals(text(history.last(2)), "m3|m4|");
+		assertEquals(history.last(0).size(), 0);
+	}
+
+	//Old messages are dropped to stay within the bytes, too long ones are not kept
+	@Test
+	public void testBytes()
+	{
+		// room for two of these lines, whatever their footprint
+		History history = new History(100, 2 * Frame.of("m0").retainedSize() + 1);
+		for (int i = 0; i < 5; i++)
+			history.add(Frame.of("m" + i));
+		assertEquals(text(history.last(10)), "m3|m4|");
+		char[] tooLong = new char[1000];
+		Arrays.fill(tooLong, 'x');
+		history.add(Frame.of(new String(tooLong)));
+		assertEquals(text(history.last(10)), "m3|m4|");
+	}
+
+	//A message is charged for all it holds on to, the binary encoding included
+	@Test
+	public void testRetainedSize()
+	{
+		Frame frame = Frame.message("quorum1", "User1 hello there");
+		int size = frame.retainedSize();
+		assertTrue(size > frame.getText().length() + frame.getBytes().length + "User1".length() + "hello there".length());
+		assertTrue(size > frame.getBytes().length + frame.getBinary().length);
+		assertEquals(frame.retainedSize(), size);
+		assertEquals(frame.untraced().retainedSize(), size);
+	}
+
+	//A bigger history keeps what the old one had
+	@Test
+	public void testAddAll()
+	{
+		History history = new History(3, 1 << 16);
+		for (int i = 0; i < 3; i++)
+			history.add(Frame.of("m" + i));
+		History bigger = new History(10, 1 << 16);
+		bigger.addAll(history);
+		bigger.add(Frame.of("m3"));
+		assertEquals(text(bigger.last(10)), "m0|m1|m2|m3|");
+	}
+
+	//Adding a message allocates nothing
+	@Test
+	public void testAddAllocatesNothing()
+	{
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		History history = new History(1000, 1 << 20);
+		Frame frame = Frame.of("a message");
+		for (int i = 0; i < 200000; i++)
+			history.add(frame);
+
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < 100000; i++)
+			history.add(frame);
+		long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+		assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+	}
+
+	//Readers see consecutive messages while one thread keeps adding
+	@Test
+	public void testConcurrentReaders() throws InterruptedException
+	{
+		final History history = new History(64, 1 << 20);
+		final Frame[] frames = new Frame[1000];
+		for (int i = 0; i < frames.length; i++)
+			frames[i] = Frame.of(Integer.toString(i));
+		Thread writer = new Thread()
+		{
+			public void run()
+			{
+				for (int round = 0; round < 200; round++)
+					for (Frame frame : frames)
+						history.add(frame);
+			}
+		};
+		writer.start();
+		while (writer.isAlive())
+		{
+			List<Frame> last = history.last(64);
+			for (int i = 1; i < last.size(); i++)
+				assertEquals((Integer.parseInt(last.get(i - 1).getText()) + 1) % frames.length,
+						Integer.parseInt(last.get(i).getText()));
+		}
+	}
+}
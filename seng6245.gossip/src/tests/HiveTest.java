@@ -1,11 +1,15 @@
 package tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -54,7 +58,7 @@ public class HiveTest
 		Map<String, Quorum> map = hive.getQuorumsMap();
 		assertEquals(map.size(), 1);
 		assertEquals(map.get("quorum1"), quorum1);
-		LinkedBlockingQueue<String> buffer = channel.getBuffer();
+		Outbox buffer = channel.getBuffer();
 		String output = buffer.poll();
 		assertEquals(output, "Hive quorum1");
 		output = buffer.poll();
@@ -66,7 +70,7 @@ public class HiveTest
 	public void testAddN() throws IOException
 	{
 		String output;
-		LinkedBlockingQueue<String> buffer;
+		Outbox buffer;
 		hive.addQuorum(quorum1);
 		hive.addQuorum(quorum2);
 		hive.addQuorum(quorum3);
@@ -101,7 +105,7 @@ public class HiveTest
 	public void testQuorumRemoval() throws IOException
 	{
 		String output;
-		LinkedBlockingQueue<String> buffer;
+		Outbox buffer;
 		hive.addQuorum(quorum1);
 		hive.addQuorum(quorum2);
 		hive.addQuorum(quorum3);
@@ -208,4 +212,63 @@ public class HiveTest
 
 		assertEquals(hive.getQuorumsMap().size(), 1);
 	}
+
+	// A quorum whose last member left cannot be joined and frees its name
+	@Test
+	public void testJoinClosedQuorum() throws IOException
+	{
+		Channel member = new Channel("member");
+		Quorum closing = new Quorum("closing", hive, member);
+		assertSame(hive.join("closing", channel), closing);
+		closing.removeChannel(member);
+		closing.removeChannel(channel);
+		assertFalse(closing.isOpen());
+
+		assertNull(hive.join("closing", new Channel("late")));
+		assertNull(hive.join("missing", channel));
+		Quorum made = new Quorum("closing", hive, channel);
+		assertSame(hive.getQuorumById("closing"), made);
+		Utility.pause(100);
+		assertSame(hive.getQuorumById("closing"), made);
+	}
+
+	// Many threads making or joining the same quorums end up in one quorum each
+	@Test
+	public void testMakeOrJoin() throws InterruptedException
+	{
+		final Map<String, Quorum> joined = new ConcurrentHashMap<String, Quorum>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++)
+		{
+			final Channel member = new Channel("member" + i);
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int q = 0; q < 4; q++)
+							joined.put(member.getUserName() + "/" + q, hive.makeOrJoin("q" + q, member));
+					}
+					catch (IOException e)
+					{
+						fail();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(hive.getQuorumsMap().size(), 4);
+		for (int q = 0; q < 4; q++)
+		{
+			Quorum quorum = hive.getQuorumById("q" + q);
+			assertEquals(quorum.getList().size(), threads.length);
+			for (int i = 0; i < threads.length; i++)
+				assertSame(joined.get("member" + i + "/" + q), quorum);
+		}
+		assertTrue(channel.getBuffer().size() >= 4);
+	}
 }
@@ -0,0 +1,225 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test that the journal brings quorums and members back after a restart
+ */
+public class JournalTest
+{
+	private File dir;
+
+	/**
+	 * Sets up the test fixture.
+	 * Every test gets a directory of its own
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		dir = Files.createTempDirectory("journal").toFile();
+	}
+
+	/**
+	 * Cleanup the Test by removing the journal and going back to none
+	 */
+	@After
+	public void cleanup()
+	{
+		Config.get().setJournalDir(null);
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private static Set<String> set(String... names)
+	{
+		return new LinkedHashSet<String>(Arrays.asList(names));
+	}
+
+	//Changes written to the journal are found again
+	@Test
+	public void testRecover() throws IOException
+	{
+		Journal journal = new Journal(dir, 0, 1000);
+		journal.quorumMade("q1");
+		journal.joined("q1", "a");
+		journal.joined("q1", "b");
+		journal.quorumMade("q 2");
+		journal.joined("q 2", "a%b");
+		journal.left("q1", "a");
+		journal.quorumMade("q3");
+		journal.quorumRemoved("q3");
+		journal.close();
+
+		Map<String, Set<String>> roster = new Journal(dir, 0, 1000).getRecovered();
+		assertEquals(roster.size(), 2);
+		assertEquals(roster.get("q1"), set("b"));
+		assertEquals(roster.get("q 2"), set("a%b"));
+	}
+
+	//Snapshots replace the journal files before them
+	@Test
+	public void testSnapshots() throws IOException
+	{
+		Journal journal = new Journal(dir, 0, 10);
+		for (int i = 0; i < 35; i++)
+			journal.joined("q" + (i % 3), "user" + i);
+		Utility.pause(300);
+		journal.close();
+		assertEquals(journal.getSequence(), 35);
+		assertEquals(dir.listFiles().length, 2);
+
+		Journal reopened = new Journal(dir, 0, 10);
+		assertEquals(reopened.getSequence(), 35);
+		assertEquals(reopened.getRecovered().get("q1").size(), 12);
+		assertEquals(reopened.getRecovered(), journal.getRoster());
+	}
+
+	//A line cut short by a crash is left out
+	@Test
+	public void testTornLine() throws IOException
+	{
+		Journal journal = new Journal(dir, 0, 1000);
+		journal.joined("q1", "a");
+		journal.close();
+		// reopening compacts into a snapshot and an empty journal, which the torn line goes into
+		new Journal(dir, 0, 1000).close();
+		for (File file : dir.listFiles())
+			if (file.getName().startsWith("journal-"))
+			{
+				FileOutputStream out = new FileOutputStream(file, true);
+				out.write("+u q1 b".getBytes(StandardCharsets.UTF_8));
+				out.close();
+			}
+
+		Journal reopened = new Journal(dir, 0, 1000);
+		assertEquals(reopened.getRecovered().get("q1"), set("a"));
+		assertEquals(reopened.getMalformed(), 0);
+
+		// what is recorded next is not glued onto the torn line
+		reopened.joined("q1", "c");
+		reopened.close();
+		Map<String, Set<String>> roster = new Journal(dir, 0, 1000).getRecovered();
+		assertEquals(roster.size(), 1);
+		assertEquals(roster.get("q1"), set("a", "c"));
+	}
+
+	//Lines that cannot be understood are skipped and counted, the rest recovered
+	@Test
+	public void testMalformed() throws IOException
+	{
+		Journal journal = new Journal(dir, 0, 1000);
+		journal.joined("q1", "a");
+		journal.close();
+		for (File file : dir.listFiles())
+			if (file.getName().startsWith("journal-"))
+			{
+				FileOutputStream out = new FileOutputStream(file, true);
+				out.write("+u q1\n?q q2\n\n+q\n+u q1 b\n".getBytes(StandardCharsets.UTF_8));
+				out.close();
+			}
+
+		// files the journal did not write are left alone
+		assertTrue(new File(dir, "journal-notes.txt").createNewFile());
+		assertTrue(new File(dir, "snapshot-.txt").createNewFile());
+
+		Journal reopened = new Journal(dir, 0, 1000);
+		assertEquals(reopened.getMalformed(), 4);
+		assertEquals(reopened.getRecovered().get("q1"), set("a", "b"));
+		reopened.close();
+	}
+
+	//After a restart users are put back into their quorums when they connect
+	@Test
+	public void testRestart() throws IOException
+	{
+		Config.get().setJournalDir(dir.getPath());
+		Hive hive = new Hive(new ServerNodes());
+		Channel a = new Channel("a");
+		Channel b = new Channel("b");
+		new Quorum("q1", hive, a);
+		new Quorum("q2", hive, a);
+		hive.join("q1", b);
+		Quorum q3 = new Quorum("q3", hive, b);
+		q3.removeChannel(b);
+		Utility.pause(300);
+		hive.getJournal().close();
+
+		// the server comes back
+		ServerNodes serverNodes = new ServerNodes();
+		hive = new Hive(serverNodes);
+		assertFalse(hive.contains("q1"));
+		a = new Channel("a");
+		serverNodes.add(a);
+		hive.restore(a);
+		assertTrue(hive.contains("q1"));
+		assertTrue(hive.contains("q2"));
+		assertFalse(hive.contains("q3"));
+		assertEquals(a.getQuorums().keySet(), set("q1", "q2"));
+
+		b = new Channel("b");
+		hive.restore(b);
+		assertEquals(hive.getQuorumById("q1").getList().getNames(), Arrays.asList("a", "b"));
+		// only once
+		Channel again = new Channel("a");
+		hive.restore(again);
+		assertNull(again.getQuorums().get("q1"));
+		hive.getJournal().close();
+	}
+
+	//Memberships not claimed in time are dropped, and quorums no one came back to
+	@Test
+	public void testUnclaimed() throws IOException
+	{
+		Config.get().setJournalDir(dir.getPath());
+		Hive hive = new Hive(new ServerNodes());
+		Channel a = new Channel("a");
+		Channel b = new Channel("b");
+		new Quorum("q1", hive, a);
+		hive.join("q1", b);
+		new Quorum("q2", hive, b);
+		Utility.pause(300);
+		hive.getJournal().close();
+
+		// only a comes back
+		int grace = Config.get().getRestoreGraceMillis();
+		Config.get().setRestoreGraceMillis(200);
+		try
+		{
+			hive = new Hive(new ServerNodes());
+			hive.restore(new Channel("a"));
+			Utility.pause(500);
+			assertEquals(hive.getJournal().getRoster().size(), 1);
+			assertEquals(hive.getJournal().getRoster().get("q1"), set("a"));
+			hive.getJournal().close();
+		}
+		finally
+		{
+			Config.get().setRestoreGraceMillis(grace);
+		}
+
+		Map<String, Set<String>> roster = new Journal(dir, 0, 1000).getRecovered();
+		assertEquals(roster.size(), 1);
+		assertEquals(roster.get("q1"), set("a"));
+	}
+}
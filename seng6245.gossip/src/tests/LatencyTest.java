@@ -0,0 +1,143 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test the latencies recorded at each stage of a message's way
+ */
+public class LatencyTest
+{
+	private ServerSocket server;
+	private ServerNodes serverNodes;
+	private Hive hive;
+
+	/**
+	 * Sets up the test fixture.
+	 * Keeps latencies and the last messages of every quorum
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		Config config = new Config();
+		config.setLatency(true);
+		config.setHistoryMessages(10);
+		Config.set(config);
+		Latency.getAll().reset();
+		server = new ServerSocket(5100);
+		serverNodes = new ServerNodes();
+		hive = new Hive(serverNodes);
+	}
+
+	/**
+	 * Cleanup the Test by closing the server socket
+	 */
+	@After
+	public void cleanup() throws IOException
+	{
+		Config.set(new Config());
+		server.close();
+		Utility.pause(100);
+	}
+
+	/*
+	 * connects a client and starts its channel as the server would
+	 * @return BufferedReader - what the client is sent, past the handshake
+	 */
+	private BufferedReader connect(Socket client, String user) throws IOException
+	{
+		client.getOutputStream().write(("connect " + user + "\n").getBytes());
+		Channel channel = new Channel(server.accept(), hive, serverNodes);
+		serverNodes.add(channel);
+		hive.updateChannel(channel);
+		new Thread(channel).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals(in.readLine(), "To connect type: \"connect [username]\"");
+		assertEquals(in.readLine(), "Connected!");
+		return in;
+	}
+
+	//A message read from one member and written to two is recorded at every stage
+	@Test
+	public void testStages() throws IOException
+	{
+		Socket client1 = new Socket("localhost", 5100);
+		BufferedReader in1 = connect(client1, "User1");
+		PrintWriter out1 = new PrintWriter(client1.getOutputStream(), true);
+		out1.println("make q1");
+		while (!in1.readLine().equals("Connecting to Quorum: q1"))
+			continue;
+		Socket client2 = new Socket("localhost", 5100);
+		BufferedReader in2 = connect(client2, "User2");
+		PrintWriter out2 = new PrintWriter(client2.getOutputStream(), true);
+		out2.println("join q1");
+		Utility.pause(500);
+		Quorum quorum = hive.getQuorumById("q1");
+		Latency stages = quorum.getStages();
+		assertTrue(stages != null);
+
+		out1.println("message q1 hello");
+		Utility.pause(500);
+		assertEquals(stages.get(Latency.Stage.READ).getCount(), 1);
+		assertEquals(stages.get(Latency.Stage.QUORUM).getCount(), 1);
+		assertEquals(stages.get(Latency.Stage.DELIVER).getCount(), 2);
+		assertEquals(stages.get(Latency.Stage.WRITE).getCount(), 2);
+		assertEquals(stages.get(Latency.Stage.TOTAL).getCount(), 2);
+		// written after it was taken, taken after it was read
+		assertTrue(stages.get(Latency.Stage.TOTAL).getMax() >= stages.get(Latency.Stage.WRITE).getPercentile(50));
+		assertEquals(Latency.getAll().get(Latency.Stage.TOTAL).getCount(), 2);
+		assertTrue(stages.report().startsWith("Latency: (q1) read n=1 p50="));
+		assertTrue(stages.report().contains(" p99.99="));
+
+		// what a new member is sent from the history is not counted again
+		Socket client3 = new Socket("localhost", 5100);
+		BufferedReader in3 = connect(client3, "User3");
+		PrintWriter out3 = new PrintWriter(client3.getOutputStream(), true);
+		out3.println("join q1");
+		String line = in3.readLine();
+		while (!line.startsWith("Message"))
+			line = in3.readLine();
+		assertEquals(line, "Message (q1): User1 hello");
+		Utility.pause(200);
+		assertEquals(stages.get(Latency.Stage.WRITE).getCount(), 2);
+		assertEquals(stages.get(Latency.Stage.DELIVER).getCount(), 2);
+
+		// a message from the server itself has no read time
+		quorum.updateBuffer("User2 from afar");
+		Utility.pause(500);
+		assertEquals(stages.get(Latency.Stage.READ).getCount(), 1);
+		assertEquals(stages.get(Latency.Stage.QUORUM).getCount(), 2);
+		assertEquals(stages.get(Latency.Stage.WRITE).getCount(), 5);
+		assertEquals(stages.get(Latency.Stage.TOTAL).getCount(), 2);
+		client1.close();
+		client2.close();
+		client3.close();
+		in1.close();
+		in2.close();
+	}
+
+	//Quorums keep no latencies unless asked to
+	@Test
+	public void testOff() throws IOException
+	{
+		Config.set(new Config());
+		Quorum quorum = new Quorum("q1", hive, new Channel("User1"));
+		assertNull(quorum.getStages());
+		Frame frame = Frame.message("q1", "User1 hi");
+		assertTrue(frame.untraced() == frame);
+		frame.recordWritten();
+		assertEquals(Latency.getAll().get(Latency.Stage.WRITE).getCount(), 0);
+	}
+}
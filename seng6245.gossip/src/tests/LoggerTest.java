@@ -0,0 +1,143 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import adts.Logger;
+import server.Config;
+
+/**
+ * Test the logger writing on a thread of its own
+ */
+public class LoggerTest
+{
+	//Only lines at or above the level are written, in the order logged
+	@Test
+	public void testLevels()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Logger logger = new Logger(new PrintStream(bytes, true), 16);
+		assertEquals(logger.getLevel(), Logger.Level.INFO);
+		assertFalse(logger.isEnabled(Logger.Level.DEBUG));
+		logger.log(Logger.Level.DEBUG, "hidden");
+		logger.log(Logger.Level.INFO, "one");
+		logger.log(Logger.Level.ERROR, "two");
+		logger.setLevel(Logger.Level.OFF);
+		logger.log(Logger.Level.ERROR, "off");
+		logger.setLevel(Logger.Level.DEBUG);
+		assertTrue(logger.isEnabled(Logger.Level.DEBUG));
+		logger.log(Logger.Level.DEBUG, "three");
+		assertTrue(logger.flush(1000));
+		String separator = System.lineSeparator();
+		assertEquals(bytes.toString(), "one" + separator + "two" + separator + "three" + separator);
+	}
+
+	//Lines from many threads are all written, each thread's in order
+	@Test
+	public void testConcurrent() throws InterruptedException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final Logger logger = new Logger(new PrintStream(bytes, true), 1 << 16);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int id = i;
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					for (int j = 0; j < 10000; j++)
+						logger.log(Logger.Level.INFO, id + " " + j);
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(logger.flush(5000));
+		assertEquals(logger.getDropped(), 0);
+
+		int[] next = new int[threads.length];
+		String[] lines = bytes.toString().split(System.lineSeparator());
+		assertEquals(lines.length, 40000);
+		for (String line : lines)
+		{
+			String[] parts = line.split(" ");
+			int id = Integer.parseInt(parts[0]);
+			assertEquals(Integer.parseInt(parts[1]), next[id]);
+			next[id]++;
+		}
+	}
+
+	//A writer a whole ring behind drops lines instead of holding up the loggers
+	@Test
+	public void testDropped() throws InterruptedException
+	{
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream stalled = new OutputStream()
+		{
+			public void write(int b) throws IOException
+			{
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				writing.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+				bytes.write(b, off, len);
+			}
+		};
+		Logger logger = new Logger(new PrintStream(stalled, true), 4);
+		assertTrue(logger.offer("first"));
+		writing.await();
+		// the writer is stuck writing the first line
+		for (int i = 0; i < 4; i++)
+			assertTrue(logger.offer("line" + i));
+		assertFalse(logger.offer("lost"));
+		assertFalse(logger.offer("lost"));
+		assertEquals(logger.getDropped(), 2);
+		release.countDown();
+		assertTrue(logger.flush(1000));
+		logger.offer("last");
+		assertTrue(logger.flush(1000));
+		String separator = System.lineSeparator();
+		assertEquals(bytes.toString(), "first" + separator + "line0" + separator + "line1" + separator + "line2"
+				+ separator + "line3" + separator + "Logger: 2 lines dropped" + separator + "last" + separator);
+	}
+
+	//The level of the server's logger is a start-up option
+	@Test
+	public void testConfig()
+	{
+		assertEquals(Config.parse(new String[0]).getLogLevel(), Logger.Level.INFO);
+		assertEquals(Config.parse(new String[] { "-loglevel", "debug" }).getLogLevel(), Logger.Level.DEBUG);
+		try
+		{
+			Config.parse(new String[] { "-loglevel", "loud" });
+			assertTrue(false);
+		}
+		catch (IllegalArgumentException e)
+		{
+			assertEquals(e.getMessage(), "-loglevel should be debug, info, warn, error or off");
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test the message log: appends, reads across segments and reopening
+ */
+public class MessageLogTest
+{
+	private File dir;
+
+	/**
+	 * Sets up the test fixture.
+	 * Every test gets a directory of its own
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		dir = Files.createTempDirectory("messagelog").toFile();
+	}
+
+	/**
+	 * Cleanup the Test by removing the logs and going back to no logs
+	 */
+	@After
+	public void cleanup()
+	{
+		Config.get().setLogDir(null);
+		delete(dir);
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	//Messages come back in order with their offsets
+	@Test
+	public void testAppendAndRead() throws IOException
+	{
+		MessageLog log = new MessageLog(dir, 1 << 20, 0, 0);
+		for (int i = 0; i < 100; i++)
+			assertEquals(log.append("user message" + i), i);
+		assertEquals(log.getNextOffset(), 100);
+
+		assertEquals(log.read(0, 3), Arrays.asList("user message0", "user message1", "user message2"));
+		assertEquals(log.read(98, 10), Arrays.asList("user message98", "user message99"));
+		assertEquals(log.read(100, 10).size(), 0);
+	}
+
+	//A full segment rolls over and reads find messages in either segment
+	@Test
+	public void testSegments() throws IOException
+	{
+		MessageLog log = new MessageLog(dir, 4096, 0, 0);
+		for (int i = 0; i < 2000; i++)
+			log.append("user message" + i);
+		assertTrue(log.getSegmentCount() > 1);
+
+		List<String> messages = log.read(0, 5000);
+		assertEquals(messages.size(), 2000);
+		for (int i = 0; i < 2000; i++)
+			assertEquals(messages.get(i), "user message" + i);
+		assertEquals(log.read(1234, 1).get(0), "user message1234");
+	}
+
+	//The next segment is made ahead of time, and segments let go of are read again
+	@Test
+	public void testSpare() throws IOException
+	{
+		MessageLog log = new MessageLog(dir, 4096, 0, 0);
+		Utility.pause(200);
+		File spare = new File(dir, "spare.log.tmp");
+		assertTrue(spare.exists());
+		int count = 0;
+		while (log.getSegmentCount() < 10)
+			log.append("user message" + count++);
+		Utility.pause(200);
+		assertTrue(spare.exists());
+		assertTrue(new File(dir, String.format("%020d.log", 0)).exists());
+		assertEquals(dir.list().length, 2 * log.getSegmentCount() + 2);
+
+		// the first segments were let go of since
+		for (int round = 0; round < 2; round++)
+		{
+			List<String> messages = log.read(0, count);
+			assertEquals(messages.size(), count);
+			for (int i = 0; i < count; i++)
+				assertEquals(messages.get(i), "user message" + i);
+		}
+
+		// a spare left behind is not taken for a segment
+		MessageLog reopened = new MessageLog(dir, 4096, 0, 0);
+		assertEquals(reopened.getNextOffset(), count);
+		assertEquals(reopened.getSegmentCount(), log.getSegmentCount());
+	}
+
+	//A log opened again continues where it ended
+	@Test
+	public void testReopen() throws IOException
+	{
+		MessageLog log = new MessageLog(dir, 8192, 0, 0);
+		for (int i = 0; i < 1000; i++)
+			log.append("user message" + i);
+		log.sync();
+
+		MessageLog reopened = new MessageLog(dir, 8192, 0, 0);
+		assertEquals(reopened.getNextOffset(), 1000);
+		assertEquals(reopened.read(999, 1).get(0), "user message999");
+		assertEquals(reopened.append("user again"), 1000);
+		assertEquals(reopened.read(1000, 1).get(0), "user again");
+	}
+
+	//Text that is not ASCII is kept as it was, empty messages too
+	@Test
+	public void testText() throws IOException
+	{
+		MessageLog log = new MessageLog(dir, 4096, 0, 0);
+		String[] texts = { "", "user café", "user 你好", "user 😀", "user \ud83d" };
+		for (String text : texts)
+			log.append(text);
+		List<String> messages = log.read(0, 10);
+		for (int i = 0; i < texts.length; i++)
+			assertEquals(messages.get(i), new String(texts[i].getBytes("UTF-8"), "UTF-8"));
+	}
+
+	//Messages longer than a segment are refused
+	@Test(expected = IOException.class)
+	public void testTooLong() throws IOException
+	{
+		MessageLog log = new MessageLog(dir, 4096, 0, 0);
+		char[] text = new char[5000];
+		Arrays.fill(text, 'x');
+		log.append(new String(text));
+	}
+
+	//A quorum logs what it delivered, and a new quorum of that name goes on with it
+	@Test
+	public void testQuorumLog() throws IOException
+	{
+		Config.get().setLogDir(dir.getPath());
+		Hive hive = new Hive(new ServerNodes());
+		Channel channel = new Channel("1");
+		Quorum quorum = new Quorum("logged room", hive, channel);
+		quorum.updateBuffer("1 hello");
+		quorum.updateBuffer("1 world");
+		Utility.pause(300);
+		assertEquals(quorum.getLog().read(0, 10), Arrays.asList("1 hello", "1 world"));
+
+		quorum.removeChannel(channel);
+		Utility.pause(300);
+		quorum = new Quorum("logged room", hive, channel);
+		assertEquals(quorum.getLog().getNextOffset(), 2);
+		quorum.updateBuffer("1 again");
+		Utility.pause(300);
+		assertEquals(quorum.getLog().read(1, 10), Arrays.asList("1 world", "1 again"));
+		assertTrue(new File(dir, "logged%20room").isDirectory());
+	}
+
+	//A quorum refused a taken name lets go of the log it opened
+	@Test
+	public void testTakenName() throws IOException
+	{
+		Config.get().setLogDir(dir.getPath());
+		Hive hive = new Hive(new ServerNodes());
+		Channel channel = new Channel("1");
+		Quorum quorum = new Quorum("taken", hive, channel);
+		MessageLog log = quorum.getLog();
+		try
+		{
+			new Quorum("taken", hive, new Channel("2"));
+			fail("the name is taken");
+		}
+		catch (IOException expected)
+		{
+		}
+
+		// once the quorum closes no one holds the log any more
+		quorum.removeChannel(channel);
+		Utility.pause(300);
+		quorum = new Quorum("taken", hive, channel);
+		assertNotSame(quorum.getLog(), log);
+	}
+}
@@ -0,0 +1,334 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import server.*;
+
+/**
+ * Test that the selector based server speaks the same protocol as Server
+ */
+public class NioServerTest
+{
+	private NioServer server;
+	private Thread thread;
+
+	/**
+	 * Sets up the test fixture.
+	 * Starts a server with two event loops
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		server = new NioServer(5050, 2);
+		thread = new Thread()
+		{
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		thread.start();
+		Utility.pause(100);
+	}
+
+	/**
+	 * Cleanup the Test by closing the server
+	 */
+	@After
+	public void cleanup() throws InterruptedException
+	{
+		server.close();
+		thread.join();
+		Utility.pause(100);
+	}
+
+	// connects a client and completes the handshake
+	private BufferedReader connect(Socket socket, String userName) throws IOException
+	{
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		assertEquals(in.readLine(), "To connect type: \"connect [username]\"");
+		new PrintWriter(socket.getOutputStream(), true).println("connect " + userName);
+		return in;
+	}
+
+	//Verify the handshake and the initial lists
+	@Test
+	public void testConnect() throws IOException
+	{
+		Socket socket = new Socket("localhost", 5050);
+		BufferedReader in = connect(socket, "one");
+		assertEquals(in.readLine(), "Connected!");
+		assertEquals(in.readLine(), "ServerNodes: one");
+		assertEquals(in.readLine(), "Hive");
+		assertTrue(server.getServerNodes().contains("one"));
+		socket.close();
+	}
+
+	//Force fail a Bad User Name command
+	@Test
+	public void testBadHandshake() throws IOException
+	{
+		Socket socket = new Socket("localhost", 5050);
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		assertEquals(in.readLine(), "To connect type: \"connect [username]\"");
+		new PrintWriter(socket.getOutputStream(), true).println("thisiswrong User1");
+		assertEquals(in.readLine(), "Invalid format 'connect [username]'");
+		assertNull(in.readLine());
+		socket.close();
+	}
+
+	//A second connection for the same user is refused
+	@Test
+	public void testDuplicateUser() throws IOException
+	{
+		Socket socket1 = new Socket("localhost", 5050);
+		BufferedReader in1 = connect(socket1, "one");
+		assertEquals(in1.readLine(), "Connected!");
+
+		Socket socket2 = new Socket("localhost", 5050);
+		BufferedReader in2 = connect(socket2, "one");
+		assertEquals(in2.readLine(), "The user associated with this channel already exists.");
+		assertNull(in2.readLine());
+		assertTrue(server.getServerNodes().contains("one"));
+		socket1.close();
+		socket2.close();
+	}
+
+	//Make a quorum, message it and disconnect
+	@Test
+	public void testCommands() throws IOException
+	{
+		Socket socket = new Socket("localhost", 5050);
+		BufferedReader in = connect(socket, "one");
+		PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+		assertEquals(in.readLine(), "Connected!");
+		assertEquals(in.readLine(), "ServerNodes: one");
+		assertEquals(in.readLine(), "Hive");
+
+		out.println("make quorum1");
+		assertEquals(in.readLine(), "Hive quorum1");
+		assertEquals(in.readLine(), "Connecting to Quorum: quorum1");
+		assertEquals(in.readLine(), "ClientNodes (quorum1): one");
+		assertEquals(in.readLine(), "List of connected Quorums: quorum1");
+
+		out.println("message quorum1 hello there");
+		assertEquals(in.readLine(), "Message (quorum1): one hello there");
+
+		out.println("does not exist");
+		assertEquals(in.readLine(), "Unrecognized Command: does not exist");
+
+		out.println("disconnect one");
+		assertEquals(in.readLine(), "disconnectedFromServer");
+		assertNull(in.readLine());
+		Utility.pause(500);
+		assertFalse(server.getServerNodes().contains("one"));
+		assertFalse(server.getHive().contains("quorum1"));
+		socket.close();
+	}
+
+	//Clients on different loops see each other's messages
+	@Test
+	public void testTwoClients() throws IOException
+	{
+		Socket socket1 = new Socket("localhost", 5050);
+		BufferedReader in1 = connect(socket1, "one");
+		PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+		assertEquals(in1.readLine(), "Connected!");
+		assertEquals(in1.readLine(), "ServerNodes: one");
+		assertEquals(in1.readLine(), "Hive");
+		out1.println("make quorum1");
+		assertEquals(in1.readLine(), "Hive quorum1");
+		assertEquals(in1.readLine(), "Connecting to Quorum: quorum1");
+		assertEquals(in1.readLine(), "ClientNodes (quorum1): one");
+		assertEquals(in1.readLine(), "List of connected Quorums: quorum1");
+
+		Socket socket2 = new Socket("localhost", 5050);
+		BufferedReader in2 = connect(socket2, "two");
+		PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+		assertEquals(in2.readLine(), "Connected!");
+		assertEquals(in2.readLine(), "ServerNodes: one two");
+		assertEquals(in2.readLine(), "Hive quorum1");
+		assertEquals(in1.readLine(), "ServerNodes: one two");
+
+		out2.println("join quorum1");
+		assertEquals(in2.readLine(), "Connecting to Quorum: quorum1");
+		assertEquals(in2.readLine(), "ClientNodes (quorum1): one two");
+		assertEquals(in1.readLine(), "ClientNodes (quorum1): one two");
+
+		out2.println("message quorum1 hi");
+		assertEquals(in1.readLine(), "Message (quorum1): two hi");
+		assertEquals(in2.readLine(), "Message (quorum1): two hi");
+
+		// dropping the socket removes the user everywhere
+		socket2.close();
+		assertEquals(in1.readLine(), "ClientNodes (quorum1): one");
+		assertEquals(in1.readLine(), "ServerNodes: one");
+		socket1.close();
+	}
+
+	//Sockets go to the loop with the fewest connections
+	@Test
+	public void testLeastLoaded() throws IOException, InterruptedException
+	{
+		server.close();
+		thread.join();
+		server = new NioServer(5050, 2, NioServer.Balance.LEAST_LOADED, 0, 0);
+		thread = new Thread()
+		{
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		thread.start();
+		Utility.pause(100);
+
+		Socket[] sockets = new Socket[4];
+		for (int i = 0; i < sockets.length; i++)
+		{
+			sockets[i] = new Socket("localhost", 5050);
+			assertEquals(connect(sockets[i], "user" + i).readLine(), "Connected!");
+		}
+		assertEquals(server.getLoops()[0].getConnectionCount(), 2);
+		assertEquals(server.getLoops()[1].getConnectionCount(), 2);
+		for (Socket socket : sockets)
+			socket.close();
+	}
+
+	//Idle connections keep working after moving between loops
+	@Test
+	public void testMigration() throws IOException
+	{
+		Socket socket1 = new Socket("localhost", 5050);
+		BufferedReader in1 = connect(socket1, "one");
+		PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+		assertEquals(in1.readLine(), "Connected!");
+		assertEquals(in1.readLine(), "ServerNodes: one");
+		assertEquals(in1.readLine(), "Hive");
+		Socket socket2 = new Socket("localhost", 5050);
+		BufferedReader in2 = connect(socket2, "two");
+		assertEquals(in2.readLine(), "Connected!");
+		assertEquals(in1.readLine(), "ServerNodes: one two");
+
+		EventLoop[] loops = server.getLoops();
+		assertEquals(loops[0].getConnectionCount(), 1);
+		assertEquals(loops[1].getConnectionCount(), 1);
+		assertTrue(loops[0].getBytesIn() > 0);
+		assertTrue(loops[0].getBytesOut() > 0);
+
+		// move everything onto the first loop, then let the server even it out
+		loops[1].migrate(10, loops[0], 0);
+		Utility.pause(100);
+		assertEquals(loops[0].getConnectionCount(), 2);
+		assertEquals(loops[1].getConnectionCount(), 0);
+		server.rebalance(0);
+		Utility.pause(100);
+		assertEquals(loops[0].getConnectionCount(), 1);
+		assertEquals(loops[1].getConnectionCount(), 1);
+
+		out1.println("make quorum1");
+		assertEquals(in1.readLine(), "Hive quorum1");
+		assertEquals(in2.readLine(), "ServerNodes: one two");
+		assertEquals(in2.readLine(), "Hive");
+		assertEquals(in2.readLine(), "Hive quorum1");
+		assertTrue(loops[1].report().startsWith("EventLoop: (loop-1) connections=1"));
+		socket1.close();
+		socket2.close();
+	}
+
+	//A task or a command that throws drops one connection, not the loop
+	@Test
+	public void testFailure() throws IOException
+	{
+		Commands.get().register("crash", 0, false, new Commands.Handler()
+		{
+			public String handle(Channel channel, Arguments arguments)
+			{
+				throw new IllegalStateException("crash");
+			}
+		});
+		Socket socket1 = new Socket("localhost", 5050);
+		BufferedReader in1 = connect(socket1, "one");
+		PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+		assertEquals(in1.readLine(), "Connected!");
+		assertEquals(in1.readLine(), "ServerNodes: one");
+		assertEquals(in1.readLine(), "Hive");
+		Socket socket2 = new Socket("localhost", 5050);
+		BufferedReader in2 = connect(socket2, "two");
+		PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+		assertEquals(in2.readLine(), "Connected!");
+		assertEquals(in1.readLine(), "ServerNodes: one two");
+
+		// both connections on one loop
+		EventLoop[] loops = server.getLoops();
+		loops[1].migrate(10, loops[0], 0);
+		Utility.pause(100);
+		assertEquals(loops[0].getConnectionCount(), 2);
+		loops[0].execute(new Runnable()
+		{
+			public void run()
+			{
+				throw new IllegalStateException("task");
+			}
+		});
+
+		out2.println("crash");
+		assertEquals(in2.readLine(), "ServerNodes: one two");
+		assertEquals(in2.readLine(), "Hive");
+		assertNull(in2.readLine());
+		assertEquals(in1.readLine(), "ServerNodes: one");
+		assertFalse(server.getServerNodes().contains("two"));
+
+		out1.println("make quorum1");
+		assertEquals(in1.readLine(), "Hive quorum1");
+		assertEquals(loops[0].getConnectionCount(), 1);
+		socket1.close();
+		socket2.close();
+	}
+
+	//Clients that never send the handshake, or go quiet, are cut off
+	@Test
+	public void testTimeouts() throws IOException
+	{
+		Config config = new Config();
+		config.setHandshakeTimeoutMillis(200);
+		config.setHeartbeatMillis(200);
+		config.setIdleTimeoutMillis(500);
+		Config.set(config);
+		try
+		{
+			Socket silent = new Socket("localhost", 5050);
+			BufferedReader in = new BufferedReader(new InputStreamReader(silent.getInputStream()));
+			assertEquals(in.readLine(), "To connect type: \"connect [username]\"");
+			assertNull(in.readLine());
+			silent.close();
+
+			Socket socket = new Socket("localhost", 5050);
+			in = connect(socket, "quiet");
+			assertEquals(in.readLine(), "Connected!");
+			assertEquals(in.readLine(), "ServerNodes: quiet");
+			assertEquals(in.readLine(), "Hive");
+			// pinged until the idle limit, then closed
+			assertEquals(in.readLine(), "ping");
+			for (String line = in.readLine(); line != null; line = in.readLine())
+				assertEquals(line, "ping");
+			Utility.pause(100);
+			assertFalse(server.getServerNodes().contains("quiet"));
+			socket.close();
+		}
+		finally
+		{
+			Config.set(new Config());
+		}
+	}
+}
@@ -7,7 +7,6 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -48,7 +47,7 @@ public class NodesTest
 		Map<String, Channel> map = nodes.getNodesMap();
 		assertEquals(map.size(), 1);
 		assertEquals(map.get("1"), channel1);
-		LinkedBlockingQueue<String> buffer = channel1.getBuffer();
+		Outbox buffer = channel1.getBuffer();
 		String output = buffer.poll();
 		assertEquals(output, "1");
 		output = buffer.poll();
@@ -60,7 +59,7 @@ public class NodesTest
 	public void testAddN() throws IOException
 	{
 		String output;
-		LinkedBlockingQueue<String> buffer;
+		Outbox buffer;
 		nodes.add(channel1);
 		nodes.add(channel2);
 		nodes.add(channel3);
@@ -118,7 +117,7 @@ public class NodesTest
 	public void testRemove() throws IOException
 	{
 		String output;
-		LinkedBlockingQueue<String> buffer;
+		Outbox buffer;
 		nodes.add(channel1);
 		nodes.add(channel2);
 		nodes.add(channel3);
@@ -375,4 +374,23 @@ public class NodesTest
 
 		assertEquals(nodes.size(), 1);
 	}
+
+	// The members are kept sorted, and a copy handed out never changes
+	@Test
+	public void testMembersSnapshot() throws IOException
+	{
+		nodes.add(channel3);
+		nodes.add(channel1);
+		Channel[] before = nodes.getMembers();
+		nodes.add(channel2);
+		assertArrayEquals(before, new Channel[] { channel1, channel3 });
+		assertArrayEquals(nodes.getMembers(), new Channel[] { channel1, channel2, channel3 });
+
+		nodes.remove(channel2);
+		assertArrayEquals(nodes.getMembers(), new Channel[] { channel1, channel3 });
+		nodes.remove(channel2);
+		nodes.remove(channel1);
+		nodes.remove(channel3);
+		assertEquals(nodes.getMembers().length, 0);
+	}
 }
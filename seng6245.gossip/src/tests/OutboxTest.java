@@ -0,0 +1,171 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test the bounds and slow consumer policies of the outbound queue
+ */
+public class OutboxTest
+{
+	/**
+	 * Cleanup the Test by restoring the default options
+	 */
+	@After
+	public void cleanup()
+	{
+		Config.set(new Config());
+	}
+
+	//Chat messages make room for newer frames, control lines are always kept
+	@Test
+	public void testDropOldest()
+	{
+		Outbox outbox = new Outbox(3, 1024, Outbox.Policy.DROP_OLDEST, 0);
+		assertTrue(outbox.offer(Frame.message("q", "a m1")));
+		assertTrue(outbox.offer(Frame.message("q", "a m2")));
+		assertTrue(outbox.offer(Frame.of("c1")));
+		assertTrue(outbox.offer(Frame.message("q", "a m3")));
+		assertTrue(outbox.offer(Frame.of("c2")));
+		assertTrue(outbox.offer(Frame.of("c3")));
+		assertTrue(outbox.offer(Frame.of("c4")));
+		assertFalse(outbox.offer(Frame.message("q", "a m4")));
+
+		assertEquals(outbox.getDropped(), 4);
+		assertEquals(outbox.getHighWaterFrames(), 4);
+		assertEquals(outbox.poll(), "c1");
+		assertEquals(outbox.poll(), "c2");
+		assertEquals(outbox.poll(), "c3");
+		assertEquals(outbox.poll(), "c4");
+		assertNull(outbox.poll());
+		assertEquals(outbox.getBytes(), 0);
+	}
+
+	//The byte bound counts encoded bytes and disconnect stops accepting frames
+	@Test
+	public void testDisconnect()
+	{
+		Outbox outbox = new Outbox(100, 20, Outbox.Policy.DISCONNECT, 0);
+		assertTrue(outbox.offer(Frame.of("123456789")));
+		assertTrue(outbox.offer(Frame.of("123456789")));
+		assertFalse(outbox.isOverflowed());
+		assertFalse(outbox.offer(Frame.of("1")));
+		assertTrue(outbox.isOverflowed());
+		outbox.clear();
+		assertFalse(outbox.offer(Frame.of("1")));
+		assertEquals(outbox.getHighWaterBytes(), 20);
+	}
+
+	//Replies wait for room, broadcasts never do; control lines are never dropped
+	@Test
+	public void testBlock() throws InterruptedException
+	{
+		final Outbox outbox = new Outbox(1, 1024, Outbox.Policy.BLOCK, 5000);
+		assertTrue(outbox.add(Frame.of("first")));
+		long start = System.nanoTime();
+		assertFalse(outbox.offer(Frame.message("q", "a broadcast")));
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertEquals(outbox.getDropped(), 1);
+
+		// a member list that does not fit is queued anyway, without waiting
+		assertTrue(outbox.offer(Frame.of("members")));
+		assertTrue(System.nanoTime() - start < 1000000000L);
+		assertEquals(outbox.size(), 2);
+		assertEquals(outbox.poll(), "first");
+		assertEquals(outbox.poll(), "members");
+		assertTrue(outbox.add(Frame.of("first")));
+
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				outbox.add(Frame.of("reply"));
+			}
+		};
+		thread.start();
+		Utility.pause(100);
+		assertTrue(thread.isAlive());
+		assertEquals(outbox.poll(), "first");
+		thread.join(1000);
+		assertEquals(outbox.poll(), "reply");
+
+		// a message that finds no room in time is dropped, a control line kept
+		Outbox timed = new Outbox(1, 1024, Outbox.Policy.BLOCK, 100);
+		timed.add(Frame.of("first"));
+		assertFalse(timed.add(Frame.message("q", "a late")));
+		assertEquals(timed.getDropped(), 1);
+		assertTrue(timed.add(Frame.of("late")));
+		assertEquals(timed.size(), 2);
+	}
+
+	//A whole member list replaces the queued lines about its list
+	@Test
+	public void testListSupersedes()
+	{
+		Outbox outbox = new Outbox(2, 1024, Outbox.Policy.DROP_OLDEST, 0);
+		assertTrue(outbox.offer(Frame.of("first")));
+		assertTrue(outbox.offer(Frame.of("ServerNodes: a")));
+		assertTrue(outbox.offer(Frame.of("Hive q1")));
+		assertTrue(outbox.offer(Frame.of("ServerNodes: a b")));
+		assertTrue(outbox.offer(Frame.of("Hive q1 q2")));
+		assertEquals(outbox.size(), 3);
+		assertEquals(outbox.poll(), "first");
+		assertEquals(outbox.poll(), "ServerNodes: a b");
+		assertEquals(outbox.poll(), "Hive q1 q2");
+
+		// a snapshot makes the deltas before it out of date, not those after
+		Outbox deltas = new Outbox(2, 1024, Outbox.Policy.BLOCK, 0);
+		assertTrue(deltas.offer(Frame.of("first")));
+		assertTrue(deltas.offer(Frame.of("ClientNodes (q)@1 +a")));
+		assertTrue(deltas.offer(Frame.of("ServerNodes@4 +a")));
+		assertTrue(deltas.offer(Frame.of("ClientNodes (q)@2: a b")));
+		assertTrue(deltas.offer(Frame.of("ClientNodes (q)@3 -b")));
+		assertEquals(deltas.poll(), "first");
+		assertEquals(deltas.poll(), "ServerNodes@4 +a");
+		assertEquals(deltas.poll(), "ClientNodes (q)@2: a b");
+		assertEquals(deltas.poll(), "ClientNodes (q)@3 -b");
+		assertNull(deltas.poll());
+		assertEquals(deltas.getDropped(), 0);
+	}
+
+	//Control lines beyond twice the bounds overflow the outbox
+	@Test
+	public void testControlLinesCapped()
+	{
+		Outbox outbox = new Outbox(2, 1024, Outbox.Policy.DROP_OLDEST, 0);
+		for (int i = 0; i < 4; i++)
+			assertTrue(outbox.offer(Frame.of("ServerNodes@" + i + " +u" + i)));
+		assertFalse(outbox.isOverflowed());
+		assertFalse(outbox.offer(Frame.of("ServerNodes@4 +u4")));
+		assertTrue(outbox.isOverflowed());
+		assertEquals(outbox.size(), 4);
+	}
+
+	//A channel that overflows under disconnect is told why and stops
+	@Test
+	public void testSlowChannel() throws IOException
+	{
+		Config config = new Config();
+		config.setOutboxFrames(2);
+		config.setSlowPolicy(Outbox.Policy.DISCONNECT);
+		Config.set(config);
+		ServerNodes nodes = new ServerNodes();
+		Channel channel = new Channel("User1");
+		nodes.add(channel);
+		nodes.notifyChannels("one");
+		nodes.notifyChannels("two");
+		assertTrue(channel.getBuffer().isOverflowed());
+		assertEquals(channel.getBuffer().poll(), "Disconnected: slow consumer, outbound queue full (2 frames, 4194304 bytes)");
+		assertNull(channel.getBuffer().poll());
+	}
+}
@@ -0,0 +1,278 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import adts.*;
+import protocol.*;
+import server.*;
+
+/**
+ * Test the versioned membership lines and their delivery to clients that
+ * asked for deltas next to clients that did not
+ */
+public class PresenceTest
+{
+	//Lines are formatted and read back, old full lines included
+	@Test
+	public void testParse()
+	{
+		assertEquals(Presence.snapshot(Presence.SERVER, 7, Arrays.asList("a", "b")), "ServerNodes@7: a b");
+		assertEquals(Presence.snapshot(Presence.HIVE, 0, Collections.<String> emptyList()), "Hive@0:");
+		assertEquals(Presence.delta(Presence.quorumList("q1"), 3, false, "a"), "ClientNodes (q1)@3 -a");
+
+		Presence.Update update = Presence.parse("ServerNodes@8 +d");
+		assertEquals(update.getList(), "ServerNodes");
+		assertEquals(update.getVersion(), 8);
+		assertFalse(update.isSnapshot());
+		assertTrue(update.isAdded());
+		assertEquals(update.getName(), "d");
+
+		update = Presence.parse("ClientNodes (q1)@3 -a");
+		assertEquals(update.getList(), "ClientNodes (q1)");
+		assertEquals(update.getQuorum(), "q1");
+		assertEquals(update.getResyncKey(), "q1");
+		assertFalse(update.isAdded());
+
+		update = Presence.parse("Hive@0:");
+		assertTrue(update.isSnapshot());
+		assertEquals(update.getNames().size(), 0);
+		assertEquals(update.getResyncKey(), "Hive");
+
+		update = Presence.parse("ClientNodes (q1): one two");
+		assertEquals(update.getVersion(), -1);
+		assertEquals(update.getNames(), Arrays.asList("one", "two"));
+		assertEquals(Presence.parse("Hive").getNames().size(), 0);
+		assertEquals(Presence.parse("ServerNodes: ").getNames().size(), 0);
+
+		assertNull(Presence.parse("Message (q1): one hello"));
+		assertNull(Presence.parse("Connected!"));
+		assertNull(Presence.parse("ServerNodes@x +d"));
+	}
+
+	//Deltas apply in order on top of a snapshot, a skipped version is a gap
+	@Test
+	public void testAccept()
+	{
+		Presence presence = new Presence();
+		assertEquals(presence.accept(Presence.parse("ServerNodes@4 +c")), Presence.Result.STALE);
+		assertEquals(presence.accept(Presence.parse("ServerNodes@3: a b")), Presence.Result.APPLY);
+		assertEquals(presence.accept(Presence.parse("ServerNodes@3 +b")), Presence.Result.STALE);
+		assertEquals(presence.accept(Presence.parse("ServerNodes@4 +c")), Presence.Result.APPLY);
+		assertEquals(presence.accept(Presence.parse("ServerNodes@5 -a")), Presence.Result.APPLY);
+		assertEquals(presence.getNames("ServerNodes"), Arrays.asList("b", "c"));
+		assertEquals(presence.accept(Presence.parse("ServerNodes@7 +e")), Presence.Result.GAP);
+		assertEquals(presence.getNames("ServerNodes"), Arrays.asList("b", "c"));
+		assertEquals(presence.accept(Presence.parse("ServerNodes@7: b c d e")), Presence.Result.APPLY);
+		assertEquals(presence.getNames("ServerNodes"), Arrays.asList("b", "c", "d", "e"));
+
+		// full lines always apply and replace the names
+		assertEquals(presence.accept(Presence.parse("Hive q2 q1")), Presence.Result.APPLY);
+		assertEquals(presence.getNames("Hive"), Arrays.asList("q1", "q2"));
+	}
+
+	//A quorum closed and made again starts its list over on the client
+	@Test
+	public void testRemake() throws IOException, InterruptedException
+	{
+		final NioServer server = new NioServer(5081, 1);
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		thread.start();
+		Utility.pause(100);
+		try
+		{
+			Presence presence = new Presence();
+			Socket socket1 = new Socket("localhost", 5081);
+			BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+			PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+			assertEquals(in1.readLine(), Handshake.PROMPT);
+			out1.println(Handshake.request("one", Arrays.asList(Handshake.DELTA)));
+			assertEquals(in1.readLine(), "Connected! delta");
+			Socket socket2 = new Socket("localhost", 5081);
+			BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+			PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+			assertEquals(in2.readLine(), Handshake.PROMPT);
+			out2.println("connect two");
+			assertEquals(in2.readLine(), "Connected!");
+
+			out1.println("make quorum1");
+			assertEquals(next(in1, presence, "ClientNodes (quorum1)"), "ClientNodes (quorum1)@1: one");
+			out2.println("join quorum1");
+			assertEquals(next(in1, presence, "ClientNodes (quorum1)"), "ClientNodes (quorum1)@2 +two");
+			out2.println("exit quorum1");
+			assertEquals(next(in1, presence, "ClientNodes (quorum1)"), "ClientNodes (quorum1)@3 -two");
+			out1.println("exit quorum1");
+			assertEquals(next(in1, presence, "disconnectedquorum"), "disconnectedquorum quorum1");
+
+			// the new quorum's versions start again below the old ones
+			out1.println("make quorum1");
+			assertEquals(next(in1, presence, "ClientNodes (quorum1)"), "ClientNodes (quorum1)@1: one");
+			out2.println("join quorum1");
+			assertEquals(next(in1, presence, "ClientNodes (quorum1)"), "ClientNodes (quorum1)@2 +two");
+			assertEquals(presence.getNames(Presence.quorumList("quorum1")), Arrays.asList("one", "two"));
+
+			// a snapshot resets the list even without the client forgetting it
+			Presence kept = new Presence();
+			assertEquals(kept.accept(Presence.parse("ClientNodes (quorum1)@3: one")), Presence.Result.APPLY);
+			assertEquals(kept.accept(Presence.parse("ClientNodes (quorum1)@1: one")), Presence.Result.APPLY);
+			assertEquals(kept.accept(Presence.parse("ClientNodes (quorum1)@2 +two")), Presence.Result.APPLY);
+			socket2.close();
+			socket1.close();
+		}
+		finally
+		{
+			server.close();
+			thread.join();
+			Utility.pause(100);
+		}
+	}
+
+	// reads lines as a client would until one starts with the prefix:
+	// membership lines must apply, and leaving a quorum forgets its list
+	private String next(BufferedReader in, Presence presence, String prefix) throws IOException
+	{
+		while (true)
+		{
+			String line = in.readLine();
+			Presence.Update update = Presence.parse(line);
+			if (update != null)
+				assertEquals(presence.accept(update), Presence.Result.APPLY);
+			if (line.startsWith("disconnectedquorum "))
+				presence.forget(Presence.quorumList(line.substring(line.indexOf(' ') + 1)));
+			if (line.startsWith(prefix))
+				return line;
+		}
+	}
+
+	//Delta channels get a snapshot on joining and then only the changes
+	@Test
+	public void testServerNodes() throws IOException
+	{
+		ServerNodes serverNodes = new ServerNodes();
+		Channel full = new Channel("full");
+		Channel delta = new Channel("delta", true);
+
+		serverNodes.add(full);
+		assertEquals(full.getBuffer().poll(), "ServerNodes: full");
+		serverNodes.add(delta);
+		assertEquals(full.getBuffer().poll(), "ServerNodes: delta full");
+		assertEquals(delta.getBuffer().poll(), "ServerNodes@2: delta full");
+		serverNodes.add(new Channel("other"));
+		assertEquals(full.getBuffer().poll(), "ServerNodes: delta full other");
+		assertEquals(delta.getBuffer().poll(), "ServerNodes@3 +other");
+		serverNodes.remove(full);
+		assertEquals(delta.getBuffer().poll(), "ServerNodes@4 -full");
+		assertEquals(serverNodes.getVersion(), 4);
+
+		serverNodes.sendSnapshot(delta);
+		assertEquals(delta.getBuffer().poll(), "ServerNodes@4: delta other");
+		assertTrue(delta.getBuffer().isEmpty());
+	}
+
+	//Quorums made and dropped reach delta channels as Hive deltas
+	@Test
+	public void testHive() throws IOException
+	{
+		ServerNodes serverNodes = new ServerNodes();
+		Hive hive = new Hive(serverNodes);
+		Channel full = new Channel("full");
+		Channel delta = new Channel("delta", true);
+		serverNodes.add(full);
+		serverNodes.add(delta);
+		full.getBuffer().clear();
+		delta.getBuffer().clear();
+
+		hive.updateChannel(delta);
+		assertEquals(delta.getBuffer().poll(), "Hive@0:");
+		Quorum quorum = new Quorum("q1");
+		hive.addQuorum(quorum);
+		assertEquals(full.getBuffer().poll(), "Hive q1");
+		assertEquals(delta.getBuffer().poll(), "Hive@1 +q1");
+		hive.removeQuorum(quorum);
+		assertEquals(full.getBuffer().poll(), "Hive");
+		assertEquals(delta.getBuffer().poll(), "Hive@2 -q1");
+		assertEquals(hive.getVersion(), 2);
+	}
+
+	//A client asking for deltas over the network, resyncing a quorum list
+	@Test
+	public void testNetwork() throws IOException, InterruptedException
+	{
+		final NioServer server = new NioServer(5080, 1);
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		thread.start();
+		Utility.pause(100);
+		try
+		{
+			Socket socket1 = new Socket("localhost", 5080);
+			BufferedReader in1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
+			PrintWriter out1 = new PrintWriter(socket1.getOutputStream(), true);
+			assertEquals(in1.readLine(), Handshake.PROMPT);
+			out1.println(Handshake.request("one", Arrays.asList(Handshake.DELTA)));
+			assertEquals(in1.readLine(), "Connected! delta");
+			assertEquals(in1.readLine(), "ServerNodes@1: one");
+			assertEquals(in1.readLine(), "Hive@0:");
+
+			out1.println("make quorum1");
+			assertEquals(in1.readLine(), "Hive@1 +quorum1");
+			assertEquals(in1.readLine(), "Connecting to Quorum: quorum1");
+			assertEquals(in1.readLine(), "ClientNodes (quorum1)@1: one");
+			assertEquals(in1.readLine(), "List of connected Quorums: quorum1");
+
+			// a client without the option keeps getting full lists
+			Socket socket2 = new Socket("localhost", 5080);
+			BufferedReader in2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+			PrintWriter out2 = new PrintWriter(socket2.getOutputStream(), true);
+			assertEquals(in2.readLine(), Handshake.PROMPT);
+			out2.println("connect two");
+			assertEquals(in2.readLine(), "Connected!");
+			assertEquals(in2.readLine(), "ServerNodes: one two");
+			assertEquals(in2.readLine(), "Hive quorum1");
+			assertEquals(in1.readLine(), "ServerNodes@2 +two");
+
+			out2.println("join quorum1");
+			assertEquals(in2.readLine(), "Connecting to Quorum: quorum1");
+			assertEquals(in2.readLine(), "ClientNodes (quorum1): one two");
+			assertEquals(in1.readLine(), "ClientNodes (quorum1)@2 +two");
+
+			out1.println("resync quorum1");
+			assertEquals(in1.readLine(), "ClientNodes (quorum1)@2: one two");
+			out1.println("resync quorum2");
+			assertEquals(in1.readLine(), "badQuorum quorum2 user not connected to quorum");
+			out1.println("resync ServerNodes");
+			assertEquals(in1.readLine(), "ServerNodes@2: one two");
+
+			socket2.close();
+			assertEquals(in1.readLine(), "ClientNodes (quorum1)@3 -two");
+			assertEquals(in1.readLine(), "ServerNodes@3 -two");
+			socket1.close();
+		}
+		finally
+		{
+			server.close();
+			thread.join();
+			Utility.pause(100);
+		}
+	}
+}
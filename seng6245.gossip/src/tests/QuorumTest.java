@@ -193,4 +193,187 @@ public class QuorumTest
 		assertEquals(channel3.getBuffer().poll(), "Message (q1test): test-test-test");
 		assertEquals(channel3.getBuffer().poll(), null);
 	}
+
+	//Messages from many senders leave every quorum in the order they came
+	@Test
+	public void testMessageOrder() throws IOException, InterruptedException
+	{
+		final Quorum[] quorums = new Quorum[16];
+		for (int q = 0; q < quorums.length; q++)
+			quorums[q] = new Quorum("order" + q, hive, channel1);
+		channel1.getBuffer().clear();
+
+		Thread[] senders = new Thread[4];
+		for (int t = 0; t < senders.length; t++)
+		{
+			final int sender = t;
+			senders[t] = new Thread()
+			{
+				public void run()
+				{
+					for (int i = 0; i < 50; i++)
+						for (Quorum quorum : quorums)
+							quorum.updateBuffer(sender + " " + i);
+				}
+			};
+			senders[t].start();
+		}
+		for (Thread sender : senders)
+			sender.join();
+		Utility.pause(500);
+
+		// per quorum and sender the numbers must be in order
+		int[][] next = new int[quorums.length][senders.length];
+		int count = 0;
+		for (String line = channel1.getBuffer().poll(); line != null; line = channel1.getBuffer().poll())
+		{
+			String[] parts = line.substring(line.indexOf(": ") + 2).split(" ");
+			int q = Integer.parseInt(line.substring("Message (order".length(), line.indexOf(')')));
+			int sender = Integer.parseInt(parts[0]);
+			assertEquals(Integer.parseInt(parts[1]), next[q][sender]++);
+			count++;
+		}
+		assertEquals(count, quorums.length * senders.length * 50);
+	}
+
+	//The last member leaving stops the quorum without a thread of its own
+	@Test
+	public void testNoThreadPerQuorum() throws IOException
+	{
+		int threads = Thread.activeCount();
+		Quorum[] quorums = new Quorum[100];
+		for (int q = 0; q < quorums.length; q++)
+			quorums[q] = new Quorum("idle" + q, hive, channel1);
+		assertTrue(Thread.activeCount() < threads + quorums.length);
+
+		for (Quorum quorum : quorums)
+			quorum.removeChannel(channel1);
+		Utility.pause(500);
+		for (Quorum quorum : quorums)
+			assertFalse(quorum.isAlive());
+		assertEquals(hive.getQuorumsMap().size(), 0);
+	}
+
+	//The last member leaving while a batch is being delivered still stops the quorum
+	@Test
+	public void testLeaveDuringBatch() throws IOException
+	{
+		for (int round = 0; round < 500; round++)
+		{
+			Quorum quorum = new Quorum("busy" + round, hive, channel1);
+			quorum.updateBuffer("1 message");
+			// leave at a different point of the batch every round
+			long until = System.nanoTime() + (round % 50) * 20000L;
+			while (System.nanoTime() < until)
+				continue;
+			quorum.removeChannel(channel1);
+			channel1.getBuffer().clear();
+
+			long deadline = System.currentTimeMillis() + 2000;
+			while (quorum.isAlive() && System.currentTimeMillis() < deadline)
+				Utility.pause(1);
+			assertFalse("round " + round, quorum.isAlive());
+			assertFalse(hive.contains("busy" + round));
+		}
+	}
+
+	//With a batch delay messages sent together are delivered as one batch
+	@Test
+	public void testBatchDelay() throws IOException
+	{
+		Config.get().setQuorumDelayMillis(100);
+		try
+		{
+			quorum1 = new Quorum("q1test", hive, channel1);
+			quorum1.addChannel(channel2);
+			channel1.getBuffer().clear();
+			channel2.getBuffer().clear();
+			long batches = Quorum.getBatchSizes().getCount();
+
+			for (int i = 0; i < 10; i++)
+				quorum1.updateBuffer("1 message" + i);
+			assertEquals(channel2.getBuffer().poll(), null);
+			Utility.pause(300);
+
+			for (int i = 0; i < 10; i++)
+				assertEquals(channel2.getBuffer().poll(), "Message (q1test): 1 message" + i);
+			assertEquals(channel2.getBuffer().poll(), null);
+			assertEquals(Quorum.getBatchSizes().getCount(), batches + 1);
+			assertTrue(Quorum.getLatency().getMax() >= 100000);
+		}
+		finally
+		{
+			Config.get().setQuorumDelayMillis(0);
+		}
+	}
+
+	//Whoever joins gets the last messages first, then only what is new
+	@Test
+	public void testHistoryOnJoin() throws IOException
+	{
+		quorum1 = new Quorum("q1test", hive, channel1);
+		quorum1.setHistory(3, 1 << 16);
+		for (int i = 0; i < 5; i++)
+			quorum1.updateBuffer("1 message" + i);
+		Utility.pause(300);
+		assertEquals(quorum1.getHistory().size(), 3);
+
+		channel2.getBuffer().clear();
+		quorum1.addChannel(channel2);
+		quorum1.updateBuffer("1 message5");
+		Utility.pause(300);
+		assertEquals(channel2.getBuffer().poll(), "Connecting to Quorum: q1test");
+		assertEquals(channel2.getBuffer().poll(), "ClientNodes (q1test): 1 2");
+		for (int i = 2; i < 6; i++)
+			assertEquals(channel2.getBuffer().poll(), "Message (q1test): 1 message" + i);
+		assertEquals(channel2.getBuffer().poll(), null);
+	}
+
+	//The history command sends a member the last messages it asks for
+	@Test
+	public void testHistoryCommand() throws IOException
+	{
+		quorum1 = new Quorum("q1test", hive, channel1);
+		channel1.getQuorums().put(quorum1.Id, quorum1);
+		quorum1.setHistory(10, 1 << 16);
+		for (int i = 0; i < 5; i++)
+			quorum1.updateBuffer("1 message" + i);
+		Utility.pause(300);
+		channel1.getBuffer().clear();
+
+		Arguments arguments = new Arguments();
+		assertEquals(Commands.get().dispatch(channel1, "history q1test 2", arguments), "");
+		assertEquals(channel1.getBuffer().poll(), "Message (q1test): 1 message3");
+		assertEquals(channel1.getBuffer().poll(), "Message (q1test): 1 message4");
+		assertEquals(channel1.getBuffer().poll(), null);
+		assertEquals(Commands.get().dispatch(channel1, "history q1test x", arguments),
+				"badQuorum q1test history needs a number of messages");
+	}
+
+	//A large quorum delivered in parallel still keeps each member's order
+	@Test
+	public void testParallelFanout() throws IOException
+	{
+		quorum1 = new Quorum("q1test", hive, channel1);
+		quorum1.setFanout(8, 4);
+		Channel[] members = new Channel[40];
+		for (int m = 0; m < members.length; m++)
+		{
+			members[m] = new Channel("member" + m);
+			quorum1.addChannel(members[m]);
+		}
+		for (Channel member : members)
+			member.getBuffer().clear();
+
+		for (int i = 0; i < 100; i++)
+			quorum1.updateBuffer("1 message" + i);
+		Utility.pause(500);
+
+		for (Channel member : members)
+		{
+			for (int i = 0; i < 100; i++)
+				assertEquals(member.getBuffer().poll(), "Message (q1test): 1 message" + i);
+			assertEquals(member.getBuffer().poll(), null);
+		}
+	}
 }
@@ -1,6 +1,7 @@
 package tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import java.io.IOException;
 import org.junit.Before;
 import org.junit.Test;
@@ -62,4 +63,19 @@ public class ServerNodesTest
 		String output = serverNodes.getList();
 		assertEquals(output, "ServerNodes: ");
 	}
+
+	// tests the list is rendered once per change
+	@Test
+	public void testCachedList() throws IOException
+	{
+		serverNodes.add(channel2);
+		serverNodes.add(channel1);
+		String output = serverNodes.getList();
+		assertEquals(output, "ServerNodes: 1 2");
+		assertSame(serverNodes.getList(), output);
+
+		serverNodes.remove(channel1);
+		assertEquals(serverNodes.getList(), "ServerNodes: 2");
+		assertEquals(serverNodes.size(), 1);
+	}
 }
@@ -0,0 +1,229 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import protocol.*;
+import server.*;
+
+/**
+ * Test resuming a session after the connection dropped
+ */
+public class SessionTest
+{
+	private ServerSocket server;
+	private ServerNodes serverNodes;
+	private Hive hive;
+
+	/**
+	 * Sets up the test fixture.
+	 * Offers resumable sessions with a grace period of 5 seconds
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		Config config = new Config();
+		config.setResumeGraceMillis(5000);
+		Config.set(config);
+		server = new ServerSocket(5080);
+		serverNodes = new ServerNodes();
+		hive = new Hive(serverNodes);
+	}
+
+	/**
+	 * Cleanup the Test by closing the server socket
+	 */
+	@After
+	public void cleanup() throws IOException
+	{
+		Config.set(new Config());
+		server.close();
+		Utility.pause(100);
+	}
+
+	/*
+	 * connects a client and sets up its channel as the server would
+	 * @return Channel - the channel, already started unless it resumed a session
+	 */
+	private Channel connect(Socket client, String request) throws IOException
+	{
+		client.getOutputStream().write((request + "\n").getBytes());
+		Channel channel = new Channel(server.accept(), hive, serverNodes);
+		if (!channel.resume())
+		{
+			serverNodes.add(channel);
+			hive.updateChannel(channel);
+		}
+		new Thread(channel).start();
+		return channel;
+	}
+
+	//Lines are numbered as they are written and the last ones are kept
+	@Test
+	public void testSession()
+	{
+		Session session = new Session(2);
+		assertEquals(session.getToken().length(), 32);
+		assertFalse(session.getToken().equals(new Session(2).getToken()));
+		Frame one = Frame.of("one");
+		Frame two = Frame.of("two");
+		Frame three = Frame.of("three");
+		assertEquals(session.next(one), 1);
+		assertEquals(session.next(two), 2);
+		assertEquals(session.next(three), 3);
+
+		// only the last two are kept
+		assertNull(session.rewind(0));
+		assertNull(session.rewind(4));
+		List<Frame> missed = session.rewind(1);
+		assertEquals(missed.size(), 2);
+		assertTrue(missed.get(0) == two);
+		assertTrue(missed.get(1) == three);
+		// written again with the same numbers
+		assertEquals(session.getSequence(), 1);
+		assertEquals(session.next(two), 2);
+	}
+
+	//The numbers in front of the lines are read back
+	@Test
+	public void testHandshake() throws IOException
+	{
+		Handshake handshake = Handshake.parse("connect User1 resume=abc:12");
+		assertEquals(handshake.getOption(Handshake.RESUME), "abc:12");
+		assertFalse(handshake.hasOption(Handshake.RESUME));
+		assertNull(Handshake.parse("connect User1 resume").getOption(Handshake.RESUME));
+		assertEquals(Handshake.resume("abc", 12), "resume=abc:12");
+		assertEquals(new String(Handshake.prefix(7)), "#7 ");
+		assertEquals(Handshake.sequenceOf("#7 Hive q1"), 7);
+		assertEquals(Handshake.sequenceOf("Hive q1"), -1);
+		assertEquals(Handshake.sequenceOf("#q1 hi"), -1);
+		assertEquals(Handshake.withoutSequence("#7 Hive q1"), "Hive q1");
+		assertEquals(Handshake.withoutSequence("Hive q1"), "Hive q1");
+	}
+
+	//A client coming back within the grace period keeps its quorums, gets
+	//what it missed, and nobody sees it leave or join
+	@Test
+	public void testResume() throws IOException
+	{
+		Socket client = new Socket("localhost", 5080);
+		Channel channel = connect(client, "connect User1 resume");
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		String token = channel.getSession().getToken();
+		assertEquals(in.readLine(), "Connected! resume=" + token);
+		assertEquals(in.readLine(), "#1 ServerNodes: User1");
+		assertEquals(in.readLine(), "#2 Hive");
+
+		out.println("make quorum1");
+		assertEquals(in.readLine(), "#3 Hive quorum1");
+		assertEquals(in.readLine(), "#4 Connecting to Quorum: quorum1");
+		assertEquals(in.readLine(), "#5 ClientNodes (quorum1): User1");
+		assertEquals(in.readLine(), "#6 List of connected Quorums: quorum1");
+
+		Quorum quorum = channel.getQuorums().get("quorum1");
+		Channel other = new Channel("User2");
+		serverNodes.add(other);
+		quorum.addChannel(other);
+		assertEquals(in.readLine(), "#7 ServerNodes: User1 User2");
+		assertEquals(in.readLine(), "#8 ClientNodes (quorum1): User1 User2");
+		other.getBuffer().clear();
+
+		// the connection drops, a message is sent meanwhile
+		client.close();
+		Utility.pause(500);
+		assertTrue(serverNodes.contains("User1"));
+		quorum.updateBuffer("User2 hello");
+		Utility.pause(500);
+
+		// come back having missed the last list
+		client = new Socket("localhost", 5080);
+		Channel resumed = connect(client, "connect User1 " + Handshake.resume(token, 7));
+		in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		assertEquals(in.readLine(), "Connected! resume=" + token + " resumed");
+		assertEquals(in.readLine(), "#8 ClientNodes (quorum1): User1 User2");
+		assertEquals(in.readLine(), "#9 Message (quorum1): User2 hello");
+		assertTrue(resumed.getSession() == channel.getSession());
+		assertTrue(serverNodes.getNodesMap().get("User1") == resumed);
+		assertTrue(quorum.getList().getNodesMap().get("User1") == resumed);
+
+		// nobody saw the user leave or join
+		assertEquals(other.getBuffer().poll(), "Message (quorum1): User2 hello");
+		assertNull(other.getBuffer().poll());
+
+		// the new connection is served as the old one was
+		quorum.updateBuffer("User2 again");
+		assertEquals(in.readLine(), "#10 Message (quorum1): User2 again");
+		out = new PrintWriter(client.getOutputStream(), true);
+		out.println("disconnect User1");
+		assertEquals(in.readLine(), "#11 disconnectedFromServer");
+		Utility.pause(500);
+		assertFalse(serverNodes.contains("User1"));
+		client.close();
+	}
+
+	//A session that is not resumed in time ends and the user leaves
+	@Test
+	public void testExpired() throws IOException
+	{
+		Config.get().setResumeGraceMillis(200);
+		Socket client = new Socket("localhost", 5080);
+		Channel channel = connect(client, "connect User1 resume");
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		String token = channel.getSession().getToken();
+		assertEquals(in.readLine(), "Connected! resume=" + token);
+		assertEquals(in.readLine(), "#1 ServerNodes: User1");
+		client.close();
+		Utility.pause(1000);
+		assertFalse(serverNodes.contains("User1"));
+
+		// a new session starts
+		client = new Socket("localhost", 5080);
+		channel = connect(client, "connect User1 " + Handshake.resume(token, 1));
+		in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		assertFalse(channel.getSession().getToken().equals(token));
+		assertEquals(in.readLine(), "Connected! resume=" + channel.getSession().getToken());
+		assertEquals(in.readLine(), "#1 ServerNodes: User1");
+		client.close();
+	}
+
+	//A plain connect ends a session waiting to be resumed
+	@Test
+	public void testReplacedByPlainConnect() throws IOException
+	{
+		Socket client = new Socket("localhost", 5080);
+		connect(client, "connect User1 resume");
+		BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		assertTrue(in.readLine().startsWith("Connected! resume="));
+		client.close();
+		Utility.pause(500);
+		assertTrue(serverNodes.contains("User1"));
+
+		client = new Socket("localhost", 5080);
+		Channel channel = connect(client, "connect User1");
+		in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+		assertEquals(in.readLine(), Handshake.PROMPT);
+		assertEquals(in.readLine(), "Connected!");
+		assertEquals(in.readLine(), "ServerNodes: User1");
+		assertNull(channel.getSession());
+		assertTrue(serverNodes.getNodesMap().get("User1") == channel);
+		client.close();
+	}
+}
@@ -0,0 +1,94 @@
+package tests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Test;
+
+import adts.*;
+import server.*;
+
+/**
+ * Test that threads follow the configured thread mode
+ */
+public class ThreadsTest
+{
+	/**
+	 * Restore the default options after every test
+	 */
+	@After
+	public void cleanup()
+	{
+		Config.set(new Config());
+	}
+
+	//Platform threads are handed out by default
+	@Test
+	public void testPlatformByDefault()
+	{
+		Thread thread = Threads.newThread("test", new Runnable()
+		{
+			public void run()
+			{
+			}
+		});
+		assertFalse(thread.isVirtual());
+	}
+
+	//Virtual threads are handed out once configured
+	@Test
+	public void testVirtual() throws InterruptedException
+	{
+		Config config = new Config();
+		config.setThreadMode(Threads.Mode.VIRTUAL);
+		Config.set(config);
+
+		final AtomicBoolean virtual = new AtomicBoolean(false);
+		ExecutorService executor = Threads.newExecutor("test-");
+		executor.execute(new Runnable()
+		{
+			public void run()
+			{
+				virtual.set(Thread.currentThread().isVirtual());
+			}
+		});
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.SECONDS);
+		assertTrue(virtual.get());
+	}
+
+	//Quorums run on virtual threads in virtual mode
+	@Test
+	public void testVirtualQuorum() throws IOException
+	{
+		Config config = new Config();
+		config.setThreadMode(Threads.Mode.VIRTUAL);
+		Config.set(config);
+
+		Channel channel = new Channel("1");
+		Hive hive = new Hive(new ServerNodes());
+		Quorum quorum = new Quorum("q1test", hive, channel);
+		assertTrue(quorum.isAlive());
+		quorum.updateBuffer("test");
+		Utility.pause(100);
+		channel.getBuffer().clear();
+		quorum.removeChannel(channel);
+		Utility.pause(100);
+		assertFalse(quorum.isAlive());
+		assertFalse(hive.contains("q1test"));
+	}
+
+	//Options parsed from the command line select the mode
+	@Test
+	public void testParse()
+	{
+		assertTrue(Config.parse(new String[] { "-threads", "virtual" }).getThreadMode() == Threads.Mode.VIRTUAL);
+		assertTrue(Config.parse(new String[0]).getThreadMode() == Threads.Mode.PLATFORM);
+	}
+}
@@ -0,0 +1,116 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import adts.TimingWheel;
+
+/**
+ * Test the hashed timing wheel
+ */
+public class TimingWheelTest
+{
+	private static final long MILLI = 1000000L;
+
+	// runs the tasks that are due on the thread advancing the wheel
+	private static final Executor DIRECT = new Executor()
+	{
+		public void execute(Runnable task)
+		{
+			task.run();
+		}
+	};
+
+	/*
+	 * @return Runnable - counts its runs
+	 */
+	private static Runnable counting(final AtomicInteger runs)
+	{
+		return new Runnable()
+		{
+			public void run()
+			{
+				runs.incrementAndGet();
+			}
+		};
+	}
+
+	//A timeout fires on the first tick at or after its deadline, never before
+	@Test
+	public void testFires()
+	{
+		TimingWheel wheel = new TimingWheel(10, 8, DIRECT);
+		AtomicInteger runs = new AtomicInteger(0);
+		long now = System.nanoTime();
+		TimingWheel.Timeout timeout = wheel.schedule(counting(runs), 25);
+		assertEquals(wheel.getPending(), 1);
+		wheel.advance(now + 15 * MILLI);
+		assertEquals(runs.get(), 0);
+		wheel.advance(now + 45 * MILLI);
+		assertEquals(runs.get(), 1);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+		assertEquals(wheel.getPending(), 0);
+		wheel.advance(now + 200 * MILLI);
+		assertEquals(runs.get(), 1);
+	}
+
+	//A timeout further away than one turn of the wheel waits for its round
+	@Test
+	public void testRounds()
+	{
+		TimingWheel wheel = new TimingWheel(10, 8, DIRECT);
+		AtomicInteger runs = new AtomicInteger(0);
+		long now = System.nanoTime();
+		wheel.schedule(counting(runs), 200);
+		wheel.advance(now + 100 * MILLI);
+		wheel.advance(now + 180 * MILLI);
+		assertEquals(runs.get(), 0);
+		wheel.advance(now + 220 * MILLI);
+		assertEquals(runs.get(), 1);
+	}
+
+	//Cancelled timeouts never run and leave the wheel, whether they were on it yet or not
+	@Test
+	public void testCancel()
+	{
+		TimingWheel wheel = new TimingWheel(10, 8, DIRECT);
+		AtomicInteger runs = new AtomicInteger(0);
+		long now = System.nanoTime();
+		TimingWheel.Timeout early = wheel.schedule(counting(runs), 50);
+		TimingWheel.Timeout late = wheel.schedule(counting(runs), 50);
+		assertTrue(early.cancel());
+		assertFalse(early.cancel());
+		wheel.advance(now + 10 * MILLI);
+		assertTrue(late.cancel());
+		wheel.advance(now + 20 * MILLI);
+		assertEquals(wheel.getPending(), 0);
+		wheel.advance(now + 100 * MILLI);
+		assertEquals(runs.get(), 0);
+		assertTrue(late.isCancelled());
+	}
+
+	//Many timeouts cost O(1) each to schedule and cancel
+	@Test
+	public void testMany()
+	{
+		TimingWheel wheel = new TimingWheel(10, 512, DIRECT);
+		AtomicInteger runs = new AtomicInteger(0);
+		long now = System.nanoTime();
+		TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[100000];
+		for (int i = 0; i < timeouts.length; i++)
+			timeouts[i] = wheel.schedule(counting(runs), 1000 + i % 5000);
+		wheel.advance(now);
+		for (int i = 0; i < timeouts.length; i += 2)
+			timeouts[i].cancel();
+		wheel.advance(now + 7000 * MILLI);
+		assertEquals(runs.get(), timeouts.length / 2);
+		assertEquals(wheel.getPending(), 0);
+	}
+}
@@ -0,0 +1,183 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import adts.*;
+import protocol.Handshake;
+import server.*;
+
+/**
+ * Test the token bucket and the rate limits of users and quorums
+ */
+public class TokenBucketTest
+{
+	private static final long SECOND = 1000000000L;
+
+	/**
+	 * Cleanup the Test by restoring the default options
+	 */
+	@After
+	public void cleanup()
+	{
+		Config.set(new Config());
+	}
+
+	//A full bucket allows a burst, then refills at the rate
+	@Test
+	public void testBurstAndRefill()
+	{
+		TokenBucket bucket = new TokenBucket(10, 3, TokenBucket.Action.DROP);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+		// one token every 100ms
+		assertFalse(bucket.tryAcquire(now + SECOND / 20));
+		assertTrue(bucket.tryAcquire(now + SECOND / 10));
+		assertFalse(bucket.tryAcquire(now + SECOND / 10));
+		// never more than the burst after a long pause
+		long later = now + 60 * SECOND;
+		for (int i = 0; i < 3; i++)
+			assertTrue(bucket.tryAcquire(later));
+		assertFalse(bucket.tryAcquire(later));
+	}
+
+	//Reserving always takes the token and says how long to wait for it
+	@Test
+	public void testReserve()
+	{
+		TokenBucket bucket = new TokenBucket(10, 1, TokenBucket.Action.DELAY);
+		long now = System.nanoTime();
+		assertEquals(bucket.reserve(now), 0);
+		assertEquals(bucket.reserve(now), SECOND / 10);
+		assertEquals(bucket.reserve(now), 2 * SECOND / 10);
+		assertFalse(bucket.tryAcquire(now + 2 * SECOND / 10));
+		assertTrue(bucket.tryAcquire(now + 3 * SECOND / 10));
+	}
+
+	//Threads sharing a bucket take exactly the tokens there are
+	@Test
+	public void testConcurrent() throws InterruptedException
+	{
+		final TokenBucket bucket = new TokenBucket(0.001, 1000, TokenBucket.Action.DROP);
+		final AtomicInteger taken = new AtomicInteger(0);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					for (int j = 0; j < 1000; j++)
+						if (bucket.tryAcquire(System.nanoTime()))
+							taken.incrementAndGet();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(taken.get(), 1000);
+	}
+
+	//Messages over a user's limit are dropped before the quorum sees them
+	@Test
+	public void testUserLimitDrop() throws IOException
+	{
+		Config.get().setUserLimit(1, 2, TokenBucket.Action.DROP);
+		Hive hive = new Hive(new ServerNodes());
+		Channel channel = new Channel("User1");
+		channel.getQuorums().put("q1", new Quorum("q1", hive, channel));
+		channel.getBuffer().clear();
+		Arguments arguments = new Arguments();
+		for (int i = 0; i < 3; i++)
+			assertEquals(Commands.get().dispatch(channel, "message q1 hi" + i, arguments), "");
+		Utility.pause(500);
+		assertEquals(channel.getBuffer().poll(), "Message (q1): User1 hi0");
+		assertEquals(channel.getBuffer().poll(), "Message (q1): User1 hi1");
+		assertNull(channel.getBuffer().poll());
+		assertTrue(TokenBucket.report().startsWith("limited delayed="));
+	}
+
+	//On the event loop a delayed user stops being read instead of losing messages
+	@Test
+	public void testUserLimitDelayNio() throws IOException, InterruptedException
+	{
+		Config.get().setUserLimit(5, 1, TokenBucket.Action.DELAY);
+		final NioServer server = new NioServer(5090, 1);
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				server.serve();
+			}
+		};
+		thread.start();
+		Utility.pause(100);
+		try
+		{
+			Socket socket = new Socket("localhost", 5090);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			assertEquals(in.readLine(), Handshake.PROMPT);
+			out.println("connect User1");
+			assertEquals(in.readLine(), "Connected!");
+			out.println("make q1");
+			assertEquals(in.readLine(), "ServerNodes: User1");
+			assertEquals(in.readLine(), "Hive");
+			assertEquals(in.readLine(), "Hive q1");
+			assertEquals(in.readLine(), "Connecting to Quorum: q1");
+			assertEquals(in.readLine(), "ClientNodes (q1): User1");
+			assertEquals(in.readLine(), "List of connected Quorums: q1");
+
+			// one token every 200ms: the messages all go, held up 200ms apart
+			long start = System.nanoTime();
+			for (int i = 0; i < 4; i++)
+				out.println("message q1 hi" + i);
+			for (int i = 0; i < 4; i++)
+				assertEquals(in.readLine(), "Message (q1): User1 hi" + i);
+			assertTrue(System.nanoTime() - start >= 350 * 1000000L);
+			assertTrue(TokenBucket.report().startsWith("limited delayed="));
+			socket.close();
+		}
+		finally
+		{
+			server.close();
+			thread.join();
+			Utility.pause(100);
+		}
+	}
+
+	//A user over the limit of the quorum is disconnected
+	@Test
+	public void testQuorumLimitDisconnect() throws IOException
+	{
+		Config.get().setQuorumLimit(1, 2, TokenBucket.Action.DISCONNECT);
+		Hive hive = new Hive(new ServerNodes());
+		Channel channel1 = new Channel("User1");
+		Channel channel2 = new Channel("User2");
+		Quorum quorum = new Quorum("q1", hive, channel1);
+		quorum.addChannel(channel2);
+		channel1.getQuorums().put("q1", quorum);
+		channel2.getQuorums().put("q1", quorum);
+		assertTrue(quorum.getLimit() != null);
+		Arguments arguments = new Arguments();
+		assertEquals(Commands.get().dispatch(channel1, "message q1 one", arguments), "");
+		assertEquals(Commands.get().dispatch(channel2, "message q1 two", arguments), "");
+		assertEquals(Commands.get().dispatch(channel2, "message q1 three", arguments), "Disconnected: rate limit exceeded");
+	}
+}
@@ -0,0 +1,256 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import adts.*;
+import protocol.*;
+import server.*;
+
+/**
+ * Test the binary protocol codec and its negotiation during the handshake
+ */
+public class WireTest
+{
+	private ServerSocket server;
+	private Socket serverSide;
+	private Socket clientSide;
+
+	/**
+	 * Sets up the test fixture.
+	 * Connects a client socket to a server socket
+	 */
+	@Before
+	public void initialize() throws IOException
+	{
+		server = new ServerSocket(5060);
+		clientSide = new Socket("localhost", 5060);
+		serverSide = server.accept();
+	}
+
+	/**
+	 * Cleanup the Test by closing the sockets
+	 */
+	@After
+	public void cleanup() throws IOException
+	{
+		clientSide.close();
+		server.close();
+		Utility.pause(100);
+	}
+
+	//Frames decode to what was encoded, across varint boundaries
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(Wire.line("make quorum1"));
+		bytes.write(Wire.message(127, 128, "héllo"));
+		bytes.write(Wire.say(16384, ""));
+		bytes.write(Wire.bind(Integer.MAX_VALUE, "quorum1"));
+
+		Wire.Reader reader = new Wire.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.LINE);
+		assertEquals(reader.text(), "make quorum1");
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.MESSAGE);
+		assertEquals(reader.first(), 127);
+		assertEquals(reader.second(), 128);
+		assertEquals(reader.text(), "héllo");
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.SAY);
+		assertEquals(reader.first(), 16384);
+		assertEquals(reader.text(), "");
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.BIND);
+		assertEquals(reader.first(), Integer.MAX_VALUE);
+		assertEquals(reader.text(), "quorum1");
+		assertFalse(reader.next());
+	}
+
+	//A message frame is smaller than its line
+	@Test
+	public void testCompact()
+	{
+		assertEquals(Wire.varintSize(127), 1);
+		assertEquals(Wire.varintSize(128), 2);
+		Frame frame = Frame.message("quorum1", "user1 hello");
+		assertEquals(frame.getText(), "Message (quorum1): user1 hello");
+		assertEquals(frame.getBinary().length, 9);
+		assertTrue(frame.getBinary().length < frame.length());
+	}
+
+	//Truncated and unknown frames are rejected
+	@Test(expected = IOException.class)
+	public void testMalformed() throws IOException
+	{
+		byte[] frame = Wire.line("hello");
+		new Wire.Reader(new ByteArrayInputStream(Arrays.copyOf(frame, 3))).next();
+	}
+
+	//Options are optional and come back in the acknowledgement
+	@Test
+	public void testHandshake() throws IOException
+	{
+		Handshake handshake = Handshake.parse("connect User1 binary");
+		assertEquals(handshake.getUserName(), "User1");
+		assertTrue(handshake.hasOption(Handshake.BINARY));
+		assertFalse(Handshake.parse("connect User1").hasOption(Handshake.BINARY));
+		assertEquals(Handshake.accept(Collections.<String> emptyList()), "Connected!");
+		assertEquals(Handshake.accepted("Connected! binary"), Arrays.asList(Handshake.BINARY));
+		assertEquals(Handshake.accepted("Connected!"), Collections.emptyList());
+	}
+
+	//A channel asked for the binary protocol speaks it after the acknowledgement
+	@Test
+	public void testBinaryChannel() throws IOException
+	{
+		OutputStream out = clientSide.getOutputStream();
+		InputStream in = clientSide.getInputStream();
+		out.write("connect User1 binary\n".getBytes());
+		ServerNodes serverNodes = new ServerNodes();
+		Hive hive = new Hive(serverNodes);
+		Channel channel = new Channel(serverSide, hive, serverNodes);
+		assertEquals(Handshake.readLine(in), Handshake.PROMPT);
+		serverNodes.add(channel);
+		hive.updateChannel(channel);
+		new Thread(channel).start();
+
+		assertEquals(Handshake.readLine(in), "Connected! binary");
+		Wire.Reader reader = new Wire.Reader(new BufferedInputStream(in));
+		assertEquals(nextLine(reader), "ServerNodes: User1");
+		assertEquals(nextLine(reader), "Hive");
+
+		out.write(Wire.line("make quorum1"));
+		assertEquals(nextLine(reader), "Hive quorum1");
+		assertEquals(nextLine(reader), "Connecting to Quorum: quorum1");
+		assertEquals(nextLine(reader), "ClientNodes (quorum1): User1");
+		assertEquals(nextLine(reader), "List of connected Quorums: quorum1");
+
+		// the first message binds the names it uses
+		out.write(Wire.line("message quorum1 hello there"));
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.BIND);
+		assertEquals(reader.text(), "quorum1");
+		int quorumId = reader.first();
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.BIND);
+		assertEquals(reader.text(), "User1");
+		int userId = reader.first();
+		assertMessage(reader, quorumId, userId, "hello there");
+
+		// the text of a SAY frame is checked as a message line is
+		out.write(Wire.say(quorumId, "hi\nServerNodes: forged"));
+		assertEquals(nextLine(reader), "Unrecognized Command: message quorum1 hi\nServerNodes: forged");
+		out.write(Wire.say(quorumId, ""));
+		assertEquals(nextLine(reader), "Unrecognized Command: message quorum1 ");
+
+		// later messages refer to the ids only
+		out.write(Wire.say(quorumId, "again"));
+		assertMessage(reader, quorumId, userId, "again");
+
+		out.write(Wire.line("disconnect User1"));
+		assertEquals(nextLine(reader), "disconnectedFromServer");
+		assertFalse(reader.next());
+	}
+
+	//A quorum's id is dropped with the quorum and never handed out again
+	@Test
+	public void testSymbolsDropped() throws IOException
+	{
+		Hive hive = new Hive(new ServerNodes());
+		Channel channel = new Channel("User1");
+		Quorum quorum = new Quorum("short lived", hive, channel);
+		Frame frame = Frame.message("short lived", "User1 hello");
+		frame.getBinary();
+		int id = frame.getQuorumId();
+		assertEquals(Symbols.name(id), "short lived");
+
+		quorum.removeChannel(channel);
+		Utility.pause(300);
+		assertFalse(hive.contains("short lived"));
+		assertNull(Symbols.name(id));
+		// the frame keeps the id it was encoded with
+		assertEquals(frame.getQuorumId(), id);
+		assertTrue(Symbols.id("short lived") != id);
+	}
+
+	//A user's id is dropped when the user leaves the server
+	@Test
+	public void testUserDropped() throws IOException
+	{
+		ServerNodes serverNodes = new ServerNodes();
+		Channel channel = new Channel("Leaving");
+		serverNodes.add(channel);
+		Frame frame = Frame.message("somewhere", "Leaving hello");
+		frame.getBinary();
+		int id = frame.getUserId();
+		assertEquals(Symbols.name(id), "Leaving");
+
+		serverNodes.remove(channel);
+		assertNull(Symbols.name(id));
+		assertEquals(frame.getUserId(), id);
+		assertTrue(Symbols.id("Leaving") != id);
+	}
+
+	//A connection forgets the ids of quorums that are gone
+	@Test
+	public void testBoundForgotten() throws IOException
+	{
+		OutputStream out = clientSide.getOutputStream();
+		InputStream in = clientSide.getInputStream();
+		out.write("connect User1 binary\n".getBytes());
+		ServerNodes serverNodes = new ServerNodes();
+		Hive hive = new Hive(serverNodes);
+		Channel channel = new Channel(serverSide, hive, serverNodes);
+		assertEquals(Handshake.readLine(in), Handshake.PROMPT);
+		serverNodes.add(channel);
+		hive.updateChannel(channel);
+		new Thread(channel).start();
+		assertEquals(Handshake.readLine(in), "Connected! binary");
+		Wire.Reader reader = new Wire.Reader(new BufferedInputStream(in));
+
+		for (int i = 0; i < 200; i++)
+		{
+			out.write(Wire.line("make room" + i));
+			out.write(Wire.line("message room" + i + " hello"));
+			out.write(Wire.line("exit room" + i));
+			while (!(reader.next() && reader.opcode() == Wire.LINE && reader.text().equals("disconnectedquorum room" + i)))
+				;
+			Utility.pause(5);
+		}
+		assertTrue(channel.getBoundCount() < 64);
+		out.write(Wire.line("disconnect User1"));
+	}
+
+	// reads the next frame, which has to be a LINE
+	private String nextLine(Wire.Reader reader) throws IOException
+	{
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.LINE);
+		return reader.text();
+	}
+
+	// reads the next frame, which has to be the given MESSAGE
+	private void assertMessage(Wire.Reader reader, int quorumId, int userId, String text) throws IOException
+	{
+		assertTrue(reader.next());
+		assertEquals(reader.opcode(), Wire.MESSAGE);
+		assertEquals(reader.first(), quorumId);
+		assertEquals(reader.second(), userId);
+		assertEquals(reader.text(), text);
+	}
+}